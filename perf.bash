@@ -1,3 +1,5 @@
 #!/usr/bin/env bash
 
-ab -n 1000 -c 100 -X 127.0.0.1:8080 http://issues.littleshoot.org:8080/favicon.ico
+# Runs the end-to-end load test against a local origin, e.g.:
+#   ./perf.bash --modes plain,mitm --concurrency 64 --duration 30 --output target/load-test.json
+mvn -B -q -P jmh test-compile exec:exec@load-test -Dload.args="$*"
@@ -0,0 +1,103 @@
+package org.littleshoot.proxy.extras;
+
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import org.littleshoot.proxy.ActivityTracker;
+import org.littleshoot.proxy.ActivityTrackerAdapter;
+import org.littleshoot.proxy.FlowContext;
+import org.littleshoot.proxy.FullFlowContext;
+import org.littleshoot.proxy.impl.ClientToProxyConnection;
+import org.littleshoot.proxy.impl.ProxyToServerConnection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Measures the cost of the callbacks of a whole request/response exchange,
+ * with {@link MetricsActivityTracker} against a no-op tracker, on as many
+ * threads as a proxy typically has event loops.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class MetricsActivityTrackerBenchmark {
+    private static final HttpRequest REQUEST = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/");
+    private static final HttpResponse RESPONSE = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+
+    @State(Scope.Benchmark)
+    public static class Tracker {
+        @Param({"noop", "metrics"})
+        public String tracker;
+
+        ActivityTracker activityTracker;
+
+        @Setup
+        public void setUp() {
+            activityTracker = "metrics".equals(tracker) ? new MetricsActivityTracker() : new ActivityTrackerAdapter();
+        }
+    }
+
+    /**
+     * Each thread plays a client connection of its own, talking to one of a
+     * few origins.
+     */
+    @State(Scope.Thread)
+    public static class Flow {
+        private static int nextPort = 40000;
+
+        FlowContext flowContext;
+        FullFlowContext fullFlowContext;
+
+        @Setup
+        public void setUp() {
+            int port;
+            synchronized (Flow.class) {
+                port = nextPort++;
+            }
+
+            ClientToProxyConnection clientConnection = mock(ClientToProxyConnection.class);
+            when(clientConnection.getClientAddress()).thenReturn(new InetSocketAddress("127.0.0.1", port));
+            ProxyToServerConnection serverConnection = mock(ProxyToServerConnection.class);
+            when(serverConnection.getServerHostAndPort()).thenReturn("origin" + port % 3 + ":80");
+
+            flowContext = new FlowContext(clientConnection);
+            fullFlowContext = new FullFlowContext(clientConnection, serverConnection);
+        }
+    }
+
+    @Benchmark
+    public void exchange(Tracker tracker, Flow flow) {
+        ActivityTracker activityTracker = tracker.activityTracker;
+        activityTracker.bytesReceivedFromClient(flow.flowContext, 512);
+        activityTracker.requestReceivedFromClient(flow.flowContext, REQUEST);
+        activityTracker.bytesSentToServer(flow.fullFlowContext, 512);
+        activityTracker.requestSentToServer(flow.fullFlowContext, REQUEST);
+        activityTracker.bytesReceivedFromServer(flow.fullFlowContext, 4096);
+        activityTracker.responseReceivedFromServer(flow.fullFlowContext, RESPONSE);
+        activityTracker.bytesSentToClient(flow.flowContext, 4096);
+        activityTracker.responseSentToClient(flow.flowContext, RESPONSE);
+    }
+}
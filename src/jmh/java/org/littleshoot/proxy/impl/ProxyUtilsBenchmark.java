@@ -0,0 +1,146 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Measures the helpers the proxy calls on every request and response, on
+ * the headers of a bare request and of a typical browser exchange.
+ * </p>
+ *
+ * <p>
+ * The benchmarks that modify headers work on a copy, so each of them
+ * includes the cost of {@link #copyHeaders(Messages)}, which is measured on
+ * its own to be subtracted.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProxyUtilsBenchmark {
+    private static final String ABSOLUTE_URI = "http://www.example.com:8080/search?q=littleproxy&lang=en";
+    private static final String AUTHORITY = "www.example.com:443";
+
+    @State(Scope.Benchmark)
+    public static class Messages {
+        @Param({"minimal", "browser"})
+        public String headers;
+
+        HttpRequest request;
+        HttpResponse response;
+
+        @Setup
+        public void setUp() {
+            request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, ABSOLUTE_URI);
+            response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+            if ("minimal".equals(headers)) {
+                request.headers()
+                        .add(HttpHeaderNames.HOST, "www.example.com:8080");
+                response.headers()
+                        .add(HttpHeaderNames.CONTENT_LENGTH, "1024");
+            } else {
+                request.headers()
+                        .add(HttpHeaderNames.HOST, "www.example.com:8080")
+                        .add(HttpHeaderNames.USER_AGENT,
+                                "Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0")
+                        .add(HttpHeaderNames.ACCEPT,
+                                "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8")
+                        .add(HttpHeaderNames.ACCEPT_LANGUAGE, "en-US,en;q=0.5")
+                        .add(HttpHeaderNames.ACCEPT_ENCODING, "gzip, deflate, br, zstd")
+                        .add(HttpHeaderNames.COOKIE, "session=4f1c2a9e8b7d6c5e4f3a2b1c0d9e8f7a; theme=dark; "
+                                + "_ga=GA1.2.1234567890.1700000000; consent=yes")
+                        .add(HttpHeaderNames.UPGRADE_INSECURE_REQUESTS, "1")
+                        .add(HttpHeaderNames.CACHE_CONTROL, "max-age=0")
+                        .add("Proxy-Connection", "keep-alive")
+                        .add(HttpHeaderNames.CONNECTION, "keep-alive, X-Client-Hint")
+                        .add("X-Client-Hint", "1")
+                        .add(HttpHeaderNames.VIA, "1.1 upstream-cache");
+                response.headers()
+                        .add(HttpHeaderNames.DATE, "Mon, 19 Oct 2026 10:00:00 GMT")
+                        .add(HttpHeaderNames.SERVER, "nginx")
+                        .add(HttpHeaderNames.CONTENT_TYPE, "text/html; charset=utf-8")
+                        .add(HttpHeaderNames.TRANSFER_ENCODING, "gzip, chunked")
+                        .add(HttpHeaderNames.CONNECTION, "keep-alive")
+                        .add(HttpHeaderNames.KEEP_ALIVE, "timeout=5, max=100")
+                        .add(HttpHeaderNames.CACHE_CONTROL, "private, no-cache")
+                        .add(HttpHeaderNames.VARY, "Accept-Encoding, Cookie")
+                        .add(HttpHeaderNames.ETAG, "\"5f3a-1a2b3c4d\"")
+                        .add(HttpHeaderNames.SET_COOKIE, "session=4f1c2a9e8b7d6c5e4f3a2b1c0d9e8f7a; Path=/; HttpOnly")
+                        .add(HttpHeaderNames.SET_COOKIE, "theme=dark; Path=/; Max-Age=31536000");
+            }
+        }
+    }
+
+    @Benchmark
+    public String parseHostAndPortAbsoluteUri() {
+        return ProxyUtils.parseHostAndPort(ABSOLUTE_URI);
+    }
+
+    @Benchmark
+    public String parseHostAndPortAuthority() {
+        return ProxyUtils.parseHostAndPort(AUTHORITY);
+    }
+
+    @Benchmark
+    public HttpHeaders copyHeaders(Messages messages) {
+        return new DefaultHttpHeaders().set(messages.request.headers());
+    }
+
+    @Benchmark
+    public HttpHeaders stripHopByHopHeaders(Messages messages) {
+        HttpHeaders headers = new DefaultHttpHeaders().set(messages.request.headers());
+        ProxyUtils.stripHopByHopHeaders(headers);
+        return headers;
+    }
+
+    @Benchmark
+    public List<String> getAllCommaSeparatedHeaderValues(Messages messages) {
+        return ProxyUtils.getAllCommaSeparatedHeaderValues(HttpHeaderNames.TRANSFER_ENCODING, messages.response);
+    }
+
+    @Benchmark
+    public boolean isResponseSelfTerminating(Messages messages) {
+        return ProxyUtils.isResponseSelfTerminating(messages.response);
+    }
+
+    @Benchmark
+    public HttpRequest addVia(Messages messages) {
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, ABSOLUTE_URI,
+                new DefaultHttpHeaders().set(messages.request.headers()));
+        ProxyUtils.addVia(request, "littleproxy");
+        return request;
+    }
+
+    @Benchmark
+    public HttpRequest snapshotRequest(Messages messages) {
+        HttpRequest request = messages.request;
+        CopyOnWriteHttpHeaders headers = new CopyOnWriteHttpHeaders(request.headers());
+        return new DefaultHttpRequest(request.protocolVersion(), request.method(), request.uri(), headers.share());
+    }
+}
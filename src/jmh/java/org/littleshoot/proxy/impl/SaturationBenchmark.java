@@ -0,0 +1,136 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.channel.Channel;
+import io.netty.channel.DefaultEventLoop;
+import io.netty.channel.EventLoop;
+import io.netty.channel.local.LocalChannel;
+import org.littleshoot.proxy.HttpProxyServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * Measures how a client connection stops and resumes reading while the
+ * connections to its servers become saturated and writable again, each on
+ * a thread of its own as they would on the proxy's event loops. Compares the
+ * counter of saturated servers against the previous coordination, which
+ * synchronized on the client connection and scanned all of its servers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class SaturationBenchmark {
+    @State(Scope.Benchmark)
+    public static class Client {
+        @Param({"synchronized", "counting"})
+        public String coordination;
+
+        HttpProxyServer proxyServer;
+        EventLoop eventLoop;
+        Channel channel;
+        ClientToProxyConnection connection;
+
+        /**
+         * Whether each server is saturated, for the synchronized coordination
+         * to look up as it did with {@link ProxyConnection#isSaturated()}.
+         */
+        final Map<ProxyToServerConnection, Server> servers = new ConcurrentHashMap<>();
+
+        @Setup
+        public void setUp() throws Exception {
+            proxyServer = DefaultHttpProxyServer.bootstrap().withPort(0).start();
+            eventLoop = new DefaultEventLoop();
+            channel = new LocalChannel();
+            DefaultHttpProxyServer server = (DefaultHttpProxyServer) proxyServer;
+            connection = "synchronized".equals(coordination)
+                    ? new SynchronizedClientToProxyConnection(server, channel, servers)
+                    : new ClientToProxyConnection(server, null, false, channel.pipeline(), null);
+            eventLoop.register(channel).sync();
+        }
+
+        @TearDown
+        public void tearDown() throws Exception {
+            channel.close().sync();
+            eventLoop.shutdownGracefully(0, 0, TimeUnit.SECONDS).sync();
+            proxyServer.abort();
+        }
+    }
+
+    /**
+     * Each thread plays a server connection of the client.
+     */
+    @State(Scope.Thread)
+    public static class Server {
+        ProxyToServerConnection connection;
+        volatile boolean saturated;
+
+        @Setup(Level.Trial)
+        public void setUp(Client client) {
+            connection = mock(ProxyToServerConnection.class);
+            client.servers.put(connection, this);
+        }
+    }
+
+    @Benchmark
+    public void saturateAndDrain(Client client, Server server) {
+        server.saturated = true;
+        client.connection.serverBecameSaturated(server.connection);
+        server.saturated = false;
+        client.connection.serverBecameWriteable(server.connection);
+    }
+
+    /**
+     * The coordination before the counter of saturated servers, without its
+     * logging.
+     */
+    private static final class SynchronizedClientToProxyConnection extends ClientToProxyConnection {
+        private final Map<ProxyToServerConnection, Server> servers;
+
+        SynchronizedClientToProxyConnection(DefaultHttpProxyServer proxyServer, Channel channel,
+                                            Map<ProxyToServerConnection, Server> servers) {
+            super(proxyServer, null, false, channel.pipeline(), null);
+            this.servers = servers;
+        }
+
+        @Override
+        protected synchronized void serverBecameSaturated(ProxyToServerConnection serverConnection) {
+            if (servers.get(serverConnection).saturated) {
+                stopReading();
+            }
+        }
+
+        @Override
+        protected synchronized void serverBecameWriteable(ProxyToServerConnection serverConnection) {
+            boolean anyServersSaturated = false;
+            for (Server otherServer : servers.values()) {
+                if (otherServer.saturated) {
+                    anyServersSaturated = true;
+                    break;
+                }
+            }
+            if (!anyServersSaturated) {
+                resumeReading();
+            }
+        }
+    }
+}
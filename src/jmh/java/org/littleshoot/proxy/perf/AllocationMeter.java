@@ -0,0 +1,52 @@
+package org.littleshoot.proxy.perf;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Measures the bytes allocated by the threads whose names start with a given
+ * prefix, such as the proxy's event loops, between {@link #start()} and
+ * {@link #stop()}. The allocations of threads that terminate in the meantime
+ * are lost, so it's meant for long-lived threads.
+ */
+class AllocationMeter {
+    private final com.sun.management.ThreadMXBean threadMXBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final String threadNamePrefix;
+
+    private volatile Map<Long, Long> startBytes = Map.of();
+
+    AllocationMeter(String threadNamePrefix) {
+        this.threadNamePrefix = threadNamePrefix;
+    }
+
+    void start() {
+        startBytes = allocatedBytes();
+    }
+
+    /**
+     * The bytes allocated since {@link #start()}.
+     */
+    long stop() {
+        Map<Long, Long> startBytes = this.startBytes;
+        long total = 0;
+        for (Map.Entry<Long, Long> entry : allocatedBytes().entrySet()) {
+            total += entry.getValue() - startBytes.getOrDefault(entry.getKey(), 0L);
+        }
+        return total;
+    }
+
+    private Map<Long, Long> allocatedBytes() {
+        Map<Long, Long> allocatedBytes = new HashMap<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith(threadNamePrefix)) {
+                long bytes = threadMXBean.getThreadAllocatedBytes(thread.getId());
+                if (bytes >= 0) {
+                    allocatedBytes.put(thread.getId(), bytes);
+                }
+            }
+        }
+        return allocatedBytes;
+    }
+}
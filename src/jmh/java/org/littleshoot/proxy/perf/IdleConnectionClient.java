@@ -0,0 +1,100 @@
+package org.littleshoot.proxy.perf;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * <p>
+ * Opens connections to a proxy and leaves them idle, for
+ * {@link IdleConnectionFootprint}, which runs it in a separate JVM so that
+ * the clients don't count towards the proxy's heap.
+ * </p>
+ *
+ * <p>
+ * In the "keepalive" mode, each connection first gets a response from a local
+ * origin through the proxy, which leaves the proxy holding a connection to the
+ * origin as well. Once all the connections are open, it prints "READY" and
+ * the number of connections, and keeps them open until its standard input is
+ * closed.
+ * </p>
+ *
+ * <p>
+ * Loopback connections between a pair of addresses can only use as many
+ * local ports as the ephemeral port range allows, so the connections are
+ * spread over several local addresses and origin ports.
+ * </p>
+ */
+public class IdleConnectionClient {
+    private static final int CONNECTIONS_PER_ADDRESS = 20_000;
+
+    public static void main(String[] args) throws Exception {
+        int proxyPort = Integer.parseInt(args[0]);
+        int connections = Integer.parseInt(args[1]);
+        boolean keepAlive = "keepalive".equals(args[2]);
+
+        int addresses = (connections + CONNECTIONS_PER_ADDRESS - 1) / CONNECTIONS_PER_ADDRESS;
+        List<OriginServer> origins = new ArrayList<>();
+        if (keepAlive) {
+            for (int i = 0; i < addresses; i++) {
+                OriginServer origin = new OriginServer(0, 0, null);
+                origin.start();
+                origins.add(origin);
+            }
+        }
+
+        InetSocketAddress proxyAddress = new InetSocketAddress("127.0.0.1", proxyPort);
+        List<SocketChannel> channels = new ArrayList<>(connections);
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        for (int i = 0; i < connections; i++) {
+            int address = i / CONNECTIONS_PER_ADDRESS;
+            SocketChannel channel = SocketChannel.open();
+            channel.bind(new InetSocketAddress("127.0.0." + (2 + address), 0));
+            channel.connect(proxyAddress);
+            channels.add(channel);
+            if (keepAlive) {
+                get(channel, origins.get(address).getHttpAddress().getPort(), buffer);
+            }
+        }
+
+        System.out.println("READY " + channels.size());
+        System.out.flush();
+        while (System.in.read() != -1) {
+            // wait for the parent to close our standard input
+        }
+
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+        origins.forEach(OriginServer::stop);
+    }
+
+    /**
+     * Sends a GET request for the given origin port, and reads the response,
+     * which has no body.
+     */
+    private static void get(SocketChannel channel, int originPort, ByteBuffer buffer) throws IOException {
+        String request = String.format(Locale.ROOT,
+                "GET http://127.0.0.1:%d/ HTTP/1.1\r\nHost: 127.0.0.1:%d\r\n\r\n", originPort, originPort);
+        channel.write(ByteBuffer.wrap(request.getBytes(StandardCharsets.US_ASCII)));
+
+        buffer.clear();
+        while (!endsWithEmptyLine(buffer)) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Connection closed before the response was read");
+            }
+        }
+    }
+
+    private static boolean endsWithEmptyLine(ByteBuffer buffer) {
+        int position = buffer.position();
+        return position >= 4
+                && buffer.get(position - 4) == '\r' && buffer.get(position - 3) == '\n'
+                && buffer.get(position - 2) == '\r' && buffer.get(position - 1) == '\n';
+    }
+}
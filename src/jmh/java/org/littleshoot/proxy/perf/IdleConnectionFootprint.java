@@ -0,0 +1,174 @@
+package org.littleshoot.proxy.perf;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.littleshoot.proxy.ActivityTrackerAdapter;
+import org.littleshoot.proxy.HttpProxyServer;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+
+import javax.net.ssl.SSLSession;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Measures the heap the proxy retains per idle connection, which is what
+ * most of a busy proxy's connections are. An {@link IdleConnectionClient},
+ * running in a separate JVM, opens the connections, and the heap used by
+ * this JVM, which only runs the proxy, is compared after full GCs before and
+ * after they are open.
+ * </p>
+ *
+ * <p>
+ * "idle" connections have been accepted but haven't sent a request yet.
+ * "keepalive" connections have been used for one request, and are kept open
+ * along with the proxy's connection to the origin.
+ * </p>
+ *
+ * <p>
+ * Run with: mvn -P jmh exec:exec@idle-footprint -Dfootprint.args="--connections 100000". The
+ * proxy uses one file descriptor per idle connection, and two per keep-alive
+ * connection, as does the client, so the file descriptor limit may have to
+ * be raised first.
+ * </p>
+ */
+public class IdleConnectionFootprint {
+    private static final String OPTION_CONNECTIONS = "connections";
+    private static final String OPTION_MODES = "modes";
+    private static final String OPTION_HELP = "help";
+
+    private static final long TIMEOUT_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    private final AtomicLong connected = new AtomicLong();
+    private final AtomicLong disconnected = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        options.addOption(null, OPTION_CONNECTIONS, true, "Number of connections to open. Default: 100000.");
+        options.addOption(null, OPTION_MODES, true, "Comma-separated modes: idle, keepalive. Default: both.");
+        options.addOption(null, OPTION_HELP, false, "Display command line help.");
+
+        CommandLine cmd;
+        try {
+            cmd = new DefaultParser().parse(options, args);
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            new HelpFormatter().printHelp("IdleConnectionFootprint", options);
+            System.exit(1);
+            return;
+        }
+        if (cmd.hasOption(OPTION_HELP)) {
+            new HelpFormatter().printHelp("IdleConnectionFootprint", options);
+            return;
+        }
+
+        int connections = Integer.parseInt(cmd.getOptionValue(OPTION_CONNECTIONS, "100000"));
+        String[] modes = cmd.getOptionValue(OPTION_MODES, "idle,keepalive").split(",");
+        new IdleConnectionFootprint().run(connections, modes);
+    }
+
+    private void run(int connections, String[] modes) throws Exception {
+        HttpProxyServer proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withAddress(new InetSocketAddress("127.0.0.1", 0))
+                .plusActivityTracker(new ActivityTrackerAdapter() {
+                    @Override
+                    public void clientConnected(InetSocketAddress clientAddress) {
+                        connected.incrementAndGet();
+                    }
+
+                    @Override
+                    public void clientDisconnected(InetSocketAddress clientAddress, SSLSession sslSession) {
+                        disconnected.incrementAndGet();
+                    }
+                })
+                .start();
+        try {
+            System.out.printf(Locale.ROOT, "%-9s %11s %16s%n", "mode", "connections", "heap/connection");
+            for (String mode : modes) {
+                measure(proxyServer, connections, mode.trim());
+            }
+        } finally {
+            proxyServer.abort();
+        }
+    }
+
+    private void measure(HttpProxyServer proxyServer, int connections, String mode) throws Exception {
+        long heapBefore = usedHeapAfterGc();
+        long connectedBefore = connected.get();
+
+        Process client = new ProcessBuilder(
+                System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+                "-cp", System.getProperty("java.class.path"),
+                IdleConnectionClient.class.getName(),
+                String.valueOf(proxyServer.getListenAddress().getPort()),
+                String.valueOf(connections),
+                mode)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        try {
+            int opened = awaitReady(client);
+            await(() -> connected.get() - connectedBefore >= opened, "the proxy to accept the connections");
+            long heapAfter = usedHeapAfterGc();
+            System.out.printf(Locale.ROOT, "%-9s %11d %14d B%n", mode, opened, (heapAfter - heapBefore) / opened);
+        } finally {
+            client.getOutputStream().close();
+            client.waitFor(1, TimeUnit.MINUTES);
+            client.destroyForcibly();
+        }
+        await(() -> disconnected.get() >= connected.get(), "the proxy to close the connections");
+    }
+
+    private static int awaitReady(Process client) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream(),
+                StandardCharsets.US_ASCII));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith("READY ")) {
+                return Integer.parseInt(line.substring("READY ".length()).trim());
+            }
+        }
+        throw new IOException("The client exited with " + waitForExit(client) + " before opening its connections");
+    }
+
+    private static int waitForExit(Process client) {
+        try {
+            return client.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+    }
+
+    private interface Condition {
+        boolean isMet();
+    }
+
+    private static void await(Condition condition, String description) throws InterruptedException {
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (!condition.isMet()) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Timed out waiting for " + description);
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(200);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
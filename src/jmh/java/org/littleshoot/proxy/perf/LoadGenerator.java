@@ -0,0 +1,171 @@
+package org.littleshoot.proxy.perf;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.ssl.SSLContextBuilder;
+import org.apache.http.util.EntityUtils;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>
+ * Sends GET requests to a URI through a proxy, and records their latencies.
+ * </p>
+ *
+ * <p>
+ * In a closed loop (a rate of 0), each client sends its next request as soon
+ * as it gets the previous response. In an open loop, requests are due at a
+ * fixed rate, whether or not the earlier ones have completed, and their
+ * latency counts from when they were due rather than when a client got to
+ * send them, so that a stalling proxy can't hide its stalls by holding the
+ * clients back.
+ * </p>
+ *
+ * <p>
+ * Only the requests due after the warmup, and before the end of the run, are
+ * recorded.
+ * </p>
+ */
+class LoadGenerator {
+    private static final int TIMEOUT_MILLIS = 30_000;
+
+    private final String uri;
+    private final InetSocketAddress proxyAddress;
+    private final int concurrency;
+    private final int rate;
+
+    private final Recorder recorder = new Recorder(3);
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final LongAccumulator lastCompletion = new LongAccumulator(Math::max, Long.MIN_VALUE);
+
+    /**
+     * @param uri          the URI to get
+     * @param proxyAddress the proxy to send the requests to
+     * @param concurrency  the number of clients
+     * @param rate         the requests per second in an open loop, or 0 for a
+     *                     closed loop
+     */
+    LoadGenerator(String uri, InetSocketAddress proxyAddress, int concurrency, int rate) {
+        this.uri = uri;
+        this.proxyAddress = proxyAddress;
+        this.concurrency = concurrency;
+        this.rate = rate;
+    }
+
+    /**
+     * Sends requests for the warmup and the duration of the run, and waits for
+     * their responses.
+     *
+     * @param allocationMeter started when the warmup is over, and stopped once
+     *                        all the responses have been received
+     */
+    LoadResult run(long warmupMillis, long durationMillis, AllocationMeter allocationMeter) throws Exception {
+        ExecutorService clients = Executors.newFixedThreadPool(concurrency, new DefaultThreadFactory("load-generator"));
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+                new DefaultThreadFactory("load-generator-timer"));
+        try (CloseableHttpClient httpClient = createHttpClient()) {
+            long start = System.nanoTime();
+            long measurementStart = start + TimeUnit.MILLISECONDS.toNanos(warmupMillis);
+            long end = measurementStart + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+            timer.schedule(allocationMeter::start, warmupMillis, TimeUnit.MILLISECONDS);
+
+            if (rate > 0) {
+                long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+                for (long due = start; due < end; due += intervalNanos) {
+                    long delay = due - System.nanoTime();
+                    if (delay > 0) {
+                        LockSupport.parkNanos(delay);
+                    }
+                    long dueAt = due;
+                    clients.execute(() -> send(httpClient, dueAt, measurementStart));
+                }
+            } else {
+                for (int i = 0; i < concurrency; i++) {
+                    clients.execute(() -> {
+                        long sentAt;
+                        while ((sentAt = System.nanoTime()) < end) {
+                            send(httpClient, sentAt, measurementStart);
+                        }
+                    });
+                }
+            }
+
+            clients.shutdown();
+            clients.awaitTermination(durationMillis + warmupMillis + TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            long allocatedBytes = allocationMeter.stop();
+
+            Histogram latencies = recorder.getIntervalHistogram();
+            long elapsedNanos = Math.max(1, lastCompletion.get() - measurementStart);
+            return new LoadResult(requests.get(), errors.get(), elapsedNanos, latencies, allocatedBytes);
+        } finally {
+            clients.shutdownNow();
+            timer.shutdownNow();
+        }
+    }
+
+    private void send(CloseableHttpClient httpClient, long dueAt, long measurementStart) {
+        boolean succeeded;
+        try (CloseableHttpResponse response = httpClient.execute(new HttpGet(uri))) {
+            EntityUtils.consume(response.getEntity());
+            succeeded = response.getStatusLine().getStatusCode() == 200;
+        } catch (Exception e) {
+            succeeded = false;
+        }
+        long completedAt = System.nanoTime();
+        if (dueAt < measurementStart) {
+            return;
+        }
+        requests.incrementAndGet();
+        lastCompletion.accumulate(completedAt);
+        if (succeeded) {
+            recorder.recordValue(TimeUnit.NANOSECONDS.toMicros(completedAt - dueAt));
+        } else {
+            errors.incrementAndGet();
+        }
+    }
+
+    private CloseableHttpClient createHttpClient() throws Exception {
+        SSLConnectionSocketFactory sslSocketFactory = new SSLConnectionSocketFactory(
+                SSLContextBuilder.create().loadTrustMaterial(new TrustSelfSignedStrategy()).build(),
+                NoopHostnameVerifier.INSTANCE);
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(
+                RegistryBuilder.<ConnectionSocketFactory>create()
+                        .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                        .register("https", sslSocketFactory)
+                        .build());
+        connectionManager.setMaxTotal(concurrency);
+        connectionManager.setDefaultMaxPerRoute(concurrency);
+
+        return HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setProxy(new HttpHost(proxyAddress.getHostString(), proxyAddress.getPort()))
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(TIMEOUT_MILLIS)
+                        .setSocketTimeout(TIMEOUT_MILLIS)
+                        .build())
+                .disableAutomaticRetries()
+                .build();
+    }
+}
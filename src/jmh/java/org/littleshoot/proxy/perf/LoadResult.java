@@ -0,0 +1,86 @@
+package org.littleshoot.proxy.perf;
+
+import org.HdrHistogram.Histogram;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a {@link LoadGenerator} measured over a run.
+ */
+class LoadResult {
+    private final long requests;
+    private final long errors;
+    private final long elapsedNanos;
+    private final Histogram latencyMicros;
+    private final long allocatedBytes;
+
+    LoadResult(long requests, long errors, long elapsedNanos, Histogram latencyMicros, long allocatedBytes) {
+        this.requests = requests;
+        this.errors = errors;
+        this.elapsedNanos = elapsedNanos;
+        this.latencyMicros = latencyMicros;
+        this.allocatedBytes = allocatedBytes;
+    }
+
+    long getRequests() {
+        return requests;
+    }
+
+    long getErrors() {
+        return errors;
+    }
+
+    /**
+     * The successful requests per second.
+     */
+    double getThroughput() {
+        return (requests - errors) * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+    /**
+     * The latencies of the successful requests, in microseconds.
+     */
+    Histogram getLatencyMicros() {
+        return latencyMicros;
+    }
+
+    /**
+     * The bytes allocated by the proxy per request, or 0 if no request was
+     * sent.
+     */
+    long getAllocatedBytesPerRequest() {
+        return requests == 0 ? 0 : allocatedBytes / requests;
+    }
+
+    /**
+     * The result as a JSON object.
+     */
+    String toJson(ProxyMode mode) {
+        return String.format(Locale.ROOT, "{\"mode\":\"%s\",\"requests\":%d,\"errors\":%d,\"throughput\":%.1f,"
+                        + "\"latencyMicros\":{\"mean\":%.1f,\"p50\":%d,\"p90\":%d,\"p99\":%d,\"p999\":%d,\"max\":%d},"
+                        + "\"allocatedBytesPerRequest\":%d}",
+                mode.name().toLowerCase(Locale.ROOT), requests, errors, getThroughput(),
+                latencyMicros.getMean(), latencyMicros.getValueAtPercentile(50),
+                latencyMicros.getValueAtPercentile(90), latencyMicros.getValueAtPercentile(99),
+                latencyMicros.getValueAtPercentile(99.9), latencyMicros.getMaxValue(),
+                getAllocatedBytesPerRequest());
+    }
+
+    /**
+     * The result as a line of a table.
+     */
+    String toRow(ProxyMode mode) {
+        return String.format(Locale.ROOT, "%-9s %9d %7d %11.1f %9d %9d %9d %9d %9d %12d",
+                mode.name().toLowerCase(Locale.ROOT), requests, errors, getThroughput(),
+                latencyMicros.getValueAtPercentile(50), latencyMicros.getValueAtPercentile(90),
+                latencyMicros.getValueAtPercentile(99), latencyMicros.getValueAtPercentile(99.9),
+                latencyMicros.getMaxValue(), getAllocatedBytesPerRequest());
+    }
+
+    static String header() {
+        return String.format(Locale.ROOT, "%-9s %9s %7s %11s %9s %9s %9s %9s %9s %12s",
+                "mode", "requests", "errors", "req/s", "p50(us)", "p90(us)", "p99(us)", "p999(us)", "max(us)",
+                "alloc(B/req)");
+    }
+}
@@ -0,0 +1,145 @@
+package org.littleshoot.proxy.perf;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.littleshoot.proxy.HttpProxyServer;
+import org.littleshoot.proxy.extras.SelfSignedSslEngineSource;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.StringJoiner;
+
+/**
+ * <p>
+ * Measures the throughput, latency and allocations of the proxy end to end,
+ * without any external host: it starts a local {@link OriginServer}, then,
+ * for each {@link ProxyMode}, starts the proxy, runs a {@link LoadGenerator}
+ * through it, and stops it again. The results are printed as a table, and can
+ * be written as JSON, to track them across releases.
+ * </p>
+ *
+ * <p>
+ * Everything runs in the same JVM, so the clients and the origin compete with
+ * the proxy for CPU. Allocations are only counted for the proxy's threads.
+ * </p>
+ *
+ * <p>
+ * Run with: mvn -P jmh exec:exec@load-test -Dload.args="--modes plain,mitm --duration 30"
+ * </p>
+ */
+public class LoadTest {
+    private static final String OPTION_MODES = "modes";
+    private static final String OPTION_CONCURRENCY = "concurrency";
+    private static final String OPTION_RATE = "rate";
+    private static final String OPTION_WARMUP = "warmup";
+    private static final String OPTION_DURATION = "duration";
+    private static final String OPTION_RESPONSE_SIZE = "response-size";
+    private static final String OPTION_ORIGIN_LATENCY = "origin-latency";
+    private static final String OPTION_OUTPUT = "output";
+    private static final String OPTION_HELP = "help";
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        options.addOption(null, OPTION_MODES, true,
+                "Comma-separated proxy modes: plain, connect, mitm, chained, filtered. Default: all.");
+        options.addOption(null, OPTION_CONCURRENCY, true, "Number of clients. Default: 32.");
+        options.addOption(null, OPTION_RATE, true,
+                "Requests per second for an open loop, or 0 for a closed loop. Default: 0.");
+        options.addOption(null, OPTION_WARMUP, true, "Seconds of warmup per mode. Default: 5.");
+        options.addOption(null, OPTION_DURATION, true, "Seconds of measurement per mode. Default: 10.");
+        options.addOption(null, OPTION_RESPONSE_SIZE, true, "Size of the response bodies, in bytes. Default: 1024.");
+        options.addOption(null, OPTION_ORIGIN_LATENCY, true,
+                "Milliseconds the origin waits before responding. Default: 0.");
+        options.addOption(null, OPTION_OUTPUT, true, "File to write the results to, as JSON.");
+        options.addOption(null, OPTION_HELP, false, "Display command line help.");
+
+        CommandLine cmd;
+        try {
+            cmd = new DefaultParser().parse(options, args);
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            new HelpFormatter().printHelp("LoadTest", options);
+            System.exit(1);
+            return;
+        }
+        if (cmd.hasOption(OPTION_HELP)) {
+            new HelpFormatter().printHelp("LoadTest", options);
+            return;
+        }
+
+        List<ProxyMode> modes = new ArrayList<>();
+        for (String mode : cmd.getOptionValue(OPTION_MODES, "plain,connect,mitm,chained,filtered").split(",")) {
+            modes.add(ProxyMode.valueOf(mode.trim().toUpperCase(Locale.ROOT)));
+        }
+        int concurrency = Integer.parseInt(cmd.getOptionValue(OPTION_CONCURRENCY, "32"));
+        int rate = Integer.parseInt(cmd.getOptionValue(OPTION_RATE, "0"));
+        int warmupSeconds = Integer.parseInt(cmd.getOptionValue(OPTION_WARMUP, "5"));
+        int durationSeconds = Integer.parseInt(cmd.getOptionValue(OPTION_DURATION, "10"));
+        int responseSize = Integer.parseInt(cmd.getOptionValue(OPTION_RESPONSE_SIZE, "1024"));
+        int originLatencyMillis = Integer.parseInt(cmd.getOptionValue(OPTION_ORIGIN_LATENCY, "0"));
+
+        Path keyStore = Files.createTempDirectory("littleproxy-load-test").resolve("origin.jks");
+        OriginServer origin = new OriginServer(responseSize, originLatencyMillis,
+                new SelfSignedSslEngineSource(keyStore.toString()));
+        origin.start();
+
+        Instant startTime = Instant.now();
+        List<String> results = new ArrayList<>();
+        System.out.println(LoadResult.header());
+        try {
+            for (ProxyMode mode : modes) {
+                InetSocketAddress originAddress = mode.isSecure() ? origin.getHttpsAddress() : origin.getHttpAddress();
+                String uri = (mode.isSecure() ? "https" : "http") + "://127.0.0.1:" + originAddress.getPort() + "/";
+
+                List<HttpProxyServer> proxies = mode.startProxies();
+                LoadResult result;
+                try {
+                    result = new LoadGenerator(uri, proxies.get(0).getListenAddress(), concurrency, rate)
+                            .run(warmupSeconds * 1000L, durationSeconds * 1000L, new AllocationMeter("LittleProxy-"));
+                } finally {
+                    proxies.forEach(HttpProxyServer::abort);
+                }
+                System.out.println(result.toRow(mode));
+                results.add(result.toJson(mode));
+            }
+        } finally {
+            origin.stop();
+        }
+
+        if (cmd.hasOption(OPTION_OUTPUT)) {
+            String json = String.format(Locale.ROOT, "{\"startTime\":\"%s\",\"javaVersion\":\"%s\","
+                            + "\"availableProcessors\":%d,\"config\":{\"concurrency\":%d,\"rate\":%d,"
+                            + "\"warmupSeconds\":%d,\"durationSeconds\":%d,\"responseSize\":%d,"
+                            + "\"originLatencyMillis\":%d},\"results\":%s}%n",
+                    startTime, System.getProperty("java.version"), Runtime.getRuntime().availableProcessors(),
+                    concurrency, rate, warmupSeconds, durationSeconds, responseSize, originLatencyMillis,
+                    toJsonArray(results));
+            write(Paths.get(cmd.getOptionValue(OPTION_OUTPUT)), json);
+        }
+    }
+
+    private static String toJsonArray(List<String> elements) {
+        StringJoiner array = new StringJoiner(",", "[", "]");
+        elements.forEach(array::add);
+        return array.toString();
+    }
+
+    private static void write(Path path, String json) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Files.write(path, json.getBytes(StandardCharsets.UTF_8));
+    }
+}
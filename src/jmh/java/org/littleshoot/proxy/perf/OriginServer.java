@@ -0,0 +1,140 @@
+package org.littleshoot.proxy.perf;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.littleshoot.proxy.SslEngineSource;
+
+import javax.net.ssl.SSLEngine;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An origin server for load tests, which answers every request with a body of
+ * a fixed size, after a fixed delay, over HTTP and HTTPS. It is built on
+ * Netty rather than a servlet container so that it costs as little as
+ * possible next to the proxy being measured.
+ */
+class OriginServer {
+    private final int responseSize;
+    private final long latencyMillis;
+    private final SslEngineSource sslEngineSource;
+
+    private EventLoopGroup group;
+    private ByteBuf body;
+    private InetSocketAddress httpAddress;
+    private InetSocketAddress httpsAddress;
+
+    /**
+     * @param responseSize    the size of the bodies of the responses, in bytes
+     * @param latencyMillis   how long to wait before responding
+     * @param sslEngineSource the source of the server's certificate for HTTPS,
+     *                        or null to only serve HTTP
+     */
+    OriginServer(int responseSize, long latencyMillis, SslEngineSource sslEngineSource) {
+        this.responseSize = responseSize;
+        this.latencyMillis = latencyMillis;
+        this.sslEngineSource = sslEngineSource;
+    }
+
+    void start() throws InterruptedException {
+        byte[] content = new byte[responseSize];
+        Arrays.fill(content, (byte) 'x');
+        body = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(content));
+        group = new NioEventLoopGroup(0, new DefaultThreadFactory("origin"));
+        httpAddress = bind(false);
+        httpsAddress = sslEngineSource != null ? bind(true) : null;
+    }
+
+    void stop() {
+        if (group != null) {
+            group.shutdownGracefully(0, 0, TimeUnit.SECONDS).syncUninterruptibly();
+            group = null;
+        }
+    }
+
+    InetSocketAddress getHttpAddress() {
+        return httpAddress;
+    }
+
+    InetSocketAddress getHttpsAddress() {
+        return httpsAddress;
+    }
+
+    private InetSocketAddress bind(boolean secure) throws InterruptedException {
+        Channel channel = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ChannelPipeline pipeline = ch.pipeline();
+                        if (secure) {
+                            SSLEngine sslEngine = sslEngineSource.newSslEngine();
+                            sslEngine.setUseClientMode(false);
+                            pipeline.addLast(new SslHandler(sslEngine));
+                        }
+                        pipeline.addLast(new HttpServerCodec());
+                        pipeline.addLast(new HttpObjectAggregator(1024 * 1024));
+                        pipeline.addLast(new Responder());
+                    }
+                })
+                .bind(new InetSocketAddress("127.0.0.1", 0))
+                .sync()
+                .channel();
+        return (InetSocketAddress) channel.localAddress();
+    }
+
+    private class Responder extends SimpleChannelInboundHandler<FullHttpRequest> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+            boolean keepAlive = HttpUtil.isKeepAlive(request);
+            if (latencyMillis > 0) {
+                ctx.executor().schedule(() -> respond(ctx, keepAlive), latencyMillis, TimeUnit.MILLISECONDS);
+            } else {
+                respond(ctx, keepAlive);
+            }
+        }
+
+        private void respond(ChannelHandlerContext ctx, boolean keepAlive) {
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                    HttpResponseStatus.OK, body.duplicate());
+            response.headers()
+                    .set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_OCTET_STREAM)
+                    .setInt(HttpHeaderNames.CONTENT_LENGTH, responseSize);
+            if (!keepAlive) {
+                response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+                ctx.writeAndFlush(response).addListener(future -> ctx.close());
+            } else {
+                ctx.writeAndFlush(response);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package org.littleshoot.proxy.perf;
+
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import org.littleshoot.proxy.ChainedProxyAdapter;
+import org.littleshoot.proxy.HttpFilters;
+import org.littleshoot.proxy.HttpFiltersAdapter;
+import org.littleshoot.proxy.HttpFiltersSourceAdapter;
+import org.littleshoot.proxy.HttpProxyServer;
+import org.littleshoot.proxy.HttpProxyServerBootstrap;
+import org.littleshoot.proxy.extras.SelfSignedMitmManager;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The ways the load test runs the proxy.
+ */
+enum ProxyMode {
+    /**
+     * Plain HTTP requests, forwarded by a proxy with no filters.
+     */
+    PLAIN(false) {
+        @Override
+        List<HttpProxyServer> startProxies() {
+            return List.of(bootstrap().start());
+        }
+    },
+
+    /**
+     * HTTPS requests, relayed through CONNECT tunnels.
+     */
+    CONNECT(true) {
+        @Override
+        List<HttpProxyServer> startProxies() {
+            return List.of(bootstrap().start());
+        }
+    },
+
+    /**
+     * HTTPS requests, decrypted and encrypted again by a man in the middle
+     * proxy.
+     */
+    MITM(true) {
+        @Override
+        List<HttpProxyServer> startProxies() {
+            return List.of(bootstrap().withManInTheMiddle(new SelfSignedMitmManager()).start());
+        }
+    },
+
+    /**
+     * Plain HTTP requests, forwarded by a proxy to another proxy.
+     */
+    CHAINED(false) {
+        @Override
+        List<HttpProxyServer> startProxies() {
+            HttpProxyServer upstream = bootstrap().start();
+            InetSocketAddress upstreamAddress = upstream.getListenAddress();
+            HttpProxyServer downstream = bootstrap()
+                    .withChainProxyManager((httpRequest, chainedProxies, clientDetails) ->
+                            chainedProxies.add(new ChainedProxyAdapter() {
+                                @Override
+                                public InetSocketAddress getChainedProxyAddress() {
+                                    return upstreamAddress;
+                                }
+                            }))
+                    .start();
+            List<HttpProxyServer> proxies = new ArrayList<>();
+            proxies.add(downstream);
+            proxies.add(upstream);
+            return proxies;
+        }
+    },
+
+    /**
+     * Plain HTTP requests, forwarded by a proxy whose filters rewrite the
+     * headers of every request and response.
+     */
+    FILTERED(false) {
+        @Override
+        List<HttpProxyServer> startProxies() {
+            return List.of(bootstrap()
+                    .withFiltersSource(new HttpFiltersSourceAdapter() {
+                        @Override
+                        public HttpFilters filterRequest(HttpRequest originalRequest) {
+                            return new HttpFiltersAdapter(originalRequest) {
+                                @Override
+                                public HttpResponse proxyToServerRequest(HttpObject httpObject) {
+                                    if (httpObject instanceof HttpRequest) {
+                                        ((HttpRequest) httpObject).headers().set("X-Load-Test", "request");
+                                    }
+                                    return null;
+                                }
+
+                                @Override
+                                public HttpObject serverToProxyResponse(HttpObject httpObject) {
+                                    if (httpObject instanceof HttpResponse) {
+                                        ((HttpResponse) httpObject).headers().set("X-Load-Test", "response");
+                                    }
+                                    return httpObject;
+                                }
+                            };
+                        }
+                    })
+                    .start());
+        }
+    };
+
+    private final boolean secure;
+
+    ProxyMode(boolean secure) {
+        this.secure = secure;
+    }
+
+    /**
+     * Whether the clients send their requests over HTTPS.
+     */
+    boolean isSecure() {
+        return secure;
+    }
+
+    /**
+     * Starts the proxies of this mode, the one the clients connect to first.
+     */
+    abstract List<HttpProxyServer> startProxies();
+
+    private static HttpProxyServerBootstrap bootstrap() {
+        return DefaultHttpProxyServer.bootstrap()
+                .withAddress(new InetSocketAddress("127.0.0.1", 0));
+    }
+}
@@ -116,6 +116,30 @@ public interface ActivityTracker {
     void responseReceivedFromServer(FullFlowContext flowContext,
             HttpResponse httpResponse);
 
+    /**
+     * <p>
+     * Record that the proxy received the complete response to a request from
+     * the server.
+     * </p>
+     * 
+     * <p>
+     * Note - this is only called for requests that were sent to a server,
+     * not for CONNECTs or requests answered by the proxy itself.
+     * </p>
+     * 
+     * <p>
+     * Does nothing by default.
+     * </p>
+     * 
+     * @param flowContext
+     *            provides contextual information about the flow
+     * @param requestTimings
+     *            when each phase of proxying the request happened
+     */
+    default void responseCompletedFromServer(FullFlowContext flowContext,
+            RequestTimings requestTimings) {
+    }
+
     /**
      * Record that the proxy sent bytes to the client.
      * 
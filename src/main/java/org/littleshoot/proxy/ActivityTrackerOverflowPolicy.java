@@ -0,0 +1,21 @@
+package org.littleshoot.proxy;
+
+/**
+ * What the proxy does with an {@link ActivityTracker} event when its trackers
+ * are called asynchronously and the queue of events is full. See
+ * {@link HttpProxyServerBootstrap#withAsyncActivityTracking(int, ActivityTrackerOverflowPolicy)}.
+ */
+public enum ActivityTrackerOverflowPolicy {
+    /**
+     * Drop the event, and count it. The trackers miss events, but never slow
+     * the proxy down.
+     */
+    DROP,
+
+    /**
+     * Wait for the trackers to catch up. No event is lost, but a tracker that
+     * can't keep up holds up the event loops, as when it's called
+     * synchronously.
+     */
+    BLOCK
+}
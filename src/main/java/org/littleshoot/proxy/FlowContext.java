@@ -15,9 +15,11 @@ import java.net.InetSocketAddress;
 public class FlowContext {
     private final InetSocketAddress clientAddress;
     private final SSLSession clientSslSession;
+    private final int clientStreamId;
 
     public FlowContext(ClientToProxyConnection clientConnection) {
         clientAddress = clientConnection.getClientAddress();
+        clientStreamId = clientConnection.getHttp2StreamId();
         SSLEngine sslEngine = clientConnection.getSslEngine();
         clientSslSession = sslEngine != null ? sslEngine.getSession() : null;
     }
@@ -29,6 +31,17 @@ public class FlowContext {
         return clientAddress;
     }
 
+    /**
+     * The id of the HTTP/2 stream of the client's connection that carries
+     * the request, or 0 if the client doesn't speak HTTP/2. Together with
+     * the client's address, it tells which request a response answers:
+     * responses on a connection are sent in the order its requests were read,
+     * and an HTTP/2 stream carries a single request.
+     */
+    public int getClientStreamId() {
+        return clientStreamId;
+    }
+
     /**
      * If using SSL, this returns the {@link SSLSession} on the client
      * connection.
@@ -10,12 +10,14 @@ import org.littleshoot.proxy.impl.ProxyToServerConnection;
 public class FullFlowContext extends FlowContext {
     private final String serverHostAndPort;
     private final ChainedProxy chainedProxy;
+    private final RequestTimings requestTimings;
 
     public FullFlowContext(ClientToProxyConnection clientConnection,
             ProxyToServerConnection serverConnection) {
         super(clientConnection);
         serverHostAndPort = serverConnection.getServerHostAndPort();
         chainedProxy = serverConnection.getChainedProxy();
+        requestTimings = serverConnection.getRequestTimings();
     }
 
     /**
@@ -32,4 +34,13 @@ public class FullFlowContext extends FlowContext {
         return chainedProxy;
     }
 
+    /**
+     * The timings of the request that the server connection is currently
+     * handling, i.e. the request whose response is being received. May be
+     * null if the server connection has not handled a request yet.
+     */
+    public RequestTimings getRequestTimings() {
+        return requestTimings;
+    }
+
 }
@@ -217,4 +217,21 @@ public interface HttpFilters {
      */
     boolean proxyToServerAllowMitm();
 
+    /**
+     * Allow this proxy to pipeline the current request to the server behind requests whose responses are still
+     * outstanding on the same connection, rather than holding it back until those responses are complete.
+     *
+     * <p>Only idempotent requests without a body are ever pipelined, and only behind other idempotent requests, on
+     * connections to HTTP/1.1 servers that have kept the connection alive. If the server closes the connection before
+     * answering, pipelined requests are retried on a new connection.</p>
+     *
+     * <p>Defaults to false, in which case the request is written to the server as soon as it arrives from the
+     * client, as it would be without this hook, unless other requests were pipelined ahead of it.</p>
+     *
+     * @return true to allow pipelining the current request, false to write it without tracking it.
+     */
+    default boolean proxyToServerAllowPipelining() {
+        return false;
+    }
+
 }
@@ -56,6 +56,12 @@ public interface HttpProxyServer {
      */
     InetSocketAddress getListenAddress();
 
+    /**
+     * Return the address on which this proxy serves its metrics, or null if
+     * it doesn't.
+     */
+    InetSocketAddress getMetricsAddress();
+
     /**
      * <p>
      * Set the read/write throttle bandwidths (in bytes/second) for this proxy.
@@ -1,6 +1,7 @@
 package org.littleshoot.proxy;
 
 import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import org.littleshoot.proxy.impl.MitmBypassIndex;
 import org.littleshoot.proxy.impl.ServerGroup;
 import org.littleshoot.proxy.impl.ThreadPoolConfiguration;
 
@@ -157,6 +158,159 @@ public interface HttpProxyServerBootstrap {
     HttpProxyServerBootstrap withManInTheMiddle(
             MitmManager mitmManager);
 
+    /**
+     * <p>
+     * Specify a {@link MitmBypassIndex} that learns which hosts repeatedly
+     * fail man in the middle handshakes (e.g. because of certificate pinning
+     * or client certificates). CONNECT requests to those hosts are tunnelled
+     * directly, without attempting another handshake. Only takes effect
+     * together with {@link #withManInTheMiddle(MitmManager)}.
+     * </p>
+     *
+     * <p>
+     * Default = null
+     * </p>
+     */
+    HttpProxyServerBootstrap withMitmBypassIndex(MitmBypassIndex mitmBypassIndex);
+
+    /**
+     * <p>
+     * When true, the proxy offers HTTP/2 via ALPN to clients whose connections
+     * it decrypts, i.e. on TLS listeners (see
+     * {@link #withSslEngineSource(SslEngineSource)}) and on man in the middled
+     * CONNECTs (see {@link #withManInTheMiddle(MitmManager)}). A client that
+     * negotiates HTTP/2 sends all of its concurrent requests as streams over
+     * one connection, and each stream is filtered and proxied like a request
+     * on its own HTTP/1.1 connection.
+     * </p>
+     *
+     * <p>
+     * Streams whose servers are reached over HTTP/1.1 reuse the server
+     * connections of the client's streams that have completed, rather than
+     * each opening a connection of its own.
+     * </p>
+     *
+     * <p>
+     * CONNECT requests received over HTTP/2 are tunnelled, never man in the
+     * middled.
+     * </p>
+     *
+     * <p>
+     * Default = false
+     * </p>
+     */
+    HttpProxyServerBootstrap withClientHttp2(boolean clientHttp2);
+
+    /**
+     * <p>
+     * When true, the proxy offers HTTP/2 via ALPN when it connects to the
+     * servers of man in the middled HTTP/2 clients (see
+     * {@link #withClientHttp2(boolean)}). Connections that negotiate HTTP/2
+     * are pooled per server and shared by all clients, each request being sent
+     * as a stream of its own. A new connection is only opened once the
+     * existing ones carry as many streams as the server allows. Servers that
+     * do not select HTTP/2 are remembered and reached over HTTP/1.1.
+     * </p>
+     *
+     * <p>
+     * Requests through chained proxies and requests with the PROXY protocol
+     * enabled (see {@link #withSendProxyProtocol(boolean)}) always use
+     * HTTP/1.1.
+     * </p>
+     *
+     * <p>
+     * Default = false
+     * </p>
+     */
+    HttpProxyServerBootstrap withServerHttp2(boolean serverHttp2);
+
+    /**
+     * <p>
+     * When true, plain HTTP requests are sent to servers over HTTP/2 without
+     * prior negotiation (h2c with prior knowledge), using pooled connections
+     * like {@link #withServerHttp2(boolean)}. Servers that do not answer the
+     * HTTP/2 connection preface are remembered and reached over HTTP/1.1.
+     * Only enable this when the servers are known to speak h2c.
+     * </p>
+     *
+     * <p>
+     * Default = false
+     * </p>
+     */
+    HttpProxyServerBootstrap withServerH2cPriorKnowledge(boolean serverH2cPriorKnowledge);
+
+    /**
+     * <p>
+     * Specify an address on which to serve the proxy's metrics at /metrics,
+     * in the OpenMetrics text format that Prometheus scrapes. The listener
+     * runs on an event loop of its own, so that rendering doesn't hold up
+     * the proxy's connections. It reports event loop backlogs, open
+     * channels, allocator and throttling statistics, as well as the counters
+     * and latencies of a
+     * {@link org.littleshoot.proxy.extras.MetricsActivityTracker}, which is
+     * added to the proxy's activity trackers unless one was already added
+     * with {@link #plusActivityTracker(ActivityTracker)}.
+     * </p>
+     *
+     * <p>
+     * The same listener lists the live client connections, and their
+     * connections to servers, as JSON at /connections, which reveals the
+     * addresses of the proxy's clients. The listener is not authenticated,
+     * so it should only be bound to an address that is reachable by
+     * administrators alone, such as the loopback address.
+     * </p>
+     *
+     * <p>
+     * Clones of the proxy don't serve metrics.
+     * </p>
+     *
+     * <p>
+     * Default = null (no metrics listener)
+     * </p>
+     */
+    HttpProxyServerBootstrap withMetricsAddress(InetSocketAddress metricsAddress);
+
+    /**
+     * <p>
+     * Specify whether the metrics listener closes a client connection on a
+     * POST to /connections/{id}/close. Anyone who can reach the listener can
+     * then disconnect the proxy's clients.
+     * </p>
+     *
+     * <p>
+     * Default = false
+     * </p>
+     */
+    HttpProxyServerBootstrap withMetricsConnectionClose(boolean metricsConnectionClose);
+
+    /**
+     * <p>
+     * Specify an exporter for the spans of the proxied requests, to make the
+     * proxy part of distributed traces. The proxy continues the W3C trace
+     * context of the requests' traceparent and tracestate headers, or starts
+     * a new trace, and passes its context on to the server. For each
+     * request, it records the proxy hop, with child spans for resolving the
+     * server's address, connecting to it and the TLS handshake. See
+     * {@link Span}.
+     * </p>
+     *
+     * <p>
+     * Spans are exported in batches by a dedicated thread. The
+     * {@link org.littleshoot.proxy.extras.FileSpanExporter} and
+     * {@link org.littleshoot.proxy.extras.OtlpHttpSpanExporter} write them in
+     * the OpenTelemetry (OTLP) JSON encoding.
+     * </p>
+     *
+     * <p>
+     * Clones of the proxy don't export spans.
+     * </p>
+     *
+     * <p>
+     * Default = null (requests are not traced)
+     * </p>
+     */
+    HttpProxyServerBootstrap withSpanExporter(SpanExporter spanExporter);
+
     /**
      * <p>
      * Specify a {@link HttpFiltersSource} to use for filtering requests and/or
@@ -248,6 +402,63 @@ public interface HttpProxyServerBootstrap {
      */
     HttpProxyServerBootstrap plusActivityTracker(ActivityTracker activityTracker);
 
+    /**
+     * <p>
+     * Call the {@link ActivityTracker}s from a dedicated thread rather than
+     * from the event loops, so that slow trackers don't add to the latency of
+     * the proxied requests. Events are queued as they happen, and byte counts
+     * are reported once per read or flush of a connection rather than once
+     * per buffer. Trackers get copies of the initial lines and headers of
+     * requests and responses, without their content.
+     * </p>
+     *
+     * <p>
+     * The number of events dropped because the queue was full is reported by
+     * the metrics listener, if any. Clones of the proxy call their trackers
+     * synchronously.
+     * </p>
+     *
+     * <p>
+     * Default = trackers are called synchronously, on the event loops
+     * </p>
+     *
+     * @param queueCapacity  the number of events the queue holds, or 0 to
+     *                       call the trackers synchronously
+     * @param overflowPolicy what to do with an event when the queue is full
+     */
+    HttpProxyServerBootstrap withAsyncActivityTracking(int queueCapacity, ActivityTrackerOverflowPolicy overflowPolicy);
+
+    /**
+     * <p>
+     * Limit the memory held in the buffers of the proxy's connections: the
+     * bytes written to a channel but not yet sent, the content aggregated
+     * for filtering, and the messages held back until earlier responses
+     * complete. A few slow clients downloading large responses would
+     * otherwise make the proxy's direct memory grow without bounds.
+     * </p>
+     *
+     * <p>
+     * A watchdog thread checks the total ten times a second. When it's over
+     * the limit, the client connections that buffer the most, along with
+     * their connections to servers, are paused or closed, until the total is
+     * back under three quarters of the limit. Paused connections resume once
+     * it is, and are closed if they are still paused ten seconds later,
+     * e.g. because their buffers hold a partly read request that is
+     * aggregated for filtering. The metrics listener, if any, reports the total and the shed
+     * connections. Clones of the proxy don't limit their buffers.
+     * </p>
+     *
+     * <p>
+     * Default = 0 (no limit)
+     * </p>
+     *
+     * @param maxBufferedBytes the bytes the connections may buffer in total,
+     *                         or 0 for no limit
+     * @param action           how to shed the connections that buffer the
+     *                         most
+     */
+    HttpProxyServerBootstrap withMaxBufferedBytes(long maxBufferedBytes, MemoryPressureAction action);
+
     /**
      * <p>
      * Specify the read and/or write bandwidth throttles for this proxy server. 0 indicates not throttling.
@@ -6,11 +6,14 @@ import org.apache.log4j.xml.DOMConfigurator;
 import org.littleshoot.proxy.extras.SelfSignedMitmManager;
 import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
 import org.littleshoot.proxy.impl.ProxyUtils;
+import org.littleshoot.proxy.impl.ThreadPoolConfiguration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.time.Duration;
 import java.util.Arrays;
 
 /**
@@ -30,6 +33,14 @@ public class Launcher {
 
     private static final String OPTION_NIC = "nic";
 
+    private static final String OPTION_METRICS_PORT = "metrics_port";
+
+    private static final String OPTION_METRICS_ADDRESS = "metrics_address";
+
+    private static final String OPTION_METRICS_CLOSE = "metrics_close";
+
+    private static final String OPTION_EVENT_LOOP_PROBE_MS = "event_loop_probe_ms";
+
     /**
      * Starts the proxy from the command line.
      * 
@@ -47,6 +58,15 @@ public class Launcher {
         options.addOption(null, OPTION_HELP, false,
                 "Display command line help.");
         options.addOption(null, OPTION_MITM, false, "Run as man in the middle.");
+        options.addOption(null, OPTION_METRICS_PORT, true,
+                "Serve metrics at /metrics on the specified port, on the loopback address unless "
+                        + OPTION_METRICS_ADDRESS + " is given.");
+        options.addOption(null, OPTION_METRICS_ADDRESS, true,
+                "Serve metrics on the specified address rather than on the loopback address.");
+        options.addOption(null, OPTION_METRICS_CLOSE, false,
+                "Close client connections on a POST to /connections/{id}/close on the metrics port.");
+        options.addOption(null, OPTION_EVENT_LOOP_PROBE_MS, true,
+                "Probe every event loop for lag at the specified interval, in milliseconds.");
         
         final CommandLineParser parser = new DefaultParser();
         final CommandLine cmd;
@@ -97,6 +117,34 @@ public class Launcher {
             bootstrap.withManInTheMiddle(new SelfSignedMitmManager());
         }
         
+        if (cmd.hasOption(OPTION_METRICS_PORT)) {
+            final String val = cmd.getOptionValue(OPTION_METRICS_PORT);
+            final int metricsPort;
+            try {
+                metricsPort = Integer.parseInt(val);
+            } catch (final NumberFormatException e) {
+                printHelp(options, "Unexpected metrics port " + val);
+                return;
+            }
+            if (cmd.hasOption(OPTION_METRICS_ADDRESS)) {
+                bootstrap.withMetricsAddress(new InetSocketAddress(cmd.getOptionValue(OPTION_METRICS_ADDRESS), metricsPort));
+            } else {
+                bootstrap.withMetricsAddress(new InetSocketAddress(InetAddress.getLoopbackAddress(), metricsPort));
+            }
+            bootstrap.withMetricsConnectionClose(cmd.hasOption(OPTION_METRICS_CLOSE));
+        }
+
+        if (cmd.hasOption(OPTION_EVENT_LOOP_PROBE_MS)) {
+            final String val = cmd.getOptionValue(OPTION_EVENT_LOOP_PROBE_MS);
+            try {
+                bootstrap.withThreadPoolConfiguration(new ThreadPoolConfiguration()
+                        .withEventLoopProbeInterval(Duration.ofMillis(Long.parseLong(val))));
+            } catch (final NumberFormatException e) {
+                printHelp(options, "Unexpected event loop probe interval " + val);
+                return;
+            }
+        }
+
         if (cmd.hasOption(OPTION_DNSSEC)) {
             final String val = cmd.getOptionValue(OPTION_DNSSEC);
             if (ProxyUtils.isTrue(val)) {
@@ -0,0 +1,22 @@
+package org.littleshoot.proxy;
+
+/**
+ * What the proxy does to the connections that hold the most buffered bytes
+ * when its buffers grow past their limit. See
+ * {@link HttpProxyServerBootstrap#withMaxBufferedBytes(long, MemoryPressureAction)}.
+ */
+public enum MemoryPressureAction {
+    /**
+     * Stop reading from the client and from its servers until the pressure
+     * is relieved, so that its buffers drain without being refilled. A
+     * connection that doesn't drain, and is still paused after ten seconds,
+     * is closed.
+     */
+    PAUSE_READING,
+
+    /**
+     * Close the client's connection, and its connections to servers, which
+     * frees their buffers right away.
+     */
+    DISCONNECT
+}
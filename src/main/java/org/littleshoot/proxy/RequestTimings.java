@@ -0,0 +1,181 @@
+package org.littleshoot.proxy;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * Records when each phase of proxying a request happened, as
+ * {@link System#nanoTime()} marks, so that the time spent on a request can be
+ * broken down into DNS resolution, connecting, the TLS handshake, sending the
+ * request, waiting for the first byte of the response, and transferring the
+ * response.
+ * </p>
+ *
+ * <p>
+ * Phases that didn't happen for a request are left unmarked: on a reused
+ * connection, for example, there is no resolution, connect or handshake. The
+ * durations of such phases are reported as -1. If a phase is retried (e.g.
+ * when falling back to another chained proxy), the marks of the last attempt
+ * win.
+ * </p>
+ *
+ * <p>
+ * The proxy marks the events as they happen, on whichever thread they happen
+ * on. A RequestTimings can be read at any time, from any thread.
+ * </p>
+ */
+public class RequestTimings {
+    /**
+     * The events whose time is recorded, in the order they normally happen.
+     */
+    public enum Event {
+        /** The request was read from the client. */
+        REQUEST_RECEIVED,
+        /** The proxy started resolving the server's address. */
+        RESOLUTION_STARTED,
+        /** The server's address was resolved. */
+        RESOLUTION_SUCCEEDED,
+        /** The proxy started connecting to the server (or chained proxy). */
+        CONNECTION_STARTED,
+        /** The TCP connection was established and the TLS handshake started. */
+        SSL_HANDSHAKE_STARTED,
+        /** The connection is ready to carry the request. */
+        CONNECTION_SUCCEEDED,
+        /** The proxy started writing the request to the server. */
+        REQUEST_SENDING,
+        /**
+         * The whole request was written to the server, or the server started
+         * to respond before it was.
+         */
+        REQUEST_SENT,
+        /** The response headers were received from the server. */
+        RESPONSE_RECEIVING,
+        /** The whole response was received from the server. */
+        RESPONSE_RECEIVED
+    }
+
+    private static final long UNMARKED = Long.MIN_VALUE;
+
+    private final AtomicLongArray marks;
+
+    /**
+     * Creates a record whose {@link Event#REQUEST_RECEIVED} mark is now.
+     */
+    public RequestTimings() {
+        long[] initialMarks = new long[Event.values().length];
+        Arrays.fill(initialMarks, UNMARKED);
+        initialMarks[Event.REQUEST_RECEIVED.ordinal()] = System.nanoTime();
+        marks = new AtomicLongArray(initialMarks);
+    }
+
+    /**
+     * Records that the given event happened just now.
+     */
+    public void mark(Event event) {
+        marks.set(event.ordinal(), System.nanoTime());
+    }
+
+    /**
+     * Returns true if the given event has happened.
+     */
+    public boolean isMarked(Event event) {
+        return marks.get(event.ordinal()) != UNMARKED;
+    }
+
+    /**
+     * Returns the {@link System#nanoTime()} at which the given event happened.
+     *
+     * @throws IllegalStateException if the event hasn't happened
+     */
+    public long getNanoTime(Event event) {
+        long mark = marks.get(event.ordinal());
+        if (mark == UNMARKED) {
+            throw new IllegalStateException(event + " has not happened");
+        }
+        return mark;
+    }
+
+    /**
+     * The time between two events, in nanoseconds, or -1 if either hasn't
+     * happened.
+     */
+    public long getNanosBetween(Event from, Event to) {
+        long start = marks.get(from.ordinal());
+        long end = marks.get(to.ordinal());
+        if (start == UNMARKED || end == UNMARKED) {
+            return -1;
+        }
+        return end - start;
+    }
+
+    /**
+     * The time it took to resolve the server's address.
+     */
+    public long getResolutionNanos() {
+        return getNanosBetween(Event.RESOLUTION_STARTED, Event.RESOLUTION_SUCCEEDED);
+    }
+
+    /**
+     * The time it took to establish the connection, up to the start of the TLS
+     * handshake if there was one.
+     */
+    public long getConnectNanos() {
+        return getNanosBetween(Event.CONNECTION_STARTED,
+                isMarked(Event.SSL_HANDSHAKE_STARTED) ? Event.SSL_HANDSHAKE_STARTED : Event.CONNECTION_SUCCEEDED);
+    }
+
+    /**
+     * The time the TLS handshake with the server took.
+     */
+    public long getSslHandshakeNanos() {
+        return getNanosBetween(Event.SSL_HANDSHAKE_STARTED, Event.CONNECTION_SUCCEEDED);
+    }
+
+    /**
+     * The time it took to write the request to the server.
+     */
+    public long getRequestSendNanos() {
+        return getNanosBetween(Event.REQUEST_SENDING, Event.REQUEST_SENT);
+    }
+
+    /**
+     * The time from the request being sent to the response headers arriving,
+     * which is mostly up to the server.
+     */
+    public long getTimeToFirstByteNanos() {
+        return getNanosBetween(Event.REQUEST_SENT, Event.RESPONSE_RECEIVING);
+    }
+
+    /**
+     * The time it took to receive the rest of the response.
+     */
+    public long getTransferNanos() {
+        return getNanosBetween(Event.RESPONSE_RECEIVING, Event.RESPONSE_RECEIVED);
+    }
+
+    /**
+     * The time from reading the request to receiving the whole response.
+     */
+    public long getTotalNanos() {
+        return getNanosBetween(Event.REQUEST_RECEIVED, Event.RESPONSE_RECEIVED);
+    }
+
+    @Override
+    public String toString() {
+        return "RequestTimings{" +
+                "resolution=" + millis(getResolutionNanos()) +
+                ", connect=" + millis(getConnectNanos()) +
+                ", sslHandshake=" + millis(getSslHandshakeNanos()) +
+                ", requestSend=" + millis(getRequestSendNanos()) +
+                ", timeToFirstByte=" + millis(getTimeToFirstByteNanos()) +
+                ", transfer=" + millis(getTransferNanos()) +
+                ", total=" + millis(getTotalNanos()) +
+                '}';
+    }
+
+    private static String millis(long nanos) {
+        return nanos < 0 ? "-" : TimeUnit.NANOSECONDS.toMillis(nanos) + "ms";
+    }
+}
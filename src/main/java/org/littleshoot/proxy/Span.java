@@ -0,0 +1,129 @@
+package org.littleshoot.proxy;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * A finished span of a distributed trace, as recorded by the proxy and
+ * handed to a {@link SpanExporter}. Ids are lowercase hex strings, as in the
+ * W3C trace context: 32 digits for trace ids and 16 for span ids.
+ * </p>
+ *
+ * <p>
+ * For each request, the proxy records a {@link Kind#SERVER} span covering the
+ * proxy hop, from reading the request to writing the end of the response,
+ * with children for resolving the server's address, connecting and the TLS
+ * handshake when they happened, and a {@link Kind#CLIENT} span for the
+ * request to the server, whose id is propagated to the server.
+ * </p>
+ */
+public class Span {
+    /**
+     * The role of a span, as in OpenTelemetry.
+     */
+    public enum Kind {
+        INTERNAL,
+        SERVER,
+        CLIENT
+    }
+
+    private final String traceId;
+    private final String spanId;
+    private final String parentSpanId;
+    private final String traceState;
+    private final String name;
+    private final Kind kind;
+    private final long startEpochNanos;
+    private final long endEpochNanos;
+    private final Map<String, Object> attributes;
+    private final String error;
+
+    /**
+     * @param parentSpanId    the id of the parent span, or null for a root span
+     * @param traceState      the vendor-specific trace state, or null
+     * @param attributes      String, Long or Boolean values, by OpenTelemetry attribute name
+     * @param error           a description of the error that ended the span, or null if it succeeded
+     */
+    public Span(String traceId, String spanId, String parentSpanId, String traceState, String name, Kind kind,
+                long startEpochNanos, long endEpochNanos, Map<String, Object> attributes, String error) {
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.parentSpanId = parentSpanId;
+        this.traceState = traceState;
+        this.name = name;
+        this.kind = kind;
+        this.startEpochNanos = startEpochNanos;
+        this.endEpochNanos = endEpochNanos;
+        this.attributes = Collections.unmodifiableMap(new LinkedHashMap<>(attributes));
+        this.error = error;
+    }
+
+    public String getTraceId() {
+        return traceId;
+    }
+
+    public String getSpanId() {
+        return spanId;
+    }
+
+    /**
+     * The id of the parent span, or null for a root span.
+     */
+    public String getParentSpanId() {
+        return parentSpanId;
+    }
+
+    /**
+     * The vendor-specific trace state, as in the tracestate header, or null.
+     */
+    public String getTraceState() {
+        return traceState;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public long getStartEpochNanos() {
+        return startEpochNanos;
+    }
+
+    public long getEndEpochNanos() {
+        return endEpochNanos;
+    }
+
+    /**
+     * String, Long or Boolean values, by OpenTelemetry attribute name.
+     */
+    public Map<String, Object> getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * A description of the error that ended the span, or null if it
+     * succeeded.
+     */
+    public String getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return "Span{" +
+                "traceId=" + traceId +
+                ", spanId=" + spanId +
+                ", parentSpanId=" + parentSpanId +
+                ", name=" + name +
+                ", kind=" + kind +
+                ", durationNanos=" + (endEpochNanos - startEpochNanos) +
+                ", attributes=" + attributes +
+                ", error=" + error +
+                '}';
+    }
+}
@@ -0,0 +1,32 @@
+package org.littleshoot.proxy;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * <p>
+ * Receives the {@link Span}s recorded by the proxy, to send them to a
+ * tracing backend. See
+ * {@link HttpProxyServerBootstrap#withSpanExporter(SpanExporter)}.
+ * </p>
+ *
+ * <p>
+ * Spans are queued as requests complete, and exported in batches by a
+ * dedicated thread, so an exporter may block. It's called by one thread at a
+ * time. When the exporter falls behind and the queue fills up, spans are
+ * dropped.
+ * </p>
+ */
+public interface SpanExporter {
+    /**
+     * Exports a batch of spans.
+     *
+     * @throws IOException if the spans couldn't be exported; they are dropped
+     */
+    void export(List<Span> spans) throws IOException;
+
+    /**
+     * Called once the proxy has stopped and exported its last spans.
+     */
+    void shutdown();
+}
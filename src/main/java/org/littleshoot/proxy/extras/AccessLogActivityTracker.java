@@ -0,0 +1,399 @@
+package org.littleshoot.proxy.extras;
+
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.codec.http.HttpUtil;
+import org.littleshoot.proxy.ActivityTrackerAdapter;
+import org.littleshoot.proxy.FlowContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLSession;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>
+ * An {@link org.littleshoot.proxy.ActivityTracker} that writes an access log:
+ * one record per response sent to a client, with the client's address, the
+ * request's method and URI, the response's status and length, and the time
+ * from reading the request to sending the response.
+ * </p>
+ *
+ * <p>
+ * The event loops never touch the file. They encode each record in place
+ * into a slot of a lock-free ring buffer, and a dedicated writer thread
+ * drains the ring in batches and writes them through a {@link FileChannel}.
+ * When the writer falls so far behind that the ring is full, records are
+ * dropped rather than delaying the proxy, and counted in
+ * {@link #getDroppedRecords()}.
+ * </p>
+ *
+ * <p>
+ * The log is rotated when it reaches a maximum size, or when it has been
+ * open for the rotation interval: the file is renamed by appending the UTC
+ * time of the rotation to its name, and a new file is started. Records are
+ * written either as JSON lines or in a compact binary format, which
+ * {@link AccessLogDecoder} converts to JSON lines. Should the log fail to
+ * reopen, e.g. because its directory was removed, the writer keeps trying to
+ * open it again, backing off up to {@value #MAX_REOPEN_BACKOFF_MILLIS} ms
+ * between attempts, and drops the records meanwhile.
+ * </p>
+ *
+ * <pre>
+ * AccessLogActivityTracker accessLog = new AccessLogActivityTracker(Paths.get("access.log"), AccessLogFormat.JSON);
+ * HttpProxyServer server = DefaultHttpProxyServer.bootstrap()
+ *         .plusActivityTracker(accessLog)
+ *         .start();
+ * ...
+ * server.stop();
+ * accessLog.close();
+ * </pre>
+ */
+public class AccessLogActivityTracker extends ActivityTrackerAdapter implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(AccessLogActivityTracker.class);
+
+    /**
+     * The default number of records the ring buffer holds.
+     */
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    /**
+     * The default size past which the log is rotated.
+     */
+    public static final long DEFAULT_MAX_FILE_BYTES = 100L * 1024 * 1024;
+
+    /**
+     * The default interval after which the log is rotated.
+     */
+    public static final Duration DEFAULT_ROTATION_INTERVAL = Duration.ofDays(1);
+
+    private static final int BATCH_SIZE = 64 * 1024;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final long MIN_REOPEN_BACKOFF_MILLIS = 100;
+    private static final long MAX_REOPEN_BACKOFF_MILLIS = 10_000;
+    private static final DateTimeFormatter ROTATION_SUFFIX =
+            DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS").withZone(ZoneOffset.UTC);
+
+    private final Path path;
+    private final AccessLogFormat format;
+    private final long maxFileBytes;
+    private final long rotationIntervalNanos;
+    private final AccessLogRingBuffer ring;
+
+    private final LongAdder droppedRecords = new LongAdder();
+    private volatile long writtenRecords;
+
+    private final PendingRequests<PendingRequest> pendingRequests = new PendingRequests<>();
+
+    private final Thread writer;
+    private volatile boolean closed;
+
+    // only used by the writer thread
+    private final ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_SIZE);
+    private final StringBuilder json = new StringBuilder(256);
+    private FileChannel channel;
+    private long fileBytes;
+    private long openedAt;
+    private int batchRecords;
+    private long reopenAt;
+    private long reopenBackoffMillis = MIN_REOPEN_BACKOFF_MILLIS;
+
+    /**
+     * Writes an access log with the default capacity, maximum size and
+     * rotation interval.
+     *
+     * @throws UncheckedIOException if the log can't be opened
+     */
+    public AccessLogActivityTracker(Path path, AccessLogFormat format) {
+        this(path, format, DEFAULT_CAPACITY, DEFAULT_MAX_FILE_BYTES, DEFAULT_ROTATION_INTERVAL);
+    }
+
+    /**
+     * @param path             the file to write, which is appended to if it exists
+     * @param format           the format of the records
+     * @param capacity         the number of records the ring buffer holds, a power of two
+     * @param maxFileBytes     the size past which the log is rotated
+     * @param rotationInterval the interval after which the log is rotated
+     * @throws UncheckedIOException if the log can't be opened
+     */
+    public AccessLogActivityTracker(Path path, AccessLogFormat format, int capacity, long maxFileBytes,
+                                    Duration rotationInterval) {
+        if (maxFileBytes <= AccessLogRecords.FILE_HEADER_SIZE + AccessLogRecords.SLOT_SIZE) {
+            throw new IllegalArgumentException("maxFileBytes is too small: " + maxFileBytes);
+        }
+        if (rotationInterval.isNegative() || rotationInterval.isZero()) {
+            throw new IllegalArgumentException("rotationInterval must be positive: " + rotationInterval);
+        }
+        this.path = path;
+        this.format = format;
+        this.maxFileBytes = maxFileBytes;
+        this.rotationIntervalNanos = rotationInterval.toNanos();
+        this.ring = new AccessLogRingBuffer(capacity, AccessLogRecords.SLOT_SIZE);
+
+        try {
+            open();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to open access log " + path, e);
+        }
+
+        writer = new Thread(this::writeUntilClosed, "AccessLogWriter-" + path.getFileName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void requestReceivedFromClient(FlowContext flowContext, HttpRequest httpRequest) {
+        pendingRequests.add(flowContext,
+                new PendingRequest(System.nanoTime(), httpRequest.method().name(), httpRequest.uri()));
+    }
+
+    @Override
+    public void responseSentToClient(FlowContext flowContext, HttpResponse httpResponse) {
+        HttpResponseStatus status = httpResponse.status();
+        // interim responses precede the final response to the same request
+        if (status.codeClass() == HttpStatusClass.INFORMATIONAL
+                && status.code() != HttpResponseStatus.SWITCHING_PROTOCOLS.code()) {
+            return;
+        }
+
+        PendingRequest request = pendingRequests.remove(flowContext);
+        if (request == null) {
+            return;
+        }
+        InetSocketAddress clientAddress = flowContext.getClientAddress();
+
+        long position = closed ? -1 : ring.claim();
+        if (position < 0) {
+            droppedRecords.increment();
+            return;
+        }
+        InetAddress address = clientAddress.getAddress();
+        AccessLogRecords.encode(ring.slots(), ring.offset(position),
+                System.currentTimeMillis(),
+                TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - request.startedAt),
+                HttpUtil.getContentLength(httpResponse, -1L),
+                status.code(),
+                address != null ? address.getAddress() : null,
+                clientAddress.getPort(),
+                request.method,
+                request.uri);
+        ring.publish(position);
+    }
+
+    @Override
+    public void clientDisconnected(InetSocketAddress clientAddress, SSLSession sslSession) {
+        pendingRequests.clientDisconnected(clientAddress);
+    }
+
+    /**
+     * The number of records dropped because the ring buffer was full, because
+     * they couldn't be written, or because the log was closed.
+     */
+    public long getDroppedRecords() {
+        return droppedRecords.sum();
+    }
+
+    /**
+     * The number of records written to the log.
+     */
+    public long getWrittenRecords() {
+        return writtenRecords;
+    }
+
+    /**
+     * Writes the records still in the ring buffer, and closes the log.
+     * Records of responses sent after this are dropped.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeUntilClosed() {
+        boolean lastPass = false;
+        while (true) {
+            int drained = ring.drain(this::append, Integer.MAX_VALUE);
+            if (drained == 0) {
+                flush();
+                if (lastPass) {
+                    break;
+                }
+                if (System.nanoTime() - openedAt >= rotationIntervalNanos) {
+                    rotate();
+                }
+                if (closed) {
+                    // records published before the flag was seen are drained one last time
+                    lastPass = true;
+                } else {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+            }
+        }
+
+        if (!channel.isOpen()) {
+            return;
+        }
+        try {
+            channel.force(false);
+            channel.close();
+        } catch (IOException e) {
+            LOG.warn("Unable to close access log {}", path, e);
+        }
+    }
+
+    private void append(byte[] slots, int offset) {
+        if (format == AccessLogFormat.BINARY) {
+            int length = AccessLogRecords.length(slots, offset);
+            reserve(length);
+            batch.put(slots, offset, length);
+        } else {
+            json.setLength(0);
+            AccessLogRecords.appendJson(slots, offset, json);
+            json.append('\n');
+            reserve(json.length());
+            // escaped records are plain ASCII
+            for (int i = 0; i < json.length(); i++) {
+                batch.put((byte) json.charAt(i));
+            }
+        }
+        batchRecords++;
+    }
+
+    /**
+     * Makes room in the batch for a record of the given length, flushing the
+     * batch and rotating the log as needed.
+     */
+    private void reserve(int length) {
+        long pending = fileBytes + batch.position();
+        if (pending + length > maxFileBytes && pending > AccessLogRecords.FILE_HEADER_SIZE) {
+            flush();
+            rotate();
+        } else if (batch.remaining() < length) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        if (batch.position() == 0) {
+            return;
+        }
+        if (!reopenIfClosed()) {
+            droppedRecords.add(batchRecords);
+            batch.clear();
+            batchRecords = 0;
+            return;
+        }
+        batch.flip();
+        try {
+            while (batch.hasRemaining()) {
+                fileBytes += channel.write(batch);
+            }
+            writtenRecords += batchRecords;
+        } catch (IOException e) {
+            LOG.error("Unable to write {} records to access log {}", batchRecords, path, e);
+            droppedRecords.add(batchRecords);
+        }
+        batch.clear();
+        batchRecords = 0;
+    }
+
+    private void rotate() {
+        if (!channel.isOpen()) {
+            // reopened by the next flush
+            return;
+        }
+        if (fileBytes <= (format == AccessLogFormat.BINARY ? AccessLogRecords.FILE_HEADER_SIZE : 0)) {
+            // nothing worth keeping
+            openedAt = System.nanoTime();
+            return;
+        }
+        try {
+            channel.close();
+            Path rotated = path.resolveSibling(path.getFileName() + "." + ROTATION_SUFFIX.format(Instant.now()));
+            for (int i = 1; Files.exists(rotated); i++) {
+                rotated = path.resolveSibling(path.getFileName() + "." + ROTATION_SUFFIX.format(Instant.now()) + "-" + i);
+            }
+            Files.move(path, rotated);
+            open();
+        } catch (IOException e) {
+            LOG.error("Unable to rotate access log {}", path, e);
+            reopenIfClosed();
+        }
+    }
+
+    /**
+     * Opens the log again if it's closed, unless the last attempt failed too
+     * recently.
+     *
+     * @return true if the log is open
+     */
+    private boolean reopenIfClosed() {
+        if (channel.isOpen()) {
+            return true;
+        }
+        long now = System.nanoTime();
+        if (now - reopenAt < 0) {
+            return false;
+        }
+        try {
+            open();
+            reopenBackoffMillis = MIN_REOPEN_BACKOFF_MILLIS;
+            return true;
+        } catch (IOException e) {
+            LOG.error("Unable to reopen access log {}, retrying in {} ms", path, reopenBackoffMillis, e);
+            reopenAt = now + TimeUnit.MILLISECONDS.toNanos(reopenBackoffMillis);
+            reopenBackoffMillis = Math.min(reopenBackoffMillis * 2, MAX_REOPEN_BACKOFF_MILLIS);
+            return false;
+        }
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        fileBytes = channel.size();
+        openedAt = System.nanoTime();
+        if (format == AccessLogFormat.BINARY && fileBytes == 0) {
+            ByteBuffer header = ByteBuffer.allocate(AccessLogRecords.FILE_HEADER_SIZE);
+            header.put(AccessLogRecords.FILE_MAGIC).putShort(AccessLogRecords.FILE_VERSION).flip();
+            while (header.hasRemaining()) {
+                fileBytes += channel.write(header);
+            }
+        }
+    }
+
+    private static final class PendingRequest {
+        private final long startedAt;
+        private final String method;
+        private final String uri;
+
+        private PendingRequest(long startedAt, String method, String uri) {
+            this.startedAt = startedAt;
+            this.method = method;
+            this.uri = uri;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package org.littleshoot.proxy.extras;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Converts access logs written by {@link AccessLogActivityTracker} in the
+ * {@link AccessLogFormat#BINARY binary format} to JSON lines, which it
+ * prints to standard output:
+ *
+ * <pre>
+ * java -cp littleproxy.jar org.littleshoot.proxy.extras.AccessLogDecoder access.log [access.log.20240101-000000-000 ...]
+ * </pre>
+ */
+public class AccessLogDecoder {
+    private AccessLogDecoder() {
+    }
+
+    public static void main(String... args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: AccessLogDecoder <binary access log>...");
+            System.exit(1);
+        }
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.US_ASCII));
+        try {
+            for (String file : args) {
+                try (InputStream in = Files.newInputStream(Paths.get(file))) {
+                    decode(in, out);
+                } catch (IOException e) {
+                    out.flush();
+                    System.err.println(file + ": " + e.getMessage());
+                    System.exit(1);
+                }
+            }
+        } finally {
+            out.flush();
+        }
+    }
+
+    /**
+     * Writes the records of a binary access log as JSON lines.
+     *
+     * @throws IOException if the log can't be read, or isn't a binary access log
+     */
+    public static void decode(InputStream in, Writer out) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+
+        byte[] magic = new byte[AccessLogRecords.FILE_MAGIC.length];
+        try {
+            data.readFully(magic);
+            if (!Arrays.equals(magic, AccessLogRecords.FILE_MAGIC)) {
+                throw new IOException("Not a binary access log");
+            }
+            short version = data.readShort();
+            if (version != AccessLogRecords.FILE_VERSION) {
+                throw new IOException("Unsupported access log version " + version);
+            }
+        } catch (EOFException e) {
+            throw new IOException("Not a binary access log", e);
+        }
+
+        byte[] record = new byte[AccessLogRecords.SLOT_SIZE];
+        StringBuilder json = new StringBuilder(256);
+        while (true) {
+            int read = data.read(record, 0, AccessLogRecords.HEADER_SIZE);
+            if (read < 0) {
+                return;
+            }
+            try {
+                data.readFully(record, read, AccessLogRecords.HEADER_SIZE - read);
+                int uriLength = AccessLogRecords.uriLength(record, 0);
+                if (uriLength > AccessLogRecords.MAX_URI_LENGTH) {
+                    throw new IOException("Corrupt access log record");
+                }
+                data.readFully(record, AccessLogRecords.HEADER_SIZE, uriLength);
+            } catch (EOFException e) {
+                throw new IOException("Truncated access log record", e);
+            }
+
+            json.setLength(0);
+            AccessLogRecords.appendJson(record, 0, json);
+            out.append(json).append('\n');
+        }
+    }
+}
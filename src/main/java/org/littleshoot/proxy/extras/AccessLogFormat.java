@@ -0,0 +1,17 @@
+package org.littleshoot.proxy.extras;
+
+/**
+ * The formats in which {@link AccessLogActivityTracker} writes its records.
+ */
+public enum AccessLogFormat {
+    /**
+     * Compact binary records, which are cheapest to write. They can be
+     * converted to JSON lines with {@link AccessLogDecoder}.
+     */
+    BINARY,
+
+    /**
+     * One JSON object per line.
+     */
+    JSON
+}
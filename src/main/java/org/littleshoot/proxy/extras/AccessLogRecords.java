@@ -0,0 +1,185 @@
+package org.littleshoot.proxy.extras;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Instant;
+
+/**
+ * <p>
+ * The layout of access log records, shared by the ring buffer slots and the
+ * binary log files. All numbers are big-endian.
+ * </p>
+ *
+ * <pre>
+ * offset  size  field
+ *      0     8  time the response was sent, in milliseconds since the epoch
+ *      8     8  time from reading the request to sending the response, in microseconds
+ *     16     8  length of the response body, or -1 if unknown
+ *     24     2  response status
+ *     26     2  client port
+ *     28     1  length of the client address (4 or 16, or 0 if unknown)
+ *     29    16  client address
+ *     45     1  length of the method
+ *     46    16  method, in ISO-8859-1
+ *     62     2  length of the URI
+ *     64     n  URI, in ISO-8859-1, truncated to fit the slot
+ * </pre>
+ *
+ * <p>
+ * A record in a binary file takes 64 bytes plus the length of its URI. The
+ * file starts with the 4 bytes "LPAL" and a 2-byte format version.
+ * </p>
+ */
+final class AccessLogRecords {
+    static final int SLOT_SIZE = 512;
+    static final int HEADER_SIZE = 64;
+    static final int MAX_URI_LENGTH = SLOT_SIZE - HEADER_SIZE;
+
+    static final byte[] FILE_MAGIC = {'L', 'P', 'A', 'L'};
+    static final short FILE_VERSION = 1;
+    static final int FILE_HEADER_SIZE = FILE_MAGIC.length + 2;
+
+    private static final int TIME = 0;
+    private static final int DURATION = 8;
+    private static final int BYTES = 16;
+    private static final int STATUS = 24;
+    private static final int PORT = 26;
+    private static final int ADDRESS_LENGTH = 28;
+    private static final int ADDRESS = 29;
+    private static final int MAX_ADDRESS_LENGTH = 16;
+    private static final int METHOD_LENGTH = 45;
+    private static final int METHOD = 46;
+    private static final int MAX_METHOD_LENGTH = 16;
+    private static final int URI_LENGTH = 62;
+    private static final int URI = HEADER_SIZE;
+
+    private AccessLogRecords() {
+    }
+
+    static void encode(byte[] buf, int offset, long timeMillis, long durationMicros, long bytes, int status,
+                       byte[] address, int port, String method, String uri) {
+        putLong(buf, offset + TIME, timeMillis);
+        putLong(buf, offset + DURATION, durationMicros);
+        putLong(buf, offset + BYTES, bytes);
+        putShort(buf, offset + STATUS, status);
+        putShort(buf, offset + PORT, port);
+        int addressLength = address != null && address.length <= MAX_ADDRESS_LENGTH ? address.length : 0;
+        buf[offset + ADDRESS_LENGTH] = (byte) addressLength;
+        if (addressLength > 0) {
+            System.arraycopy(address, 0, buf, offset + ADDRESS, addressLength);
+        }
+        buf[offset + METHOD_LENGTH] = (byte) putLatin1(buf, offset + METHOD, method, MAX_METHOD_LENGTH);
+        putShort(buf, offset + URI_LENGTH, putLatin1(buf, offset + URI, uri, MAX_URI_LENGTH));
+    }
+
+    /**
+     * The length of the record at the given offset, once trimmed of the
+     * unused part of its slot.
+     */
+    static int length(byte[] buf, int offset) {
+        return HEADER_SIZE + getShort(buf, offset + URI_LENGTH);
+    }
+
+    /**
+     * The length of the URI of a record whose header is at the given offset.
+     */
+    static int uriLength(byte[] header, int offset) {
+        return getShort(header, offset + URI_LENGTH);
+    }
+
+    /**
+     * Appends the record at the given offset as a JSON object, without a
+     * line separator.
+     */
+    static void appendJson(byte[] buf, int offset, StringBuilder out) {
+        out.append("{\"time\":\"").append(Instant.ofEpochMilli(getLong(buf, offset + TIME)))
+                .append("\",\"client\":\"");
+        appendAddress(buf, offset, out);
+        out.append("\",\"method\":\"");
+        appendEscapedLatin1(buf, offset + METHOD, buf[offset + METHOD_LENGTH] & 0xff, out);
+        out.append("\",\"uri\":\"");
+        appendEscapedLatin1(buf, offset + URI, getShort(buf, offset + URI_LENGTH), out);
+        out.append("\",\"status\":").append(getShort(buf, offset + STATUS))
+                .append(",\"bytes\":").append(getLong(buf, offset + BYTES))
+                .append(",\"durationMicros\":").append(getLong(buf, offset + DURATION))
+                .append('}');
+    }
+
+    private static void appendAddress(byte[] buf, int offset, StringBuilder out) {
+        int addressLength = buf[offset + ADDRESS_LENGTH];
+        if (addressLength == 0) {
+            out.append("unknown");
+            return;
+        }
+        byte[] address = new byte[addressLength];
+        System.arraycopy(buf, offset + ADDRESS, address, 0, addressLength);
+        try {
+            String host = InetAddress.getByAddress(address).getHostAddress();
+            if (addressLength == MAX_ADDRESS_LENGTH) {
+                out.append('[').append(host).append(']');
+            } else {
+                out.append(host);
+            }
+        } catch (UnknownHostException e) {
+            // only thrown for addresses of illegal length
+            out.append("unknown");
+        }
+        out.append(':').append(getShort(buf, offset + PORT));
+    }
+
+    private static void appendEscapedLatin1(byte[] buf, int offset, int length, StringBuilder out) {
+        for (int i = 0; i < length; i++) {
+            char c = (char) (buf[offset + i] & 0xff);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20 || c > 0x7e) {
+                out.append("\\u00");
+                out.append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16));
+            } else {
+                out.append(c);
+            }
+        }
+    }
+
+    /**
+     * Writes the chars of a string as ISO-8859-1 bytes (chars beyond it
+     * become '?'), up to the given length.
+     *
+     * @return the number of bytes written
+     */
+    private static int putLatin1(byte[] buf, int offset, String s, int maxLength) {
+        if (s == null) {
+            return 0;
+        }
+        int length = Math.min(s.length(), maxLength);
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            buf[offset + i] = c <= 0xff ? (byte) c : (byte) '?';
+        }
+        return length;
+    }
+
+    private static void putLong(byte[] buf, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            buf[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static void putShort(byte[] buf, int offset, int value) {
+        buf[offset] = (byte) (value >>> 8);
+        buf[offset + 1] = (byte) value;
+    }
+
+    private static long getLong(byte[] buf, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = value << 8 | buf[offset + i] & 0xff;
+        }
+        return value;
+    }
+
+    private static int getShort(byte[] buf, int offset) {
+        return (buf[offset] & 0xff) << 8 | buf[offset + 1] & 0xff;
+    }
+}
@@ -0,0 +1,124 @@
+package org.littleshoot.proxy.extras;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * A bounded, lock-free ring of fixed-size slots, for many producers and a
+ * single consumer. Producers claim a slot, fill it in place and publish it;
+ * the consumer reads published slots in order and hands them back. When the
+ * ring is full, producers don't wait: {@link #claim()} fails and the caller
+ * drops its record.
+ * </p>
+ *
+ * <p>
+ * Each slot has a sequence number that tells whose turn it is (as in Dmitry
+ * Vyukov's bounded queue). A slot at position p is free for the producer of
+ * p when its sequence is p, readable by the consumer when it is p + 1, and
+ * free again for the producer of p + capacity once the consumer is done with
+ * it. The sequences are the only memory barriers: the slot contents
+ * themselves are plain array writes and reads.
+ * </p>
+ */
+class AccessLogRingBuffer {
+    private final int mask;
+    private final int slotSize;
+    private final byte[] slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * The position of the next slot to consume. Only used by the consumer.
+     */
+    private long head;
+
+    /**
+     * @param capacity the number of slots, a power of two
+     * @param slotSize the size of a slot, in bytes
+     */
+    AccessLogRingBuffer(int capacity, int slotSize) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        this.mask = capacity - 1;
+        this.slotSize = slotSize;
+        this.slots = new byte[Math.multiplyExact(capacity, slotSize)];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Claims the next slot for writing.
+     *
+     * @return the position of the claimed slot, or -1 if the ring is full
+     */
+    long claim() {
+        while (true) {
+            long position = tail.get();
+            long sequence = sequences.get(index(position));
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    return position;
+                }
+            } else if (sequence < position) {
+                // the consumer hasn't handed this slot back yet
+                return -1;
+            }
+            // else another producer claimed the slot first; try the next one
+        }
+    }
+
+    /**
+     * The array holding the slots, to be written at {@link #offset(long)}.
+     */
+    byte[] slots() {
+        return slots;
+    }
+
+    /**
+     * The offset in {@link #slots()} of the slot at the given position.
+     */
+    int offset(long position) {
+        return index(position) * slotSize;
+    }
+
+    /**
+     * Makes a claimed slot available to the consumer.
+     */
+    void publish(long position) {
+        sequences.lazySet(index(position), position + 1);
+    }
+
+    /**
+     * Hands the published slots, in order, to the given consumer, and then
+     * back to the producers. Must only be called by one thread at a time.
+     *
+     * @return the number of slots consumed
+     */
+    int drain(SlotConsumer consumer, int maxSlots) {
+        int consumed = 0;
+        while (consumed < maxSlots) {
+            int index = index(head);
+            if (sequences.get(index) != head + 1) {
+                // empty, or the producer of the next slot is still writing it
+                break;
+            }
+            consumer.accept(slots, index * slotSize);
+            sequences.lazySet(index, head + mask + 1);
+            head++;
+            consumed++;
+        }
+        return consumed;
+    }
+
+    private int index(long position) {
+        return (int) (position & mask);
+    }
+
+    interface SlotConsumer {
+        void accept(byte[] slots, int offset);
+    }
+}
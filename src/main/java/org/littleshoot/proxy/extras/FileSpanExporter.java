@@ -0,0 +1,71 @@
+package org.littleshoot.proxy.extras;
+
+import org.littleshoot.proxy.Span;
+import org.littleshoot.proxy.SpanExporter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * <p>
+ * A {@link SpanExporter} that appends spans to a file, one OTLP JSON export
+ * request per line, as written by the OpenTelemetry collector's file
+ * exporter and read by its otlpjsonfile receiver.
+ * </p>
+ *
+ * <pre>
+ * HttpProxyServer server = DefaultHttpProxyServer.bootstrap()
+ *         .withSpanExporter(new FileSpanExporter(Paths.get("spans.jsonl")))
+ *         .start();
+ * </pre>
+ */
+public class FileSpanExporter implements SpanExporter {
+    private static final Logger LOG = LoggerFactory.getLogger(FileSpanExporter.class);
+
+    private final String serviceName;
+    private final Writer writer;
+    private final StringBuilder line = new StringBuilder(8192);
+
+    /**
+     * Appends spans to the given file, creating it if needed, as the
+     * "littleproxy" service.
+     */
+    public FileSpanExporter(Path file) throws IOException {
+        this(file, OtlpJsonSpans.DEFAULT_SERVICE_NAME);
+    }
+
+    /**
+     * Appends spans to the given file, creating it if needed, as the given
+     * service.
+     */
+    public FileSpanExporter(Path file, String serviceName) throws IOException {
+        this.serviceName = serviceName;
+        this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    @Override
+    public void export(List<Span> spans) throws IOException {
+        line.setLength(0);
+        OtlpJsonSpans.append(spans, serviceName, line);
+        line.append('\n');
+        writer.append(line);
+        writer.flush();
+    }
+
+    @Override
+    public void shutdown() {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            LOG.warn("Unable to close span file", e);
+        }
+    }
+}
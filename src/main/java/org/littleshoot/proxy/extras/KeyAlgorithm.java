@@ -0,0 +1,57 @@
+package org.littleshoot.proxy.extras;
+
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.RSAKeyGenParameterSpec;
+
+/**
+ * Key algorithms supported for the self-signed certificates generated by
+ * {@link SelfSignedSslEngineSource}.
+ */
+public enum KeyAlgorithm {
+    EC_P256("EC", new ECGenParameterSpec("secp256r1"), "SHA256withECDSA", new int[]{1, 2, 840, 10045, 4, 3, 2}, false),
+    EC_P384("EC", new ECGenParameterSpec("secp384r1"), "SHA384withECDSA", new int[]{1, 2, 840, 10045, 4, 3, 3}, false),
+    RSA_2048("RSA", new RSAKeyGenParameterSpec(2048, RSAKeyGenParameterSpec.F4), "SHA256withRSA", new int[]{1, 2, 840, 113549, 1, 1, 11}, true),
+    RSA_4096("RSA", new RSAKeyGenParameterSpec(4096, RSAKeyGenParameterSpec.F4), "SHA256withRSA", new int[]{1, 2, 840, 113549, 1, 1, 11}, true);
+
+    private final String keyAlgorithm;
+    private final AlgorithmParameterSpec parameterSpec;
+    private final String signatureAlgorithm;
+    private final int[] signatureOid;
+    private final boolean signatureHasNullParameters;
+
+    KeyAlgorithm(String keyAlgorithm, AlgorithmParameterSpec parameterSpec, String signatureAlgorithm,
+                 int[] signatureOid, boolean signatureHasNullParameters) {
+        this.keyAlgorithm = keyAlgorithm;
+        this.parameterSpec = parameterSpec;
+        this.signatureAlgorithm = signatureAlgorithm;
+        this.signatureOid = signatureOid;
+        this.signatureHasNullParameters = signatureHasNullParameters;
+    }
+
+    /**
+     * @return the JCA name of the key pair algorithm, e.g. "EC"
+     */
+    public String getKeyAlgorithm() {
+        return keyAlgorithm;
+    }
+
+    /**
+     * @return the JCA name of the signature algorithm, e.g. "SHA256withECDSA"
+     */
+    public String getSignatureAlgorithm() {
+        return signatureAlgorithm;
+    }
+
+    AlgorithmParameterSpec getParameterSpec() {
+        return parameterSpec;
+    }
+
+    int[] getSignatureOid() {
+        return signatureOid.clone();
+    }
+
+    boolean signatureHasNullParameters() {
+        return signatureHasNullParameters;
+    }
+}
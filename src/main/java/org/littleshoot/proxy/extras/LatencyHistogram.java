@@ -0,0 +1,159 @@
+package org.littleshoot.proxy.extras;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of latencies, recorded in microseconds. Like
+ * HdrHistogram, it splits every power of two into a fixed number of linear
+ * sub-buckets, so that any recorded value is reported with a relative error
+ * of at most 1/16 (about 6%), from one microsecond up to centuries, in a
+ * fixed amount of memory. Recording is a couple of atomic additions, and
+ * never blocks.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records a latency.
+     */
+    public void record(long duration, TimeUnit unit) {
+        recordMicros(unit.toMicros(duration));
+    }
+
+    /**
+     * Records a latency in microseconds. Negative values are recorded as 0.
+     */
+    public void recordMicros(long micros) {
+        long value = Math.max(0, micros);
+        counts.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * The number of recorded latencies.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * The largest recorded latency, in microseconds.
+     */
+    public long getMaxMicros() {
+        return max.get();
+    }
+
+    /**
+     * The mean of the recorded latencies, in microseconds, or 0 if none have
+     * been recorded.
+     */
+    public double getMeanMicros() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * The sum of the recorded latencies, in microseconds.
+     */
+    public long getSumMicros() {
+        return sum.sum();
+    }
+
+    /**
+     * Returns the latency, in microseconds, below which the given percentage
+     * of the recorded latencies fall, or 0 if none have been recorded. The
+     * result is the upper bound of the bucket holding that latency, capped at
+     * the largest recorded latency. Recordings made while this runs may or
+     * may not be taken into account.
+     *
+     * @param percentile a value between 0 and 100
+     */
+    public long getPercentileMicros(double percentile) {
+        long[] result = new long[1];
+        getPercentilesMicros(new double[]{percentile}, result);
+        return result[0];
+    }
+
+    /**
+     * Like {@link #getPercentileMicros(double)} for several percentiles at
+     * once, in a single pass over the buckets and without allocating.
+     *
+     * @param percentiles values between 0 and 100, in ascending order
+     * @param results     receives the latency for each percentile
+     */
+    public void getPercentilesMicros(double[] percentiles, long[] results) {
+        for (int i = 0; i < percentiles.length; i++) {
+            if (percentiles[i] < 0 || percentiles[i] > 100) {
+                throw new IllegalArgumentException("Percentile must be between 0 and 100: " + percentiles[i]);
+            }
+            if (i > 0 && percentiles[i] < percentiles[i - 1]) {
+                throw new IllegalArgumentException("Percentiles must be in ascending order");
+            }
+        }
+
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        long max = getMaxMicros();
+        if (total == 0) {
+            Arrays.fill(results, 0, percentiles.length, 0);
+            return;
+        }
+
+        // bucket counts only ever grow, so the walk below reaches every rank
+        // even if latencies are recorded after the total was taken
+        int next = 0;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS && next < percentiles.length; i++) {
+            seen += counts.get(i);
+            while (next < percentiles.length && seen >= rank(percentiles[next], total)) {
+                results[next++] = Math.min(highestValueIn(i), max);
+            }
+        }
+        while (next < percentiles.length) {
+            results[next++] = max;
+        }
+    }
+
+    private static long rank(double percentile, long total) {
+        return Math.max(1, (long) Math.ceil(percentile / 100 * total));
+    }
+
+    /**
+     * Values below {@link #SUB_BUCKETS} get a bucket each. Larger values go
+     * to one of the sub-buckets of their power of two, chosen by the bits
+     * that follow the highest one.
+     */
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long highestValueIn(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int magnitude = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (magnitude - SUB_BUCKET_BITS);
+        long width = 1L << (magnitude - SUB_BUCKET_BITS);
+        return lowest + width - 1;
+    }
+}
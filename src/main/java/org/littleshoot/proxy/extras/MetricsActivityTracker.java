@@ -0,0 +1,481 @@
+package org.littleshoot.proxy.extras;
+
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpStatusClass;
+import org.littleshoot.proxy.ActivityTracker;
+import org.littleshoot.proxy.FlowContext;
+import org.littleshoot.proxy.FullFlowContext;
+import org.littleshoot.proxy.RequestTimings;
+
+import javax.annotation.Nullable;
+import javax.net.ssl.SSLSession;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ * An {@link ActivityTracker} that keeps proxy-wide metrics: connection,
+ * request and response counts, bytes in and out, responses by status class,
+ * and {@link LatencyHistogram}s of the time from reading a request to
+ * writing its response headers and of the servers' time to first byte. It
+ * also breaks requests and bytes down by origin server, for the busiest
+ * origins only.
+ * </p>
+ *
+ * <p>
+ * Every callback is lock-free: counters are {@link LongAdder}s, which
+ * stripe contended updates across cells, so the event loops never wait on
+ * each other. All counters are cumulative; rates are derived from the
+ * difference between two readings.
+ * </p>
+ *
+ * <p>
+ * The per-origin breakdown is bounded. Once it holds the maximum number of
+ * origins, a new origin is counted as a candidate, starting from the fewest
+ * requests of any origin in the breakdown, as in the Space-Saving algorithm.
+ * The breakdown is rebalanced when it's read and whenever as many candidates
+ * as origins have gathered: the origins and candidates with the most requests
+ * are kept, and the others evicted. Rebalancing takes one thread at a time,
+ * and an event loop that finds another thread rebalancing doesn't wait for
+ * it. The busiest origins are thereby kept, and an origin's count includes
+ * the requests to the origins it replaced rather than underestimating its
+ * own, but for requests counted while it's being evicted.
+ * </p>
+ *
+ * <pre>
+ * MetricsActivityTracker metrics = new MetricsActivityTracker();
+ * HttpProxyServer server = DefaultHttpProxyServer.bootstrap()
+ *         .plusActivityTracker(metrics)
+ *         .start();
+ * </pre>
+ */
+public class MetricsActivityTracker implements ActivityTracker {
+    /**
+     * The default maximum number of origins in the per-origin breakdown.
+     */
+    public static final int DEFAULT_MAX_ORIGINS = 100;
+
+    private final int maxOrigins;
+
+    private final LongAdder clientConnections = new LongAdder();
+    private final LongAdder activeClientConnections = new LongAdder();
+    private final LongAdder clientSslHandshakes = new LongAdder();
+    private final LongAdder requestsReceived = new LongAdder();
+    private final LongAdder requestsSentToServer = new LongAdder();
+    private final LongAdder responsesReceivedFromServer = new LongAdder();
+    private final LongAdder responsesSent = new LongAdder();
+    private final LongAdder[] responsesSentByStatusClass = new LongAdder[HttpStatusClass.values().length];
+    private final LongAdder bytesReceivedFromClient = new LongAdder();
+    private final LongAdder bytesSentToServer = new LongAdder();
+    private final LongAdder bytesReceivedFromServer = new LongAdder();
+    private final LongAdder bytesSentToClient = new LongAdder();
+    private final LongAdder originEvictions = new LongAdder();
+
+    private final LatencyHistogram requestLatency = new LatencyHistogram();
+    private final LatencyHistogram timeToFirstByte = new LatencyHistogram();
+
+    /**
+     * The times at which the requests still waiting for their responses were
+     * read.
+     */
+    private final PendingRequests<Long> requestStartTimes = new PendingRequests<>();
+
+    private final Map<String, OriginCounters> origins = new ConcurrentHashMap<>();
+
+    /**
+     * The origins counted since the breakdown was last rebalanced, while it
+     * was full.
+     */
+    private final Map<String, OriginCounters> candidates = new ConcurrentHashMap<>();
+
+    private final ReentrantLock rebalanceLock = new ReentrantLock();
+
+    /**
+     * The fewest requests of any origin in the full breakdown, which new
+     * candidates start from, or -1 until it's known.
+     */
+    private volatile long fewestRequests = -1;
+
+    public MetricsActivityTracker() {
+        this(DEFAULT_MAX_ORIGINS);
+    }
+
+    /**
+     * @param maxOrigins the maximum number of origins to break metrics down by
+     */
+    public MetricsActivityTracker(int maxOrigins) {
+        if (maxOrigins < 1) {
+            throw new IllegalArgumentException("maxOrigins must be positive: " + maxOrigins);
+        }
+        this.maxOrigins = maxOrigins;
+        for (int i = 0; i < responsesSentByStatusClass.length; i++) {
+            responsesSentByStatusClass[i] = new LongAdder();
+        }
+    }
+
+    @Override
+    public void clientConnected(InetSocketAddress clientAddress) {
+        clientConnections.increment();
+        activeClientConnections.increment();
+    }
+
+    @Override
+    public void clientSSLHandshakeSucceeded(InetSocketAddress clientAddress, SSLSession sslSession) {
+        clientSslHandshakes.increment();
+    }
+
+    @Override
+    public void clientDisconnected(InetSocketAddress clientAddress, SSLSession sslSession) {
+        activeClientConnections.decrement();
+        requestStartTimes.clientDisconnected(clientAddress);
+    }
+
+    @Override
+    public void bytesReceivedFromClient(FlowContext flowContext, int numberOfBytes) {
+        bytesReceivedFromClient.add(numberOfBytes);
+    }
+
+    @Override
+    public void requestReceivedFromClient(FlowContext flowContext, HttpRequest httpRequest) {
+        requestsReceived.increment();
+
+        requestStartTimes.add(flowContext, System.nanoTime());
+    }
+
+    @Override
+    public void bytesSentToServer(FullFlowContext flowContext, int numberOfBytes) {
+        bytesSentToServer.add(numberOfBytes);
+        OriginCounters counters = countersOf(flowContext.getServerHostAndPort());
+        if (counters != null) {
+            counters.bytesSent.add(numberOfBytes);
+        }
+    }
+
+    @Override
+    public void requestSentToServer(FullFlowContext flowContext, HttpRequest httpRequest) {
+        requestsSentToServer.increment();
+        String origin = flowContext.getServerHostAndPort();
+        if (origin != null) {
+            originCounters(origin).requests.increment();
+        }
+    }
+
+    @Override
+    public void bytesReceivedFromServer(FullFlowContext flowContext, int numberOfBytes) {
+        bytesReceivedFromServer.add(numberOfBytes);
+        OriginCounters counters = countersOf(flowContext.getServerHostAndPort());
+        if (counters != null) {
+            counters.bytesReceived.add(numberOfBytes);
+        }
+    }
+
+    @Override
+    public void responseReceivedFromServer(FullFlowContext flowContext, HttpResponse httpResponse) {
+        responsesReceivedFromServer.increment();
+        if (httpResponse.status().codeClass() == HttpStatusClass.SERVER_ERROR) {
+            OriginCounters counters = countersOf(flowContext.getServerHostAndPort());
+            if (counters != null) {
+                counters.serverErrors.increment();
+            }
+        }
+    }
+
+    @Override
+    public void responseCompletedFromServer(FullFlowContext flowContext, RequestTimings requestTimings) {
+        long nanos = requestTimings.getTimeToFirstByteNanos();
+        if (nanos >= 0) {
+            timeToFirstByte.record(nanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @Override
+    public void bytesSentToClient(FlowContext flowContext, int numberOfBytes) {
+        bytesSentToClient.add(numberOfBytes);
+    }
+
+    @Override
+    public void responseSentToClient(FlowContext flowContext, HttpResponse httpResponse) {
+        HttpResponseStatus status = httpResponse.status();
+        responsesSent.increment();
+        responsesSentByStatusClass[status.codeClass().ordinal()].increment();
+
+        // interim responses precede the final response to the same request
+        if (status.codeClass() == HttpStatusClass.INFORMATIONAL
+                && status.code() != HttpResponseStatus.SWITCHING_PROTOCOLS.code()) {
+            return;
+        }
+
+        Long startTime = requestStartTimes.remove(flowContext);
+        if (startTime != null) {
+            requestLatency.record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Returns the counters of the given origin, if it's in the breakdown or a
+     * candidate.
+     */
+    @Nullable
+    private OriginCounters countersOf(@Nullable String origin) {
+        if (origin == null) {
+            return null;
+        }
+        OriginCounters counters = origins.get(origin);
+        return counters != null ? counters : candidates.get(origin);
+    }
+
+    /**
+     * Returns the counters of the given origin, adding it to the breakdown
+     * while there's room, or to the candidates otherwise.
+     */
+    private OriginCounters originCounters(String origin) {
+        OriginCounters counters = countersOf(origin);
+        if (counters != null) {
+            return counters;
+        }
+        if (origins.size() < maxOrigins) {
+            return origins.computeIfAbsent(origin, key -> new OriginCounters(key, 0));
+        }
+
+        long inheritedRequests = fewestRequests;
+        if (inheritedRequests < 0) {
+            // only the first candidate after the breakdown filled up looks for it, rebalancing keeps it up to date
+            inheritedRequests = Long.MAX_VALUE;
+            for (OriginCounters candidate : origins.values()) {
+                inheritedRequests = Math.min(inheritedRequests, candidate.requests.sum());
+            }
+            fewestRequests = inheritedRequests;
+        }
+        long requests = inheritedRequests;
+        counters = candidates.computeIfAbsent(origin, key -> new OriginCounters(key, requests));
+        if (candidates.size() >= maxOrigins && rebalanceLock.tryLock()) {
+            try {
+                rebalance();
+            } finally {
+                rebalanceLock.unlock();
+            }
+        }
+        return counters;
+    }
+
+    /**
+     * Keeps the origins and candidates with the most requests in the
+     * breakdown, and evicts the others. Called while holding
+     * {@link #rebalanceLock}.
+     */
+    private void rebalance() {
+        if (candidates.isEmpty()) {
+            return;
+        }
+        List<OriginCounters> all = new ArrayList<>(origins.size() + candidates.size());
+        all.addAll(origins.values());
+        all.addAll(candidates.values());
+        // sort by the counts as of now, rather than by counts that may change while sorting
+        for (OriginCounters counters : all) {
+            counters.rebalancedRequests = counters.requests.sum();
+        }
+        all.sort(Comparator.comparingLong((OriginCounters counters) -> counters.rebalancedRequests).reversed());
+
+        int kept = Math.min(maxOrigins, all.size());
+        for (int i = 0; i < kept; i++) {
+            OriginCounters counters = all.get(i);
+            // added before it's removed from the candidates, so that the event loops always find it in either
+            origins.put(counters.origin, counters);
+            candidates.remove(counters.origin, counters);
+        }
+        for (int i = kept; i < all.size(); i++) {
+            OriginCounters counters = all.get(i);
+            if (origins.remove(counters.origin, counters)) {
+                originEvictions.increment();
+            }
+            candidates.remove(counters.origin, counters);
+        }
+        fewestRequests = all.get(kept - 1).rebalancedRequests;
+    }
+
+    /**
+     * The number of client connections opened since the proxy started.
+     */
+    public long getClientConnections() {
+        return clientConnections.sum();
+    }
+
+    /**
+     * The number of currently open client connections.
+     */
+    public long getActiveClientConnections() {
+        return activeClientConnections.sum();
+    }
+
+    public long getClientSslHandshakes() {
+        return clientSslHandshakes.sum();
+    }
+
+    public long getRequestsReceived() {
+        return requestsReceived.sum();
+    }
+
+    public long getRequestsSentToServer() {
+        return requestsSentToServer.sum();
+    }
+
+    public long getResponsesReceivedFromServer() {
+        return responsesReceivedFromServer.sum();
+    }
+
+    /**
+     * The number of responses sent to clients, including those the proxy
+     * generated itself, such as 502 Bad Gateway.
+     */
+    public long getResponsesSent() {
+        return responsesSent.sum();
+    }
+
+    /**
+     * The number of responses with a status in the given class sent to
+     * clients.
+     */
+    public long getResponsesSent(HttpStatusClass statusClass) {
+        return responsesSentByStatusClass[statusClass.ordinal()].sum();
+    }
+
+    public long getBytesReceivedFromClient() {
+        return bytesReceivedFromClient.sum();
+    }
+
+    public long getBytesSentToServer() {
+        return bytesSentToServer.sum();
+    }
+
+    public long getBytesReceivedFromServer() {
+        return bytesReceivedFromServer.sum();
+    }
+
+    public long getBytesSentToClient() {
+        return bytesSentToClient.sum();
+    }
+
+    /**
+     * The latencies from reading requests from clients to writing the
+     * headers of their responses.
+     */
+    public LatencyHistogram getRequestLatency() {
+        return requestLatency;
+    }
+
+    /**
+     * The times servers took from receiving whole requests to sending the
+     * headers of their responses.
+     */
+    public LatencyHistogram getTimeToFirstByte() {
+        return timeToFirstByte;
+    }
+
+    /**
+     * The number of times an origin was evicted from the per-origin breakdown
+     * to make room for another.
+     */
+    public long getOriginEvictions() {
+        return originEvictions.sum();
+    }
+
+    /**
+     * Returns a snapshot of the per-origin breakdown, busiest origin first.
+     */
+    public List<OriginMetrics> getOrigins() {
+        rebalanceLock.lock();
+        try {
+            rebalance();
+        } finally {
+            rebalanceLock.unlock();
+        }
+
+        List<OriginMetrics> snapshot = new ArrayList<>(origins.size());
+        for (OriginCounters counters : origins.values()) {
+            snapshot.add(new OriginMetrics(counters.origin, counters.requests.sum(), counters.serverErrors.sum(),
+                    counters.bytesSent.sum(), counters.bytesReceived.sum()));
+        }
+        snapshot.sort(Comparator.comparingLong(OriginMetrics::getRequests).reversed());
+        return snapshot;
+    }
+
+    private static class OriginCounters {
+        private final String origin;
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder serverErrors = new LongAdder();
+        private final LongAdder bytesSent = new LongAdder();
+        private final LongAdder bytesReceived = new LongAdder();
+
+        /**
+         * The request count that the last rebalancing sorted by. Only
+         * touched while holding the rebalance lock.
+         */
+        private long rebalancedRequests;
+
+        private OriginCounters(String origin, long inheritedRequests) {
+            this.origin = origin;
+            requests.add(inheritedRequests);
+        }
+    }
+
+    /**
+     * Metrics of a single origin server. The request count may include
+     * requests to origins that this one replaced in the breakdown.
+     */
+    public static final class OriginMetrics {
+        private final String origin;
+        private final long requests;
+        private final long serverErrors;
+        private final long bytesSent;
+        private final long bytesReceived;
+
+        OriginMetrics(String origin, long requests, long serverErrors, long bytesSent, long bytesReceived) {
+            this.origin = origin;
+            this.requests = requests;
+            this.serverErrors = serverErrors;
+            this.bytesSent = bytesSent;
+            this.bytesReceived = bytesReceived;
+        }
+
+        /**
+         * The origin's host and port.
+         */
+        public String getOrigin() {
+            return origin;
+        }
+
+        public long getRequests() {
+            return requests;
+        }
+
+        /**
+         * The number of 5xx responses received from the origin.
+         */
+        public long getServerErrors() {
+            return serverErrors;
+        }
+
+        public long getBytesSent() {
+            return bytesSent;
+        }
+
+        public long getBytesReceived() {
+            return bytesReceived;
+        }
+
+        @Override
+        public String toString() {
+            return origin + ": " + requests + " requests, " + serverErrors + " server errors, "
+                    + bytesSent + " bytes sent, " + bytesReceived + " bytes received";
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package org.littleshoot.proxy.extras;
+
+import org.littleshoot.proxy.Span;
+import org.littleshoot.proxy.SpanExporter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * <p>
+ * A {@link SpanExporter} that posts spans to an OpenTelemetry collector, or
+ * any other OTLP/HTTP endpoint, in the OTLP JSON encoding. A batch the
+ * collector doesn't accept is dropped, not retried.
+ * </p>
+ *
+ * <pre>
+ * HttpProxyServer server = DefaultHttpProxyServer.bootstrap()
+ *         .withSpanExporter(new OtlpHttpSpanExporter(URI.create("http://localhost:4318/v1/traces")))
+ *         .start();
+ * </pre>
+ */
+public class OtlpHttpSpanExporter implements SpanExporter {
+    /**
+     * The default timeout for connecting to the collector, and for its
+     * response.
+     */
+    public static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(10);
+
+    private final URI endpoint;
+    private final String serviceName;
+    private final int timeoutMillis;
+
+    /**
+     * Posts spans to the given URL, typically ending with /v1/traces, as the
+     * "littleproxy" service.
+     */
+    public OtlpHttpSpanExporter(URI endpoint) {
+        this(endpoint, OtlpJsonSpans.DEFAULT_SERVICE_NAME, DEFAULT_TIMEOUT);
+    }
+
+    public OtlpHttpSpanExporter(URI endpoint, String serviceName, Duration timeout) {
+        this.endpoint = endpoint;
+        this.serviceName = serviceName;
+        this.timeoutMillis = (int) timeout.toMillis();
+    }
+
+    @Override
+    public void export(List<Span> spans) throws IOException {
+        StringBuilder json = new StringBuilder(8192);
+        OtlpJsonSpans.append(spans, serviceName, json);
+        byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+
+        // never send the spans through a proxy, which could be this one
+        HttpURLConnection connection = (HttpURLConnection) endpoint.toURL().openConnection(Proxy.NO_PROXY);
+        connection.setRequestMethod("POST");
+        connection.setConnectTimeout(timeoutMillis);
+        connection.setReadTimeout(timeoutMillis);
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+        connection.setRequestProperty("Content-Type", "application/json");
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body);
+        }
+
+        int status = connection.getResponseCode();
+        InputStream response = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (response != null) {
+            // read the response, so that the connection can be kept alive
+            try (InputStream in = response) {
+                in.readAllBytes();
+            }
+        }
+        if (status / 100 != 2) {
+            throw new IOException("Collector at " + endpoint + " responded with status " + status);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+    }
+}
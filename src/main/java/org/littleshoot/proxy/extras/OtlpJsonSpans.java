@@ -0,0 +1,122 @@
+package org.littleshoot.proxy.extras;
+
+import org.littleshoot.proxy.Span;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Encodes spans as an OpenTelemetry ExportTraceServiceRequest, in the OTLP
+ * JSON encoding: what an OTLP/HTTP collector accepts at /v1/traces, and
+ * what its file exporter writes, one request per line.
+ * </p>
+ *
+ * <p>
+ * As the encoding requires, ids are hex strings, 64-bit integers are
+ * strings, and enums are numbers.
+ * </p>
+ */
+final class OtlpJsonSpans {
+    static final String DEFAULT_SERVICE_NAME = "littleproxy";
+
+    private static final String SCOPE_NAME = "org.littleshoot.proxy";
+
+    private static final int SPAN_KIND_INTERNAL = 1;
+    private static final int SPAN_KIND_SERVER = 2;
+    private static final int SPAN_KIND_CLIENT = 3;
+
+    private static final int STATUS_CODE_ERROR = 2;
+
+    private OtlpJsonSpans() {
+    }
+
+    /**
+     * Appends the spans as an export request, without a line separator.
+     */
+    static void append(List<Span> spans, String serviceName, StringBuilder out) {
+        out.append("{\"resourceSpans\":[{\"resource\":{\"attributes\":[");
+        appendAttribute("service.name", serviceName, out);
+        out.append("]},\"scopeSpans\":[{\"scope\":{\"name\":\"").append(SCOPE_NAME).append("\"},\"spans\":[");
+        for (int i = 0; i < spans.size(); i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            appendSpan(spans.get(i), out);
+        }
+        out.append("]}]}]}");
+    }
+
+    private static void appendSpan(Span span, StringBuilder out) {
+        out.append("{\"traceId\":\"").append(span.getTraceId())
+                .append("\",\"spanId\":\"").append(span.getSpanId()).append('"');
+        if (span.getParentSpanId() != null) {
+            out.append(",\"parentSpanId\":\"").append(span.getParentSpanId()).append('"');
+        }
+        if (span.getTraceState() != null) {
+            out.append(",\"traceState\":");
+            appendString(span.getTraceState(), out);
+        }
+        out.append(",\"name\":");
+        appendString(span.getName(), out);
+        out.append(",\"kind\":").append(kind(span.getKind()))
+                .append(",\"startTimeUnixNano\":\"").append(span.getStartEpochNanos())
+                .append("\",\"endTimeUnixNano\":\"").append(span.getEndEpochNanos())
+                .append("\",\"attributes\":[");
+        boolean first = true;
+        for (Map.Entry<String, Object> attribute : span.getAttributes().entrySet()) {
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            appendAttribute(attribute.getKey(), attribute.getValue(), out);
+        }
+        out.append(']');
+        if (span.getError() != null) {
+            out.append(",\"status\":{\"code\":").append(STATUS_CODE_ERROR).append(",\"message\":");
+            appendString(span.getError(), out);
+            out.append('}');
+        }
+        out.append('}');
+    }
+
+    private static int kind(Span.Kind kind) {
+        switch (kind) {
+            case SERVER:
+                return SPAN_KIND_SERVER;
+            case CLIENT:
+                return SPAN_KIND_CLIENT;
+            default:
+                return SPAN_KIND_INTERNAL;
+        }
+    }
+
+    private static void appendAttribute(String key, Object value, StringBuilder out) {
+        out.append("{\"key\":");
+        appendString(key, out);
+        if (value instanceof Long || value instanceof Integer) {
+            out.append(",\"value\":{\"intValue\":\"").append(value).append("\"}}");
+        } else if (value instanceof Boolean) {
+            out.append(",\"value\":{\"boolValue\":").append(value).append("}}");
+        } else {
+            out.append(",\"value\":{\"stringValue\":");
+            appendString(String.valueOf(value), out);
+            out.append("}}");
+        }
+    }
+
+    private static void appendString(String value, StringBuilder out) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+}
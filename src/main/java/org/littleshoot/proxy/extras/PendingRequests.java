@@ -0,0 +1,76 @@
+package org.littleshoot.proxy.extras;
+
+import org.littleshoot.proxy.FlowContext;
+
+import javax.annotation.Nullable;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The requests read from each client that are waiting for their responses,
+ * for the activity trackers that pair a response with its request. The
+ * requests of an HTTP/1 connection are answered in the order they were read,
+ * so they are queued, while those of an HTTP/2 connection are answered in any
+ * order, one per stream, so they are kept by stream id.
+ *
+ * @param <T> what the trackers remember of a request
+ */
+final class PendingRequests<T> {
+    private final Map<InetSocketAddress, Client<T>> clients = new ConcurrentHashMap<>();
+
+    /**
+     * Remembers a request read from a client.
+     */
+    void add(FlowContext flowContext, T request) {
+        InetSocketAddress clientAddress = flowContext.getClientAddress();
+        if (clientAddress == null) {
+            return;
+        }
+        Client<T> client = clients.get(clientAddress);
+        if (client == null) {
+            client = new Client<>();
+            Client<T> existing = clients.putIfAbsent(clientAddress, client);
+            if (existing != null) {
+                client = existing;
+            }
+        }
+        int streamId = flowContext.getClientStreamId();
+        if (streamId == 0) {
+            client.requests.add(request);
+        } else {
+            client.streams.put(streamId, request);
+        }
+    }
+
+    /**
+     * Returns and forgets the request a response sent to a client answers,
+     * or null if it isn't known.
+     */
+    @Nullable
+    T remove(FlowContext flowContext) {
+        InetSocketAddress clientAddress = flowContext.getClientAddress();
+        Client<T> client = clientAddress != null ? clients.get(clientAddress) : null;
+        if (client == null) {
+            return null;
+        }
+        int streamId = flowContext.getClientStreamId();
+        return streamId == 0 ? client.requests.poll() : client.streams.remove(streamId);
+    }
+
+    /**
+     * Forgets the requests of a client that disconnected.
+     */
+    void clientDisconnected(@Nullable InetSocketAddress clientAddress) {
+        if (clientAddress != null) {
+            clients.remove(clientAddress);
+        }
+    }
+
+    private static final class Client<T> {
+        private final Queue<T> requests = new ConcurrentLinkedQueue<>();
+        private final Map<Integer, T> streams = new ConcurrentHashMap<>();
+    }
+}
@@ -0,0 +1,205 @@
+package org.littleshoot.proxy.extras;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Generates self-signed X.509 certificates and key stores in-process, using
+ * nothing but the JCA providers that ship with the JDK. The certificate is
+ * DER-encoded by hand, which keeps us independent of both {@code keytool} and
+ * the JDK-internal {@code sun.security.x509} classes.
+ */
+class SelfSignedCertificateGenerator {
+    private static final int[] COMMON_NAME_OID = {2, 5, 4, 3};
+    private static final int[] SUBJECT_KEY_IDENTIFIER_OID = {2, 5, 29, 14};
+
+    private static final DateTimeFormatter UTC_TIME = DateTimeFormatter.ofPattern("yyMMddHHmmss'Z'");
+    private static final DateTimeFormatter GENERALIZED_TIME = DateTimeFormatter.ofPattern("yyyyMMddHHmmss'Z'");
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private SelfSignedCertificateGenerator() {
+    }
+
+    /**
+     * Creates a new key pair and a matching self-signed certificate, and
+     * returns a PKCS#12 key store holding both under the given alias.
+     */
+    static KeyStore generateKeyStore(KeyAlgorithm keyAlgorithm, String commonName, int validityDays,
+                                     String alias, String password) throws GeneralSecurityException, IOException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(keyAlgorithm.getKeyAlgorithm());
+        keyPairGenerator.initialize(keyAlgorithm.getParameterSpec(), RANDOM);
+        KeyPair keyPair = keyPairGenerator.generateKeyPair();
+
+        X509Certificate certificate = selfSign(keyPair, keyAlgorithm, commonName, validityDays);
+
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        keyStore.load(null, null);
+        keyStore.setKeyEntry(alias, keyPair.getPrivate(), password.toCharArray(), new Certificate[]{certificate});
+        return keyStore;
+    }
+
+    static X509Certificate selfSign(KeyPair keyPair, KeyAlgorithm keyAlgorithm, String commonName, int validityDays)
+            throws GeneralSecurityException {
+        ZonedDateTime notBefore = ZonedDateTime.now(ZoneOffset.UTC).withNano(0);
+        ZonedDateTime notAfter = notBefore.plusDays(validityDays);
+        byte[] publicKeyInfo = keyPair.getPublic().getEncoded();
+        byte[] name = name(commonName);
+        byte[] signatureAlgorithm = algorithmIdentifier(keyAlgorithm);
+
+        byte[] tbsCertificate = sequence(
+                tagged(0xA0, integer(BigInteger.valueOf(2))),
+                integer(new BigInteger(64, RANDOM).setBit(62)),
+                signatureAlgorithm,
+                name,
+                sequence(time(notBefore), time(notAfter)),
+                name,
+                publicKeyInfo,
+                tagged(0xA3, sequence(subjectKeyIdentifier(publicKeyInfo))));
+
+        Signature signature = Signature.getInstance(keyAlgorithm.getSignatureAlgorithm());
+        signature.initSign(keyPair.getPrivate(), RANDOM);
+        signature.update(tbsCertificate);
+
+        byte[] encoded = sequence(tbsCertificate, signatureAlgorithm, bitString(signature.sign()));
+        X509Certificate certificate = (X509Certificate) CertificateFactory.getInstance("X.509")
+                .generateCertificate(new ByteArrayInputStream(encoded));
+        certificate.verify(keyPair.getPublic());
+        return certificate;
+    }
+
+    /**
+     * Writes the given bytes to a temporary file next to the target and then
+     * moves it into place, so that concurrent readers (for example a second
+     * proxy starting on the same host) never observe a partially written file.
+     */
+    static void writeAtomically(Path target, ContentWriter writer) throws IOException {
+        Path absoluteTarget = target.toAbsolutePath();
+        Path directory = absoluteTarget.getParent();
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, absoluteTarget.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream os = Files.newOutputStream(temp)) {
+                writer.writeTo(os);
+            }
+            try {
+                Files.move(temp, absoluteTarget, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, absoluteTarget, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    interface ContentWriter {
+        void writeTo(OutputStream os) throws IOException;
+    }
+
+    private static byte[] name(String commonName) {
+        byte[] attribute = sequence(oid(COMMON_NAME_OID), encode(0x0C, commonName.getBytes(StandardCharsets.UTF_8)));
+        return sequence(encode(0x31, attribute));
+    }
+
+    private static byte[] algorithmIdentifier(KeyAlgorithm keyAlgorithm) {
+        byte[] oid = oid(keyAlgorithm.getSignatureOid());
+        return keyAlgorithm.signatureHasNullParameters() ? sequence(oid, new byte[]{0x05, 0x00}) : sequence(oid);
+    }
+
+    private static byte[] subjectKeyIdentifier(byte[] publicKeyInfo) throws GeneralSecurityException {
+        byte[] keyIdentifier = MessageDigest.getInstance("SHA-1").digest(publicKeyInfo);
+        return sequence(oid(SUBJECT_KEY_IDENTIFIER_OID), octetString(octetString(keyIdentifier)));
+    }
+
+    /**
+     * RFC 5280 requires UTCTime for dates through 2049 and GeneralizedTime
+     * afterwards.
+     */
+    private static byte[] time(ZonedDateTime time) {
+        if (time.getYear() < 2050) {
+            return encode(0x17, UTC_TIME.format(time).getBytes(StandardCharsets.US_ASCII));
+        }
+        return encode(0x18, GENERALIZED_TIME.format(time).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static byte[] integer(BigInteger value) {
+        return encode(0x02, value.toByteArray());
+    }
+
+    private static byte[] octetString(byte[] value) {
+        return encode(0x04, value);
+    }
+
+    private static byte[] bitString(byte[] value) {
+        byte[] content = new byte[value.length + 1];
+        System.arraycopy(value, 0, content, 1, value.length);
+        return encode(0x03, content);
+    }
+
+    private static byte[] oid(int[] components) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(components[0] * 40 + components[1]);
+        for (int i = 2; i < components.length; i++) {
+            int component = components[i];
+            int shift = 28;
+            while (shift > 0 && (component >>> shift) == 0) {
+                shift -= 7;
+            }
+            for (; shift > 0; shift -= 7) {
+                out.write(0x80 | ((component >>> shift) & 0x7F));
+            }
+            out.write(component & 0x7F);
+        }
+        return encode(0x06, out.toByteArray());
+    }
+
+    private static byte[] tagged(int tag, byte[] content) {
+        return encode(tag, content);
+    }
+
+    private static byte[] sequence(byte[]... elements) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] element : elements) {
+            out.writeBytes(element);
+        }
+        return encode(0x30, out.toByteArray());
+    }
+
+    private static byte[] encode(int tag, byte[] content) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length + 6);
+        out.write(tag);
+        int length = content.length;
+        if (length < 0x80) {
+            out.write(length);
+        } else {
+            int lengthBytes = (Integer.SIZE - Integer.numberOfLeadingZeros(length) + 7) / 8;
+            out.write(0x80 | lengthBytes);
+            for (int i = lengthBytes - 1; i >= 0; i--) {
+                out.write(length >>> (i * 8));
+            }
+        }
+        out.writeBytes(content);
+        return out.toByteArray();
+    }
+}
@@ -1,6 +1,5 @@
 package org.littleshoot.proxy.extras;
 
-import com.google.common.io.ByteStreams;
 import org.littleshoot.proxy.SslEngineSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,38 +14,49 @@ import java.nio.file.Paths;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.Security;
-import java.util.Arrays;
+import java.security.cert.Certificate;
 
 import static java.util.Objects.requireNonNullElse;
 
 /**
  * Basic {@link SslEngineSource} for testing. The {@link SSLContext} uses
  * self-signed certificates that are generated lazily if the given key store
- * file doesn't yet exist.
+ * file doesn't yet exist. Generation happens in-process, using the
+ * {@link KeyAlgorithm} given at construction time ({@link KeyAlgorithm#EC_P256}
+ * by default).
  */
 public class SelfSignedSslEngineSource implements SslEngineSource {
     private static final Logger LOG = LoggerFactory.getLogger(SelfSignedSslEngineSource.class);
 
     private static final String PROTOCOL = "TLS";
 
+    private static final int VALIDITY_DAYS = 36500;
+
     private final String alias;
     private final String password;
     private final String keyStoreFile;
     private final boolean trustAllServers;
     private final boolean sendCerts;
+    private final KeyAlgorithm keyAlgorithm;
 
     private SSLContext sslContext;
 
     public SelfSignedSslEngineSource(String keyStorePath, boolean trustAllServers, boolean sendCerts,
-        String alias, String password) {
+        String alias, String password, KeyAlgorithm keyAlgorithm) {
         this.trustAllServers = trustAllServers;
         this.sendCerts = sendCerts;
         this.keyStoreFile = keyStorePath;
         this.alias = alias;
         this.password = password;
+        this.keyAlgorithm = keyAlgorithm;
         initializeSSLContext();
     }
 
+    public SelfSignedSslEngineSource(String keyStorePath, boolean trustAllServers, boolean sendCerts,
+        String alias, String password) {
+        this(keyStorePath, trustAllServers, sendCerts, alias, password, KeyAlgorithm.EC_P256);
+    }
+
     public SelfSignedSslEngineSource(String keyStorePath, boolean trustAllServers, boolean sendCerts) {
         this(keyStorePath, trustAllServers, sendCerts, "littleproxy", "Be Your Own Lantern");
     }
@@ -88,27 +98,27 @@ public class SelfSignedSslEngineSource implements SslEngineSource {
     private void initializeKeyStore(File keyStoreLocalFile, String certificateFileName) {
         File keyStoreLocalAbsoluteFile = keyStoreLocalFile.getAbsoluteFile();
 
-        nativeCall("keytool", "-genkey",
-                "-alias", alias,
-                "-keysize", "4096",
-                "-validity", "36500",
-                "-keyalg", "RSA",
-                "-dname", "CN=littleproxy",
-                "-keypass", password,
-                "-storepass", password,
-                "-keystore", keyStoreLocalAbsoluteFile.getPath()
-        );
-
-        LOG.info("Generated LittleProxy keystore in {}", keyStoreLocalAbsoluteFile);
-
-        Path certificateFile = Paths.get(keyStoreLocalAbsoluteFile.getParent(), certificateFileName);
-        nativeCall("keytool", "-exportcert",
-                "-alias", alias,
-                "-keystore", keyStoreLocalAbsoluteFile.getPath(),
-                "-storepass", password,
-                "-file", certificateFile.toString()
-        );
-        LOG.info("Generated LittleProxy certificate in {}", certificateFile);
+        try {
+            KeyStore keyStore = SelfSignedCertificateGenerator.generateKeyStore(
+                    keyAlgorithm, "littleproxy", VALIDITY_DAYS, alias, password);
+            SelfSignedCertificateGenerator.writeAtomically(keyStoreLocalAbsoluteFile.toPath(),
+                    os -> {
+                        try {
+                            keyStore.store(os, password.toCharArray());
+                        } catch (GeneralSecurityException e) {
+                            throw new IOException("Unable to store keystore", e);
+                        }
+                    });
+            LOG.info("Generated LittleProxy {} keystore in {}", keyAlgorithm, keyStoreLocalAbsoluteFile);
+
+            Certificate certificate = keyStore.getCertificate(alias);
+            Path certificateFile = Paths.get(keyStoreLocalAbsoluteFile.getParent(), certificateFileName);
+            byte[] encodedCertificate = certificate.getEncoded();
+            SelfSignedCertificateGenerator.writeAtomically(certificateFile, os -> os.write(encodedCertificate));
+            LOG.info("Generated LittleProxy certificate in {}", certificateFile);
+        } catch (IOException | GeneralSecurityException e) {
+            throw new RuntimeException("Failed to generate the LittleProxy keystore in " + keyStoreLocalAbsoluteFile, e);
+        }
     }
 
     private void initializeSSLContext() {
@@ -165,21 +175,4 @@ public class SelfSignedSslEngineSource implements SslEngineSource {
         return keyStore;
     }
 
-    private void nativeCall(final String... commands) {
-        LOG.info("Running '{}'", Arrays.asList(commands));
-        final ProcessBuilder pb = new ProcessBuilder(commands);
-        try {
-            final Process process = pb.start();
-            byte[] data;
-            try (InputStream is = process.getInputStream()) {
-                data = ByteStreams.toByteArray(is);
-            }
-            String dataAsString = new String(data);
-
-            LOG.info("Completed native call: '{}'\nResponse: '{}'", Arrays.asList(commands), dataAsString);
-        } catch (final IOException e) {
-            LOG.error("Error running commands: {}", Arrays.asList(commands), e);
-        }
-    }
-
 }
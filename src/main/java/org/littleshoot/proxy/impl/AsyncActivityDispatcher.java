@@ -0,0 +1,231 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import org.littleshoot.proxy.ActivityTracker;
+import org.littleshoot.proxy.ActivityTrackerOverflowPolicy;
+import org.littleshoot.proxy.FlowContext;
+import org.littleshoot.proxy.FullFlowContext;
+import org.littleshoot.proxy.RequestTimings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLSession;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * <p>
+ * An {@link ActivityTracker} that queues the events it receives, and calls
+ * the proxy's actual trackers from a dedicated thread, in the order the
+ * events were queued. The event loops only pay for queueing an event, so the
+ * trackers may be as slow as they need to be.
+ * </p>
+ *
+ * <p>
+ * When the trackers fall so far behind that the queue is full, events are
+ * either dropped and counted, or the event loops wait for room, depending on
+ * the {@link ActivityTrackerOverflowPolicy}. The proxy's connections report
+ * byte counts once per read or flush, rather than once per buffer, when
+ * their trackers are called asynchronously.
+ * </p>
+ *
+ * <p>
+ * Since the proxy modifies requests and responses as it goes, and releases
+ * their content, the trackers get copies of their initial lines and headers,
+ * taken when the events were queued.
+ * </p>
+ */
+class AsyncActivityDispatcher implements ActivityTracker {
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncActivityDispatcher.class);
+
+    private static final int MAX_BATCH_SIZE = 256;
+
+    private final Collection<ActivityTracker> trackers;
+    private final BlockingQueue<Consumer<ActivityTracker>> queue;
+    private final ActivityTrackerOverflowPolicy overflowPolicy;
+    private final LongAdder droppedEvents = new LongAdder();
+
+    private volatile boolean stopped;
+    private Thread dispatcherThread;
+
+    /**
+     * @param trackers the trackers to call, which may change while the
+     *                 dispatcher runs
+     */
+    AsyncActivityDispatcher(Collection<ActivityTracker> trackers, int queueCapacity,
+                            ActivityTrackerOverflowPolicy overflowPolicy) {
+        this.trackers = trackers;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    synchronized void start() {
+        if (dispatcherThread == null) {
+            dispatcherThread = new Thread(this::dispatchUntilStopped, "LittleProxy-activity-tracker");
+            dispatcherThread.setDaemon(true);
+            dispatcherThread.start();
+        }
+    }
+
+    /**
+     * Stops the dispatcher thread once the trackers have received the queued
+     * events. Later events are dropped.
+     */
+    synchronized void stop() {
+        stopped = true;
+        if (dispatcherThread != null) {
+            dispatcherThread.interrupt();
+            try {
+                dispatcherThread.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            dispatcherThread = null;
+        }
+    }
+
+    /**
+     * The number of events dropped because the queue was full, or because the
+     * dispatcher had stopped.
+     */
+    long getDroppedEvents() {
+        return droppedEvents.sum();
+    }
+
+    /**
+     * The number of events waiting to be dispatched.
+     */
+    int getQueuedEvents() {
+        return queue.size();
+    }
+
+    private void enqueue(Consumer<ActivityTracker> event) {
+        if (stopped) {
+            droppedEvents.increment();
+            return;
+        }
+        if (overflowPolicy == ActivityTrackerOverflowPolicy.BLOCK) {
+            try {
+                queue.put(event);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                droppedEvents.increment();
+            }
+        } else if (!queue.offer(event)) {
+            droppedEvents.increment();
+        }
+    }
+
+    private void dispatchUntilStopped() {
+        List<Consumer<ActivityTracker>> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        try {
+            while (!stopped) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                dispatch(batch);
+            }
+        } catch (InterruptedException e) {
+            // stopping
+        }
+
+        while (queue.drainTo(batch, MAX_BATCH_SIZE) > 0) {
+            dispatch(batch);
+        }
+    }
+
+    private void dispatch(List<Consumer<ActivityTracker>> batch) {
+        for (Consumer<ActivityTracker> event : batch) {
+            for (ActivityTracker tracker : trackers) {
+                try {
+                    event.accept(tracker);
+                } catch (Throwable t) {
+                    LOG.warn("Error while invoking ActivityTracker {}", tracker, t);
+                }
+            }
+        }
+        batch.clear();
+    }
+
+    private static HttpRequest copy(HttpRequest request) {
+        return new DefaultHttpRequest(request.protocolVersion(), request.method(), request.uri(),
+                request.headers().copy());
+    }
+
+    private static HttpResponse copy(HttpResponse response) {
+        return new DefaultHttpResponse(response.protocolVersion(), response.status(), response.headers().copy());
+    }
+
+    @Override
+    public void clientConnected(InetSocketAddress clientAddress) {
+        enqueue(tracker -> tracker.clientConnected(clientAddress));
+    }
+
+    @Override
+    public void clientSSLHandshakeSucceeded(InetSocketAddress clientAddress, SSLSession sslSession) {
+        enqueue(tracker -> tracker.clientSSLHandshakeSucceeded(clientAddress, sslSession));
+    }
+
+    @Override
+    public void clientDisconnected(InetSocketAddress clientAddress, SSLSession sslSession) {
+        enqueue(tracker -> tracker.clientDisconnected(clientAddress, sslSession));
+    }
+
+    @Override
+    public void bytesReceivedFromClient(FlowContext flowContext, int numberOfBytes) {
+        enqueue(tracker -> tracker.bytesReceivedFromClient(flowContext, numberOfBytes));
+    }
+
+    @Override
+    public void requestReceivedFromClient(FlowContext flowContext, HttpRequest httpRequest) {
+        HttpRequest request = copy(httpRequest);
+        enqueue(tracker -> tracker.requestReceivedFromClient(flowContext, request));
+    }
+
+    @Override
+    public void bytesSentToServer(FullFlowContext flowContext, int numberOfBytes) {
+        enqueue(tracker -> tracker.bytesSentToServer(flowContext, numberOfBytes));
+    }
+
+    @Override
+    public void requestSentToServer(FullFlowContext flowContext, HttpRequest httpRequest) {
+        HttpRequest request = copy(httpRequest);
+        enqueue(tracker -> tracker.requestSentToServer(flowContext, request));
+    }
+
+    @Override
+    public void bytesReceivedFromServer(FullFlowContext flowContext, int numberOfBytes) {
+        enqueue(tracker -> tracker.bytesReceivedFromServer(flowContext, numberOfBytes));
+    }
+
+    @Override
+    public void responseReceivedFromServer(FullFlowContext flowContext, HttpResponse httpResponse) {
+        HttpResponse response = copy(httpResponse);
+        enqueue(tracker -> tracker.responseReceivedFromServer(flowContext, response));
+    }
+
+    @Override
+    public void responseCompletedFromServer(FullFlowContext flowContext, RequestTimings requestTimings) {
+        enqueue(tracker -> tracker.responseCompletedFromServer(flowContext, requestTimings));
+    }
+
+    @Override
+    public void bytesSentToClient(FlowContext flowContext, int numberOfBytes) {
+        enqueue(tracker -> tracker.bytesSentToClient(flowContext, numberOfBytes));
+    }
+
+    @Override
+    public void responseSentToClient(FlowContext flowContext, HttpResponse httpResponse) {
+        HttpResponse response = copy(httpResponse);
+        enqueue(tracker -> tracker.responseSentToClient(flowContext, response));
+    }
+}
@@ -0,0 +1,249 @@
+package org.littleshoot.proxy.impl;
+
+import org.littleshoot.proxy.MemoryPressureAction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Keeps the memory held in the buffers of a proxy's connections under a
+ * limit, so that a few slow clients downloading large responses, or
+ * uploading large requests that are aggregated for filtering, can't make the
+ * proxy run out of direct memory.
+ * </p>
+ *
+ * <p>
+ * At a fixed interval, a watchdog thread adds up the bytes each client
+ * connection holds, along with its HTTP/2 streams and the connections to
+ * servers of both: bytes written but
+ * not yet sent, content aggregated for filtering, and messages held back
+ * until earlier responses complete. When the total is over the limit, it
+ * sheds the largest consumers first, until the total would be back under
+ * three quarters of the limit: it either pauses reading on them, or closes
+ * them. Paused connections resume once the total is back under three
+ * quarters of the limit.
+ * </p>
+ *
+ * <p>
+ * Pausing doesn't free the content aggregated for filtering, which is only
+ * released once the rest of the message is read. So that such a connection
+ * can't hold the total over the limit, and the other paused connections
+ * with it, a connection that stays paused for longer than the maximum pause
+ * time while the total is still over three quarters of the limit is closed.
+ * </p>
+ *
+ * <p>
+ * The totals are read without synchronizing with the event loops, so they
+ * are estimates.
+ * </p>
+ */
+class BufferWatchdog {
+    private static final Logger LOG = LoggerFactory.getLogger(BufferWatchdog.class);
+
+    static final long DEFAULT_CHECK_INTERVAL_MILLIS = 100;
+
+    static final long DEFAULT_MAX_PAUSE_MILLIS = 10_000;
+
+    private final DefaultHttpProxyServer proxyServer;
+    private final long maxBufferedBytes;
+    private final long lowWatermark;
+    private final MemoryPressureAction action;
+    private final long checkIntervalMillis;
+    private final long maxPauseNanos;
+
+    /**
+     * The client connections paused by the watchdog, and when they were
+     * paused. Only touched by the watchdog thread.
+     */
+    private final Map<ClientToProxyConnection, Long> paused = new HashMap<>();
+
+    private volatile long bufferedBytes;
+    private final AtomicLong pausedConnections = new AtomicLong();
+    private final AtomicLong disconnectedConnections = new AtomicLong();
+
+    private ScheduledExecutorService watchdog;
+
+    BufferWatchdog(DefaultHttpProxyServer proxyServer, long maxBufferedBytes, MemoryPressureAction action,
+                   long checkIntervalMillis, long maxPauseMillis) {
+        this.proxyServer = proxyServer;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.lowWatermark = maxBufferedBytes - maxBufferedBytes / 4;
+        this.action = action;
+        this.checkIntervalMillis = checkIntervalMillis;
+        this.maxPauseNanos = TimeUnit.MILLISECONDS.toNanos(maxPauseMillis);
+    }
+
+    synchronized void start() {
+        if (watchdog == null) {
+            watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "LittleProxy-buffer-watchdog");
+                thread.setDaemon(true);
+                return thread;
+            });
+            watchdog.scheduleWithFixedDelay(this::checkSafely, checkIntervalMillis, checkIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    synchronized void stop() {
+        if (watchdog != null) {
+            watchdog.shutdownNow();
+            watchdog = null;
+        }
+    }
+
+    /**
+     * The bytes held by the proxy's connections at the last check.
+     */
+    long getBufferedBytes() {
+        return bufferedBytes;
+    }
+
+    /**
+     * The number of times a client connection was paused.
+     */
+    long getPausedConnections() {
+        return pausedConnections.get();
+    }
+
+    /**
+     * The number of client connections closed, including those closed
+     * because they stayed paused for too long.
+     */
+    long getDisconnectedConnections() {
+        return disconnectedConnections.get();
+    }
+
+    private void checkSafely() {
+        try {
+            check();
+        } catch (RuntimeException e) {
+            LOG.warn("Unable to check the buffers of the proxy's connections", e);
+        }
+    }
+
+    /**
+     * Adds up the buffered bytes of the connections, and sheds the largest
+     * consumers if they are over the limit.
+     */
+    void check() {
+        List<Consumer> consumers = new ArrayList<>();
+        long total = 0;
+        for (ClientToProxyConnection clientConnection : proxyServer.getClientConnections().values()) {
+            long bytes = clientConnection.getBufferedBytes();
+            for (ClientToProxyConnection stream : clientConnection.getHttp2Streams()) {
+                bytes += stream.getBufferedBytes();
+            }
+            for (ProxyToServerConnection serverConnection : serverConnectionsOf(clientConnection)) {
+                bytes += serverConnection.getBufferedBytes();
+            }
+            consumers.add(new Consumer(clientConnection, bytes));
+            total += bytes;
+        }
+        bufferedBytes = total;
+
+        // forget about the paused connections that have since closed
+        paused.keySet().removeIf(clientConnection -> !proxyServer.getClientConnections().containsKey(clientConnection.getConnectionId()));
+
+        if (total > lowWatermark && !paused.isEmpty()) {
+            total -= closeLongPaused(consumers, total);
+        }
+
+        if (total > maxBufferedBytes) {
+            consumers.sort(Comparator.comparingLong((Consumer consumer) -> consumer.bytes).reversed());
+            for (Consumer consumer : consumers) {
+                if (total <= lowWatermark || consumer.bytes == 0) {
+                    break;
+                }
+                // a connection that is already paused is draining its buffers
+                shed(consumer.connection, total);
+                total -= consumer.bytes;
+            }
+        } else if (total <= lowWatermark && !paused.isEmpty()) {
+            LOG.info("Buffered bytes down to {}, resuming {} paused connections", total, paused.size());
+            for (Iterator<ClientToProxyConnection> it = paused.keySet().iterator(); it.hasNext(); ) {
+                ClientToProxyConnection clientConnection = it.next();
+                it.remove();
+                clientConnection.resumeReadingAfterMemoryPressure();
+                for (ProxyToServerConnection serverConnection : serverConnectionsOf(clientConnection)) {
+                    serverConnection.resumeReadingAfterMemoryPressure();
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the paused connections that have been paused for longer than
+     * the maximum pause time, since they aren't draining their buffers.
+     *
+     * @return the bytes the closed connections held
+     */
+    private long closeLongPaused(List<Consumer> consumers, long total) {
+        long now = System.nanoTime();
+        long freed = 0;
+        for (Consumer consumer : consumers) {
+            Long pausedAt = paused.get(consumer.connection);
+            if (pausedAt != null && now - pausedAt >= maxPauseNanos) {
+                paused.remove(consumer.connection);
+                LOG.warn("{} buffered bytes still over {}, closing {}, which has been paused for {} ms",
+                        total - freed, lowWatermark, consumer.connection, TimeUnit.NANOSECONDS.toMillis(now - pausedAt));
+                disconnectedConnections.incrementAndGet();
+                consumer.connection.channel.close();
+                freed += consumer.bytes;
+            }
+        }
+        return freed;
+    }
+
+    private void shed(ClientToProxyConnection clientConnection, long total) {
+        if (action == MemoryPressureAction.DISCONNECT) {
+            LOG.warn("{} buffered bytes over the limit of {}, closing {}", total, maxBufferedBytes, clientConnection);
+            disconnectedConnections.incrementAndGet();
+            clientConnection.channel.close();
+            return;
+        }
+        if (paused.putIfAbsent(clientConnection, System.nanoTime()) != null) {
+            return;
+        }
+        LOG.warn("{} buffered bytes over the limit of {}, pausing {}", total, maxBufferedBytes, clientConnection);
+        pausedConnections.incrementAndGet();
+        clientConnection.pauseReadingUnderMemoryPressure();
+        for (ProxyToServerConnection serverConnection : serverConnectionsOf(clientConnection)) {
+            serverConnection.pauseReadingUnderMemoryPressure();
+        }
+    }
+
+    /**
+     * The connections to servers of the given client connection, including
+     * those of its HTTP/2 streams. Pausing the client connection pauses its
+     * streams, which aren't registered with the proxy themselves.
+     */
+    private static List<ProxyToServerConnection> serverConnectionsOf(ClientToProxyConnection clientConnection) {
+        List<ProxyToServerConnection> serverConnections = new ArrayList<>(clientConnection.getServerConnections());
+        for (ClientToProxyConnection stream : clientConnection.getHttp2Streams()) {
+            serverConnections.addAll(stream.getServerConnections());
+        }
+        return serverConnections;
+    }
+
+    private static class Consumer {
+        private final ClientToProxyConnection connection;
+        private final long bytes;
+
+        private Consumer(ClientToProxyConnection connection, long bytes) {
+            this.connection = connection;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -1,13 +1,16 @@
 package org.littleshoot.proxy.impl;
 
 import com.google.common.io.BaseEncoding;
+import com.google.common.net.HostAndPort;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.handler.codec.haproxy.HAProxyMessage;
 import io.netty.handler.codec.haproxy.HAProxyMessageDecoder;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
 import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpContent;
@@ -24,7 +27,15 @@ import io.netty.handler.codec.http.HttpResponseEncoder;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.HttpVersion;
-import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.handler.codec.http2.Http2Frame;
+import io.netty.handler.codec.http2.Http2FrameCodec;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.codec.http2.HttpConversionUtil;
+import io.netty.handler.ssl.ApplicationProtocolNames;
 import io.netty.handler.traffic.GlobalTrafficShapingHandler;
 import io.netty.util.ReferenceCounted;
 import io.netty.util.concurrent.Future;
@@ -35,28 +46,36 @@ import org.littleshoot.proxy.FullFlowContext;
 import org.littleshoot.proxy.HttpFilters;
 import org.littleshoot.proxy.HttpFiltersAdapter;
 import org.littleshoot.proxy.ProxyAuthenticator;
+import org.littleshoot.proxy.RequestTimings;
 import org.littleshoot.proxy.SslEngineSource;
 
 import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
 import javax.net.ssl.SSLSession;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import java.time.LocalDateTime;
-import java.time.ZoneId;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.regex.Pattern;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
-import static java.time.format.DateTimeFormatter.ofPattern;
 import static org.littleshoot.proxy.impl.ConnectionState.AWAITING_CHUNK;
 import static org.littleshoot.proxy.impl.ConnectionState.AWAITING_INITIAL;
 import static org.littleshoot.proxy.impl.ConnectionState.AWAITING_PROXY_AUTHENTICATION;
@@ -98,6 +117,16 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
     private static final String HTTP_REQUEST_READ_MONITOR_NAME = "requestReadMonitor";
     private static final String HTTP_RESPONSE_WRITTEN_MONITOR_NAME = "responseWrittenMonitor";
     private static final String MAIN_HANDLER_NAME = "handler";
+    private static final String HTTP2_FRAME_CODEC_NAME = "http2FrameCodec";
+    private static final String HTTP2_MULTIPLEX_HANDLER_NAME = "http2MultiplexHandler";
+    private static final String HTTP2_STREAM_TUNNEL_CODEC_NAME = "http2StreamTunnelCodec";
+
+    /**
+     * Protocols offered to TLS clients via ALPN when HTTP/2 is enabled, in
+     * order of preference.
+     */
+    private static final String[] HTTP2_APPLICATION_PROTOCOLS = {
+            ApplicationProtocolNames.HTTP_2, ApplicationProtocolNames.HTTP_1_1};
 
     /**
      * Used for case-insensitive comparisons when checking direct proxy request.
@@ -109,29 +138,30 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      */
     private final Map<String, ProxyToServerConnection> serverConnectionsByHostAndPort = new ConcurrentHashMap<>();
 
+    private static final AtomicIntegerFieldUpdater<ClientToProxyConnection> NUMBER_OF_CURRENTLY_CONNECTING_SERVERS =
+            AtomicIntegerFieldUpdater.newUpdater(ClientToProxyConnection.class, "numberOfCurrentlyConnectingServers");
+
     /**
      * Keep track of how many servers are currently in the process of
-     * connecting.
+     * connecting. Updated through {@link #NUMBER_OF_CURRENTLY_CONNECTING_SERVERS},
+     * which saves idle connections an object.
      */
-    private final AtomicInteger numberOfCurrentlyConnectingServers = new AtomicInteger(
-            0);
+    private volatile int numberOfCurrentlyConnectingServers;
 
-    /**
-     * Keep track of proxy protocol header
-     */
-    private HAProxyMessage haProxyMessage;
+    private static final AtomicIntegerFieldUpdater<ClientToProxyConnection> NUMBER_OF_SATURATED_SERVERS =
+            AtomicIntegerFieldUpdater.newUpdater(ClientToProxyConnection.class, "numberOfSaturatedServers");
 
     /**
-     * Keep track of how many servers are currently connected.
+     * Keep track of how many servers are currently saturated, so that we only
+     * read from the client while none is. Updated through
+     * {@link #NUMBER_OF_SATURATED_SERVERS} from the servers' event loops.
      */
-    private final AtomicInteger numberOfCurrentlyConnectedServers = new AtomicInteger(
-            0);
+    private volatile int numberOfSaturatedServers;
 
     /**
-     * Keep track of how many times we were able to reuse a connection.
+     * Keep track of proxy protocol header
      */
-    private final AtomicInteger numberOfReusedServerConnections = new AtomicInteger(
-            0);
+    private HAProxyMessage haProxyMessage;
 
     /**
      * This is the current server connection that we're using while transferring
@@ -144,6 +174,34 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      */
     private volatile HttpFilters currentFilters = HttpFiltersAdapter.NOOP_FILTER;
 
+    /**
+     * The id this connection is registered with for introspection, or 0 if it
+     * isn't.
+     */
+    private volatile long connectionId;
+
+    /**
+     * Times this connection for Java Flight Recorder, if it's recording.
+     */
+    private FlightRecorderEvents.ClientConnectionEvent clientConnectionEvent;
+
+    /**
+     * The timings of the current request.
+     */
+    private volatile RequestTimings currentRequestTimings;
+
+    /**
+     * The spans of the requests that haven't been answered yet, oldest first,
+     * when the proxy traces requests. There may be several when requests are
+     * pipelined. Created with the first span.
+     */
+    private volatile Queue<ProxySpan> pendingSpans;
+
+    /**
+     * The span of the current request, if the proxy traces requests.
+     */
+    private volatile ProxySpan currentSpan;
+
     private volatile SSLSession clientSslSession;
 
     /**
@@ -151,7 +209,7 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      */
     private volatile boolean mitming;
 
-    private final AtomicBoolean authenticated = new AtomicBoolean();
+    private final AtomicBoolean authenticated;
 
     private final GlobalTrafficShapingHandler globalTrafficShapingHandler;
 
@@ -160,7 +218,41 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      */
     private volatile HttpRequest currentRequest;
 
-    private final ClientDetails clientDetails = new ClientDetails();
+    private final ClientDetails clientDetails;
+
+    /**
+     * For connections that represent a single HTTP/2 stream, the connection
+     * that the stream belongs to. Null for connections with their own socket.
+     */
+    @Nullable
+    private final ClientToProxyConnection http2Parent;
+
+    /**
+     * Set once the client negotiated HTTP/2, after which each stream is
+     * handled by its own ClientToProxyConnection.
+     */
+    private volatile Http2FrameCodec http2FrameCodec;
+
+    /**
+     * The connections of this connection's HTTP/2 streams that are still
+     * open. Set once the client negotiated HTTP/2.
+     */
+    private volatile Set<ClientToProxyConnection> http2Streams;
+
+    /**
+     * The HTTP/1.1 server connections of this connection's HTTP/2 streams that
+     * have closed, by host and port, for its other streams to reuse. Only
+     * accessed by this connection's event loop, which its streams share.
+     */
+    @Nullable
+    private Map<String, Deque<ProxyToServerConnection>> idleServerConnections;
+
+    /**
+     * The host and port of the CONNECT request that was man-in-the-middled
+     * before the client switched to HTTP/2. Requests on the HTTP/2 streams
+     * default to this port.
+     */
+    private volatile String mitmHostAndPort;
 
     ClientToProxyConnection(
             final DefaultHttpProxyServer proxyServer,
@@ -169,6 +261,9 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
             ChannelPipeline pipeline,
             GlobalTrafficShapingHandler globalTrafficShapingHandler) {
         super(AWAITING_INITIAL, proxyServer, false);
+        this.http2Parent = null;
+        this.authenticated = new AtomicBoolean();
+        this.clientDetails = new ClientDetails();
 
         initChannelPipeline(pipeline);
 
@@ -181,6 +276,7 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
                                 if (future.isSuccess()) {
                                     clientSslSession = sslEngine.getSession();
                                     recordClientSSLHandshakeSucceeded();
+                                    switchToHttp2IfNegotiated();
                                 }
                             });
         }
@@ -189,6 +285,28 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         LOG.debug("Created ClientToProxyConnection");
     }
 
+    /**
+     * Creates the connection for a single HTTP/2 stream of the given parent
+     * connection. The stream shares the parent's client details, TLS session
+     * and authentication state.
+     */
+    private ClientToProxyConnection(ClientToProxyConnection http2Parent, ChannelPipeline pipeline) {
+        super(AWAITING_INITIAL, http2Parent.proxyServer, false);
+        this.http2Parent = http2Parent;
+        this.authenticated = http2Parent.authenticated;
+        this.clientDetails = http2Parent.clientDetails;
+        this.globalTrafficShapingHandler = http2Parent.globalTrafficShapingHandler;
+        this.haProxyMessage = http2Parent.haProxyMessage;
+        this.clientSslSession = http2Parent.clientSslSession;
+        this.sslEngine = http2Parent.sslEngine;
+        this.mitming = http2Parent.mitming;
+        this.mitmHostAndPort = http2Parent.mitmHostAndPort;
+
+        initHttp2StreamPipeline(pipeline);
+
+        LOG.debug("Created ClientToProxyConnection for HTTP/2 stream");
+    }
+
     @Override
     protected void readHAProxyMessage(HAProxyMessage msg) {
         haProxyMessage = msg;
@@ -198,6 +316,18 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      * Reading
      **************************************************************************/
 
+    @Override
+    protected void read(Object msg) {
+        if (msg instanceof Http2Frame) {
+            // connection level frames (SETTINGS, PING, GOAWAY, ...) have already been handled by the Http2FrameCodec,
+            // while the frames of each stream go to the stream's own ClientToProxyConnection
+            LOG.debug("Ignoring HTTP/2 connection frame: {}", msg);
+            lastReadTime = System.currentTimeMillis();
+            return;
+        }
+        super.read(msg);
+    }
+
     @Override
     protected ConnectionState readHTTPInitial(HttpRequest httpRequest) {
         LOG.debug("Received raw request: {}", httpRequest);
@@ -217,6 +347,10 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
             return DISCONNECT_REQUESTED;
         }
 
+        if (isHttp2Stream()) {
+            prepareHttp2Request(httpRequest);
+        }
+
         boolean authenticationRequired = authenticationRequired(httpRequest);
 
         if (authenticationRequired) {
@@ -243,9 +377,11 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      * </p>
      */
     private ConnectionState doReadHTTPInitial(HttpRequest httpRequest) {
+        currentRequestTimings = new RequestTimings();
+        startSpan(httpRequest);
         resetCurrentRequest();
-        // Make a copy of the original request
-        currentRequest = copy(httpRequest);
+        // Keep the original request, sharing its headers and content with the request we forward
+        httpRequest = snapshotCurrentRequest(httpRequest);
 
         // Set up our filters based on the original request. If the HttpFiltersSource returns null (meaning the request/response
         // should not be filtered), fall back to the default no-op filter source.
@@ -255,6 +391,9 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         } else {
             currentFilters = HttpFiltersAdapter.NOOP_FILTER;
         }
+        if (FlightRecorderEvents.isRecordingFilterInvocations()) {
+            currentFilters = new FlightRecordingHttpFilters(currentFilters);
+        }
 
         // Send the request through the clientToProxyRequest filter, and respond with the short-circuit response if required
         HttpResponse clientToProxyFilterResponse = currentFilters.clientToProxyRequest(httpRequest);
@@ -296,10 +435,20 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
             }
         }
 
+        if (currentSpan != null) {
+            currentSpan.setAttribute("server.address", serverHostAndPort);
+        }
+
         LOG.debug("Finding ProxyToServerConnection for: {}", serverHostAndPort);
         currentServerConnection = isMitming() || isTunneling() ?
                 currentServerConnection
                 : serverConnectionsByHostAndPort.get(serverHostAndPort);
+        if (currentServerConnection == null && isHttp2Stream() && !ProxyUtils.isCONNECT(httpRequest)) {
+            currentServerConnection = http2Parent.takeIdleServerConnection(serverHostAndPort, this);
+            if (currentServerConnection != null) {
+                serverConnectionsByHostAndPort.put(serverHostAndPort, currentServerConnection);
+            }
+        }
 
         boolean newConnectionRequired = false;
         if (ProxyUtils.isCONNECT(httpRequest)) {
@@ -311,6 +460,11 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
             LOG.debug("Didn't find existing ProxyToServerConnection for: {}",
                     serverHostAndPort);
             newConnectionRequired = true;
+        } else if (currentServerConnection.isHttp2Stream()) {
+            LOG.debug(
+                    "Not reusing existing ProxyToServerConnection because its HTTP/2 stream carries a single request: {}",
+                    serverHostAndPort);
+            newConnectionRequired = true;
         }
 
         if (newConnectionRequired) {
@@ -320,6 +474,7 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
                         this,
                         serverHostAndPort,
                         currentFilters,
+                        currentRequestTimings,
                         httpRequest,
                         globalTrafficShapingHandler);
                 if (currentServerConnection == null) {
@@ -348,7 +503,6 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         } else {
             LOG.debug("Reusing existing server connection: {}",
                     currentServerConnection);
-            numberOfReusedServerConnections.incrementAndGet();
         }
 
         modifyRequestHeadersToReflectProxying(httpRequest);
@@ -366,7 +520,7 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         }
 
         LOG.debug("Writing request to ProxyToServerConnection");
-        currentServerConnection.write(httpRequest, currentFilters);
+        currentServerConnection.write(httpRequest, currentFilters, currentRequestTimings);
 
         // Figure out our next state
         if (ProxyUtils.isCONNECT(httpRequest)) {
@@ -497,16 +651,22 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         if (isSwitchingToWebSocketProtocol) {
             serverConnection.switchToWebSocketProtocol();
         }
+        if (ProxyUtils.isLastChunk(filteredhttpObject)) {
+            HttpResponse finalResponse = filteredhttpObject instanceof HttpResponse
+                    ? (HttpResponse) filteredhttpObject : currentHttpResponse;
+            if (finalResponse != null && !ProxyToServerConnection.isInterimResponse(finalResponse)) {
+                endSpan(serverConnection.getRequestTimings(), finalResponse.status());
+            }
+        }
+        // by the time the write completes, the server connection may have moved on to a new channel to retry requests
+        Channel serverChannel = serverConnection.channel;
         write(filteredhttpObject).addListener(l -> {
 
-	        if (ProxyUtils.isLastChunk(filteredhttpObject)) {
-	            writeEmptyBuffer();
-	        }
-	        else if (isSwitchingToWebSocketProtocol) {
+	        if (isSwitchingToWebSocketProtocol && !ProxyUtils.isLastChunk(filteredhttpObject)) {
 	            switchToWebSocketProtocol(serverConnection);
 	        }
 
-	        closeConnectionsAfterWriteIfNecessary(serverConnection,
+	        closeConnectionsAfterWriteIfNecessary(serverConnection, serverChannel,
 	                currentHttpRequest, currentHttpResponse, filteredhttpObject);
         });
     }
@@ -535,19 +695,25 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
     /**
      * Tells the Client that its HTTP CONNECT request was successful.
      */
-    final ConnectionFlowStep RespondCONNECTSuccessful = new ConnectionFlowStep(this, NEGOTIATING_CONNECT) {
-        @Override
-        boolean shouldSuppressInitialRequest() {
-            return true;
-        }
+    ConnectionFlowStep RespondCONNECTSuccessful() {
+        return new ConnectionFlowStep(this, NEGOTIATING_CONNECT) {
+            @Override
+            boolean shouldSuppressInitialRequest() {
+                return true;
+            }
 
-        protected Future<?> execute() {
-            LOG.debug("Responding with CONNECT successful");
-            HttpResponse response = ProxyUtils.createFullHttpResponse(HttpVersion.HTTP_1_1, CONNECTION_ESTABLISHED);
-            ProxyUtils.addVia(response, proxyServer.getProxyAlias());
-            return writeToChannel(response);
-        }
-    };
+            protected Future<?> execute() {
+                LOG.debug("Responding with CONNECT successful");
+                // on an HTTP/2 stream, a full (i.e. complete) response would end the stream that is about to carry the tunnel
+                HttpResponse response = isHttp2Stream()
+                        ? new DefaultHttpResponse(HttpVersion.HTTP_1_1, CONNECTION_ESTABLISHED)
+                        : ProxyUtils.createFullHttpResponse(HttpVersion.HTTP_1_1, CONNECTION_ESTABLISHED);
+                ProxyUtils.addVia(response, proxyServer.getProxyAlias());
+                endSpan(currentRequestTimings, CONNECTION_ESTABLISHED);
+                return writeToChannel(response);
+            }
+        };
+    }
 
     /**
      * On connect of the client, start waiting for an initial
@@ -557,7 +723,11 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
     protected void connected() {
         super.connected();
         become(AWAITING_INITIAL);
-        recordClientConnected();
+        if (!isHttp2Stream()) {
+            connectionId = proxyServer.registerClientConnection(this);
+            clientConnectionEvent = FlightRecorderEvents.clientConnected(getClientAddress());
+            recordClientConnected();
+        }
     }
 
     void timedOut(ProxyToServerConnection serverConnection) {
@@ -569,8 +739,19 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         }
     }
 
+    @Override
+    protected boolean timesOutWhenIdle() {
+        // streams time out with their parent connection
+        return !isHttp2Stream();
+    }
+
     @Override
     protected void timedOut() {
+        // an HTTP/2 connection is not idle while any of its streams is still waiting on a server. those streams time
+        // out with their server connections instead.
+        if (http2FrameCodec != null && http2FrameCodec.connection().numActiveStreams() > 0) {
+            return;
+        }
         // idle timeout fired on the client channel. if we aren't waiting on a response from a server, hang up
         if (currentServerConnection == null || lastReadTime <= currentServerConnection.lastReadTime) {
             super.timedOut();
@@ -578,16 +759,38 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
     }
 
     /**
-     * On disconnect of the client, disconnect all server connections.
+     * On disconnect of the client, disconnect all server connections. Those
+     * of an HTTP/2 stream are handed to the stream's connection instead, for
+     * its other streams to reuse.
      */
     @Override
     protected void disconnected() {
         super.disconnected();
         for (ProxyToServerConnection serverConnection : serverConnectionsByHostAndPort
                 .values()) {
-            serverConnection.disconnect();
+            if (isHttp2Stream()) {
+                serverConnection.releaseToHttp2Connection(http2Parent);
+            } else {
+                serverConnection.disconnect();
+            }
+        }
+        Map<String, Deque<ProxyToServerConnection>> idleServerConnections = this.idleServerConnections;
+        if (idleServerConnections != null) {
+            idleServerConnections.values().forEach(idle -> idle.forEach(ProxyToServerConnection::disconnect));
+            idleServerConnections.clear();
+        }
+        Queue<ProxySpan> pendingSpans = this.pendingSpans;
+        if (pendingSpans != null) {
+            ProxySpan span;
+            while ((span = pendingSpans.poll()) != null) {
+                span.end("client disconnected");
+            }
+        }
+        if (!isHttp2Stream()) {
+            proxyServer.unregisterClientConnection(connectionId);
+            recordClientDisconnected();
+            FlightRecorderEvents.clientDisconnected(clientConnectionEvent, clientSslSession);
         }
-        recordClientDisconnected();
     }
 
     /**
@@ -595,7 +798,7 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      */
     protected void serverConnectionFlowStarted(ProxyToServerConnection serverConnection) {
         stopReading();
-        numberOfCurrentlyConnectingServers.incrementAndGet();
+        NUMBER_OF_CURRENTLY_CONNECTING_SERVERS.incrementAndGet(this);
     }
 
     /**
@@ -610,7 +813,15 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         resumeReadingIfNecessary();
         become(shouldForwardInitialRequest ? getCurrentState()
                 : AWAITING_INITIAL);
-        numberOfCurrentlyConnectedServers.incrementAndGet();
+
+        if (http2FrameCodec != null && serverConnection == currentServerConnection) {
+            // the client switched to HTTP/2 after a man-in-the-middled CONNECT. each stream opens its own server
+            // connection, so the one established for the CONNECT is no longer needed.
+            LOG.debug("Closing server connection of CONNECT that switched to HTTP/2: {}", serverConnection);
+            currentServerConnection = null;
+            serverConnectionsByHostAndPort.remove(serverConnection.getServerHostAndPort(), serverConnection);
+            serverConnection.disconnect();
+        }
     }
 
     /**
@@ -678,7 +889,7 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
     }
 
     private void resumeReadingIfNecessary() {
-        if (numberOfCurrentlyConnectingServers.decrementAndGet() == 0) {
+        if (NUMBER_OF_CURRENTLY_CONNECTING_SERVERS.decrementAndGet(this) == 0) {
             LOG.debug("All servers have finished attempting to connect, resuming reading from client.");
             resumeReading();
         }
@@ -689,19 +900,77 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      **************************************************************************/
 
     /**
-     * On disconnect of the server, track that we have one fewer connected
-     * servers and then disconnect the client if necessary.
+     * On disconnect of the server, disconnect the client if necessary.
      */
     protected void serverDisconnected(ProxyToServerConnection serverConnection) {
-        numberOfCurrentlyConnectedServers.decrementAndGet();
-
         // for non-SSL connections, do not disconnect the client from the proxy, even if this was the last server connection.
         // this allows clients to continue to use the open connection to the proxy to make future requests. for SSL
         // connections, whether we are tunneling or MITMing, we need to disconnect the client because there is always
-        // exactly one ClientToProxyConnection per ProxyToServerConnection, and vice versa.
-        if (isTunneling() || isMitming()) {
+        // exactly one ClientToProxyConnection per ProxyToServerConnection, and vice versa. the exception are
+        // man-in-the-middled connections that switched to HTTP/2 and their streams, which have server connections
+        // of their own.
+        if (isTunneling() || (isMitming() && mitmHostAndPort == null)) {
             disconnect();
         }
+        if (http2FrameCodec != null) {
+            runOnEventLoop(() -> removeIdleServerConnection(serverConnection));
+        }
+    }
+
+    /**
+     * Called on the server connection's event loop once a server connection
+     * that an HTTP/2 stream of this connection used is free to carry the
+     * requests of other streams.
+     */
+    void serverConnectionIdle(ProxyToServerConnection serverConnection) {
+        runOnEventLoop(() -> {
+            if (getCurrentState().isDisconnectingOrDisconnected()) {
+                serverConnection.disconnect();
+                return;
+            }
+            if (idleServerConnections == null) {
+                idleServerConnections = new HashMap<>();
+            }
+            LOG.debug("Keeping server connection for other HTTP/2 streams: {}", serverConnection);
+            idleServerConnections.computeIfAbsent(serverConnection.getServerHostAndPort(), hostAndPort -> new ArrayDeque<>())
+                    .push(serverConnection);
+        });
+    }
+
+    /**
+     * Takes an idle server connection to the given host and port for one of
+     * this connection's HTTP/2 streams, if there is one. Called on this
+     * connection's event loop.
+     */
+    @Nullable
+    private ProxyToServerConnection takeIdleServerConnection(String serverHostAndPort, ClientToProxyConnection stream) {
+        Deque<ProxyToServerConnection> idle = idleServerConnections != null
+                ? idleServerConnections.get(serverHostAndPort) : null;
+        if (idle == null) {
+            return null;
+        }
+        ProxyToServerConnection serverConnection;
+        while ((serverConnection = idle.poll()) != null) {
+            if (!serverConnection.getCurrentState().isDisconnectingOrDisconnected()) {
+                break;
+            }
+        }
+        if (idle.isEmpty()) {
+            idleServerConnections.remove(serverHostAndPort);
+        }
+        if (serverConnection != null) {
+            LOG.debug("Reusing server connection of a closed HTTP/2 stream: {}", serverConnection);
+            serverConnection.setClientConnection(stream);
+        }
+        return serverConnection;
+    }
+
+    private void removeIdleServerConnection(ProxyToServerConnection serverConnection) {
+        Deque<ProxyToServerConnection> idle = idleServerConnections != null
+                ? idleServerConnections.get(serverConnection.getServerHostAndPort()) : null;
+        if (idle != null && idle.remove(serverConnection) && idle.isEmpty()) {
+            idleServerConnections.remove(serverConnection.getServerHostAndPort());
+        }
     }
 
     /**
@@ -709,15 +978,11 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      * associated ProxyToServerConnections.
      */
     @Override
-    synchronized protected void becameSaturated() {
+    protected void becameSaturated() {
         super.becameSaturated();
         for (ProxyToServerConnection serverConnection : serverConnectionsByHostAndPort
                 .values()) {
-            synchronized (serverConnection) {
-                if (isSaturated()) {
-                    serverConnection.stopReading();
-                }
-            }
+            serverConnection.clientWritabilityChanged();
         }
     }
 
@@ -726,45 +991,49 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      * associated ProxyToServerConnections.
      */
     @Override
-    synchronized protected void becameWritable() {
+    protected void becameWritable() {
         super.becameWritable();
         for (ProxyToServerConnection serverConnection : serverConnectionsByHostAndPort
                 .values()) {
-            synchronized (serverConnection) {
-                if (!isSaturated()) {
-                    serverConnection.resumeReading();
-                }
-            }
+            serverConnection.clientWritabilityChanged();
         }
     }
 
     /**
-     * When a server becomes saturated, we stop reading from the client.
+     * When a server becomes saturated, we stop reading from the client. Called
+     * on the server connection's event loop, once each time it becomes
+     * saturated.
      */
-    synchronized protected void serverBecameSaturated(
+    protected void serverBecameSaturated(
             ProxyToServerConnection serverConnection) {
-        if (serverConnection.isSaturated()) {
-            LOG.info("Connection to server became saturated, stopping reading");
-            stopReading();
+        if (NUMBER_OF_SATURATED_SERVERS.getAndIncrement(this) == 0) {
+            LOG.debug("Connection to server became saturated, stopping reading");
+            runOnEventLoop(this::readUnlessServersSaturated);
         }
     }
 
     /**
      * When a server becomes writeable, we check to see if all servers are
-     * writeable and if they are, we resume reading.
+     * writeable and if they are, we resume reading. Called on the server
+     * connection's event loop, once for each time it became saturated.
      */
-    synchronized protected void serverBecameWriteable(
+    protected void serverBecameWriteable(
             ProxyToServerConnection serverConnection) {
-        boolean anyServersSaturated = false;
-        for (ProxyToServerConnection otherServerConnection : serverConnectionsByHostAndPort
-                .values()) {
-            if (otherServerConnection.isSaturated()) {
-                anyServersSaturated = true;
-                break;
-            }
+        if (NUMBER_OF_SATURATED_SERVERS.decrementAndGet(this) == 0) {
+            LOG.debug("All server connections writeable, resuming reading");
+            runOnEventLoop(this::readUnlessServersSaturated);
         }
-        if (!anyServersSaturated) {
-            LOG.info("All server connections writeable, resuming reading");
+    }
+
+    /**
+     * Stops or resumes reading from the client depending on whether any server
+     * is saturated when this runs, rather than when it was scheduled, so that
+     * the last of several tasks scheduled from different event loops wins.
+     */
+    private void readUnlessServersSaturated() {
+        if (numberOfSaturatedServers > 0) {
+            stopReading();
+        } else {
             resumeReading();
         }
     }
@@ -809,6 +1078,7 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
     private void initChannelPipeline(ChannelPipeline pipeline) {
         LOG.debug("Configuring ChannelPipeline");
 
+        consolidateFlushes(pipeline);
         pipeline.addLast("bytesReadMonitor", bytesReadMonitor);
         pipeline.addLast("bytesWrittenMonitor", bytesWrittenMonitor);
 
@@ -830,17 +1100,94 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
             aggregateContentForFiltering(pipeline, numberOfBytesToBuffer);
         }
 
-        pipeline.addLast(HTTP_REQUEST_READ_MONITOR_NAME, requestReadMonitor);
-        pipeline.addLast(HTTP_RESPONSE_WRITTEN_MONITOR_NAME, responseWrittenMonitor);
+        pipeline.addLast(HTTP_REQUEST_READ_MONITOR_NAME, RequestReadMonitor.INSTANCE);
+        pipeline.addLast(HTTP_RESPONSE_WRITTEN_MONITOR_NAME, ResponseWrittenMonitor.INSTANCE);
+
+        pipeline.addLast(MAIN_HANDLER_NAME, this);
+    }
+
+    /**
+     * Initialize the {@link ChannelPipeline} for a single HTTP/2 stream. The
+     * {@link Http2StreamFrameToHttpObjectCodec} turns the stream's frames into
+     * the same {@link HttpObject}s that the HTTP/1 decoder produces, so that
+     * the stream can be handled like any other client connection. Bytes and
+     * idle timeouts are tracked by the parent connection.
+     */
+    private void initHttp2StreamPipeline(ChannelPipeline pipeline) {
+        LOG.debug("Configuring ChannelPipeline for HTTP/2 stream");
+
+        pipeline.addLast(HTTP2_STREAM_TUNNEL_CODEC_NAME, new Http2StreamTunnelCodec(this));
+        // registered under the name of the HTTP/1 decoder, so that StartTunneling() removes it for CONNECTs
+        pipeline.addLast(HTTP_DECODER_NAME, new Http2StreamFrameToHttpObjectCodec(true));
+
+        int numberOfBytesToBuffer = proxyServer.getFiltersSource()
+                .getMaximumRequestBufferSizeInBytes();
+        if (numberOfBytesToBuffer > 0) {
+            aggregateContentForFiltering(pipeline, numberOfBytesToBuffer);
+        }
 
-        pipeline.addLast(
-                "idle",
-                new IdleStateHandler(0, 0, proxyServer
-                        .getIdleConnectionTimeout()));
+        pipeline.addLast(HTTP_REQUEST_READ_MONITOR_NAME, RequestReadMonitor.INSTANCE);
+        pipeline.addLast(HTTP_RESPONSE_WRITTEN_MONITOR_NAME, ResponseWrittenMonitor.INSTANCE);
 
         pipeline.addLast(MAIN_HANDLER_NAME, this);
     }
 
+    /**
+     * Offers HTTP/2 to the client via ALPN, if enabled, before encrypting
+     * traffic with the client.
+     */
+    @Override
+    protected Future<Channel> encrypt(ChannelPipeline pipeline,
+            SSLEngine sslEngine,
+            boolean authenticateClients) {
+        if (proxyServer.isClientHttp2() && !isHttp2Stream()) {
+            SSLParameters sslParameters = sslEngine.getSSLParameters();
+            sslParameters.setApplicationProtocols(HTTP2_APPLICATION_PROTOCOLS);
+            sslEngine.setSSLParameters(sslParameters);
+        }
+        return super.encrypt(pipeline, sslEngine, authenticateClients);
+    }
+
+    /**
+     * Called once the TLS handshake with the client has completed. If the
+     * client negotiated HTTP/2, replaces the HTTP/1 codec with an
+     * {@link Http2FrameCodec} and an {@link Http2MultiplexHandler} that creates
+     * a new ClientToProxyConnection for each stream. This connection stays at
+     * the end of the pipeline to track the lifecycle of the client's socket.
+     */
+    void switchToHttp2IfNegotiated() {
+        if (!ApplicationProtocolNames.HTTP_2.equals(sslEngine.getApplicationProtocol())) {
+            return;
+        }
+        LOG.debug("Client negotiated HTTP/2");
+        if (isMitming() && currentServerConnection != null) {
+            mitmHostAndPort = currentServerConnection.getServerHostAndPort();
+        }
+
+        ChannelPipeline pipeline = channel.pipeline();
+        Arrays.asList(HTTP_ENCODER_NAME, HTTP_PROXY_DECODER_NAME, HTTP_DECODER_NAME, "inflater", AGGREGATION_MONITOR_NAME,
+                "aggregator", HTTP_REQUEST_READ_MONITOR_NAME, HTTP_RESPONSE_WRITTEN_MONITOR_NAME).forEach(this::removeHandlerIfPresent);
+
+        Http2FrameCodec frameCodec = Http2FrameCodecBuilder.forServer()
+                .initialSettings(Http2Settings.defaultSettings()
+                        .maxHeaderListSize(proxyServer.getMaxHeaderSize()))
+                .build();
+        Set<ClientToProxyConnection> streams = ConcurrentHashMap.newKeySet();
+        http2Streams = streams;
+        pipeline.addBefore(MAIN_HANDLER_NAME, HTTP2_FRAME_CODEC_NAME, frameCodec);
+        pipeline.addBefore(MAIN_HANDLER_NAME, HTTP2_MULTIPLEX_HANDLER_NAME, new Http2MultiplexHandler(
+                new ChannelInitializer<Http2StreamChannel>() {
+                    @Override
+                    protected void initChannel(Http2StreamChannel streamChannel) {
+                        ClientToProxyConnection stream = new ClientToProxyConnection(ClientToProxyConnection.this,
+                                streamChannel.pipeline());
+                        streams.add(stream);
+                        streamChannel.closeFuture().addListener(future -> streams.remove(stream));
+                    }
+                }));
+        http2FrameCodec = frameCodec;
+    }
+
     private void removeHandlerIfPresent(String name) {
         removeHandlerIfPresent(channel.pipeline(), name);
     }
@@ -866,7 +1213,7 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
      * connections after finishing writing.
      */
     private void closeConnectionsAfterWriteIfNecessary(
-            ProxyToServerConnection serverConnection,
+            ProxyToServerConnection serverConnection, Channel serverChannel,
             HttpRequest currentHttpRequest, HttpResponse currentHttpResponse,
             HttpObject httpObject) {
         boolean closeServerConnection = shouldCloseServerConnection(
@@ -876,7 +1223,9 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
 
         if (closeServerConnection) {
             LOG.debug("Closing remote connection after writing to client");
-            serverConnection.disconnect();
+            if (serverChannel != null) {
+                serverConnection.disconnect(serverChannel);
+            }
         }
 
         if (closeClientConnection) {
@@ -1065,31 +1414,71 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
                 + "the credentials required.</p>\n" + "</body></html>\n";
         FullHttpResponse response = ProxyUtils.createFullHttpResponse(HttpVersion.HTTP_1_1,
                 HttpResponseStatus.PROXY_AUTHENTICATION_REQUIRED, body);
-        response.headers().set(HttpHeaderNames.DATE, dateHeaderValue());
+        response.headers().set(HttpHeaderNames.DATE, HttpDate.now());
         response.headers().set(HttpHeaderNames.PROXY_AUTHENTICATE,
                 "Basic realm=\"" + (realm == null ? "Restricted Files" : realm) + "\"");
         write(response);
     }
 
-    private String dateHeaderValue() {
-        return LocalDateTime.now().atZone(ZoneId.of("GMT")).format(ofPattern("EEE, dd MMM yyyy HH:mm:ss zzz"));
-    }
-
     /* *************************************************************************
      * Request/Response Rewriting
      **************************************************************************/
 
     /**
-     * Copy the given {@link HttpRequest} verbatim.
+     * <p>
+     * Keeps a snapshot of the given request, as it was received, as the
+     * current request, and returns the request to forward in its place.
+     * </p>
+     *
+     * <p>
+     * Rather than copying the request, the snapshot and the forwarded request
+     * share its headers until either of them modifies them, which is when
+     * they're copied. The snapshot of a full request holds a duplicate of its
+     * content, so the content is never copied either, unless a filter copies
+     * the snapshot itself.
+     * </p>
      */
-    private HttpRequest copy(HttpRequest original) {
-        if (original instanceof FullHttpRequest) {
-            return ((FullHttpRequest) original).copy();
+    private HttpRequest snapshotCurrentRequest(HttpRequest httpRequest) {
+        HttpVersion protocolVersion = httpRequest.protocolVersion();
+        HttpMethod method = httpRequest.method();
+        String uri = httpRequest.uri();
+        CopyOnWriteHttpHeaders headers = new CopyOnWriteHttpHeaders(httpRequest.headers());
+        if (httpRequest instanceof FullHttpRequest) {
+            FullHttpRequest fullHttpRequest = (FullHttpRequest) httpRequest;
+            CopyOnWriteHttpHeaders trailingHeaders = new CopyOnWriteHttpHeaders(fullHttpRequest.trailingHeaders());
+            currentRequest = new DefaultFullHttpRequest(protocolVersion, method, uri,
+                    fullHttpRequest.content().retainedDuplicate(), headers.share(), trailingHeaders.share());
+            // the forwarded request takes over the original's reference to the content
+            return new DefaultFullHttpRequest(protocolVersion, method, uri,
+                    fullHttpRequest.content(), headers, trailingHeaders);
         } else {
-            HttpRequest request = new DefaultHttpRequest(original.protocolVersion(),
-                    original.method(), original.uri());
-            request.headers().set(original.headers());
-            return request;
+            currentRequest = new DefaultHttpRequest(protocolVersion, method, uri, headers.share());
+            return new DefaultHttpRequest(protocolVersion, method, uri, headers);
+        }
+    }
+
+    /**
+     * Adapts a request received on an HTTP/2 stream for forwarding over
+     * HTTP/1.1. The {@link Http2StreamFrameToHttpObjectCodec} maps :authority
+     * to the Host header and leaves the request-target in origin-form. Unless
+     * we're man-in-the-middling, the client is talking to us as a proxy, so
+     * the :scheme and :authority are turned back into an absolute-form URI.
+     */
+    private void prepareHttp2Request(HttpRequest httpRequest) {
+        HttpHeaders headers = httpRequest.headers();
+        String scheme = headers.get(HttpConversionUtil.ExtensionHeaderNames.SCHEME.text());
+        headers.remove(HttpConversionUtil.ExtensionHeaderNames.SCHEME.text());
+        headers.remove(HttpConversionUtil.ExtensionHeaderNames.STREAM_ID.text());
+
+        String host = headers.get(HttpHeaderNames.HOST);
+        if (!isMitming() && !ProxyUtils.isCONNECT(httpRequest) && host != null
+                && httpRequest.uri().startsWith("/")) {
+            httpRequest.setUri((scheme == null ? "http" : scheme) + "://" + host + httpRequest.uri());
+        }
+
+        // HTTP/2 requests may have a body of unknown length, which HTTP/1.1 can only carry chunked
+        if (!(httpRequest instanceof FullHttpRequest) && !HttpUtil.isContentLengthSet(httpRequest)) {
+            HttpUtil.setTransferEncodingChunked(httpRequest, true);
         }
     }
 
@@ -1144,6 +1533,10 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
             stripHopByHopHeaders(headers);
             ProxyUtils.addVia(httpRequest, proxyServer.getProxyAlias());
         }
+        // the trace context is end-to-end, so it's propagated even by a transparent proxy
+        if (currentSpan != null) {
+            currentSpan.inject(httpRequest.headers());
+        }
     }
 
     private boolean isNextHopOriginServer() {
@@ -1193,7 +1586,7 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
              * that recipient or gatewayed via a protocol which requires a Date.
              */
             if (!headers.contains(HttpHeaderNames.DATE)) {
-                headers.set(HttpHeaderNames.DATE, dateHeaderValue());
+                headers.set(HttpHeaderNames.DATE, HttpDate.now());
             }
         }
     }
@@ -1349,12 +1742,9 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         // restore the keep alive status, if it was overwritten when modifying headers for proxying
         HttpUtil.setKeepAlive(filteredResponse, isKeepAlive);
 
+        endSpan(currentRequestTimings, filteredResponse.status());
         write(filteredResponse);
 
-        if (ProxyUtils.isLastChunk(filteredResponse)) {
-            writeEmptyBuffer();
-        }
-
         if (!HttpUtil.isKeepAlive(filteredResponse)) {
             disconnect();
             return false;
@@ -1363,16 +1753,58 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         return true;
     }
 
+    /**
+     * Starts the span of a request just read, if the proxy traces requests.
+     */
+    private void startSpan(HttpRequest httpRequest) {
+        ProxyTracer tracer = proxyServer.getTracer();
+        if (tracer == null) {
+            return;
+        }
+        currentSpan = tracer.startSpan(httpRequest, currentRequestTimings, getClientAddress());
+        if (pendingSpans == null) {
+            pendingSpans = new ConcurrentLinkedQueue<>();
+        }
+        pendingSpans.add(currentSpan);
+    }
+
+    /**
+     * Ends the span of the request with the given timings, if it's still
+     * pending, with the status of the response sent to the client.
+     */
+    private void endSpan(RequestTimings requestTimings, HttpResponseStatus status) {
+        Queue<ProxySpan> pendingSpans = this.pendingSpans;
+        if (pendingSpans == null) {
+            return;
+        }
+        for (ProxySpan span : pendingSpans) {
+            if (span.getRequestTimings() == requestTimings) {
+                pendingSpans.remove(span);
+                span.end(status);
+                return;
+            }
+        }
+    }
+
     /**
      * Identify the host and port for a request.
      */
     private String identifyHostAndPort(HttpRequest httpRequest) {
         String hostAndPort = ProxyUtils.parseHostAndPort(httpRequest);
         if (StringUtils.isBlank(hostAndPort)) {
-            List<String> hosts = httpRequest.headers().getAll(
-                    HttpHeaderNames.HOST);
-            if (hosts != null && !hosts.isEmpty()) {
-                hostAndPort = hosts.get(0);
+            String host = httpRequest.headers().get(HttpHeaderNames.HOST);
+            if (host != null) {
+                hostAndPort = host;
+            }
+        }
+
+        // requests on a man-in-the-middled HTTP/2 connection each get their own server connection. unless the
+        // :authority says otherwise, that connection goes to the port of the original CONNECT rather than port 80.
+        if (mitmHostAndPort != null && StringUtils.isNotBlank(hostAndPort)) {
+            HostAndPort parsedHostAndPort = HostAndPort.fromString(hostAndPort);
+            if (!parsedHostAndPort.hasPort()) {
+                hostAndPort = HostAndPort.fromParts(parsedHostAndPort.getHost(),
+                        HostAndPort.fromString(mitmHostAndPort).getPort()).toString();
             }
         }
 
@@ -1380,28 +1812,49 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
     }
 
     /**
-     * Write an empty buffer at the end of a chunked transfer. We need to do
-     * this to handle the way Netty creates HttpChunks from responses that
-     * aren't in fact chunked from the remote server using Transfer-Encoding:
-     * chunked. Netty turns these into pseudo-chunked responses in cases where
-     * the response would otherwise fill up too much memory or where the length
-     * of the response body is unknown. This is handy because it means we can
-     * start streaming response bodies back to the client without reading the
-     * entire response. The problem is that in these pseudo-cases the last chunk
-     * is encoded to null, and this thwarts normal ChannelFutures from
-     * propagating operationComplete events on writes to appropriate channel
-     * listeners. We work around this by writing an empty buffer in those cases
-     * and using the empty buffer's future instead to handle any operations we
-     * need to when responses are fully written back to clients.
+     * The id this connection is registered with for introspection.
      */
-    private void writeEmptyBuffer() {
-        write(Unpooled.EMPTY_BUFFER);
+    long getConnectionId() {
+        return connectionId;
+    }
+
+    /**
+     * The connections to servers made on behalf of this client.
+     */
+    Collection<ProxyToServerConnection> getServerConnections() {
+        return serverConnectionsByHostAndPort.values();
+    }
+
+    /**
+     * The connections of this connection's HTTP/2 streams that are still
+     * open, which have server connections of their own.
+     */
+    Collection<ClientToProxyConnection> getHttp2Streams() {
+        Set<ClientToProxyConnection> streams = http2Streams;
+        return streams != null ? streams : Collections.emptySet();
     }
 
     public boolean isMitming() {
         return mitming;
     }
 
+    /**
+     * Returns true if this connection handles a single stream of an HTTP/2
+     * connection from the client.
+     */
+    boolean isHttp2Stream() {
+        return http2Parent != null;
+    }
+
+    /**
+     * Returns the id of the HTTP/2 stream this connection handles, or 0 if
+     * it isn't one.
+     */
+    public int getHttp2StreamId() {
+        Channel channel = this.channel;
+        return channel instanceof Http2StreamChannel ? ((Http2StreamChannel) channel).stream().id() : 0;
+    }
+
     protected void setMitming(boolean isMitming) {
         mitming = isMitming;
     }
@@ -1423,16 +1876,14 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         }
     };
 
-    private final RequestReadMonitor requestReadMonitor = new RequestReadMonitor() {
-        @Override
-        protected void requestRead(HttpRequest httpRequest) {
-            FlowContext flowContext = flowContext();
-            for (ActivityTracker tracker : proxyServer
-                    .getActivityTrackers()) {
-                tracker.requestReceivedFromClient(flowContext, httpRequest);
-            }
+    @Override
+    protected void requestRead(HttpRequest httpRequest) {
+        FlowContext flowContext = flowContext();
+        for (ActivityTracker tracker : proxyServer
+                .getActivityTrackers()) {
+            tracker.requestReceivedFromClient(flowContext, httpRequest);
         }
-    };
+    }
 
     private final BytesWrittenMonitor bytesWrittenMonitor = new BytesWrittenMonitor() {
         @Override
@@ -1445,17 +1896,15 @@ public class ClientToProxyConnection extends ProxyConnection<HttpRequest> {
         }
     };
 
-    private final ResponseWrittenMonitor responseWrittenMonitor = new ResponseWrittenMonitor() {
-        @Override
-        protected void responseWritten(HttpResponse httpResponse) {
-            FlowContext flowContext = flowContext();
-            for (ActivityTracker tracker : proxyServer
-                    .getActivityTrackers()) {
-                tracker.responseSentToClient(flowContext,
-                        httpResponse);
-            }
+    @Override
+    protected void responseWritten(HttpResponse httpResponse) {
+        FlowContext flowContext = flowContext();
+        for (ActivityTracker tracker : proxyServer
+                .getActivityTrackers()) {
+            tracker.responseSentToClient(flowContext,
+                    httpResponse);
         }
-    };
+    }
 
     private void recordClientConnected() {
         try {
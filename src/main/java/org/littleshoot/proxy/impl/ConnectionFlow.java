@@ -6,6 +6,7 @@ import io.netty.handler.codec.haproxy.HAProxyProtocolVersion;
 import io.netty.handler.codec.haproxy.HAProxyProxiedProtocol;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.ImmediateEventExecutor;
 import org.littleshoot.proxy.extras.ProxyProtocolMessage;
 
 import java.util.Deque;
@@ -139,8 +140,11 @@ class ConnectionFlow {
      */
     @SuppressWarnings("unchecked")
     private void doProcessCurrentStep(final ProxyConnectionLogger LOG) {
+        final FlightRecorderEvents.ConnectionFlowStepEvent stepEvent =
+                FlightRecorderEvents.flowStepStarted(currentStep, serverConnection);
         currentStep.execute().addListener(
                 future -> {
+                    FlightRecorderEvents.flowStepCompleted(stepEvent, future.isSuccess());
                     synchronized (connectLock) {
                         if (future.isSuccess()) {
                             LOG.debug("ConnectionFlowStep succeeded");
@@ -194,7 +198,13 @@ class ConnectionFlow {
     void fail(final Throwable cause) {
         final ConnectionState lastStateBeforeFailure = serverConnection
                 .getCurrentState();
-        serverConnection.disconnect().addListener(
+        Future<Void> disconnectFuture = serverConnection.disconnect();
+        if (disconnectFuture == null) {
+            // we never got as far as opening a channel. don't hand over to the client's event loop, which may be blocked
+            // waiting for this connection in ProxyToServerConnection.write().
+            disconnectFuture = ImmediateEventExecutor.INSTANCE.newSucceededFuture(null);
+        }
+        disconnectFuture.addListener(
                 (GenericFutureListener) future -> {
                     synchronized (connectLock) {
                         if (!clientConnection.serverConnectionFailed(
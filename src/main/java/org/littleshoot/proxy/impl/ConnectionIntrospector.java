@@ -0,0 +1,179 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+
+import javax.annotation.Nullable;
+import java.net.InetSocketAddress;
+import java.util.Map;
+
+/**
+ * <p>
+ * Lists the live client connections of a proxy, with the connections to
+ * servers made on their behalf, and closes selected ones. Served by the
+ * admin listener at {@value #PATH}, for looking into a misbehaving proxy:
+ * which connections are stuck connecting, saturated, or idle.
+ * </p>
+ *
+ * <p>
+ * The connections are read from the proxy's lock-free registry, and each
+ * field from a volatile the connection keeps anyway, so listing them never
+ * holds up the event loops. A listing is therefore not a consistent
+ * snapshot: connections that come and go during it may or may not be in it.
+ * </p>
+ *
+ * <p>
+ * A listing holds at most {@value #DEFAULT_LIMIT} connections, or the number
+ * given by the {@code limit} parameter. The next page starts after the id
+ * given by the {@code after} parameter, typically the last id of the
+ * previous page. The {@code state} parameter lists only the connections in
+ * the given {@link ConnectionState}, or with a connection to a server in it,
+ * such as {@code ?state=CONNECTING}.
+ * </p>
+ */
+class ConnectionIntrospector {
+    static final String PATH = "/connections";
+
+    static final String CONTENT_TYPE = "application/json; charset=utf-8";
+
+    static final int DEFAULT_LIMIT = 1000;
+
+    private final DefaultHttpProxyServer proxyServer;
+
+    ConnectionIntrospector(DefaultHttpProxyServer proxyServer) {
+        this.proxyServer = proxyServer;
+    }
+
+    /**
+     * Renders the live connections as a JSON array, oldest first, into a new
+     * buffer from the given allocator.
+     *
+     * @param state
+     *            (optional) the state of the connections to list
+     * @param after
+     *            the id after which to start listing
+     * @param limit
+     *            the most connections to list
+     */
+    ByteBuf render(ByteBufAllocator alloc, @Nullable ConnectionState state, long after, int limit) {
+        long now = System.currentTimeMillis();
+        StringBuilder json = new StringBuilder(4096);
+        json.append('[');
+        int listed = 0;
+        for (Map.Entry<Long, ClientToProxyConnection> entry
+                : proxyServer.getClientConnections().tailMap(after, false).entrySet()) {
+            if (listed == limit) {
+                break;
+            }
+            ClientToProxyConnection clientConnection = entry.getValue();
+            if (state != null && !isIn(clientConnection, state)) {
+                continue;
+            }
+            if (listed > 0) {
+                json.append(',');
+            }
+            listed++;
+
+            json.append("\n{\"id\":").append(entry.getKey());
+            appendAddress(json, "client", clientConnection.getClientAddress());
+            appendConnection(json, clientConnection, now);
+            json.append(",\"mitm\":").append(clientConnection.isMitming());
+
+            json.append(",\"servers\":[");
+            boolean firstServer = true;
+            for (ProxyToServerConnection serverConnection : clientConnection.getServerConnections()) {
+                if (!firstServer) {
+                    json.append(',');
+                }
+                firstServer = false;
+                json.append("{\"server\":");
+                appendString(json, serverConnection.getServerHostAndPort());
+                appendAddress(json, "remoteAddress", serverConnection.getRemoteAddress());
+                appendConnection(json, serverConnection, now);
+                json.append('}');
+            }
+            json.append("]}");
+        }
+        json.append("\n]\n");
+
+        ByteBuf buf = alloc.buffer(ByteBufUtil.utf8MaxBytes(json));
+        ByteBufUtil.writeUtf8(buf, json);
+        return buf;
+    }
+
+    /**
+     * Closes the client connection with the given id right away, without
+     * waiting for pending writes, along with its connections to servers.
+     *
+     * @return false if there is no connection with the given id
+     */
+    boolean close(long id) {
+        ClientToProxyConnection clientConnection = proxyServer.getClientConnections().get(id);
+        if (clientConnection == null) {
+            return false;
+        }
+        Channel channel = clientConnection.channel;
+        if (channel != null) {
+            channel.close();
+        }
+        return true;
+    }
+
+    private static boolean isIn(ClientToProxyConnection clientConnection, ConnectionState state) {
+        if (clientConnection.getCurrentState() == state) {
+            return true;
+        }
+        for (ProxyToServerConnection serverConnection : clientConnection.getServerConnections()) {
+            if (serverConnection.getCurrentState() == state) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void appendConnection(StringBuilder json, ProxyConnection<?> connection, long now) {
+        Channel channel = connection.channel;
+        long connectedTime = connection.getConnectedTime();
+        long lastActivityTime = connection.getLastActivityTime();
+
+        json.append(",\"state\":");
+        appendString(json, String.valueOf(connection.getCurrentState()));
+        json.append(",\"tunneling\":").append(connection.isTunneling())
+                .append(",\"saturated\":").append(channel != null && !channel.isWritable())
+                .append(",\"bytesRead\":").append(connection.getBytesRead())
+                .append(",\"bytesWritten\":").append(connection.getBytesWritten())
+                .append(",\"bufferedBytes\":").append(connection.getBufferedBytes())
+                .append(",\"ageMillis\":").append(connectedTime > 0 ? now - connectedTime : -1)
+                .append(",\"idleMillis\":").append(lastActivityTime > 0 ? now - lastActivityTime : -1);
+    }
+
+    private static void appendAddress(StringBuilder json, String name, InetSocketAddress address) {
+        json.append(",\"").append(name).append("\":");
+        if (address == null) {
+            json.append("null");
+        } else {
+            appendString(json, address.getHostString() + ":" + address.getPort());
+        }
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        if (value == null) {
+            json.append("null");
+            return;
+        }
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+}
@@ -0,0 +1,313 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.handler.codec.http.HttpHeaders;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * <p>
+ * A view of headers that shares them with the other views made by
+ * {@link #share()}, until one of the views is modified: that view then copies
+ * the headers for itself first. This lets a connection keep the headers of a
+ * message as it was received while modifying the headers it forwards, without
+ * copying them unless they really are modified.
+ * </p>
+ *
+ * <p>
+ * Removing headers that aren't there, or clearing headers that are already
+ * empty, doesn't count as a modification. Entries may be modified while
+ * iterating, as with any other headers. Like the headers they share, views
+ * aren't thread-safe.
+ * </p>
+ */
+class CopyOnWriteHttpHeaders extends HttpHeaders {
+    private Storage storage;
+
+    CopyOnWriteHttpHeaders(HttpHeaders headers) {
+        this(new Storage(headers));
+    }
+
+    private CopyOnWriteHttpHeaders(Storage storage) {
+        this.storage = storage;
+        storage.views++;
+    }
+
+    /**
+     * Returns another view of the headers this view currently sees.
+     */
+    CopyOnWriteHttpHeaders share() {
+        return new CopyOnWriteHttpHeaders(storage);
+    }
+
+    /**
+     * Returns whether this view still shares its headers with another view.
+     */
+    boolean isShared() {
+        return storage.views > 1;
+    }
+
+    private HttpHeaders headers() {
+        return storage.headers;
+    }
+
+    private HttpHeaders writableHeaders() {
+        if (storage.views > 1) {
+            storage.views--;
+            storage = new Storage(storage.headers.copy());
+            storage.views++;
+        }
+        return storage.headers;
+    }
+
+    @Override
+    public String get(String name) {
+        return headers().get(name);
+    }
+
+    @Override
+    public Integer getInt(CharSequence name) {
+        return headers().getInt(name);
+    }
+
+    @Override
+    public int getInt(CharSequence name, int defaultValue) {
+        return headers().getInt(name, defaultValue);
+    }
+
+    @Override
+    public Short getShort(CharSequence name) {
+        return headers().getShort(name);
+    }
+
+    @Override
+    public short getShort(CharSequence name, short defaultValue) {
+        return headers().getShort(name, defaultValue);
+    }
+
+    @Override
+    public Long getTimeMillis(CharSequence name) {
+        return headers().getTimeMillis(name);
+    }
+
+    @Override
+    public long getTimeMillis(CharSequence name, long defaultValue) {
+        return headers().getTimeMillis(name, defaultValue);
+    }
+
+    @Override
+    public List<String> getAll(String name) {
+        return headers().getAll(name);
+    }
+
+    @Override
+    public List<Map.Entry<String, String>> entries() {
+        List<Map.Entry<String, String>> entries = new ArrayList<>(size());
+        for (Map.Entry<String, String> entry : this) {
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    @Override
+    public boolean contains(String name) {
+        return headers().contains(name);
+    }
+
+    @Override
+    public boolean contains(String name, String value, boolean ignoreCase) {
+        return headers().contains(name, value, ignoreCase);
+    }
+
+    @Override
+    public boolean containsValue(CharSequence name, CharSequence value, boolean ignoreCase) {
+        return headers().containsValue(name, value, ignoreCase);
+    }
+
+    /**
+     * Iterates over the headers themselves while this view is the only one
+     * to see them, so views must not be shared while being iterated.
+     */
+    @Override
+    public Iterator<Map.Entry<String, String>> iterator() {
+        return isShared() ? new EntryIterator<>(HttpHeaders::iterator) : headers().iterator();
+    }
+
+    @Override
+    public Iterator<Map.Entry<CharSequence, CharSequence>> iteratorCharSequence() {
+        return isShared()
+                ? new EntryIterator<>(HttpHeaders::iteratorCharSequence)
+                : headers().iteratorCharSequence();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return headers().isEmpty();
+    }
+
+    @Override
+    public int size() {
+        return headers().size();
+    }
+
+    @Override
+    public Set<String> names() {
+        return headers().names();
+    }
+
+    @Override
+    public HttpHeaders add(String name, Object value) {
+        writableHeaders().add(name, value);
+        return this;
+    }
+
+    @Override
+    public HttpHeaders add(String name, Iterable<?> values) {
+        writableHeaders().add(name, values);
+        return this;
+    }
+
+    @Override
+    public HttpHeaders addInt(CharSequence name, int value) {
+        writableHeaders().addInt(name, value);
+        return this;
+    }
+
+    @Override
+    public HttpHeaders addShort(CharSequence name, short value) {
+        writableHeaders().addShort(name, value);
+        return this;
+    }
+
+    @Override
+    public HttpHeaders set(String name, Object value) {
+        writableHeaders().set(name, value);
+        return this;
+    }
+
+    @Override
+    public HttpHeaders set(String name, Iterable<?> values) {
+        writableHeaders().set(name, values);
+        return this;
+    }
+
+    @Override
+    public HttpHeaders setInt(CharSequence name, int value) {
+        writableHeaders().setInt(name, value);
+        return this;
+    }
+
+    @Override
+    public HttpHeaders setShort(CharSequence name, short value) {
+        writableHeaders().setShort(name, value);
+        return this;
+    }
+
+    @Override
+    public HttpHeaders remove(String name) {
+        if (headers().contains(name)) {
+            writableHeaders().remove(name);
+        }
+        return this;
+    }
+
+    @Override
+    public HttpHeaders clear() {
+        if (!headers().isEmpty()) {
+            writableHeaders().clear();
+        }
+        return this;
+    }
+
+    @Override
+    public HttpHeaders copy() {
+        return headers().copy();
+    }
+
+    /**
+     * The headers shared by views, and how many views share them.
+     */
+    private static final class Storage {
+        private final HttpHeaders headers;
+        private int views;
+
+        private Storage(HttpHeaders headers) {
+            this.headers = headers;
+        }
+    }
+
+    /**
+     * Iterates over the entries this view sees. An entry that's modified
+     * while the headers are shared is first looked up again, by its position,
+     * in the headers the view copied for itself.
+     */
+    private final class EntryIterator<K, V> implements Iterator<Map.Entry<K, V>> {
+        private final Function<HttpHeaders, Iterator<Map.Entry<K, V>>> iteratorOf;
+        private final HttpHeaders iterated;
+        private final Iterator<Map.Entry<K, V>> iterator;
+        private int index = -1;
+
+        private EntryIterator(Function<HttpHeaders, Iterator<Map.Entry<K, V>>> iteratorOf) {
+            this.iteratorOf = iteratorOf;
+            this.iterated = headers();
+            this.iterator = iteratorOf.apply(iterated);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            Map.Entry<K, V> entry = iterator.next();
+            index++;
+            return new Entry(iterated, entry, index);
+        }
+
+        private final class Entry implements Map.Entry<K, V> {
+            private HttpHeaders headers;
+            private Map.Entry<K, V> entry;
+            private final int index;
+
+            private Entry(HttpHeaders headers, Map.Entry<K, V> entry, int index) {
+                this.headers = headers;
+                this.entry = entry;
+                this.index = index;
+            }
+
+            @Override
+            public K getKey() {
+                return entry.getKey();
+            }
+
+            @Override
+            public V getValue() {
+                return entry.getValue();
+            }
+
+            @Override
+            public V setValue(V value) {
+                HttpHeaders writable = writableHeaders();
+                if (writable != headers) {
+                    Iterator<Map.Entry<K, V>> copied = iteratorOf.apply(writable);
+                    for (int i = 0; i < index; i++) {
+                        copied.next();
+                    }
+                    headers = writable;
+                    entry = copied.next();
+                }
+                return entry.setValue(value);
+            }
+
+            @Override
+            public String toString() {
+                return entry.toString();
+            }
+        }
+    }
+}
@@ -10,6 +10,7 @@ import io.netty.channel.udt.nio.NioUdtProvider;
 import io.netty.handler.traffic.GlobalTrafficShapingHandler;
 import io.netty.util.concurrent.GlobalEventExecutor;
 import org.littleshoot.proxy.*;
+import org.littleshoot.proxy.extras.MetricsActivityTracker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -21,14 +22,24 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
 import java.time.Duration;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Objects;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * <p>
@@ -103,6 +114,25 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
     private final boolean allowRequestsToOriginServer;
     private final boolean acceptProxyProtocol;
     private final boolean sendProxyProtocol;
+    private final MitmBypassIndex mitmBypassIndex;
+    private final boolean clientHttp2;
+    private final boolean serverHttp2;
+    private final boolean serverH2cPriorKnowledge;
+    @Nullable
+    private final Http2ConnectionPool http2ConnectionPool;
+
+    /**
+     * The address requested for the metrics listener, or null if there is none.
+     */
+    private final InetSocketAddress metricsAddress;
+    private final MetricsEndpoint metricsEndpoint;
+    private volatile InetSocketAddress boundMetricsAddress;
+
+    /**
+     * Traces the proxied requests, or null if the proxy doesn't export spans.
+     */
+    @Nullable
+    private final ProxyTracer tracer;
 
     /**
      * The alias or pseudonym for this proxy, used when adding the Via header.
@@ -119,11 +149,47 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
      */
     private final Collection<ActivityTracker> activityTrackers = new ConcurrentLinkedQueue<>();
 
+    /**
+     * Calls the activity trackers from a dedicated thread, or null if the connections call them directly.
+     */
+    @Nullable
+    private final AsyncActivityDispatcher asyncActivityDispatcher;
+
+    /**
+     * The trackers the connections call: either the activity trackers themselves, or the dispatcher that calls them.
+     */
+    private final Collection<ActivityTracker> dispatchedActivityTrackers;
+
+    /**
+     * Sheds the connections that buffer the most when the proxy's buffers grow too large, or null if they may grow
+     * unchecked.
+     */
+    @Nullable
+    private final BufferWatchdog bufferWatchdog;
+
+    /**
+     * Time out the idle connections of each event loop.
+     */
+    private final ConcurrentMap<EventLoop, IdleConnectionSweeper> idleConnectionSweepers = new ConcurrentHashMap<>();
+
     /**
      * Keep track of all channels created by this proxy server for later shutdown when the proxy is stopped.
      */
     private final ChannelGroup allChannels = new DefaultChannelGroup("HTTP-Proxy-Server", GlobalEventExecutor.INSTANCE);
 
+    /**
+     * The channels of connections that are registered with their event loops, and so may still report events to the
+     * activity trackers and the tracer. Waited on, until it drops to zero, when stopping gracefully.
+     */
+    private final AtomicInteger registeredConnections = new AtomicInteger();
+
+    /**
+     * The connected clients, by the ids they were registered with, oldest first. Lock-free, so that listing them
+     * doesn't hold up connections coming and going.
+     */
+    private final ConcurrentNavigableMap<Long, ClientToProxyConnection> clientConnections = new ConcurrentSkipListMap<>();
+    private final AtomicLong nextClientConnectionId = new AtomicLong(1);
+
     /**
      * JVM shutdown hook to shut down this proxy server. Declared as a class-level variable to allow removing the shutdown hook when the
      * proxy server is stopped normally.
@@ -205,6 +271,29 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
      *            when true, allow the proxy to handle requests that contain an origin-form URI, as defined in RFC 7230 5.3.1
      * @param acceptProxyProtocol when true, the proxy will accept a proxy protocol header from client
      * @param sendProxyProtocol when true, the proxy will send a proxy protocol header to the server
+     * @param mitmBypassIndex
+     *            (optional) learns which hosts cannot be man in the middled, so that they can be tunnelled instead
+     * @param clientHttp2
+     *            when true, HTTP/2 is offered via ALPN to clients whose connections are encrypted by the proxy
+     * @param serverHttp2
+     *            when true, HTTP/2 is offered via ALPN to servers of man in the middled HTTP/2 clients
+     * @param serverH2cPriorKnowledge
+     *            when true, plain HTTP requests are sent to servers over HTTP/2 without negotiation (h2c)
+     * @param metricsAddress
+     *            (optional) address to serve metrics on, in the OpenMetrics text format
+     * @param metricsConnectionClose
+     *            when true, the metrics listener closes client connections on request
+     * @param spanExporter
+     *            (optional) exporter of the spans of proxied requests
+     * @param asyncActivityQueueCapacity
+     *            the capacity of the queue of events for the activity trackers, which are then called from a
+     *            dedicated thread, or 0 to call them on the event loops
+     * @param activityTrackerOverflowPolicy
+     *            what to do with an event for the activity trackers when their queue is full
+     * @param maxBufferedBytes
+     *            the bytes the connections may buffer in total before the largest consumers are shed, or 0 for no limit
+     * @param memoryPressureAction
+     *            how to shed the connections that buffer the most
      */
     private DefaultHttpProxyServer(ServerGroup serverGroup,
             TransportProtocol transportProtocol,
@@ -229,7 +318,18 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
             int maxChunkSize,
             boolean allowRequestsToOriginServer,
             boolean acceptProxyProtocol,
-            boolean sendProxyProtocol) {
+            boolean sendProxyProtocol,
+            MitmBypassIndex mitmBypassIndex,
+            boolean clientHttp2,
+            boolean serverHttp2,
+            boolean serverH2cPriorKnowledge,
+            InetSocketAddress metricsAddress,
+            boolean metricsConnectionClose,
+            SpanExporter spanExporter,
+            int asyncActivityQueueCapacity,
+            ActivityTrackerOverflowPolicy activityTrackerOverflowPolicy,
+            long maxBufferedBytes,
+            MemoryPressureAction memoryPressureAction) {
         this.serverGroup = serverGroup;
         this.transportProtocol = transportProtocol;
         this.requestedAddress = requestedAddress;
@@ -270,6 +370,41 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
         this.allowRequestsToOriginServer = allowRequestsToOriginServer;
         this.acceptProxyProtocol = acceptProxyProtocol;
         this.sendProxyProtocol = sendProxyProtocol;
+        this.mitmBypassIndex = mitmBypassIndex;
+        this.clientHttp2 = clientHttp2;
+        this.serverHttp2 = serverHttp2;
+        this.serverH2cPriorKnowledge = serverH2cPriorKnowledge;
+        this.http2ConnectionPool = serverHttp2 || serverH2cPriorKnowledge ? new Http2ConnectionPool(this) : null;
+        this.metricsAddress = metricsAddress;
+        this.metricsEndpoint = metricsAddress != null ? new MetricsEndpoint(this, findOrAddMetricsTracker(), metricsConnectionClose)
+                : null;
+        this.tracer = spanExporter != null ? new ProxyTracer(spanExporter) : null;
+        if (asyncActivityQueueCapacity > 0) {
+            this.asyncActivityDispatcher = new AsyncActivityDispatcher(this.activityTrackers,
+                    asyncActivityQueueCapacity, activityTrackerOverflowPolicy);
+            this.dispatchedActivityTrackers = Collections.singletonList(asyncActivityDispatcher);
+        } else {
+            this.asyncActivityDispatcher = null;
+            this.dispatchedActivityTrackers = this.activityTrackers;
+        }
+        this.bufferWatchdog = maxBufferedBytes > 0
+                ? new BufferWatchdog(this, maxBufferedBytes, memoryPressureAction, BufferWatchdog.DEFAULT_CHECK_INTERVAL_MILLIS,
+                        BufferWatchdog.DEFAULT_MAX_PAUSE_MILLIS)
+                : null;
+    }
+
+    /**
+     * Returns the {@link MetricsActivityTracker} among this proxy's activity trackers, adding one if there is none.
+     */
+    private MetricsActivityTracker findOrAddMetricsTracker() {
+        for (ActivityTracker tracker : activityTrackers) {
+            if (tracker instanceof MetricsActivityTracker) {
+                return (MetricsActivityTracker) tracker;
+            }
+        }
+        MetricsActivityTracker tracker = new MetricsActivityTracker();
+        activityTrackers.add(tracker);
+        return tracker;
     }
 
     /**
@@ -293,6 +428,23 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
         return (int) idleConnectionTimeout.toSeconds();
     }
 
+    long getIdleConnectionTimeoutMillis() {
+        return idleConnectionTimeout.toMillis();
+    }
+
+    /**
+     * The sweeper that times out the idle connections of the given event loop.
+     */
+    IdleConnectionSweeper getIdleConnectionSweeper(EventLoop eventLoop) {
+        IdleConnectionSweeper sweeper = idleConnectionSweepers.computeIfAbsent(eventLoop,
+                loop -> new IdleConnectionSweeper(this, loop));
+        if (stopped.get()) {
+            // the proxy stopped while this connection was connecting
+            sweeper.stop();
+        }
+        return sweeper;
+    }
+
     @Override
     public void setIdleConnectionTimeout(int idleConnectionTimeoutInSeconds) {
         this.idleConnectionTimeout = Duration.ofSeconds(idleConnectionTimeoutInSeconds);
@@ -326,6 +478,11 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
         return boundAddress;
     }
 
+    @Override
+    public InetSocketAddress getMetricsAddress() {
+        return boundMetricsAddress;
+    }
+
     @Override
     public void setThrottle(long readThrottleBytesPerSecond, long writeThrottleBytesPerSecond) {
         if (globalTrafficShapingHandler != null) {
@@ -402,7 +559,11 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
                     maxInitialLineLength,
                     maxHeaderSize,
                     maxChunkSize,
-                    allowRequestsToOriginServer);
+                    allowRequestsToOriginServer,
+                    mitmBypassIndex,
+                    clientHttp2,
+                    serverHttp2,
+                    serverH2cPriorKnowledge);
     }
 
     @Override
@@ -430,8 +591,49 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
                 LOG.info("Shutting down proxy server immediately (non-graceful)");
             }
 
+            if (bufferWatchdog != null) {
+                bufferWatchdog.stop();
+            }
+
+            Set<EventLoop> eventLoops = new HashSet<>();
+            for (Channel channel : allChannels) {
+                eventLoops.add(channel.eventLoop());
+            }
+
             closeAllChannels(graceful);
 
+            for (IdleConnectionSweeper sweeper : idleConnectionSweepers.values()) {
+                sweeper.stop();
+            }
+
+            // the channels' inactive events run after their close futures complete: let them run, so that the
+            // activity trackers and the tracer are told about the connections that just closed
+            if (graceful && (asyncActivityDispatcher != null || tracer != null)
+                    && eventLoops.stream().noneMatch(EventLoop::inEventLoop)) {
+                awaitConnectionsUnregistered();
+            }
+
+            if (metricsEndpoint != null) {
+                metricsEndpoint.stop();
+            }
+
+            // export the spans of the requests that ended with their connections
+            if (tracer != null) {
+                tracer.stop();
+            }
+
+            if (asyncActivityDispatcher != null) {
+                asyncActivityDispatcher.stop();
+            }
+
+            if (mitmBypassIndex != null) {
+                try {
+                    mitmBypassIndex.save();
+                } catch (UncheckedIOException e) {
+                    LOG.warn("Unable to save MITM bypass index", e);
+                }
+            }
+
             serverGroup.unregisterProxyServer(this, graceful);
 
             // remove the shutdown hook that was added when the proxy was started, since it has now been stopped
@@ -490,6 +692,47 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
         }
     }
 
+    /**
+     * Called when the channel of a connection is registered with its event loop.
+     */
+    void connectionRegistered() {
+        registeredConnections.incrementAndGet();
+    }
+
+    /**
+     * Called once the channel of a connection has run its last events, or is no longer handled by the connection.
+     */
+    void connectionUnregistered() {
+        if (registeredConnections.decrementAndGet() == 0) {
+            synchronized (registeredConnections) {
+                registeredConnections.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits for the channels of all connections to run their last events, including those of the connections to
+     * servers that the closing client connections close in turn, for at most 10 seconds.
+     */
+    private void awaitConnectionsUnregistered() {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        synchronized (registeredConnections) {
+            while (registeredConnections.get() > 0) {
+                long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remainingMillis <= 0) {
+                    LOG.warn("{} connections still open after waiting for them to close", registeredConnections.get());
+                    return;
+                }
+                try {
+                    registeredConnections.wait(remainingMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
     private HttpProxyServer start() {
         if (!serverGroup.isStopped()) {
             LOG.info("Starting proxy at address: {}", requestedAddress);
@@ -505,6 +748,10 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
     }
 
     private void doStart() {
+        if (asyncActivityDispatcher != null) {
+            asyncActivityDispatcher.start();
+        }
+
         ServerBootstrap serverBootstrap = new ServerBootstrap().group(
                 serverGroup.getClientToProxyAcceptorPoolForTransport(transportProtocol),
                 serverGroup.getClientToProxyWorkerPoolForTransport(transportProtocol));
@@ -550,9 +797,71 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
         boundAddress = ((InetSocketAddress) future.channel().localAddress());
         LOG.info("Proxy started at address: {}", boundAddress);
 
+        if (tracer != null) {
+            tracer.start();
+        }
+
+        if (bufferWatchdog != null) {
+            bufferWatchdog.start();
+        }
+
+        if (metricsEndpoint != null) {
+            try {
+                boundMetricsAddress = metricsEndpoint.start(metricsAddress);
+            } catch (RuntimeException e) {
+                abort();
+                throw e;
+            }
+        }
+
         Runtime.getRuntime().addShutdownHook(jvmShutdownHook);
     }
 
+    ServerGroup getServerGroup() {
+        return serverGroup;
+    }
+
+    ChannelGroup getAllChannels() {
+        return allChannels;
+    }
+
+    /**
+     * Registers a connected client, for introspection.
+     *
+     * @return the id of the connection
+     */
+    long registerClientConnection(ClientToProxyConnection clientConnection) {
+        long id = nextClientConnectionId.getAndIncrement();
+        clientConnections.put(id, clientConnection);
+        return id;
+    }
+
+    void unregisterClientConnection(long id) {
+        clientConnections.remove(id);
+    }
+
+    /**
+     * The connected clients, by id, oldest first.
+     */
+    ConcurrentNavigableMap<Long, ClientToProxyConnection> getClientConnections() {
+        return clientConnections;
+    }
+
+    @Nullable
+    BufferWatchdog getBufferWatchdog() {
+        return bufferWatchdog;
+    }
+
+    @Nullable
+    ProxyTracer getTracer() {
+        return tracer;
+    }
+
+    @Nullable
+    GlobalTrafficShapingHandler getGlobalTrafficShapingHandler() {
+        return globalTrafficShapingHandler;
+    }
+
     protected ChainedProxyManager getChainProxyManager() {
         return chainProxyManager;
     }
@@ -561,6 +870,27 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
         return mitmManager;
     }
 
+    protected MitmBypassIndex getMitmBypassIndex() {
+        return mitmBypassIndex;
+    }
+
+    protected boolean isClientHttp2() {
+        return clientHttp2;
+    }
+
+    protected boolean isServerHttp2() {
+        return serverHttp2;
+    }
+
+    protected boolean isServerH2cPriorKnowledge() {
+        return serverH2cPriorKnowledge;
+    }
+
+    @Nullable
+    Http2ConnectionPool getHttp2ConnectionPool() {
+        return http2ConnectionPool;
+    }
+
     protected SslEngineSource getSslEngineSource() {
         return sslEngineSource;
     }
@@ -573,8 +903,20 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
         return filtersSource;
     }
 
+    /**
+     * The activity trackers for the connections to call. When the trackers are called asynchronously, that's the
+     * dispatcher that queues the events for them.
+     */
     protected Collection<ActivityTracker> getActivityTrackers() {
-        return activityTrackers;
+        return dispatchedActivityTrackers;
+    }
+
+    /**
+     * Calls the activity trackers from a dedicated thread, or null if the connections call them directly.
+     */
+    @Nullable
+    AsyncActivityDispatcher getAsyncActivityDispatcher() {
+        return asyncActivityDispatcher;
     }
 
     public String getProxyAlias() {
@@ -613,12 +955,25 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
         private int clientToProxyAcceptorThreads = ServerGroup.DEFAULT_INCOMING_ACCEPTOR_THREADS;
         private int clientToProxyWorkerThreads = ServerGroup.DEFAULT_INCOMING_WORKER_THREADS;
         private int proxyToServerWorkerThreads = ServerGroup.DEFAULT_OUTGOING_WORKER_THREADS;
+        private Duration eventLoopProbeInterval = EventLoopLagMonitor.DEFAULT_PROBE_INTERVAL;
+        private Duration eventLoopStallThreshold = EventLoopLagMonitor.DEFAULT_STALL_THRESHOLD;
         private int maxInitialLineLength = MAX_INITIAL_LINE_LENGTH_DEFAULT;
         private int maxHeaderSize = MAX_HEADER_SIZE_DEFAULT;
         private int maxChunkSize = MAX_CHUNK_SIZE_DEFAULT;
         private boolean allowRequestToOriginServer;
         private boolean acceptProxyProtocol;
         private boolean sendProxyProtocol;
+        private MitmBypassIndex mitmBypassIndex;
+        private boolean clientHttp2;
+        private boolean serverHttp2;
+        private boolean serverH2cPriorKnowledge;
+        private InetSocketAddress metricsAddress;
+        private boolean metricsConnectionClose;
+        private SpanExporter spanExporter;
+        private int asyncActivityQueueCapacity;
+        private ActivityTrackerOverflowPolicy activityTrackerOverflowPolicy = ActivityTrackerOverflowPolicy.DROP;
+        private long maxBufferedBytes;
+        private MemoryPressureAction memoryPressureAction = MemoryPressureAction.PAUSE_READING;
 
         private DefaultHttpProxyServerBootstrap() {
         }
@@ -643,7 +998,11 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
                 int maxInitialLineLength,
                 int maxHeaderSize,
                 int maxChunkSize,
-                boolean allowRequestToOriginServer) {
+                boolean allowRequestToOriginServer,
+                MitmBypassIndex mitmBypassIndex,
+                boolean clientHttp2,
+                boolean serverHttp2,
+                boolean serverH2cPriorKnowledge) {
             this.serverGroup = serverGroup;
             this.transportProtocol = transportProtocol;
             this.requestedAddress = requestedAddress;
@@ -669,6 +1028,10 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
         	this.maxHeaderSize = maxHeaderSize;
         	this.maxChunkSize = maxChunkSize;
         	this.allowRequestToOriginServer = allowRequestToOriginServer;
+            this.mitmBypassIndex = mitmBypassIndex;
+            this.clientHttp2 = clientHttp2;
+            this.serverHttp2 = serverHttp2;
+            this.serverH2cPriorKnowledge = serverH2cPriorKnowledge;
         }
 
         private DefaultHttpProxyServerBootstrap(Properties props) {
@@ -686,6 +1049,12 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
                     "max_header_size", MAX_HEADER_SIZE_DEFAULT);
             maxChunkSize = ProxyUtils.extractInt(props,
                     "max_chunk_size", MAX_CHUNK_SIZE_DEFAULT);
+            clientHttp2 = ProxyUtils.extractBooleanDefaultFalse(
+                    props, "client_http2");
+            serverHttp2 = ProxyUtils.extractBooleanDefaultFalse(
+                    props, "server_http2");
+            serverH2cPriorKnowledge = ProxyUtils.extractBooleanDefaultFalse(
+                    props, "server_h2c_prior_knowledge");
         }
 
         @Override
@@ -786,6 +1155,63 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
             return this;
         }
 
+        @Override
+        public HttpProxyServerBootstrap withMitmBypassIndex(MitmBypassIndex mitmBypassIndex) {
+            this.mitmBypassIndex = mitmBypassIndex;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withClientHttp2(boolean clientHttp2) {
+            this.clientHttp2 = clientHttp2;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withServerHttp2(boolean serverHttp2) {
+            this.serverHttp2 = serverHttp2;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withServerH2cPriorKnowledge(boolean serverH2cPriorKnowledge) {
+            this.serverH2cPriorKnowledge = serverH2cPriorKnowledge;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withMetricsAddress(InetSocketAddress metricsAddress) {
+            this.metricsAddress = metricsAddress;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withMetricsConnectionClose(boolean metricsConnectionClose) {
+            this.metricsConnectionClose = metricsConnectionClose;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withSpanExporter(SpanExporter spanExporter) {
+            this.spanExporter = spanExporter;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withAsyncActivityTracking(int queueCapacity,
+                ActivityTrackerOverflowPolicy overflowPolicy) {
+            this.asyncActivityQueueCapacity = queueCapacity;
+            this.activityTrackerOverflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        @Override
+        public HttpProxyServerBootstrap withMaxBufferedBytes(long maxBufferedBytes, MemoryPressureAction action) {
+            this.maxBufferedBytes = maxBufferedBytes;
+            this.memoryPressureAction = action;
+            return this;
+        }
+
         @Override
         public HttpProxyServerBootstrap withFiltersSource(
                 HttpFiltersSource filtersSource) {
@@ -902,13 +1328,16 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
             clientToProxyAcceptorThreads = configuration.getAcceptorThreads();
             clientToProxyWorkerThreads = configuration.getClientToProxyWorkerThreads();
             proxyToServerWorkerThreads = configuration.getProxyToServerWorkerThreads();
+            eventLoopProbeInterval = configuration.getEventLoopProbeInterval();
+            eventLoopStallThreshold = configuration.getEventLoopStallThreshold();
             return this;
         }
 
         private DefaultHttpProxyServer build() {
             final ServerGroup serverGroup;
 
-          serverGroup = Objects.requireNonNullElseGet(this.serverGroup, () -> new ServerGroup(name, clientToProxyAcceptorThreads, clientToProxyWorkerThreads, proxyToServerWorkerThreads));
+          serverGroup = Objects.requireNonNullElseGet(this.serverGroup, () -> new ServerGroup(name, clientToProxyAcceptorThreads, clientToProxyWorkerThreads, proxyToServerWorkerThreads,
+                  eventLoopProbeInterval, eventLoopStallThreshold));
 
             return new DefaultHttpProxyServer(serverGroup,
                     transportProtocol, determineListenAddress(),
@@ -918,7 +1347,10 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
                     idleConnectionTimeout, activityTrackers, connectTimeout,
                     serverResolver, readThrottleBytesPerSecond, writeThrottleBytesPerSecond,
                     localAddress, proxyAlias, maxInitialLineLength, maxHeaderSize, maxChunkSize,
-                    allowRequestToOriginServer, acceptProxyProtocol, sendProxyProtocol);
+                    allowRequestToOriginServer, acceptProxyProtocol, sendProxyProtocol,
+                    mitmBypassIndex, clientHttp2, serverHttp2, serverH2cPriorKnowledge,
+                    metricsAddress, metricsConnectionClose, spanExporter, asyncActivityQueueCapacity, activityTrackerOverflowPolicy,
+                    maxBufferedBytes, memoryPressureAction);
         }
 
         private InetSocketAddress determineListenAddress() {
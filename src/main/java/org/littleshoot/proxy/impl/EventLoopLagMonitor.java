@@ -0,0 +1,275 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import org.littleshoot.proxy.TransportProtocol;
+import org.littleshoot.proxy.extras.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Detects event loops that are slow to run their tasks, or that are stalled
+ * altogether, typically because some filter, resolver, authenticator or
+ * chained proxy manager blocks the thread it's called on.
+ * </p>
+ *
+ * <p>
+ * A watchdog thread submits a probe task to every event loop of a
+ * {@link ServerGroup} at a fixed interval, and records in a
+ * {@link LatencyHistogram} how long each probe waited to be run: the loop's
+ * lag. When a probe has been waiting for longer than the stall threshold,
+ * the watchdog logs the stack of the loop's thread, which shows what is
+ * blocking it, and logs again once the loop recovers.
+ * </p>
+ */
+public class EventLoopLagMonitor {
+    private static final Logger LOG = LoggerFactory.getLogger(EventLoopLagMonitor.class);
+
+    /**
+     * The default interval between two probes of an event loop: zero, as event
+     * loops aren't probed unless asked to.
+     */
+    public static final Duration DEFAULT_PROBE_INTERVAL = Duration.ZERO;
+
+    /**
+     * The default lag past which an event loop is considered stalled.
+     */
+    public static final Duration DEFAULT_STALL_THRESHOLD = Duration.ofSeconds(1);
+
+    private final ServerGroup serverGroup;
+    private final long probeIntervalNanos;
+    private final long stallThresholdNanos;
+    private final String threadName;
+    private final int serverGroupId;
+
+    private final Map<TransportProtocol, List<Probe>> probesByTransport = new EnumMap<>(TransportProtocol.class);
+    private final List<Probe> probes = new CopyOnWriteArrayList<>();
+    private final AtomicLong stalls = new AtomicLong();
+
+    private ScheduledExecutorService watchdog;
+
+    EventLoopLagMonitor(ServerGroup serverGroup, Duration probeInterval, Duration stallThreshold,
+                        String serverGroupName, int serverGroupId) {
+        this.serverGroup = serverGroup;
+        this.probeIntervalNanos = probeInterval.toNanos();
+        this.stallThresholdNanos = stallThreshold.toNanos();
+        this.threadName = serverGroupName;
+        this.serverGroupId = serverGroupId;
+    }
+
+    /**
+     * Starts probing, unless already started.
+     */
+    synchronized void start() {
+        if (watchdog == null) {
+            watchdog = Executors.newSingleThreadScheduledExecutor(
+                    new CategorizedThreadFactory(threadName, "EventLoopWatchdog", serverGroupId));
+            watchdog.scheduleAtFixedRate(this::probeAll, probeIntervalNanos, probeIntervalNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    synchronized void stop() {
+        if (watchdog != null) {
+            watchdog.shutdownNow();
+        }
+    }
+
+    /**
+     * The event loops probed so far, with their lag.
+     */
+    public List<LoopLag> getLoops() {
+        return Collections.unmodifiableList(probes);
+    }
+
+    /**
+     * The number of times an event loop stalled for longer than the stall
+     * threshold.
+     */
+    public long getStalls() {
+        return stalls.get();
+    }
+
+    private void probeAll() {
+        try {
+            addProbesForNewThreadPools();
+            long now = System.nanoTime();
+            for (Probe probe : probes) {
+                probe.check(now);
+            }
+        } catch (RuntimeException e) {
+            // an exception would cancel the periodic task
+            LOG.warn("Error while probing event loops", e);
+        }
+    }
+
+    private void addProbesForNewThreadPools() {
+        for (Map.Entry<TransportProtocol, ProxyThreadPools> entry : serverGroup.getInitializedThreadPools().entrySet()) {
+            if (probesByTransport.containsKey(entry.getKey())) {
+                continue;
+            }
+            List<Probe> newProbes = new ArrayList<>();
+            List<EventLoopGroup> pools = entry.getValue().getAllEventLoops();
+            for (int i = 0; i < pools.size(); i++) {
+                int index = 0;
+                for (EventExecutor executor : pools.get(i)) {
+                    newProbes.add(new Probe(entry.getKey(), ProxyThreadPools.POOL_NAMES.get(i), index++, executor));
+                }
+            }
+            probesByTransport.put(entry.getKey(), newProbes);
+            probes.addAll(newProbes);
+        }
+    }
+
+    /**
+     * The lag of one event loop.
+     */
+    public interface LoopLag {
+        TransportProtocol getTransportProtocol();
+
+        /**
+         * The name of the pool the loop belongs to, e.g. ClientToProxyWorker.
+         */
+        String getPool();
+
+        /**
+         * The index of the loop within its pool.
+         */
+        int getIndex();
+
+        /**
+         * The times probes waited to be run by the loop.
+         */
+        LatencyHistogram getLag();
+
+        /**
+         * The number of times the loop stalled for longer than the stall
+         * threshold.
+         */
+        long getStalls();
+    }
+
+    private class Probe implements Runnable, LoopLag {
+        private final TransportProtocol transportProtocol;
+        private final String pool;
+        private final int index;
+        private final EventExecutor executor;
+        private final LatencyHistogram lag = new LatencyHistogram();
+        private final AtomicLong loopStalls = new AtomicLong();
+
+        /**
+         * When the outstanding probe was submitted, or 0 if there is none.
+         * Only written by the watchdog when submitting, and by the loop when
+         * running the probe.
+         */
+        private volatile long submittedAt;
+        private volatile Thread thread;
+
+        /**
+         * Whether the outstanding probe was reported as stalled. Only written
+         * by the watchdog.
+         */
+        private volatile boolean stallReported;
+
+        private Probe(TransportProtocol transportProtocol, String pool, int index, EventExecutor executor) {
+            this.transportProtocol = transportProtocol;
+            this.pool = pool;
+            this.index = index;
+            this.executor = executor;
+        }
+
+        /**
+         * Called by the watchdog: submits a probe if none is outstanding, and
+         * reports a stall if the outstanding one has waited for too long.
+         */
+        private void check(long now) {
+            long submitted = submittedAt;
+            if (submitted == 0) {
+                stallReported = false;
+                if (executor.isShuttingDown()) {
+                    return;
+                }
+                submittedAt = now == 0 ? 1 : now;
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    submittedAt = 0;
+                }
+            } else if (!stallReported && now - submitted > stallThresholdNanos) {
+                stallReported = true;
+                stalls.incrementAndGet();
+                loopStalls.incrementAndGet();
+                reportStall(now - submitted);
+            }
+        }
+
+        private void reportStall(long stalledNanos) {
+            Thread loopThread = thread;
+            if (loopThread == null) {
+                LOG.warn("{} event loop {} has not run a task for {} ms",
+                        pool, index, TimeUnit.NANOSECONDS.toMillis(stalledNanos));
+                return;
+            }
+
+            StringBuilder stack = new StringBuilder();
+            for (StackTraceElement element : loopThread.getStackTrace()) {
+                stack.append("\n\tat ").append(element);
+            }
+            LOG.warn("Event loop thread {} has not run a task for {} ms, it is probably blocked:{}",
+                    loopThread.getName(), TimeUnit.NANOSECONDS.toMillis(stalledNanos), stack);
+        }
+
+        /**
+         * Called by the event loop.
+         */
+        @Override
+        public void run() {
+            long lagNanos = System.nanoTime() - submittedAt;
+            lag.record(lagNanos, TimeUnit.NANOSECONDS);
+            thread = Thread.currentThread();
+            if (stallReported) {
+                LOG.warn("Event loop thread {} recovered after {} ms",
+                        thread.getName(), TimeUnit.NANOSECONDS.toMillis(lagNanos));
+            }
+            submittedAt = 0;
+        }
+
+        @Override
+        public TransportProtocol getTransportProtocol() {
+            return transportProtocol;
+        }
+
+        @Override
+        public String getPool() {
+            return pool;
+        }
+
+        @Override
+        public int getIndex() {
+            return index;
+        }
+
+        @Override
+        public LatencyHistogram getLag() {
+            return lag;
+        }
+
+        @Override
+        public long getStalls() {
+            return loopStalls.get();
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+import org.littleshoot.proxy.RequestTimings;
+
+import javax.net.ssl.SSLSession;
+import java.net.InetSocketAddress;
+
+/**
+ * <p>
+ * Java Flight Recorder events for the lifecycle of connections and requests.
+ * </p>
+ *
+ * <p>
+ * All events are disabled unless a recording enables them, which the
+ * {@code littleproxy.jfc} settings shipped with LittleProxy do:
+ * </p>
+ *
+ * <pre>
+ * java -XX:StartFlightRecording:settings=default,settings=/path/to/littleproxy.jfc ...
+ * </pre>
+ *
+ * <p>
+ * While they are disabled, each call site costs a check of a flag that the
+ * JIT constant-folds, and the event objects are never allocated.
+ * </p>
+ */
+final class FlightRecorderEvents {
+    private static final String CATEGORY = "LittleProxy";
+
+    private FlightRecorderEvents() {
+    }
+
+    /**
+     * The name of a connection's side, for events.
+     */
+    static String side(ProxyConnection<?> connection) {
+        return connection instanceof ClientToProxyConnection ? "client" : "server";
+    }
+
+    /**
+     * Starts timing a client connection, if recorded.
+     *
+     * @return the event to pass to {@link #clientDisconnected}, or null
+     */
+    static ClientConnectionEvent clientConnected(InetSocketAddress clientAddress) {
+        ClientConnectionEvent event = new ClientConnectionEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        event.client = String.valueOf(clientAddress);
+        return event;
+    }
+
+    static void clientDisconnected(ClientConnectionEvent event, SSLSession sslSession) {
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.tlsProtocol = sslSession != null ? sslSession.getProtocol() : null;
+                event.commit();
+            }
+        }
+    }
+
+    static void stateChanged(ProxyConnection<?> connection, ConnectionState from, ConnectionState to) {
+        StateTransitionEvent event = new StateTransitionEvent();
+        if (event.shouldCommit()) {
+            event.side = side(connection);
+            event.from = String.valueOf(from);
+            event.to = String.valueOf(to);
+            event.commit();
+        }
+    }
+
+    /**
+     * Starts timing a step of a connection flow, if recorded.
+     *
+     * @return the event to pass to {@link #flowStepCompleted}, or null
+     */
+    static ConnectionFlowStepEvent flowStepStarted(ConnectionFlowStep step, ProxyToServerConnection serverConnection) {
+        ConnectionFlowStepEvent event = new ConnectionFlowStepEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        event.side = side(step.getConnection());
+        event.step = step.toString();
+        event.server = serverConnection.getServerHostAndPort();
+        return event;
+    }
+
+    static void flowStepCompleted(ConnectionFlowStepEvent event, boolean succeeded) {
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.succeeded = succeeded;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Starts timing a TLS handshake, if recorded.
+     *
+     * @return the event to pass to {@link #tlsHandshakeCompleted}, or null
+     */
+    static TlsHandshakeEvent tlsHandshakeStarted(ProxyConnection<?> connection) {
+        TlsHandshakeEvent event = new TlsHandshakeEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        event.side = side(connection);
+        return event;
+    }
+
+    static void tlsHandshakeCompleted(TlsHandshakeEvent event, SSLSession sslSession, Throwable cause) {
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.succeeded = cause == null;
+                if (sslSession != null) {
+                    event.peer = sslSession.getPeerHost() + ":" + sslSession.getPeerPort();
+                    event.protocol = sslSession.getProtocol();
+                    event.cipherSuite = sslSession.getCipherSuite();
+                }
+                event.failure = cause != null ? cause.toString() : null;
+                event.commit();
+            }
+        }
+    }
+
+    static void requestCompleted(ProxyToServerConnection serverConnection, HttpRequest request,
+                                 HttpResponse response, RequestTimings requestTimings) {
+        RequestEvent event = new RequestEvent();
+        if (event.shouldCommit()) {
+            event.server = serverConnection.getServerHostAndPort();
+            if (request != null) {
+                event.method = request.method().name();
+                event.uri = request.uri();
+            }
+            event.status = response != null ? response.status().code() : 0;
+            event.resolution = requestTimings.getResolutionNanos();
+            event.connect = requestTimings.getConnectNanos();
+            event.tlsHandshake = requestTimings.getSslHandshakeNanos();
+            event.requestSend = requestTimings.getRequestSendNanos();
+            event.timeToFirstByte = requestTimings.getTimeToFirstByteNanos();
+            event.transfer = requestTimings.getTransferNanos();
+            event.total = requestTimings.getTotalNanos();
+            event.commit();
+        }
+    }
+
+    /**
+     * Whether filter invocations are recorded, in which case the filters of a
+     * request are wrapped in {@link FlightRecordingHttpFilters}.
+     */
+    static boolean isRecordingFilterInvocations() {
+        return new FilterInvocationEvent().isEnabled();
+    }
+
+    static FilterInvocationEvent filterInvocationStarted() {
+        FilterInvocationEvent event = new FilterInvocationEvent();
+        event.begin();
+        return event;
+    }
+
+    static void filterInvocationCompleted(FilterInvocationEvent event, Object filters, String callback) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.filters = filters.getClass().getName();
+            event.callback = callback;
+            event.commit();
+        }
+    }
+
+    @Name("org.littleshoot.proxy.ClientConnection")
+    @Label("Client Connection")
+    @Description("A connection from a client, from connect to disconnect")
+    @Category(CATEGORY)
+    @Enabled(false)
+    @StackTrace(false)
+    static final class ClientConnectionEvent extends Event {
+        @Label("Client")
+        String client;
+
+        @Label("TLS Protocol")
+        String tlsProtocol;
+    }
+
+    @Name("org.littleshoot.proxy.StateTransition")
+    @Label("Connection State Transition")
+    @Description("A connection moving from one state to another")
+    @Category(CATEGORY)
+    @Enabled(false)
+    @StackTrace(false)
+    static final class StateTransitionEvent extends Event {
+        @Label("Side")
+        @Description("client for connections from clients, server for connections to servers")
+        String side;
+
+        @Label("From")
+        String from;
+
+        @Label("To")
+        String to;
+    }
+
+    @Name("org.littleshoot.proxy.ConnectionFlowStep")
+    @Label("Connection Flow Step")
+    @Description("A step in establishing a connection to a server, such as connecting, a TLS handshake or a CONNECT")
+    @Category(CATEGORY)
+    @Enabled(false)
+    @StackTrace(false)
+    static final class ConnectionFlowStepEvent extends Event {
+        @Label("Side")
+        String side;
+
+        @Label("Step")
+        String step;
+
+        @Label("Server")
+        String server;
+
+        @Label("Succeeded")
+        boolean succeeded;
+    }
+
+    @Name("org.littleshoot.proxy.TlsHandshake")
+    @Label("TLS Handshake")
+    @Category(CATEGORY)
+    @Enabled(false)
+    @StackTrace(false)
+    static final class TlsHandshakeEvent extends Event {
+        @Label("Side")
+        String side;
+
+        @Label("Peer")
+        String peer;
+
+        @Label("Protocol")
+        String protocol;
+
+        @Label("Cipher Suite")
+        String cipherSuite;
+
+        @Label("Succeeded")
+        boolean succeeded;
+
+        @Label("Failure")
+        String failure;
+    }
+
+    @Name("org.littleshoot.proxy.Request")
+    @Label("Request")
+    @Description("A request whose response has been completely received from the server, with its timings;"
+            + " timings that don't apply, such as connecting on a reused connection, are -1")
+    @Category(CATEGORY)
+    @Enabled(false)
+    @StackTrace(false)
+    static final class RequestEvent extends Event {
+        @Label("Server")
+        String server;
+
+        @Label("Method")
+        String method;
+
+        @Label("URI")
+        String uri;
+
+        @Label("Status")
+        int status;
+
+        @Label("Resolution")
+        @Timespan
+        long resolution;
+
+        @Label("Connect")
+        @Timespan
+        long connect;
+
+        @Label("TLS Handshake")
+        @Timespan
+        long tlsHandshake;
+
+        @Label("Request Send")
+        @Timespan
+        long requestSend;
+
+        @Label("Time to First Byte")
+        @Timespan
+        long timeToFirstByte;
+
+        @Label("Transfer")
+        @Timespan
+        long transfer;
+
+        @Label("Total")
+        @Timespan
+        long total;
+    }
+
+    @Name("org.littleshoot.proxy.FilterInvocation")
+    @Label("Filter Invocation")
+    @Description("A call to an HttpFilters callback")
+    @Category(CATEGORY)
+    @Enabled(false)
+    @StackTrace(false)
+    static final class FilterInvocationEvent extends Event {
+        @Label("Filters")
+        String filters;
+
+        @Label("Callback")
+        String callback;
+    }
+}
@@ -0,0 +1,210 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpResponse;
+import org.littleshoot.proxy.HttpFilters;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Wraps the {@link HttpFilters} of a request while filter invocations are
+ * recorded by Java Flight Recorder, to time each call to them.
+ */
+class FlightRecordingHttpFilters implements HttpFilters {
+    private final HttpFilters filters;
+
+    FlightRecordingHttpFilters(HttpFilters filters) {
+        this.filters = filters;
+    }
+
+    @Override
+    public HttpResponse clientToProxyRequest(HttpObject httpObject) {
+        FlightRecorderEvents.FilterInvocationEvent event = FlightRecorderEvents.filterInvocationStarted();
+        try {
+            return filters.clientToProxyRequest(httpObject);
+        } finally {
+            FlightRecorderEvents.filterInvocationCompleted(event, filters, "clientToProxyRequest");
+        }
+    }
+
+    @Override
+    public HttpResponse proxyToServerRequest(HttpObject httpObject) {
+        FlightRecorderEvents.FilterInvocationEvent event = FlightRecorderEvents.filterInvocationStarted();
+        try {
+            return filters.proxyToServerRequest(httpObject);
+        } finally {
+            FlightRecorderEvents.filterInvocationCompleted(event, filters, "proxyToServerRequest");
+        }
+    }
+
+    @Override
+    public void proxyToServerRequestSending() {
+        FlightRecorderEvents.FilterInvocationEvent event = FlightRecorderEvents.filterInvocationStarted();
+        try {
+            filters.proxyToServerRequestSending();
+        } finally {
+            FlightRecorderEvents.filterInvocationCompleted(event, filters, "proxyToServerRequestSending");
+        }
+    }
+
+    @Override
+    public void proxyToServerRequestSent() {
+        FlightRecorderEvents.FilterInvocationEvent event = FlightRecorderEvents.filterInvocationStarted();
+        try {
+            filters.proxyToServerRequestSent();
+        } finally {
+            FlightRecorderEvents.filterInvocationCompleted(event, filters, "proxyToServerRequestSent");
+        }
+    }
+
+    @Override
+    public HttpObject serverToProxyResponse(HttpObject httpObject) {
+        FlightRecorderEvents.FilterInvocationEvent event = FlightRecorderEvents.filterInvocationStarted();
+        try {
+            return filters.serverToProxyResponse(httpObject);
+        } finally {
+            FlightRecorderEvents.filterInvocationCompleted(event, filters, "serverToProxyResponse");
+        }
+    }
+
+    @Override
+    public void serverToProxyResponseTimedOut() {
+        FlightRecorderEvents.FilterInvocationEvent event = FlightRecorderEvents.filterInvocationStarted();
+        try {
+            filters.serverToProxyResponseTimedOut();
+        } finally {
+            FlightRecorderEvents.filterInvocationCompleted(event, filters, "serverToProxyResponseTimedOut");
+        }
+    }
+
+    @Override
+    public void serverToProxyResponseReceiving() {
+        FlightRecorderEvents.FilterInvocationEvent event = FlightRecorderEvents.filterInvocationStarted();
+        try {
+            filters.serverToProxyResponseReceiving();
+        } finally {
+            FlightRecorderEvents.filterInvocationCompleted(event, filters, "serverToProxyResponseReceiving");
+        }
+    }
+
+    @Override
+    public void serverToProxyResponseReceived() {
+        FlightRecorderEvents.FilterInvocationEvent event = FlightRecorderEvents.filterInvocationStarted();
+        try {
+            filters.serverToProxyResponseReceived();
+        } finally {
+            FlightRecorderEvents.filterInvocationCompleted(event, filters, "serverToProxyResponseReceived");
+        }
+    }
+
+    @Override
+    public HttpObject proxyToClientResponse(HttpObject httpObject) {
+        FlightRecorderEvents.FilterInvocationEvent event = FlightRecorderEvents.filterInvocationStarted();
+        try {
+            return filters.proxyToClientResponse(httpObject);
+        } finally {
+            FlightRecorderEvents.filterInvocationCompleted(event, filters, "proxyToClientResponse");
+        }
+    }
+
+    @Override
+    public void proxyToServerConnectionQueued() {
+        FlightRecorderEvents.FilterInvocationEvent event = FlightRecorderEvents.filterInvocationStarted();
+        try {
+            filters.proxyToServerConnectionQueued();
+        } finally {
+            FlightRecorderEvents.filterInvocationCompleted(event, filters, "proxyToServerConnectionQueued");
+        }
+    }
+
+    @Override
+    public InetSocketAddress proxyToServerResolutionStarted(String resolvingServerHostAndPort) {
+        FlightRecorderEvents.FilterInvocationEvent event = FlightRecorderEvents.filterInvocationStarted();
+        try {
+            return filters.proxyToServerResolutionStarted(resolvingServerHostAndPort);
+        } finally {
+            FlightRecorderEvents.filterInvocationCompleted(event, filters, "proxyToServerResolutionStarted");
+        }
+    }
+
+    @Override
+    public void proxyToServerResolutionFailed(String hostAndPort) {
+        FlightRecorderEvents.FilterInvocationEvent event = FlightRecorderEvents.filterInvocationStarted();
+        try {
+            filters.proxyToServerResolutionFailed(hostAndPort);
+        } finally {
+            FlightRecorderEvents.filterInvocationCompleted(event, filters, "proxyToServerResolutionFailed");
+        }
+    }
+
+    @Override
+    public void proxyToServerResolutionSucceeded(String serverHostAndPort, InetSocketAddress resolvedRemoteAddress) {
+        FlightRecorderEvents.FilterInvocationEvent event = FlightRecorderEvents.filterInvocationStarted();
+        try {
+            filters.proxyToServerResolutionSucceeded(serverHostAndPort, resolvedRemoteAddress);
+        } finally {
+            FlightRecorderEvents.filterInvocationCompleted(event, filters, "proxyToServerResolutionSucceeded");
+        }
+    }
+
+    @Override
+    public void proxyToServerConnectionStarted() {
+        FlightRecorderEvents.FilterInvocationEvent event = FlightRecorderEvents.filterInvocationStarted();
+        try {
+            filters.proxyToServerConnectionStarted();
+        } finally {
+            FlightRecorderEvents.filterInvocationCompleted(event, filters, "proxyToServerConnectionStarted");
+        }
+    }
+
+    @Override
+    public void proxyToServerConnectionSSLHandshakeStarted() {
+        FlightRecorderEvents.FilterInvocationEvent event = FlightRecorderEvents.filterInvocationStarted();
+        try {
+            filters.proxyToServerConnectionSSLHandshakeStarted();
+        } finally {
+            FlightRecorderEvents.filterInvocationCompleted(event, filters, "proxyToServerConnectionSSLHandshakeStarted");
+        }
+    }
+
+    @Override
+    public void proxyToServerConnectionFailed() {
+        FlightRecorderEvents.FilterInvocationEvent event = FlightRecorderEvents.filterInvocationStarted();
+        try {
+            filters.proxyToServerConnectionFailed();
+        } finally {
+            FlightRecorderEvents.filterInvocationCompleted(event, filters, "proxyToServerConnectionFailed");
+        }
+    }
+
+    @Override
+    public void proxyToServerConnectionSucceeded(ChannelHandlerContext serverCtx) {
+        FlightRecorderEvents.FilterInvocationEvent event = FlightRecorderEvents.filterInvocationStarted();
+        try {
+            filters.proxyToServerConnectionSucceeded(serverCtx);
+        } finally {
+            FlightRecorderEvents.filterInvocationCompleted(event, filters, "proxyToServerConnectionSucceeded");
+        }
+    }
+
+    @Override
+    public boolean proxyToServerAllowMitm() {
+        FlightRecorderEvents.FilterInvocationEvent event = FlightRecorderEvents.filterInvocationStarted();
+        try {
+            return filters.proxyToServerAllowMitm();
+        } finally {
+            FlightRecorderEvents.filterInvocationCompleted(event, filters, "proxyToServerAllowMitm");
+        }
+    }
+
+    @Override
+    public boolean proxyToServerAllowPipelining() {
+        FlightRecorderEvents.FilterInvocationEvent event = FlightRecorderEvents.filterInvocationStarted();
+        try {
+            return filters.proxyToServerAllowPipelining();
+        } finally {
+            FlightRecorderEvents.filterInvocationCompleted(event, filters, "proxyToServerAllowPipelining");
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoop;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http2.Http2FrameCodec;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2GoAwayFrame;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2SettingsFrame;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import org.littleshoot.proxy.TransportProtocol;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * <p>
+ * Shares HTTP/2 connections to servers between {@link ProxyToServerConnection}s,
+ * including those of different clients. Every request is sent on a stream of
+ * its own, so that concurrent requests to the same origin are multiplexed
+ * over a single connection.
+ * </p>
+ *
+ * <p>
+ * A new connection to an origin is only opened once each of the existing ones
+ * carries as many streams as the server allows (SETTINGS_MAX_CONCURRENT_STREAMS).
+ * Flow control is left to the streams: the channel of a stream becomes
+ * unwritable when its send window is exhausted, and stops consuming its
+ * receive window while it is not reading, which the
+ * {@link ProxyToServerConnection} handles like a saturated socket.
+ * </p>
+ *
+ * <p>
+ * Origins that turn out not to speak HTTP/2, either because they did not
+ * select h2 via ALPN or because they did not answer the connection preface of
+ * prior-knowledge h2c, are reached over HTTP/1.1 for the next
+ * {@value #HTTP1_ONLY_MILLIS} ms, after which HTTP/2 is tried again, in case
+ * the server was upgraded or the failure was a transient one.
+ * </p>
+ */
+class Http2ConnectionPool {
+    private static final Logger LOG = LoggerFactory.getLogger(Http2ConnectionPool.class);
+
+    private static final String[] APPLICATION_PROTOCOLS = {
+            ApplicationProtocolNames.HTTP_2, ApplicationProtocolNames.HTTP_1_1};
+
+    /**
+     * The number of streams a connection is assumed to accept until the
+     * server's SETTINGS arrive. RFC 9113 recommends that servers allow at
+     * least 100.
+     */
+    private static final int DEFAULT_MAX_CONCURRENT_STREAMS = 100;
+
+    static final long HTTP1_ONLY_MILLIS = 10 * 60 * 1000;
+
+    private final DefaultHttpProxyServer proxyServer;
+
+    /**
+     * The connections to each origin. An origin's list is removed once its
+     * last connection closes, while holding the list's lock.
+     */
+    private final Map<String, List<PooledConnection>> connectionsByOrigin = new ConcurrentHashMap<>();
+
+    /**
+     * The origins known not to speak HTTP/2, and the time, in nanoseconds,
+     * until which they're reached over HTTP/1.1.
+     */
+    private final Map<String, Long> http1Origins = new ConcurrentHashMap<>();
+
+    Http2ConnectionPool(DefaultHttpProxyServer proxyServer) {
+        this.proxyServer = proxyServer;
+    }
+
+    /**
+     * Returns the key under which connections to the given server are
+     * pooled.
+     */
+    static String originFor(boolean encrypted, String hostAndPort) {
+        return (encrypted ? "https://" : "http://") + hostAndPort.toLowerCase(Locale.US);
+    }
+
+    /**
+     * Returns true if the given origin is known not to speak HTTP/2.
+     */
+    boolean isHttp1Only(String origin) {
+        Long until = http1Origins.get(origin);
+        if (until == null) {
+            return false;
+        }
+        if (until - System.nanoTime() > 0) {
+            return true;
+        }
+        http1Origins.remove(origin, until);
+        return false;
+    }
+
+    /**
+     * Opens a new stream to the given origin, on a pooled connection that can
+     * take another stream or else on a new connection.
+     *
+     * @param origin           the origin, see {@link #originFor(boolean, String)}
+     * @param remoteAddress    the address to connect a new connection to
+     * @param localAddress     (optional) the local address to connect a new connection from
+     * @param sslEngineFactory creates the engine to encrypt a new connection with, null for prior-knowledge h2c
+     * @param streamHandler    the handler to initialize the stream's channel with
+     */
+    Future<Http2StreamChannel> openStream(String origin,
+            InetSocketAddress remoteAddress,
+            @Nullable InetSocketAddress localAddress,
+            @Nullable Supplier<SSLEngine> sslEngineFactory,
+            ChannelHandler streamHandler) {
+        while (true) {
+            List<PooledConnection> connections = connectionsByOrigin.computeIfAbsent(origin, key -> new ArrayList<>());
+            PooledConnection connection = null;
+            boolean isNew = false;
+            synchronized (connections) {
+                if (connectionsByOrigin.get(origin) != connections) {
+                    // the last connection closed since, and took the list with it
+                    continue;
+                }
+                for (PooledConnection candidate : connections) {
+                    if (candidate.canOpenStream()) {
+                        connection = candidate;
+                        break;
+                    }
+                }
+                if (connection == null) {
+                    // only reserve the connection's first stream here, so that connecting doesn't hold up the other
+                    // event loops opening streams to this origin
+                    connection = new PooledConnection(origin, connections);
+                    connections.add(connection);
+                    isNew = true;
+                } else {
+                    LOG.debug("Reusing HTTP/2 connection to {} with {} streams", origin, connection.streams.get());
+                }
+                connection.streams.incrementAndGet();
+            }
+            if (isNew) {
+                connection.connect(remoteAddress, localAddress,
+                        sslEngineFactory != null ? sslEngineFactory.get() : null);
+            }
+            return connection.openStream(streamHandler);
+        }
+    }
+
+    /**
+     * A connection to an origin, along with the number of streams that have
+     * been opened or are about to be opened on it.
+     */
+    private final class PooledConnection extends ChannelInboundHandlerAdapter {
+        private final String origin;
+        private final List<PooledConnection> connections;
+        private final AtomicInteger streams = new AtomicInteger();
+        private final Http2FrameCodec frameCodec;
+        private final EventLoop eventLoop;
+        /**
+         * Completed once the server's SETTINGS arrived. Streams reserved
+         * before then are opened when it completes.
+         */
+        private final Promise<Void> ready;
+        private volatile Channel channel;
+
+        private PooledConnection(String origin, List<PooledConnection> connections) {
+            this.origin = origin;
+            this.connections = connections;
+            this.frameCodec = Http2FrameCodecBuilder.forClient()
+                    .initialSettings(Http2Settings.defaultSettings()
+                            .pushEnabled(false)
+                            .maxHeaderListSize(proxyServer.getMaxHeaderSize()))
+                    // queues streams beyond the server's limit rather than failing them, should the server lower it
+                    .encoderEnforceMaxConcurrentStreams(true)
+                    .build();
+            this.eventLoop = proxyServer.getProxyToServerWorkerFor(TransportProtocol.TCP).next();
+            this.ready = eventLoop.newPromise();
+        }
+
+        private void connect(InetSocketAddress remoteAddress,
+                @Nullable InetSocketAddress localAddress,
+                @Nullable SSLEngine sslEngine) {
+            LOG.debug("Opening new HTTP/2 connection to {}", origin);
+            Bootstrap bootstrap = new Bootstrap()
+                    .group(eventLoop)
+                    .channelFactory(NioSocketChannel::new)
+                    .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, proxyServer.getConnectTimeout())
+                    .handler(new ChannelInitializer<>() {
+                        @Override
+                        protected void initChannel(Channel ch) {
+                            channel = ch;
+                            proxyServer.registerChannel(ch);
+                            if (sslEngine != null) {
+                                sslEngine.setUseClientMode(true);
+                                SSLParameters sslParameters = sslEngine.getSSLParameters();
+                                sslParameters.setApplicationProtocols(APPLICATION_PROTOCOLS);
+                                sslEngine.setSSLParameters(sslParameters);
+                                SslHandler sslHandler = new SslHandler(sslEngine);
+                                ch.pipeline().addLast("ssl", sslHandler);
+                                sslHandler.handshakeFuture().addListener(future -> {
+                                    if (!future.isSuccess()) {
+                                        ready.tryFailure(future.cause());
+                                    } else if (ApplicationProtocolNames.HTTP_2.equals(sslEngine.getApplicationProtocol())) {
+                                        addHttp2Handlers(ch.pipeline());
+                                    } else {
+                                        markHttp1Only("it did not select HTTP/2 via ALPN");
+                                        ch.close();
+                                    }
+                                });
+                            } else {
+                                addHttp2Handlers(ch.pipeline());
+                            }
+                        }
+                    });
+
+            ChannelFuture connectFuture = localAddress != null
+                    ? bootstrap.connect(remoteAddress, localAddress)
+                    : bootstrap.connect(remoteAddress);
+            channel = connectFuture.channel();
+            connectFuture.addListener(future -> {
+                if (!future.isSuccess()) {
+                    ready.tryFailure(future.cause());
+                }
+            });
+            channel.closeFuture().addListener(future -> {
+                proxyServer.unregisterChannel(channel);
+                // the listeners of the connect future may not have been notified yet, if it completed before they were added
+                if (!ready.isDone() && connectFuture.isSuccess() && sslEngine == null) {
+                    markHttp1Only("it did not answer the HTTP/2 connection preface");
+                }
+                ready.tryFailure(new IOException("HTTP/2 connection to " + origin + " closed"));
+                synchronized (connections) {
+                    connections.remove(this);
+                    if (connections.isEmpty()) {
+                        connectionsByOrigin.remove(origin, connections);
+                    }
+                }
+            });
+
+            // a server that neither completes the handshake nor sends its SETTINGS in time is given up on
+            int connectTimeout = proxyServer.getConnectTimeout();
+            if (connectTimeout > 0) {
+                eventLoop.schedule(() -> {
+                    if (!ready.isDone()) {
+                        LOG.debug("HTTP/2 connection to {} not ready after {} ms, closing it", origin, connectTimeout);
+                        channel.close();
+                    }
+                }, connectTimeout, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void addHttp2Handlers(ChannelPipeline pipeline) {
+            pipeline.addLast("http2FrameCodec", frameCodec);
+            // the server is not allowed to push, since SETTINGS_ENABLE_PUSH is 0
+            pipeline.addLast("http2MultiplexHandler", new Http2MultiplexHandler(new ChannelInboundHandlerAdapter()));
+            pipeline.addLast("idle", new IdleStateHandler(0, 0, proxyServer.getIdleConnectionTimeout()));
+            pipeline.addLast("handler", this);
+        }
+
+        private void markHttp1Only(String reason) {
+            LOG.info("Not using HTTP/2 for {} anymore, since {}", origin, reason);
+            long now = System.nanoTime();
+            // forget the origins whose time is up, which may never be asked about again
+            http1Origins.values().removeIf(until -> until - now <= 0);
+            http1Origins.put(origin, now + TimeUnit.MILLISECONDS.toNanos(HTTP1_ONLY_MILLIS));
+            ready.tryFailure(new IOException(origin + " does not speak HTTP/2"));
+        }
+
+        /**
+         * Returns true if another stream may be opened on this connection, i.e.
+         * if it is not shutting down and the number of its streams is below
+         * the server's limit.
+         */
+        private boolean canOpenStream() {
+            if (ready.isDone() && (!ready.isSuccess() || !channel.isActive())
+                    || frameCodec.connection().goAwayReceived()) {
+                return false;
+            }
+            int maxConcurrentStreams = ready.isSuccess()
+                    ? frameCodec.connection().local().maxActiveStreams()
+                    : DEFAULT_MAX_CONCURRENT_STREAMS;
+            return streams.get() < maxConcurrentStreams;
+        }
+
+        private Future<Http2StreamChannel> openStream(ChannelHandler streamHandler) {
+            Promise<Http2StreamChannel> promise = eventLoop.newPromise();
+            promise.addListener(future -> {
+                if (future.isSuccess()) {
+                    ((Http2StreamChannel) future.getNow()).closeFuture()
+                            .addListener(closeFuture -> streams.decrementAndGet());
+                } else {
+                    streams.decrementAndGet();
+                }
+            });
+            ready.addListener(future -> {
+                if (future.isSuccess()) {
+                    new Http2StreamChannelBootstrap(channel).handler(streamHandler).open(promise);
+                } else {
+                    promise.tryFailure(future.cause());
+                }
+            });
+            return promise;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            try {
+                if (msg instanceof Http2SettingsFrame) {
+                    if (ready.trySuccess(null)) {
+                        LOG.debug("HTTP/2 connection to {} is ready: {}", origin, ((Http2SettingsFrame) msg).settings());
+                    }
+                } else if (msg instanceof Http2GoAwayFrame) {
+                    LOG.debug("Server sent GOAWAY on HTTP/2 connection to {}, not opening any more streams on it", origin);
+                }
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt instanceof IdleStateEvent && streams.get() == 0) {
+                LOG.debug("Closing idle HTTP/2 connection to {}", origin);
+                ctx.close();
+            } else {
+                super.userEventTriggered(ctx, evt);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            LOG.info("Closing HTTP/2 connection to {} after an exception: {}", origin, cause.getMessage());
+            LOG.debug("Exception on HTTP/2 connection to {}", origin, cause);
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http2.DefaultHttp2DataFrame;
+import io.netty.handler.codec.http2.Http2DataFrame;
+import io.netty.handler.codec.http2.Http2StreamFrame;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * <p>
+ * Sits at the bottom of the pipeline of an HTTP/2 stream, either one of a
+ * client's connection to a {@link ClientToProxyConnection} or one of a pooled
+ * connection to a server opened by a {@link ProxyToServerConnection}, and lets
+ * the connection treat the stream like a socket when it comes to raw
+ * {@link ByteBuf}s:
+ * </p>
+ *
+ * <ul>
+ * <li>Empty buffers, which {@link ProxyConnection} writes to flush a response
+ * or before disconnecting, are dropped.</li>
+ * <li>Non-empty buffers are sent as DATA frames. This is how a CONNECT tunnel
+ * over an HTTP/2 stream writes to the client.</li>
+ * <li>Once the connection is tunneling, the content of DATA frames received
+ * from the client is passed on as raw buffers, and any other frames are
+ * dropped.</li>
+ * </ul>
+ */
+class Http2StreamTunnelCodec extends ChannelDuplexHandler {
+    private final ProxyConnection<?> connection;
+
+    Http2StreamTunnelCodec(ProxyConnection<?> connection) {
+        this.connection = connection;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!connection.isTunneling() || !(msg instanceof Http2StreamFrame)) {
+            super.channelRead(ctx, msg);
+        } else if (msg instanceof Http2DataFrame) {
+            ctx.fireChannelRead(((Http2DataFrame) msg).content());
+        } else {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof ByteBuf) {
+            ByteBuf buf = (ByteBuf) msg;
+            if (buf.isReadable()) {
+                super.write(ctx, new DefaultHttp2DataFrame(buf), promise);
+            } else {
+                buf.release();
+                promise.setSuccess();
+            }
+        } else {
+            super.write(ctx, msg, promise);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.handler.codec.DateFormatter;
+import io.netty.util.AsciiString;
+
+import java.util.Date;
+
+/**
+ * The value of the Date header of the responses the proxy makes up or adds
+ * the header to. The date is formatted by the first response of each second
+ * that needs it, and the other responses of that second reuse it.
+ */
+final class HttpDate {
+    private static volatile Formatted formatted = new Formatted(System.currentTimeMillis());
+
+    private HttpDate() {
+    }
+
+    /**
+     * Returns the current date, formatted for the Date header.
+     */
+    static AsciiString now() {
+        long second = System.currentTimeMillis() / 1000;
+        Formatted current = formatted;
+        if (current.second != second) {
+            // racing threads format the same second, and either result is fine to keep
+            current = new Formatted(second * 1000);
+            formatted = current;
+        }
+        return current.value;
+    }
+
+    private static final class Formatted {
+        private final long second;
+        private final AsciiString value;
+
+        private Formatted(long time) {
+            this.second = time / 1000;
+            this.value = AsciiString.cached(DateFormatter.format(new Date(time)));
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Times out the connections of one event loop that have neither read nor
+ * written anything for longer than the proxy's idle connection timeout.
+ * </p>
+ *
+ * <p>
+ * The connections are filed in a hashed timer wheel by the time at which
+ * they would become idle, as of when they were last filed. Reading and
+ * writing only update the connections' timestamps: the wheel isn't told
+ * about it. Instead, each tick looks at the connections filed in the slot it
+ * reaches, times out those that really are idle, and files the others again
+ * by their current deadline. A connection is thus looked at about once per
+ * timeout, rather than rescheduled on every read and write as it would be
+ * with a {@link io.netty.handler.timeout.IdleStateHandler} of its own.
+ * </p>
+ *
+ * <p>
+ * Each slot is a doubly linked list threaded through the connections
+ * themselves, so that a connection that closes is unlinked right away, and
+ * isn't kept from being collected until its slot comes up.
+ * </p>
+ *
+ * <p>
+ * Like an {@link io.netty.handler.timeout.IdleStateHandler}, the sweeper
+ * times out a connection again after another timeout if it is still open
+ * and idle. Only the event loop touches the wheel.
+ * </p>
+ */
+class IdleConnectionSweeper {
+    private static final Logger LOG = LoggerFactory.getLogger(IdleConnectionSweeper.class);
+
+    /**
+     * The time between two ticks, which is how late a connection may be timed
+     * out.
+     */
+    static final long TICK_MILLIS = 100;
+
+    /**
+     * The number of slots in the wheel. Connections with deadlines more than
+     * a turn of the wheel away are filed a turn away, and filed again when
+     * their slot comes up.
+     */
+    private static final int WHEEL_SIZE = 512;
+
+    private final DefaultHttpProxyServer proxyServer;
+    private final EventLoop eventLoop;
+    /**
+     * The first connection filed in each slot, or null.
+     */
+    private final ProxyConnection<?>[] wheel;
+    private int cursor;
+    private ScheduledFuture<?> ticker;
+    private boolean stopped;
+
+    IdleConnectionSweeper(DefaultHttpProxyServer proxyServer, EventLoop eventLoop) {
+        this.proxyServer = proxyServer;
+        this.eventLoop = eventLoop;
+        this.wheel = new ProxyConnection<?>[WHEEL_SIZE];
+    }
+
+    /**
+     * Starts watching a connection that just became active. Must be called on
+     * the event loop.
+     */
+    void add(ProxyConnection<?> connection) {
+        if (stopped) {
+            return;
+        }
+        if (ticker == null) {
+            ticker = eventLoop.scheduleAtFixedRate(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        if (connection.idleSweeper != this) {
+            connection.idleSweeper = this;
+            file(connection, System.currentTimeMillis(), proxyServer.getIdleConnectionTimeoutMillis());
+        }
+    }
+
+    /**
+     * Stops watching a connection that became inactive, and unlinks it from
+     * the wheel. Must be called on the event loop.
+     */
+    void remove(ProxyConnection<?> connection) {
+        if (connection.idleSweeper == this) {
+            connection.idleSweeper = null;
+            unlink(connection);
+        }
+    }
+
+    /**
+     * Stops ticking, and forgets about the connections. May be called from
+     * any thread.
+     */
+    void stop() {
+        try {
+            eventLoop.execute(this::stopOnEventLoop);
+        } catch (RejectedExecutionException e) {
+            // the event loop is shutting down, so the ticker won't run again anyway
+        }
+    }
+
+    private void stopOnEventLoop() {
+        stopped = true;
+        if (ticker != null) {
+            ticker.cancel(false);
+            ticker = null;
+        }
+        for (ProxyConnection<?> connection : wheel) {
+            while (connection != null) {
+                ProxyConnection<?> next = connection.idleNext;
+                remove(connection);
+                connection = next;
+            }
+        }
+    }
+
+    private void tick() {
+        cursor = (cursor + 1) % WHEEL_SIZE;
+        if (wheel[cursor] == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long timeout = proxyServer.getIdleConnectionTimeoutMillis();
+        // connections filed again by this tick go to later slots, so this one is only drained once. timing a
+        // connection out may close others, which then unlink themselves, so the slot is drained one by one.
+        ProxyConnection<?> connection;
+        while ((connection = wheel[cursor]) != null) {
+            unlink(connection);
+            if (timeout > 0 && connection.getLastActivityTime() + timeout <= now) {
+                LOG.debug("Timing out idle connection {}", connection);
+                try {
+                    connection.timedOut();
+                } catch (RuntimeException e) {
+                    LOG.warn("Unable to time out idle connection {}", connection, e);
+                }
+                if (connection.idleSweeper == this) {
+                    // still open: it times out again if it stays idle for another timeout
+                    file(connection, now, timeout);
+                }
+            } else {
+                file(connection, connection.getLastActivityTime(), timeout);
+            }
+        }
+    }
+
+    /**
+     * Files a connection in the slot of the tick at which it would become
+     * idle, or a turn of the wheel away if connections don't time out.
+     */
+    private void file(ProxyConnection<?> connection, long since, long timeout) {
+        long ticks = timeout > 0
+                ? (since + timeout - System.currentTimeMillis() + TICK_MILLIS - 1) / TICK_MILLIS
+                : WHEEL_SIZE - 1;
+        ticks = Math.max(1, Math.min(ticks, WHEEL_SIZE - 1));
+        int slot = (int) ((cursor + ticks) % WHEEL_SIZE);
+        ProxyConnection<?> first = wheel[slot];
+        connection.idleSlot = slot;
+        connection.idleNext = first;
+        if (first != null) {
+            first.idlePrevious = connection;
+        }
+        wheel[slot] = connection;
+    }
+
+    /**
+     * Unlinks a connection from the slot it's filed in, if any.
+     */
+    private void unlink(ProxyConnection<?> connection) {
+        if (connection.idleSlot < 0) {
+            return;
+        }
+        ProxyConnection<?> previous = connection.idlePrevious;
+        ProxyConnection<?> next = connection.idleNext;
+        if (previous != null) {
+            previous.idleNext = next;
+        } else {
+            wheel[connection.idleSlot] = next;
+        }
+        if (next != null) {
+            next.idlePrevious = previous;
+        }
+        connection.idleSlot = -1;
+        connection.idlePrevious = null;
+        connection.idleNext = null;
+    }
+}
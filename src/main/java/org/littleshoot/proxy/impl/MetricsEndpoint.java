@@ -0,0 +1,549 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufAllocatorMetric;
+import io.netty.buffer.ByteBufAllocatorMetricProvider;
+import io.netty.buffer.PoolArenaMetric;
+import io.netty.buffer.PooledByteBufAllocatorMetric;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.traffic.GlobalTrafficShapingHandler;
+import io.netty.handler.traffic.TrafficCounter;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+import org.littleshoot.proxy.TransportProtocol;
+import org.littleshoot.proxy.extras.LatencyHistogram;
+import org.littleshoot.proxy.extras.MetricsActivityTracker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * An admin listener that serves the proxy's metrics at {@value #PATH}, in
+ * the OpenMetrics text format, for Prometheus and compatible scrapers. It
+ * runs on a port and an event loop of its own, so that a large listing or a
+ * busy scraper doesn't hold up the connections sharing the proxy's event
+ * loops.
+ * </p>
+ *
+ * <p>
+ * The exposition covers the tasks pending on each event loop, the proxy's
+ * open channels, the memory held by the pooled allocator, the global traffic
+ * shaping counters (when throttling is enabled), and the requests, bytes and
+ * latencies counted by a {@link MetricsActivityTracker}. Every value is read
+ * from counters the proxy keeps anyway, and is written straight into a
+ * pooled buffer, so that frequent scrapes don't add to the proxy's garbage.
+ * </p>
+ *
+ * <p>
+ * The listener also serves the live connections of the proxy, through a
+ * {@link ConnectionIntrospector}, and closes them on request if it was
+ * allowed to.
+ * </p>
+ */
+class MetricsEndpoint {
+    private static final Logger LOG = LoggerFactory.getLogger(MetricsEndpoint.class);
+
+    static final String PATH = "/metrics";
+
+    static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    private static final String CLOSE_SUFFIX = "/close";
+
+    private static final double[] QUANTILES = {50, 90, 99, 99.9};
+    private static final String[] QUANTILE_LABELS = {"0.5", "0.9", "0.99", "0.999"};
+
+    private static final HttpStatusClass[] STATUS_CLASSES = HttpStatusClass.values();
+    private static final String[] STATUS_CLASS_LABELS = {"1xx", "2xx", "3xx", "4xx", "5xx", "unknown"};
+
+    private final DefaultHttpProxyServer proxyServer;
+    private final MetricsActivityTracker metrics;
+    private final ConnectionIntrospector connections;
+    private final boolean connectionClose;
+    private final ChannelGroup channels = new DefaultChannelGroup("LittleProxy-metrics", GlobalEventExecutor.INSTANCE);
+
+    /**
+     * The size of the last exposition, used to size the buffer of the next
+     * one so that it rarely needs to grow.
+     */
+    private volatile int sizeHint = 4096;
+
+    private volatile EventLoopGroup eventLoop;
+
+    MetricsEndpoint(DefaultHttpProxyServer proxyServer, MetricsActivityTracker metrics, boolean connectionClose) {
+        this.proxyServer = proxyServer;
+        this.metrics = metrics;
+        this.connections = new ConnectionIntrospector(proxyServer);
+        this.connectionClose = connectionClose;
+    }
+
+    /**
+     * Binds the listener to the given address.
+     *
+     * @return the address the listener is bound to
+     */
+    InetSocketAddress start(InetSocketAddress address) {
+        eventLoop = new NioEventLoopGroup(1, proxyServer.getServerGroup().newThreadFactory("Metrics"));
+        ServerBootstrap serverBootstrap = new ServerBootstrap()
+                .group(eventLoop)
+                .channelFactory(NioServerSocketChannel::new)
+                .childHandler(new ChannelInitializer<>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        channels.add(ch);
+                        ch.pipeline().addLast("codec", new HttpServerCodec());
+                        ch.pipeline().addLast("handler", new MetricsHandler());
+                    }
+                });
+
+        ChannelFuture future = serverBootstrap.bind(address).awaitUninterruptibly();
+        if (future.cause() != null) {
+            throw new RuntimeException("Unable to bind metrics listener to " + address, future.cause());
+        }
+        channels.add(future.channel());
+
+        InetSocketAddress boundAddress = (InetSocketAddress) future.channel().localAddress();
+        LOG.info("Serving metrics at http://{}:{}{}", boundAddress.getHostString(), boundAddress.getPort(), PATH);
+        return boundAddress;
+    }
+
+    /**
+     * Closes the listener and any scrapes in progress.
+     */
+    void stop() {
+        channels.close().awaitUninterruptibly(10, TimeUnit.SECONDS);
+        EventLoopGroup eventLoop = this.eventLoop;
+        if (eventLoop != null) {
+            eventLoop.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Renders the current metrics into a new buffer from the given allocator.
+     */
+    ByteBuf render(ByteBufAllocator alloc) {
+        ByteBuf buf = alloc.buffer(sizeHint);
+        try {
+            OpenMetricsWriter writer = new OpenMetricsWriter(buf);
+            writeEventLoops(writer);
+            writeChannels(writer);
+            writeAllocator(writer);
+            writeTrafficShaping(writer);
+            writeActivity(writer);
+            writeActivityDispatch(writer);
+            writeBuffers(writer);
+            writer.eof();
+        } catch (RuntimeException e) {
+            buf.release();
+            throw e;
+        }
+        sizeHint = buf.readableBytes() + buf.readableBytes() / 8;
+        return buf;
+    }
+
+    private void writeEventLoops(OpenMetricsWriter writer) {
+        writer.gauge("littleproxy_event_loop_pending_tasks",
+                "Tasks waiting to be run by an event loop of the proxy.");
+        for (Map.Entry<TransportProtocol, ProxyThreadPools> entry
+                : proxyServer.getServerGroup().getInitializedThreadPools().entrySet()) {
+            String transport = transportLabel(entry.getKey());
+            List<EventLoopGroup> pools = entry.getValue().getAllEventLoops();
+            for (int i = 0; i < pools.size(); i++) {
+                int loop = 0;
+                for (EventExecutor executor : pools.get(i)) {
+                    if (executor instanceof SingleThreadEventExecutor) {
+                        writer.sample("littleproxy_event_loop_pending_tasks")
+                                .label("transport", transport)
+                                .label("pool", ProxyThreadPools.POOL_NAMES.get(i))
+                                .label("loop", loop)
+                                .value(((SingleThreadEventExecutor) executor).pendingTasks());
+                    }
+                    loop++;
+                }
+            }
+        }
+
+        EventLoopLagMonitor lagMonitor = proxyServer.getServerGroup().getEventLoopLagMonitor();
+        if (lagMonitor == null) {
+            return;
+        }
+        List<EventLoopLagMonitor.LoopLag> loops = lagMonitor.getLoops();
+        long[] quantiles = new long[QUANTILES.length];
+
+        writer.summaryOfSeconds("littleproxy_event_loop_lag_seconds",
+                "Time probe tasks waited to be run by an event loop of the proxy.");
+        for (int i = 0; i < loops.size(); i++) {
+            EventLoopLagMonitor.LoopLag loop = loops.get(i);
+            LatencyHistogram lag = loop.getLag();
+            long count = lag.getCount();
+            lag.getPercentilesMicros(QUANTILES, quantiles);
+            for (int q = 0; q < QUANTILES.length; q++) {
+                writer.sample("littleproxy_event_loop_lag_seconds")
+                        .label("transport", transportLabel(loop.getTransportProtocol()))
+                        .label("pool", loop.getPool())
+                        .label("loop", loop.getIndex())
+                        .label("quantile", QUANTILE_LABELS[q])
+                        .valueOfMicrosAsSeconds(quantiles[q]);
+            }
+            writer.sample("littleproxy_event_loop_lag_seconds_sum")
+                    .label("transport", transportLabel(loop.getTransportProtocol()))
+                    .label("pool", loop.getPool())
+                    .label("loop", loop.getIndex())
+                    .valueOfMicrosAsSeconds(lag.getSumMicros());
+            writer.sample("littleproxy_event_loop_lag_seconds_count")
+                    .label("transport", transportLabel(loop.getTransportProtocol()))
+                    .label("pool", loop.getPool())
+                    .label("loop", loop.getIndex())
+                    .value(count);
+        }
+
+        writer.counter("littleproxy_event_loop_stalls", "Times an event loop of the proxy stalled past the threshold.");
+        for (int i = 0; i < loops.size(); i++) {
+            EventLoopLagMonitor.LoopLag loop = loops.get(i);
+            writer.sample("littleproxy_event_loop_stalls_total")
+                    .label("transport", transportLabel(loop.getTransportProtocol()))
+                    .label("pool", loop.getPool())
+                    .label("loop", loop.getIndex())
+                    .value(loop.getStalls());
+        }
+    }
+
+    private static String transportLabel(TransportProtocol transportProtocol) {
+        return transportProtocol == TransportProtocol.TCP ? "tcp" : "udt";
+    }
+
+    private void writeChannels(OpenMetricsWriter writer) {
+        long listeners = 0;
+        long fromClients = 0;
+        long toServers = 0;
+        for (Channel channel : proxyServer.getAllChannels()) {
+            if (channel instanceof ServerChannel) {
+                listeners++;
+            } else if (channel.parent() != null) {
+                fromClients++;
+            } else {
+                toServers++;
+            }
+        }
+
+        writer.gauge("littleproxy_channels", "Open channels of the proxy.");
+        writer.sample("littleproxy_channels").label("type", "listener").value(listeners);
+        writer.sample("littleproxy_channels").label("type", "client").value(fromClients);
+        writer.sample("littleproxy_channels").label("type", "server").value(toServers);
+    }
+
+    private void writeAllocator(OpenMetricsWriter writer) {
+        ByteBufAllocator allocator = ByteBufAllocator.DEFAULT;
+        if (!(allocator instanceof ByteBufAllocatorMetricProvider)) {
+            return;
+        }
+        ByteBufAllocatorMetric metric = ((ByteBufAllocatorMetricProvider) allocator).metric();
+
+        writer.gauge("littleproxy_allocator_used_bytes", "Memory held by the buffer allocator.");
+        writer.sample("littleproxy_allocator_used_bytes").label("memory", "heap").value(metric.usedHeapMemory());
+        writer.sample("littleproxy_allocator_used_bytes").label("memory", "direct").value(metric.usedDirectMemory());
+
+        if (!(metric instanceof PooledByteBufAllocatorMetric)) {
+            return;
+        }
+        PooledByteBufAllocatorMetric pooled = (PooledByteBufAllocatorMetric) metric;
+
+        writer.gauge("littleproxy_allocator_arenas", "Arenas of the pooled buffer allocator.");
+        writer.sample("littleproxy_allocator_arenas").label("memory", "heap").value(pooled.numHeapArenas());
+        writer.sample("littleproxy_allocator_arenas").label("memory", "direct").value(pooled.numDirectArenas());
+
+        writer.gauge("littleproxy_allocator_active_allocations", "Buffers currently allocated from the arenas.");
+        writer.sample("littleproxy_allocator_active_allocations").label("memory", "heap")
+                .value(activeAllocations(pooled.heapArenas()));
+        writer.sample("littleproxy_allocator_active_allocations").label("memory", "direct")
+                .value(activeAllocations(pooled.directArenas()));
+
+        writer.counter("littleproxy_allocator_allocations", "Buffers allocated from the arenas.");
+        writer.sample("littleproxy_allocator_allocations_total").label("memory", "heap")
+                .value(allocations(pooled.heapArenas()));
+        writer.sample("littleproxy_allocator_allocations_total").label("memory", "direct")
+                .value(allocations(pooled.directArenas()));
+
+        writer.gauge("littleproxy_allocator_thread_local_caches", "Thread-local caches of the pooled buffer allocator.");
+        writer.sample("littleproxy_allocator_thread_local_caches").value(pooled.numThreadLocalCaches());
+    }
+
+    private static long activeAllocations(List<PoolArenaMetric> arenas) {
+        long active = 0;
+        for (int i = 0; i < arenas.size(); i++) {
+            active += arenas.get(i).numActiveAllocations();
+        }
+        return active;
+    }
+
+    private static long allocations(List<PoolArenaMetric> arenas) {
+        long allocations = 0;
+        for (int i = 0; i < arenas.size(); i++) {
+            allocations += arenas.get(i).numAllocations();
+        }
+        return allocations;
+    }
+
+    private void writeTrafficShaping(OpenMetricsWriter writer) {
+        GlobalTrafficShapingHandler trafficShapingHandler = proxyServer.getGlobalTrafficShapingHandler();
+        if (trafficShapingHandler == null) {
+            return;
+        }
+        TrafficCounter counter = trafficShapingHandler.trafficCounter();
+
+        writer.counter("littleproxy_throttled_bytes", "Bytes that went through the global traffic shaping handler.");
+        writer.sample("littleproxy_throttled_bytes_total").label("direction", "read").value(counter.cumulativeReadBytes());
+        writer.sample("littleproxy_throttled_bytes_total").label("direction", "written").value(counter.cumulativeWrittenBytes());
+
+        writer.gauge("littleproxy_throttled_throughput_bytes_per_second",
+                "Throughput of the global traffic shaping handler during its last check interval.");
+        writer.sample("littleproxy_throttled_throughput_bytes_per_second").label("direction", "read")
+                .value(counter.lastReadThroughput());
+        writer.sample("littleproxy_throttled_throughput_bytes_per_second").label("direction", "written")
+                .value(counter.lastWriteThroughput());
+
+        writer.gauge("littleproxy_throttle_limit_bytes_per_second", "Throttle limits of the proxy, 0 meaning unlimited.");
+        writer.sample("littleproxy_throttle_limit_bytes_per_second").label("direction", "read")
+                .value(trafficShapingHandler.getReadLimit());
+        writer.sample("littleproxy_throttle_limit_bytes_per_second").label("direction", "written")
+                .value(trafficShapingHandler.getWriteLimit());
+    }
+
+    private void writeActivityDispatch(OpenMetricsWriter writer) {
+        AsyncActivityDispatcher dispatcher = proxyServer.getAsyncActivityDispatcher();
+        if (dispatcher == null) {
+            return;
+        }
+        writer.gauge("littleproxy_activity_events_queued", "Events waiting to be passed to the activity trackers.");
+        writer.sample("littleproxy_activity_events_queued").value(dispatcher.getQueuedEvents());
+        writer.counter("littleproxy_activity_events_dropped",
+                "Events dropped because the activity trackers fell behind.");
+        writer.sample("littleproxy_activity_events_dropped_total").value(dispatcher.getDroppedEvents());
+    }
+
+    private void writeBuffers(OpenMetricsWriter writer) {
+        BufferWatchdog bufferWatchdog = proxyServer.getBufferWatchdog();
+        if (bufferWatchdog == null) {
+            return;
+        }
+        writer.gauge("littleproxy_buffered_bytes",
+                "Bytes held in the buffers of the proxy's connections, as of the last check.");
+        writer.sample("littleproxy_buffered_bytes").value(bufferWatchdog.getBufferedBytes());
+        writer.counter("littleproxy_memory_pressure_sheds",
+                "Client connections shed because the proxy's buffers were over their limit.");
+        writer.sample("littleproxy_memory_pressure_sheds_total").label("action", "pause_reading")
+                .value(bufferWatchdog.getPausedConnections());
+        writer.sample("littleproxy_memory_pressure_sheds_total").label("action", "disconnect")
+                .value(bufferWatchdog.getDisconnectedConnections());
+    }
+
+    private void writeActivity(OpenMetricsWriter writer) {
+        writer.counter("littleproxy_client_connections", "Connections accepted from clients.");
+        writer.sample("littleproxy_client_connections_total").value(metrics.getClientConnections());
+        writer.gauge("littleproxy_active_client_connections", "Connections from clients that are currently open.");
+        writer.sample("littleproxy_active_client_connections").value(metrics.getActiveClientConnections());
+
+        writer.counter("littleproxy_requests", "Requests read from clients.");
+        writer.sample("littleproxy_requests_total").value(metrics.getRequestsReceived());
+        writer.counter("littleproxy_requests_sent_to_server", "Requests written to servers.");
+        writer.sample("littleproxy_requests_sent_to_server_total").value(metrics.getRequestsSentToServer());
+        writer.counter("littleproxy_responses_received_from_server", "Responses read from servers.");
+        writer.sample("littleproxy_responses_received_from_server_total")
+                .value(metrics.getResponsesReceivedFromServer());
+
+        writer.counter("littleproxy_responses", "Responses written to clients, by status class.");
+        for (int i = 0; i < STATUS_CLASSES.length; i++) {
+            writer.sample("littleproxy_responses_total").label("code", STATUS_CLASS_LABELS[i])
+                    .value(metrics.getResponsesSent(STATUS_CLASSES[i]));
+        }
+
+        writer.counter("littleproxy_bytes", "Bytes read and written by the proxy.");
+        writer.sample("littleproxy_bytes_total").label("direction", "from_client")
+                .value(metrics.getBytesReceivedFromClient());
+        writer.sample("littleproxy_bytes_total").label("direction", "to_server")
+                .value(metrics.getBytesSentToServer());
+        writer.sample("littleproxy_bytes_total").label("direction", "from_server")
+                .value(metrics.getBytesReceivedFromServer());
+        writer.sample("littleproxy_bytes_total").label("direction", "to_client")
+                .value(metrics.getBytesSentToClient());
+
+        long[] quantiles = new long[QUANTILES.length];
+        writeSummary(writer, "littleproxy_request_latency_seconds",
+                "littleproxy_request_latency_seconds_sum", "littleproxy_request_latency_seconds_count",
+                "Time from reading a request to writing its response headers.",
+                metrics.getRequestLatency(), quantiles);
+        writeSummary(writer, "littleproxy_server_time_to_first_byte_seconds",
+                "littleproxy_server_time_to_first_byte_seconds_sum",
+                "littleproxy_server_time_to_first_byte_seconds_count",
+                "Time from writing a whole request to a server to reading its response headers.",
+                metrics.getTimeToFirstByte(), quantiles);
+    }
+
+    private static void writeSummary(OpenMetricsWriter writer, String name, String sumName, String countName,
+                                     String help,
+                                     LatencyHistogram histogram, long[] quantiles) {
+        // read the count first, so that the quantiles and sum cover at least
+        // the latencies it counts
+        long count = histogram.getCount();
+        histogram.getPercentilesMicros(QUANTILES, quantiles);
+
+        writer.summaryOfSeconds(name, help);
+        for (int i = 0; i < QUANTILES.length; i++) {
+            writer.sample(name).label("quantile", QUANTILE_LABELS[i]).valueOfMicrosAsSeconds(quantiles[i]);
+        }
+        writer.sample(sumName).valueOfMicrosAsSeconds(histogram.getSumMicros());
+        writer.sample(countName).value(count);
+    }
+
+    private class MetricsHandler extends SimpleChannelInboundHandler<HttpObject> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) {
+            if (!(msg instanceof HttpRequest)) {
+                // request bodies are ignored
+                return;
+            }
+            HttpRequest request = (HttpRequest) msg;
+            if (request.decoderResult().isFailure()) {
+                respond(ctx, request, HttpResponseStatus.BAD_REQUEST, null, Unpooled.EMPTY_BUFFER, false);
+                return;
+            }
+
+            QueryStringDecoder uri = new QueryStringDecoder(request.uri());
+            String path = uri.path();
+            boolean keepAlive = HttpUtil.isKeepAlive(request);
+            boolean get = HttpMethod.GET.equals(request.method()) || HttpMethod.HEAD.equals(request.method());
+            if (path.equals(PATH)) {
+                if (get) {
+                    respond(ctx, request, HttpResponseStatus.OK, CONTENT_TYPE, render(ctx.alloc()), keepAlive);
+                } else {
+                    respond(ctx, request, HttpResponseStatus.METHOD_NOT_ALLOWED, null, Unpooled.EMPTY_BUFFER, keepAlive);
+                }
+            } else if (path.equals(ConnectionIntrospector.PATH)) {
+                if (get) {
+                    listConnections(ctx, request, uri.parameters(), keepAlive);
+                } else {
+                    respond(ctx, request, HttpResponseStatus.METHOD_NOT_ALLOWED, null, Unpooled.EMPTY_BUFFER, keepAlive);
+                }
+            } else if (connectionClose
+                    && path.startsWith(ConnectionIntrospector.PATH + "/") && path.endsWith(CLOSE_SUFFIX)) {
+                closeConnection(ctx, request, path, keepAlive);
+            } else {
+                respond(ctx, request, HttpResponseStatus.NOT_FOUND, null, Unpooled.EMPTY_BUFFER, keepAlive);
+            }
+        }
+
+        /**
+         * Handles GET /connections, with the optional state, after and limit
+         * parameters.
+         */
+        private void listConnections(ChannelHandlerContext ctx, HttpRequest request,
+                                     Map<String, List<String>> parameters, boolean keepAlive) {
+            ConnectionState state = null;
+            long after = 0;
+            int limit = ConnectionIntrospector.DEFAULT_LIMIT;
+            try {
+                if (parameters.containsKey("state")) {
+                    state = ConnectionState.valueOf(parameters.get("state").get(0));
+                }
+                if (parameters.containsKey("after")) {
+                    after = Long.parseLong(parameters.get("after").get(0));
+                }
+                if (parameters.containsKey("limit")) {
+                    limit = Integer.parseInt(parameters.get("limit").get(0));
+                    if (limit < 0) {
+                        throw new IllegalArgumentException("Negative limit: " + limit);
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                respond(ctx, request, HttpResponseStatus.BAD_REQUEST, null, Unpooled.EMPTY_BUFFER, keepAlive);
+                return;
+            }
+            respond(ctx, request, HttpResponseStatus.OK, ConnectionIntrospector.CONTENT_TYPE,
+                    connections.render(ctx.alloc(), state, after, limit), keepAlive);
+        }
+
+        /**
+         * Handles POST /connections/{id}/close, if allowed.
+         */
+        private void closeConnection(ChannelHandlerContext ctx, HttpRequest request, String path, boolean keepAlive) {
+            if (!HttpMethod.POST.equals(request.method())) {
+                respond(ctx, request, HttpResponseStatus.METHOD_NOT_ALLOWED, null, Unpooled.EMPTY_BUFFER, keepAlive);
+                return;
+            }
+            long id;
+            try {
+                id = Long.parseLong(path.substring(ConnectionIntrospector.PATH.length() + 1,
+                        path.length() - CLOSE_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                respond(ctx, request, HttpResponseStatus.NOT_FOUND, null, Unpooled.EMPTY_BUFFER, keepAlive);
+                return;
+            }
+            if (connections.close(id)) {
+                LOG.info("Closed client connection {} on request of {}", id, ctx.channel().remoteAddress());
+                respond(ctx, request, HttpResponseStatus.NO_CONTENT, null, Unpooled.EMPTY_BUFFER, keepAlive);
+            } else {
+                respond(ctx, request, HttpResponseStatus.NOT_FOUND, null, Unpooled.EMPTY_BUFFER, keepAlive);
+            }
+        }
+
+        private void respond(ChannelHandlerContext ctx, HttpRequest request, HttpResponseStatus status,
+                             String contentType, ByteBuf content, boolean keepAlive) {
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, content);
+            if (status != HttpResponseStatus.NO_CONTENT) {
+                HttpUtil.setContentLength(response, content.readableBytes());
+            }
+            if (contentType != null) {
+                response.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
+            }
+            if (HttpMethod.HEAD.equals(request.method())) {
+                content.clear();
+            }
+            if (!keepAlive) {
+                response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+            }
+
+            ChannelFuture future = ctx.writeAndFlush(response);
+            if (!keepAlive) {
+                future.addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            LOG.debug("Error while serving metrics, closing connection", cause);
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package org.littleshoot.proxy.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ * Learns which hosts cannot be man-in-the-middled and lets subsequent CONNECT
+ * requests to those hosts be tunnelled without attempting a TLS handshake.
+ * </p>
+ *
+ * <p>
+ * MITM handshakes fail for hosts that pin their certificates, require client
+ * certificates, or otherwise reject the proxy. Once a host has failed
+ * {@code failureThreshold} times in a row, it is bypassed for {@code ttl}. A
+ * successful MITM handshake resets the failure count.
+ * </p>
+ *
+ * <p>
+ * When created with a store file, the bypassed hosts are loaded from that file
+ * and written back to it when the proxy server stops, so that what was learned
+ * survives restarts.
+ * </p>
+ */
+public class MitmBypassIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(MitmBypassIndex.class);
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 2;
+    public static final Duration DEFAULT_TTL = Duration.ofHours(1);
+    public static final int DEFAULT_MAX_ENTRIES = 10_000;
+
+    private final int failureThreshold;
+    private final long ttlMillis;
+    private final int maxEntries;
+    private final Path storeFile;
+    private final Clock clock;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public MitmBypassIndex() {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_TTL, null);
+    }
+
+    /**
+     * @param failureThreshold number of consecutive MITM failures after which a host is bypassed
+     * @param ttl              how long a host is bypassed for
+     * @param storeFile        (optional) file the bypassed hosts are loaded from and saved to
+     */
+    public MitmBypassIndex(int failureThreshold, Duration ttl, @Nullable Path storeFile) {
+        this(failureThreshold, ttl, DEFAULT_MAX_ENTRIES, storeFile, Clock.systemUTC());
+    }
+
+    MitmBypassIndex(int failureThreshold, Duration ttl, int maxEntries, @Nullable Path storeFile, Clock clock) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("failureThreshold must be at least 1, but was " + failureThreshold);
+        }
+        this.failureThreshold = failureThreshold;
+        this.ttlMillis = ttl.toMillis();
+        this.maxEntries = maxEntries;
+        this.storeFile = storeFile;
+        this.clock = clock;
+        if (storeFile != null && Files.isRegularFile(storeFile)) {
+            load(storeFile);
+        }
+    }
+
+    /**
+     * Returns true if MITM should be skipped for the given host, i.e. if the
+     * CONNECT request should be tunnelled directly.
+     *
+     * @param hostAndPort the host and port from the CONNECT request
+     */
+    public boolean shouldBypass(String hostAndPort) {
+        Entry entry = entries.get(key(hostAndPort));
+        if (entry == null || entry.bypassUntil == 0) {
+            return false;
+        }
+        if (entry.bypassUntil > clock.millis()) {
+            return true;
+        }
+        entries.remove(key(hostAndPort), entry);
+        return false;
+    }
+
+    /**
+     * Records a failed MITM attempt for the given host.
+     */
+    public void recordFailure(String hostAndPort) {
+        String key = key(hostAndPort);
+        if (!entries.containsKey(key) && entries.size() >= maxEntries) {
+            purgeExpired();
+            if (entries.size() >= maxEntries) {
+                LOG.debug("MITM bypass index is full, not recording failure for {}", key);
+                return;
+            }
+        }
+        long now = clock.millis();
+        Entry updated = entries.compute(key, (k, entry) -> {
+            int failures = entry == null || entry.isExpired(now, ttlMillis) ? 1 : entry.failures + 1;
+            long bypassUntil = failures >= failureThreshold ? now + ttlMillis : 0;
+            return new Entry(failures, now, bypassUntil);
+        });
+        if (updated.bypassUntil != 0 && updated.failures == failureThreshold) {
+            LOG.info("MITM failed {} times for {}, tunnelling it for the next {} ms", updated.failures, key, ttlMillis);
+        }
+    }
+
+    /**
+     * Records a successful MITM handshake for the given host, forgetting any
+     * earlier failures.
+     */
+    public void recordSuccess(String hostAndPort) {
+        if (!entries.isEmpty()) {
+            entries.remove(key(hostAndPort));
+        }
+    }
+
+    /**
+     * @return the number of hosts currently bypassed
+     */
+    public int size() {
+        long now = clock.millis();
+        return (int) entries.values().stream().filter(entry -> entry.bypassUntil > now).count();
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Saves the bypassed hosts to the store file given at construction time,
+     * if any.
+     */
+    public void save() {
+        if (storeFile != null) {
+            save(storeFile);
+        }
+    }
+
+    /**
+     * Saves the currently bypassed hosts and their expiry times to the given
+     * file. The file is written atomically.
+     */
+    public void save(Path file) {
+        long now = clock.millis();
+        try {
+            Path absoluteFile = file.toAbsolutePath();
+            Files.createDirectories(absoluteFile.getParent());
+            Path temp = Files.createTempFile(absoluteFile.getParent(), absoluteFile.getFileName().toString(), ".tmp");
+            try {
+                try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                    writer.write("# LittleProxy MITM bypass index: host:port<TAB>bypassed until (epoch millis)\n");
+                    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                        if (entry.getValue().bypassUntil > now) {
+                            writer.write(entry.getKey() + '\t' + entry.getValue().bypassUntil + '\n');
+                        }
+                    }
+                }
+                try {
+                    Files.move(temp, absoluteFile, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp, absoluteFile, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to save MITM bypass index to " + file, e);
+        }
+        LOG.debug("Saved MITM bypass index to {}", file);
+    }
+
+    /**
+     * Loads bypassed hosts from the given file, ignoring entries that have
+     * already expired.
+     */
+    public void load(Path file) {
+        long now = clock.millis();
+        int loaded = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int tab = line.indexOf('\t');
+                if (tab <= 0) {
+                    LOG.warn("Ignoring malformed line in MITM bypass index {}: {}", file, line);
+                    continue;
+                }
+                try {
+                    long bypassUntil = Long.parseLong(line.substring(tab + 1).trim());
+                    if (bypassUntil > now) {
+                        entries.put(key(line.substring(0, tab)), new Entry(failureThreshold, now, bypassUntil));
+                        loaded++;
+                    }
+                } catch (NumberFormatException e) {
+                    LOG.warn("Ignoring malformed line in MITM bypass index {}: {}", file, line);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to load MITM bypass index from " + file, e);
+        }
+        LOG.info("Loaded {} bypassed hosts from MITM bypass index {}", loaded, file);
+    }
+
+    private void purgeExpired() {
+        long now = clock.millis();
+        entries.values().removeIf(entry -> entry.isExpired(now, ttlMillis));
+    }
+
+    private static String key(String hostAndPort) {
+        return hostAndPort.toLowerCase(Locale.US);
+    }
+
+    private static final class Entry {
+        private final int failures;
+        private final long lastFailure;
+        /**
+         * 0 while the host has not yet reached the failure threshold
+         */
+        private final long bypassUntil;
+
+        private Entry(int failures, long lastFailure, long bypassUntil) {
+            this.failures = failures;
+            this.lastFailure = lastFailure;
+            this.bypassUntil = bypassUntil;
+        }
+
+        /**
+         * Bypassed hosts expire at the end of their TTL, failures that did not
+         * (yet) lead to a bypass are forgotten one TTL after the last failure.
+         */
+        private boolean isExpired(long now, long ttlMillis) {
+            return bypassUntil != 0 ? bypassUntil <= now : lastFailure + ttlMillis <= now;
+        }
+    }
+}
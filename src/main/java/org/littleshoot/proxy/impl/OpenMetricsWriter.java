@@ -0,0 +1,151 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+
+/**
+ * Writes metrics in the OpenMetrics text format straight into a
+ * {@link ByteBuf}. Names, label names and label values are expected to be
+ * plain ASCII that needs no escaping, and numbers are formatted by hand, so
+ * that rendering a scrape allocates nothing but the buffer itself.
+ *
+ * <pre>
+ * writer.counter("littleproxy_requests", "Requests read from clients.");
+ * writer.sample("littleproxy_requests_total").label("tls", "true").value(42);
+ * writer.eof();
+ * </pre>
+ */
+class OpenMetricsWriter {
+    private static final long MICROS_PER_SECOND = 1_000_000;
+
+    private final ByteBuf buf;
+    private boolean inLabels;
+
+    OpenMetricsWriter(ByteBuf buf) {
+        this.buf = buf;
+    }
+
+    /**
+     * Writes the metadata of a counter. Its samples must be named with a
+     * _total suffix.
+     */
+    void counter(String name, String help) {
+        metadata(name, "counter", null, help);
+    }
+
+    void gauge(String name, String help) {
+        metadata(name, "gauge", null, help);
+    }
+
+    /**
+     * Writes the metadata of a summary of durations in seconds. Its samples
+     * are named after it, with a quantile label, and with _sum and _count
+     * suffixes.
+     */
+    void summaryOfSeconds(String name, String help) {
+        metadata(name, "summary", "seconds", help);
+    }
+
+    private void metadata(String name, String type, String unit, String help) {
+        ascii("# TYPE ").ascii(name).ascii(" ").ascii(type).newLine();
+        if (unit != null) {
+            ascii("# UNIT ").ascii(name).ascii(" ").ascii(unit).newLine();
+        }
+        ascii("# HELP ").ascii(name).ascii(" ").ascii(help).newLine();
+    }
+
+    /**
+     * Starts a sample. Must be followed by any number of labels and then by
+     * its value.
+     */
+    OpenMetricsWriter sample(String name) {
+        ascii(name);
+        inLabels = false;
+        return this;
+    }
+
+    OpenMetricsWriter label(String name, String value) {
+        buf.writeByte(inLabels ? ',' : '{');
+        inLabels = true;
+        ascii(name).ascii("=\"").ascii(value);
+        buf.writeByte('"');
+        return this;
+    }
+
+    OpenMetricsWriter label(String name, long value) {
+        buf.writeByte(inLabels ? ',' : '{');
+        inLabels = true;
+        ascii(name).ascii("=\"");
+        writeLong(value);
+        buf.writeByte('"');
+        return this;
+    }
+
+    void value(long value) {
+        endLabels();
+        writeLong(value);
+        newLine();
+    }
+
+    /**
+     * Ends the sample with a value in seconds, given in microseconds.
+     */
+    void valueOfMicrosAsSeconds(long micros) {
+        endLabels();
+        writeLong(micros / MICROS_PER_SECOND);
+        buf.writeByte('.');
+        long fraction = micros % MICROS_PER_SECOND;
+        for (long digit = MICROS_PER_SECOND / 10; digit > 0; digit /= 10) {
+            buf.writeByte('0' + (int) (fraction / digit % 10));
+        }
+        newLine();
+    }
+
+    /**
+     * Writes the marker that must end every exposition.
+     */
+    void eof() {
+        ascii("# EOF").newLine();
+    }
+
+    private void endLabels() {
+        if (inLabels) {
+            buf.writeByte('}');
+            inLabels = false;
+        }
+        buf.writeByte(' ');
+    }
+
+    private OpenMetricsWriter ascii(String s) {
+        ByteBufUtil.writeAscii(buf, s);
+        return this;
+    }
+
+    private void newLine() {
+        buf.writeByte('\n');
+    }
+
+    private void writeLong(long value) {
+        if (value < 0) {
+            if (value == Long.MIN_VALUE) {
+                ascii(Long.toString(value));
+                return;
+            }
+            buf.writeByte('-');
+            value = -value;
+        }
+
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        buf.ensureWritable(digits);
+        int end = buf.writerIndex() + digits;
+        int index = end;
+        do {
+            buf.setByte(--index, '0' + (int) (value % 10));
+            value /= 10;
+        } while (value > 0);
+        buf.writerIndex(end);
+    }
+}
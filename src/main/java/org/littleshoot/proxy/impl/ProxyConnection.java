@@ -5,13 +5,19 @@ import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
 import io.netty.handler.codec.haproxy.HAProxyMessage;
 import io.netty.handler.codec.http.*;
+import io.netty.handler.codec.http2.Http2DataFrame;
+import io.netty.handler.flush.FlushConsolidationHandler;
 import io.netty.handler.ssl.SslHandler;
-import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
 import io.netty.util.ReferenceCounted;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.Promise;
 import org.littleshoot.proxy.HttpFilters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 import javax.net.ssl.SSLEngine;
 
@@ -64,17 +70,71 @@ import static org.littleshoot.proxy.impl.ConnectionState.*;
 @ParametersAreNonnullByDefault
 abstract class ProxyConnection<I extends HttpObject> extends
         SimpleChannelInboundHandler<Object> {
+    private static final Logger MONITOR_LOG = LoggerFactory.getLogger(ProxyConnection.class);
+
     protected final ProxyConnectionLogger LOG = new ProxyConnectionLogger(this);
 
+    static final String AGGREGATION_MONITOR_NAME = "aggregationMonitor";
+    static final String FLUSH_CONSOLIDATION_NAME = "flushConsolidation";
+
+    /**
+     * The connection that handles a channel, for the handlers that are shared
+     * by all connections.
+     */
+    private static final AttributeKey<ProxyConnection<?>> CONNECTION = AttributeKey.valueOf("proxyConnection");
+
     protected final DefaultHttpProxyServer proxyServer;
     protected final boolean runsAsSslClient;
 
     protected volatile ChannelHandlerContext ctx;
     protected volatile Channel channel;
 
+    /**
+     * The channel counted by {@link DefaultHttpProxyServer#connectionRegistered()},
+     * until it's counted as unregistered again.
+     */
+    private volatile Channel registeredChannel;
+
     private volatile ConnectionState currentState;
     protected volatile boolean tunneling;
     protected volatile long lastReadTime;
+    protected volatile long lastWriteTime;
+
+    /**
+     * The sweeper that times this connection out when it's idle, if it's
+     * active. See {@link IdleConnectionSweeper}.
+     */
+    volatile IdleConnectionSweeper idleSweeper;
+
+    /**
+     * The slot of the sweeper's wheel this connection is filed in, or -1, and
+     * its neighbours in that slot. Only touched by the sweeper, on the event
+     * loop.
+     */
+    int idleSlot = -1;
+    ProxyConnection<?> idlePrevious;
+    ProxyConnection<?> idleNext;
+
+    /**
+     * When the current channel connected, and the bytes read from and written
+     * to this connection. Only written by the event loop.
+     */
+    private volatile long connectedTime;
+    private volatile long bytesRead;
+    private volatile long bytesWritten;
+
+    /**
+     * The content bytes of the message being aggregated for filtering, if any.
+     */
+    private volatile long aggregatingBytes;
+
+    /**
+     * Whether reading was paused because the proxy's buffers grew too large,
+     * and whether to resume reading afterwards. Only touched on the event
+     * loop.
+     */
+    private boolean pausedUnderMemoryPressure;
+    private boolean readingAfterMemoryPressure;
 
     /**
      * If using encryption, this holds our {@link SSLEngine}.
@@ -244,13 +304,7 @@ abstract class ProxyConnection<I extends HttpObject> extends
      * Writes HttpObjects to the connection asynchronously.
      */
     protected ChannelFuture writeHttp(HttpObject httpObject) {
-        if (ProxyUtils.isLastChunk(httpObject)) {
-            channel.write(httpObject);
-            LOG.debug("Writing an empty buffer to signal the end of our chunked transfer");
-            return writeToChannel(Unpooled.EMPTY_BUFFER);
-        } else {
-            return writeToChannel(httpObject);
-        }
+        return writeToChannel(httpObject);
     }
 
     /**
@@ -280,6 +334,7 @@ abstract class ProxyConnection<I extends HttpObject> extends
      * established.
      */
     protected void connected() {
+        connectedTime = System.currentTimeMillis();
         LOG.debug("Connected");
     }
 
@@ -292,9 +347,17 @@ abstract class ProxyConnection<I extends HttpObject> extends
         LOG.debug("Disconnected");
     }
 
+    /**
+     * Whether this connection times out when it's idle, rather than along
+     * with some other connection.
+     */
+    protected boolean timesOutWhenIdle() {
+        return true;
+    }
+
     /**
      * This method is called when the underlying {@link Channel} times out due
-     * to an idle timeout.
+     * to an idle timeout, by the event loop's {@link IdleConnectionSweeper}.
      */
     protected void timedOut() {
         disconnect();
@@ -303,7 +366,7 @@ abstract class ProxyConnection<I extends HttpObject> extends
     /**
      * <p>
      * Enables tunneling on this connection by dropping the HTTP related
-     * encoders and decoders, as well as idle timers.
+     * encoders and decoders. Tunnels still time out when idle.
      * </p>
      *
      * <p>
@@ -312,26 +375,28 @@ abstract class ProxyConnection<I extends HttpObject> extends
      * directly.
      * </p>
      */
-    protected final ConnectionFlowStep StartTunneling = new ConnectionFlowStep(this, NEGOTIATING_CONNECT) {
-        @Override
-        boolean shouldSuppressInitialRequest() {
-            return true;
-        }
+    protected ConnectionFlowStep StartTunneling() {
+        return new ConnectionFlowStep(this, NEGOTIATING_CONNECT) {
+            @Override
+            boolean shouldSuppressInitialRequest() {
+                return true;
+            }
 
-        protected ChannelFuture execute() {
-            try {
-                ChannelPipeline pipeline = ctx.pipeline();
-                removeHandlerIfPresent(pipeline, "encoder");
-                removeHandlerIfPresent(pipeline, "responseWrittenMonitor");
-                removeHandlerIfPresent(pipeline, "decoder");
-                removeHandlerIfPresent(pipeline, "requestReadMonitor");
-                tunneling = true;
-                return channel.newSucceededFuture();
-            } catch (Throwable t) {
-                return channel.newFailedFuture(t);
+            protected ChannelFuture execute() {
+                try {
+                    ChannelPipeline pipeline = ctx.pipeline();
+                    removeHandlerIfPresent(pipeline, "encoder");
+                    removeHandlerIfPresent(pipeline, "responseWrittenMonitor");
+                    removeHandlerIfPresent(pipeline, "decoder");
+                    removeHandlerIfPresent(pipeline, "requestReadMonitor");
+                    tunneling = true;
+                    return channel.newSucceededFuture();
+                } catch (Throwable t) {
+                    return channel.newFailedFuture(t);
+                }
             }
-        }
-    };
+        };
+    }
 
     /**
      * Encrypts traffic on this connection with SSL/TLS.
@@ -379,6 +444,11 @@ abstract class ProxyConnection<I extends HttpObject> extends
             // is to perform SSL with the server.
             pipeline.addAfter("ssl", "sslWithServer", handler);
         }
+        FlightRecorderEvents.TlsHandshakeEvent handshakeEvent = FlightRecorderEvents.tlsHandshakeStarted(this);
+        if (handshakeEvent != null) {
+            handler.handshakeFuture().addListener(future -> FlightRecorderEvents.tlsHandshakeCompleted(
+                    handshakeEvent, sslEngine.getSession(), future.cause()));
+        }
         return handler.handshakeFuture();
     }
 
@@ -409,10 +479,23 @@ abstract class ProxyConnection<I extends HttpObject> extends
     protected void aggregateContentForFiltering(ChannelPipeline pipeline,
             int numberOfBytesToBuffer) {
         pipeline.addLast("inflater", new HttpContentDecompressor());
+        pipeline.addLast(AGGREGATION_MONITOR_NAME, new AggregationMonitor());
         pipeline.addLast("aggregator", new HttpObjectAggregator(
                 numberOfBytesToBuffer));
     }
 
+    /**
+     * Batches the flushes of the writes made to this connection. The writes
+     * made while it reads are flushed once it's done reading, and those made
+     * from the peer connection's event loop, each flushed on its own, are
+     * flushed together once the tasks queued on this connection's event loop
+     * have run.
+     */
+    protected void consolidateFlushes(ChannelPipeline pipeline) {
+        pipeline.addLast(FLUSH_CONSOLIDATION_NAME, new FlushConsolidationHandler(
+                FlushConsolidationHandler.DEFAULT_EXPLICIT_FLUSH_AFTER_FLUSHES, true));
+    }
+
     /**
      * Callback that's invoked if this connection becomes saturated.
      */
@@ -456,18 +539,29 @@ abstract class ProxyConnection<I extends HttpObject> extends
      *         connected, this returns null.
      */
     Future<Void> disconnect() {
+        Channel channel = this.channel;
         if (channel == null) {
             return null;
         } else {
-            final Promise<Void> promise = channel.newPromise();
-            writeToChannel(Unpooled.EMPTY_BUFFER).addListener(
-                    future -> closeChannel(promise));
-            return promise;
+            return disconnect(channel);
         }
     }
 
-    private void closeChannel(final Promise<Void> promise) {
-        channel.close().addListener(
+    /**
+     * Like {@link #disconnect()}, for the given channel of this connection.
+     * Only that channel is closed, even if this connection has moved on to a
+     * new one by the time the pending writes are flushed, or by the time this
+     * is called.
+     */
+    Future<Void> disconnect(Channel channelToClose) {
+        final Promise<Void> promise = channelToClose.newPromise();
+        channelToClose.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(
+                future -> closeChannel(channelToClose, promise));
+        return promise;
+    }
+
+    private void closeChannel(final Channel channelToClose, final Promise<Void> promise) {
+        channelToClose.close().addListener(
                 future -> {
                     if (future
                             .isSuccess()) {
@@ -487,6 +581,53 @@ abstract class ProxyConnection<I extends HttpObject> extends
         return !channel.isWritable();
     }
 
+    /**
+     * When the current channel connected, or 0 if it hasn't yet.
+     */
+    long getConnectedTime() {
+        return connectedTime;
+    }
+
+    /**
+     * When this connection last read or wrote something, or connected.
+     */
+    long getLastActivityTime() {
+        return Math.max(connectedTime, Math.max(lastReadTime, lastWriteTime));
+    }
+
+    long getBytesRead() {
+        return bytesRead;
+    }
+
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * The bytes this connection currently holds in memory: those written to
+     * the channel but not yet sent, and the content being aggregated for
+     * filtering.
+     */
+    long getBufferedBytes() {
+        return getPendingWriteBytes() + aggregatingBytes;
+    }
+
+    /**
+     * The bytes written to the channel but not yet sent.
+     */
+    long getPendingWriteBytes() {
+        Channel channel = this.channel;
+        if (channel == null) {
+            return 0;
+        }
+        ChannelOutboundBuffer outboundBuffer = channel.unsafe().outboundBuffer();
+        return outboundBuffer != null ? outboundBuffer.totalPendingWriteBytes() : 0;
+    }
+
+    long getAggregatingBytes() {
+        return aggregatingBytes;
+    }
+
     /**
      * Utility for checking current state.
      */
@@ -506,6 +647,9 @@ abstract class ProxyConnection<I extends HttpObject> extends
      * Updates the current state to the given value.
      */
     protected void become(ConnectionState state) {
+        if (state != currentState) {
+            FlightRecorderEvents.stateChanged(this, currentState, state);
+        }
         currentState = state;
     }
 
@@ -526,6 +670,9 @@ abstract class ProxyConnection<I extends HttpObject> extends
      */
     protected void stopReading() {
         LOG.debug("Stopped reading");
+        if (pausedUnderMemoryPressure) {
+            readingAfterMemoryPressure = false;
+        }
         channel.config().setAutoRead(false);
     }
 
@@ -533,10 +680,70 @@ abstract class ProxyConnection<I extends HttpObject> extends
      * Call this to resume reading.
      */
     protected void resumeReading() {
+        if (pausedUnderMemoryPressure) {
+            LOG.debug("Will resume reading once memory pressure is relieved");
+            readingAfterMemoryPressure = true;
+            return;
+        }
         LOG.debug("Resumed reading");
         channel.config().setAutoRead(true);
     }
 
+    /**
+     * Runs the given task on the event loop of this connection's channel,
+     * right away when called from it. Does nothing if this connection has no
+     * channel yet.
+     */
+    void runOnEventLoop(Runnable task) {
+        Channel channel = this.channel;
+        if (channel == null) {
+            return;
+        }
+        if (channel.eventLoop().inEventLoop()) {
+            task.run();
+        } else {
+            channel.eventLoop().execute(task);
+        }
+    }
+
+    /**
+     * Stops reading until {@link #resumeReadingAfterMemoryPressure()}, even
+     * if the connection would otherwise resume reading in the meantime.
+     */
+    void pauseReadingUnderMemoryPressure() {
+        Channel channel = this.channel;
+        if (channel == null) {
+            return;
+        }
+        channel.eventLoop().execute(() -> {
+            if (!pausedUnderMemoryPressure) {
+                LOG.debug("Pausing reading under memory pressure");
+                readingAfterMemoryPressure = channel.config().isAutoRead();
+                pausedUnderMemoryPressure = true;
+                channel.config().setAutoRead(false);
+            }
+        });
+    }
+
+    /**
+     * Resumes reading if the connection was reading when it was paused, or
+     * wanted to resume reading since.
+     */
+    void resumeReadingAfterMemoryPressure() {
+        Channel channel = this.channel;
+        if (channel == null) {
+            return;
+        }
+        channel.eventLoop().execute(() -> {
+            if (pausedUnderMemoryPressure) {
+                pausedUnderMemoryPressure = false;
+                if (readingAfterMemoryPressure) {
+                    resumeReading();
+                }
+            }
+        });
+    }
+
     /**
      * Request the ProxyServer for Filters.
      *
@@ -568,6 +775,8 @@ abstract class ProxyConnection<I extends HttpObject> extends
             this.ctx = ctx;
             channel = ctx.channel();
             proxyServer.registerChannel(ctx.channel());
+            registeredChannel = ctx.channel();
+            proxyServer.connectionRegistered();
         } finally {
             super.channelRegistered(ctx);
         }
@@ -576,9 +785,27 @@ abstract class ProxyConnection<I extends HttpObject> extends
     @Override
     public void channelUnregistered(ChannelHandlerContext ctx) throws Exception {
         proxyServer.unregisterChannel(ctx.channel());
+        countUnregistered(ctx.channel());
         super.channelUnregistered(ctx);
     }
 
+    /**
+     * Also counts the channel as unregistered when this connection stops
+     * handling it, such as when it's handed over to a WebSocket relay.
+     */
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        countUnregistered(ctx.channel());
+        super.handlerRemoved(ctx);
+    }
+
+    private void countUnregistered(Channel channel) {
+        if (registeredChannel == channel) {
+            registeredChannel = null;
+            proxyServer.connectionUnregistered();
+        }
+    }
+
     /**
      * Only once the Netty Channel is active to we recognize the ProxyConnection
      * as connected.
@@ -587,6 +814,9 @@ abstract class ProxyConnection<I extends HttpObject> extends
     public final void channelActive(ChannelHandlerContext ctx) throws Exception {
         try {
             connected();
+            if (timesOutWhenIdle()) {
+                proxyServer.getIdleConnectionSweeper(ctx.channel().eventLoop()).add(this);
+            }
         } finally {
             super.channelActive(ctx);
         }
@@ -599,6 +829,10 @@ abstract class ProxyConnection<I extends HttpObject> extends
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         try {
+            IdleConnectionSweeper sweeper = idleSweeper;
+            if (sweeper != null) {
+                sweeper.remove(this);
+            }
             disconnected();
         } finally {
             super.channelInactive(ctx);
@@ -611,6 +845,8 @@ abstract class ProxyConnection<I extends HttpObject> extends
         LOG.debug("Writability changed. Is writable: {}", channel.isWritable());
         try {
             if (channel.isWritable()) {
+                // the peer took what was flushed, so a slow peer draining a large write isn't taken for an idle one
+                lastWriteTime = System.currentTimeMillis();
                 becameWritable();
             } else {
                 becameSaturated();
@@ -625,33 +861,34 @@ abstract class ProxyConnection<I extends HttpObject> extends
         exceptionCaught(cause);
     }
 
+    /* *************************************************************************
+     * Activity Tracking/Statistics
+     **************************************************************************/
+
     /**
-     * <p>
-     * We're looking for {@link IdleStateEvent}s to see if we need to
-     * disconnect.
-     * </p>
-     *
-     * <p>
-     * Note - we don't care what kind of IdleState we got. Thanks to <a
-     * href="https://github.com/qbast">bast</a> for pointing this out.
-     * </p>
+     * When the activity trackers are called asynchronously, byte counts are
+     * reported once per read or flush rather than once per buffer, to queue
+     * fewer events. So are those of tunnels, which relay one read's buffers
+     * with a single flush.
      */
-    @Override
-    public final void userEventTriggered(ChannelHandlerContext ctx, Object evt)
-            throws Exception {
-        try {
-            if (evt instanceof IdleStateEvent) {
-                LOG.debug("Got idle");
-                timedOut();
-            }
-        } finally {
-            super.userEventTriggered(ctx, evt);
-        }
+    private boolean isAggregatingByteCounts() {
+        return tunneling || proxyServer.getAsyncActivityDispatcher() != null;
     }
 
-    /* *************************************************************************
-     * Activity Tracking/Statistics
-     **************************************************************************/
+    /**
+     * Returns the bytes a message read or written by this connection's
+     * channel counts for, or -1 if it isn't counted. On the stream of a
+     * pooled HTTP/2 connection, that's the content of the DATA frames, since
+     * the connection's socket is shared.
+     */
+    private static int countedBytes(Object msg) {
+        if (msg instanceof ByteBuf) {
+            return ((ByteBuf) msg).readableBytes();
+        } else if (msg instanceof Http2DataFrame) {
+            return ((Http2DataFrame) msg).content().readableBytes();
+        }
+        return -1;
+    }
 
     /**
      * Utility handler for monitoring bytes read on this connection.
@@ -659,12 +896,27 @@ abstract class ProxyConnection<I extends HttpObject> extends
     @Sharable
     protected abstract class BytesReadMonitor extends
             ChannelInboundHandlerAdapter {
+        /**
+         * The bytes read since the end of the last read, when byte counts are
+         * aggregated. Only touched on the event loop.
+         */
+        private int pendingBytes;
+
         @Override
         public void channelRead(ChannelHandlerContext ctx, Object msg)
                 throws Exception {
             try {
-                if (msg instanceof ByteBuf) {
-                    bytesRead(((ByteBuf) msg).readableBytes());
+                int numberOfBytes = countedBytes(msg);
+                if (numberOfBytes >= 0) {
+                    bytesRead += numberOfBytes;
+                    if (!isAggregatingByteCounts()) {
+                        bytesRead(numberOfBytes);
+                    } else {
+                        if (pendingBytes > Integer.MAX_VALUE - numberOfBytes) {
+                            reportPendingBytes();
+                        }
+                        pendingBytes += numberOfBytes;
+                    }
                 }
             } catch (Throwable t) {
                 LOG.warn("Unable to record bytesRead", t);
@@ -673,53 +925,165 @@ abstract class ProxyConnection<I extends HttpObject> extends
             }
         }
 
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+            reportPendingBytes();
+            super.channelReadComplete(ctx);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            reportPendingBytes();
+            super.channelInactive(ctx);
+        }
+
+        private void reportPendingBytes() {
+            if (pendingBytes > 0) {
+                int numberOfBytes = pendingBytes;
+                pendingBytes = 0;
+                try {
+                    bytesRead(numberOfBytes);
+                } catch (Throwable t) {
+                    LOG.warn("Unable to record bytesRead", t);
+                }
+            }
+        }
+
         protected abstract void bytesRead(int numberOfBytes);
     }
 
     /**
-     * Utility handler for monitoring requests read on this connection.
+     * Counts the content bytes that the aggregator behind it holds, until the
+     * message is complete.
+     */
+    private class AggregationMonitor extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (msg instanceof HttpMessage) {
+                aggregatingBytes = 0;
+            }
+            if (msg instanceof HttpContent) {
+                aggregatingBytes += ((HttpContent) msg).content().readableBytes();
+            }
+            try {
+                super.channelRead(ctx, msg);
+            } finally {
+                if (msg instanceof LastHttpContent) {
+                    aggregatingBytes = 0;
+                }
+            }
+        }
+
+        @Override
+        public void handlerRemoved(ChannelHandlerContext ctx) {
+            aggregatingBytes = 0;
+        }
+    }
+
+    /**
+     * Called by the {@link RequestReadMonitor} when a request has been read
+     * on this connection.
+     */
+    protected void requestRead(HttpRequest httpRequest) {
+    }
+
+    /**
+     * Called by the {@link ResponseReadMonitor} when a response has been read
+     * on this connection.
+     */
+    protected void responseRead(HttpResponse httpResponse) {
+    }
+
+    /**
+     * Called by the {@link ResponseWrittenMonitor} when a response has been
+     * written on this connection.
+     */
+    protected void responseWritten(HttpResponse httpResponse) {
+    }
+
+    /**
+     * Finds the connection that handles the given pipeline, for the handlers
+     * that are shared by all connections. The pipeline is only searched for
+     * the first message, after which the connection is kept in
+     * {@link #CONNECTION}.
+     */
+    @Nullable
+    private static ProxyConnection<?> connectionOf(ChannelHandlerContext ctx) {
+        Attribute<ProxyConnection<?>> attribute = ctx.channel().attr(CONNECTION);
+        ProxyConnection<?> connection = attribute.get();
+        if (connection == null) {
+            connection = ctx.pipeline().get(ProxyConnection.class);
+            attribute.set(connection);
+        }
+        return connection;
+    }
+
+    /**
+     * Logs a failure of one of the handlers shared by all connections, with
+     * the connection's logger if it was found.
+     */
+    private static void warn(@Nullable ProxyConnection<?> connection, String message, Throwable t) {
+        if (connection != null) {
+            connection.LOG.warn(message, t);
+        } else {
+            MONITOR_LOG.warn(message, t);
+        }
+    }
+
+    /**
+     * Utility handler for monitoring requests read on a connection. It has no
+     * state, so all connections share {@link #INSTANCE}.
      */
     @Sharable
-    protected abstract class RequestReadMonitor extends
+    static final class RequestReadMonitor extends
             ChannelInboundHandlerAdapter {
+        static final RequestReadMonitor INSTANCE = new RequestReadMonitor();
+
         @Override
         public void channelRead(ChannelHandlerContext ctx, Object msg)
                 throws Exception {
+            ProxyConnection<?> connection = null;
             try {
                 if (msg instanceof HttpRequest) {
-                    requestRead((HttpRequest) msg);
+                    connection = connectionOf(ctx);
+                    if (connection != null) {
+                        connection.requestRead((HttpRequest) msg);
+                    }
                 }
             } catch (Throwable t) {
-                LOG.warn("Unable to record bytesRead", t);
+                warn(connection, "Unable to record requestRead", t);
             } finally {
                 super.channelRead(ctx, msg);
             }
         }
-
-        protected abstract void requestRead(HttpRequest httpRequest);
     }
 
     /**
-     * Utility handler for monitoring responses read on this connection.
+     * Utility handler for monitoring responses read on a connection. It has
+     * no state, so all connections share {@link #INSTANCE}.
      */
     @Sharable
-    protected abstract class ResponseReadMonitor extends
+    static final class ResponseReadMonitor extends
             ChannelInboundHandlerAdapter {
+        static final ResponseReadMonitor INSTANCE = new ResponseReadMonitor();
+
         @Override
         public void channelRead(ChannelHandlerContext ctx, Object msg)
                 throws Exception {
+            ProxyConnection<?> connection = null;
             try {
                 if (msg instanceof HttpResponse) {
-                    responseRead((HttpResponse) msg);
+                    connection = connectionOf(ctx);
+                    if (connection != null) {
+                        connection.responseRead((HttpResponse) msg);
+                    }
                 }
             } catch (Throwable t) {
-                LOG.warn("Unable to record bytesRead", t);
+                warn(connection, "Unable to record responseRead", t);
             } finally {
                 super.channelRead(ctx, msg);
             }
         }
-
-        protected abstract void responseRead(HttpResponse httpResponse);
     }
 
     /**
@@ -728,13 +1092,28 @@ abstract class ProxyConnection<I extends HttpObject> extends
     @Sharable
     protected abstract class BytesWrittenMonitor extends
             ChannelOutboundHandlerAdapter {
+        /**
+         * The bytes written since the last flush, when byte counts are
+         * aggregated. Only touched on the event loop.
+         */
+        private int pendingBytes;
+
         @Override
         public void write(ChannelHandlerContext ctx,
                 Object msg, ChannelPromise promise)
                 throws Exception {
             try {
-                if (msg instanceof ByteBuf) {
-                    bytesWritten(((ByteBuf) msg).readableBytes());
+                int numberOfBytes = countedBytes(msg);
+                if (numberOfBytes >= 0) {
+                    bytesWritten += numberOfBytes;
+                    if (!isAggregatingByteCounts()) {
+                        bytesWritten(numberOfBytes);
+                    } else {
+                        if (pendingBytes > Integer.MAX_VALUE - numberOfBytes) {
+                            reportPendingBytes();
+                        }
+                        pendingBytes += numberOfBytes;
+                    }
                 }
             } catch (Throwable t) {
                 LOG.warn("Unable to record bytesRead", t);
@@ -743,6 +1122,32 @@ abstract class ProxyConnection<I extends HttpObject> extends
             }
         }
 
+        @Override
+        public void flush(ChannelHandlerContext ctx) throws Exception {
+            // once per flush rather than per message, which the relayed bytes of tunnels are flushed through as well
+            lastWriteTime = System.currentTimeMillis();
+            reportPendingBytes();
+            super.flush(ctx);
+        }
+
+        @Override
+        public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+            reportPendingBytes();
+            super.close(ctx, promise);
+        }
+
+        private void reportPendingBytes() {
+            if (pendingBytes > 0) {
+                int numberOfBytes = pendingBytes;
+                pendingBytes = 0;
+                try {
+                    bytesWritten(numberOfBytes);
+                } catch (Throwable t) {
+                    LOG.warn("Unable to record bytesWritten", t);
+                }
+            }
+        }
+
         protected abstract void bytesWritten(int numberOfBytes);
     }
 
@@ -793,27 +1198,32 @@ abstract class ProxyConnection<I extends HttpObject> extends
     }
 
     /**
-     * Utility handler for monitoring responses written on this connection.
+     * Utility handler for monitoring responses written on a connection. It
+     * has no state, so all connections share {@link #INSTANCE}.
      */
     @Sharable
-    protected abstract class ResponseWrittenMonitor extends
+    static final class ResponseWrittenMonitor extends
             ChannelOutboundHandlerAdapter {
+        static final ResponseWrittenMonitor INSTANCE = new ResponseWrittenMonitor();
+
         @Override
         public void write(ChannelHandlerContext ctx,
                 Object msg, ChannelPromise promise)
                 throws Exception {
+            ProxyConnection<?> connection = null;
             try {
                 if (msg instanceof HttpResponse) {
-                    responseWritten(((HttpResponse) msg));
+                    connection = connectionOf(ctx);
+                    if (connection != null) {
+                        connection.responseWritten((HttpResponse) msg);
+                    }
                 }
             } catch (Throwable t) {
-                LOG.warn("Error while invoking responseWritten callback", t);
+                warn(connection, "Error while invoking responseWritten callback", t);
             } finally {
                 super.write(ctx, msg, promise);
             }
         }
-
-        protected abstract void responseWritten(HttpResponse httpResponse);
     }
 
 }
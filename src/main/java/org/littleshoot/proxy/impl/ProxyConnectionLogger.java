@@ -22,80 +22,88 @@ import java.util.Arrays;
  * </p>
  */
 class ProxyConnectionLogger {
+    private static final String FQCN = ProxyConnectionLogger.class.getCanonicalName();
+
     private final ProxyConnection connection;
-    private final LogDispatch dispatch;
     private final Logger logger;
-    private final String fqcn = getClass().getCanonicalName();
 
     public ProxyConnectionLogger(ProxyConnection connection) {
         this.connection = connection;
         logger = LoggerFactory.getLogger(connection.getClass());
-        dispatch = logger instanceof LocationAwareLogger ? 
-          new LocationAwareLoggerDispatch((LocationAwareLogger) logger) : new LoggerDispatch();
     }
 
     protected void error(String message, Object... params) {
         if (logger.isErrorEnabled()) {
-            dispatch.doLog(LocationAwareLogger.ERROR_INT, message, params, null);
+            doLog(LocationAwareLogger.ERROR_INT, message, params, null);
         }
     }
 
     protected void error(String message, Throwable t) {
         if (logger.isErrorEnabled()) {
-            dispatch.doLog(LocationAwareLogger.ERROR_INT, message, null, t);
+            doLog(LocationAwareLogger.ERROR_INT, message, null, t);
         }
     }
 
     protected void warn(String message, Object... params) {
         if (logger.isWarnEnabled()) {
-            dispatch.doLog(LocationAwareLogger.WARN_INT, message, params, null);
+            doLog(LocationAwareLogger.WARN_INT, message, params, null);
         }
     }
 
     protected void warn(String message, Throwable t) {
         if (logger.isWarnEnabled()) {
-            dispatch.doLog(LocationAwareLogger.WARN_INT, message, null, t);
+            doLog(LocationAwareLogger.WARN_INT, message, null, t);
         }
     }
 
     protected void info(String message, Object... params) {
         if (logger.isInfoEnabled()) {
-            dispatch.doLog(LocationAwareLogger.INFO_INT, message, params, null);
+            doLog(LocationAwareLogger.INFO_INT, message, params, null);
         }
     }
 
     protected void info(String message, Throwable t) {
         if (logger.isInfoEnabled()) {
-            dispatch.doLog(LocationAwareLogger.INFO_INT, message, null, t);
+            doLog(LocationAwareLogger.INFO_INT, message, null, t);
         }
     }
 
     protected void debug(String message, Object... params) {
         if (logger.isDebugEnabled()) {
-            dispatch.doLog(LocationAwareLogger.DEBUG_INT, message, params, null);
+            doLog(LocationAwareLogger.DEBUG_INT, message, params, null);
         }
     }
 
     protected void debug(String message, Throwable t) {
         if (logger.isDebugEnabled()) {
-            dispatch.doLog(LocationAwareLogger.DEBUG_INT, message, null, t);
+            doLog(LocationAwareLogger.DEBUG_INT, message, null, t);
         }
     }
 
     protected void log(int level, String message, Object... params) {
         if (level != LocationAwareLogger.DEBUG_INT || logger.isDebugEnabled()) {
-            dispatch.doLog(level, message, params, null);
+            doLog(level, message, params, null);
         }
     }
 
     protected void log(int level, String message, Throwable t) {
         if (level != LocationAwareLogger.DEBUG_INT || logger.isDebugEnabled()) {
-            dispatch.doLog(level, message, null, t);
+            doLog(level, message, null, t);
         }
     }
 
-    private interface LogDispatch {
-        void doLog(int level, String message, Object[] params, Throwable t);
+    /**
+     * Logs through the LocationAwareLogger if there is one, so that the
+     * caller's line numbers are reported. There is one logger per class of
+     * connection, so this decides how to log rather than storing a separate
+     * dispatcher in each connection's logger.
+     */
+    private void doLog(int level, String message, Object[] params, Throwable t) {
+        if (logger instanceof LocationAwareLogger) {
+            doLocationAwareLog((LocationAwareLogger) logger, level, message, params, t);
+        } else {
+            doFallbackLog(level, message, params, t);
+        }
     }
 
     private String fullMessage(String message) {
@@ -111,68 +119,56 @@ class ProxyConnectionLogger {
     }
 
     /**
-     * Fallback dispatch if a LocationAwareLogger is not available from
-     * the SLF4J LoggerFactory.
+     * Fallback if a LocationAwareLogger is not available from the SLF4J
+     * LoggerFactory.
      */
-    private class LoggerDispatch implements LogDispatch {
-        @Override
-        public void doLog(int level, String message, Object[] params, Throwable t) {
-            String formattedMessage = fullMessage(message);
-
-            final Object[] paramsWithThrowable;
-
-            if (t != null) {
-                if (params == null) {
-                    paramsWithThrowable = new Object[1];
-                    paramsWithThrowable[0] = t;
-                } else {
-                    paramsWithThrowable = Arrays.copyOf(params, params.length + 1);
-                    paramsWithThrowable[params.length] = t;
-                }
-            }
-            else {
-                paramsWithThrowable = params;
-            }
-            switch (level) {
-            case LocationAwareLogger.TRACE_INT:
-                logger.trace(formattedMessage, paramsWithThrowable);
-                break;
-            case LocationAwareLogger.DEBUG_INT:
-                logger.debug(formattedMessage, paramsWithThrowable);
-                break;
-            case LocationAwareLogger.INFO_INT:
-                logger.info(formattedMessage, paramsWithThrowable);
-                break;
-            case LocationAwareLogger.WARN_INT:
-                logger.warn(formattedMessage, paramsWithThrowable);
-                break;
-            case LocationAwareLogger.ERROR_INT:
-            default:
-                logger.error(formattedMessage, paramsWithThrowable);
-                break;
+    private void doFallbackLog(int level, String message, Object[] params, Throwable t) {
+        String formattedMessage = fullMessage(message);
+
+        final Object[] paramsWithThrowable;
+
+        if (t != null) {
+            if (params == null) {
+                paramsWithThrowable = new Object[1];
+                paramsWithThrowable[0] = t;
+            } else {
+                paramsWithThrowable = Arrays.copyOf(params, params.length + 1);
+                paramsWithThrowable[params.length] = t;
             }
         }
+        else {
+            paramsWithThrowable = params;
+        }
+        switch (level) {
+        case LocationAwareLogger.TRACE_INT:
+            logger.trace(formattedMessage, paramsWithThrowable);
+            break;
+        case LocationAwareLogger.DEBUG_INT:
+            logger.debug(formattedMessage, paramsWithThrowable);
+            break;
+        case LocationAwareLogger.INFO_INT:
+            logger.info(formattedMessage, paramsWithThrowable);
+            break;
+        case LocationAwareLogger.WARN_INT:
+            logger.warn(formattedMessage, paramsWithThrowable);
+            break;
+        case LocationAwareLogger.ERROR_INT:
+        default:
+            logger.error(formattedMessage, paramsWithThrowable);
+            break;
+        }
     }
 
     /**
-     * Dispatcher for a LocationAwareLogger.
+     * Logs to a LocationAwareLogger.
      */
-    private class LocationAwareLoggerDispatch implements LogDispatch {
-
-        private final LocationAwareLogger log;
-
-        public LocationAwareLoggerDispatch(LocationAwareLogger log) {
-            this.log = log;
-        }
-
-        @Override
-        public void doLog(int level, String message, Object[] params, Throwable t) {
-            String formattedMessage = fullMessage(message);
-            if (params != null && params.length > 0) {
-                formattedMessage = MessageFormatter.arrayFormat(formattedMessage,
-                        params).getMessage();
-            }
-            log.log(null, fqcn, level, formattedMessage, null, t);
+    private void doLocationAwareLog(LocationAwareLogger log, int level, String message, Object[] params,
+                                    Throwable t) {
+        String formattedMessage = fullMessage(message);
+        if (params != null && params.length > 0) {
+            formattedMessage = MessageFormatter.arrayFormat(formattedMessage,
+                    params).getMessage();
         }
+        log.log(null, FQCN, level, formattedMessage, null, t);
     }
 }
\ No newline at end of file
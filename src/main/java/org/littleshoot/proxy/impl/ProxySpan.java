@@ -0,0 +1,148 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpStatusClass;
+import org.littleshoot.proxy.RequestTimings;
+import org.littleshoot.proxy.RequestTimings.Event;
+import org.littleshoot.proxy.Span;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The trace context of a request going through the proxy, and the spans
+ * recorded for it once it ends. See {@link ProxyTracer}.
+ */
+class ProxySpan {
+    private final ProxyTracer tracer;
+    private final String traceId;
+    private final String parentSpanId;
+    private final String spanId;
+    private final String clientSpanId;
+    private final String traceState;
+    private final boolean sampled;
+    private final RequestTimings requestTimings;
+    private final Map<String, Object> attributes;
+
+    /**
+     * The span's start, as a wall clock time and as a {@link System#nanoTime()}
+     * from which the marks of its {@link RequestTimings} are converted.
+     */
+    private final long startEpochNanos;
+    private final long startNanoTime;
+
+    private final AtomicBoolean ended = new AtomicBoolean();
+
+    ProxySpan(ProxyTracer tracer, String traceId, String parentSpanId, String traceState, boolean sampled,
+              RequestTimings requestTimings, Map<String, Object> attributes) {
+        this.tracer = tracer;
+        this.traceId = traceId;
+        this.parentSpanId = parentSpanId;
+        this.spanId = ProxyTracer.newSpanId();
+        this.clientSpanId = ProxyTracer.newSpanId();
+        this.traceState = traceState;
+        this.sampled = sampled;
+        this.requestTimings = requestTimings;
+        this.attributes = attributes;
+        this.startNanoTime = requestTimings.getNanoTime(Event.REQUEST_RECEIVED);
+        this.startEpochNanos = ProxyTracer.epochNanos() - (System.nanoTime() - startNanoTime);
+    }
+
+    String getTraceId() {
+        return traceId;
+    }
+
+    String getSpanId() {
+        return spanId;
+    }
+
+    RequestTimings getRequestTimings() {
+        return requestTimings;
+    }
+
+    /**
+     * Sets an attribute of the proxy's span, as a String, Long or Boolean.
+     */
+    void setAttribute(String name, Object value) {
+        attributes.put(name, value);
+    }
+
+    /**
+     * Sets the trace context headers of the request to the server, whose span
+     * is a child of the proxy's.
+     */
+    void inject(HttpHeaders headers) {
+        headers.set(ProxyTracer.TRACEPARENT, "00-" + traceId + "-" + clientSpanId + (sampled ? "-01" : "-00"));
+        if (traceState != null) {
+            headers.set(ProxyTracer.TRACESTATE, traceState);
+        } else {
+            headers.remove(ProxyTracer.TRACESTATE);
+        }
+    }
+
+    /**
+     * Ends the span with the status of the response sent to the client. Only
+     * the first call has an effect.
+     */
+    void end(HttpResponseStatus status) {
+        end(status.code(), status.codeClass() == HttpStatusClass.SERVER_ERROR
+                ? status.toString() : null);
+    }
+
+    /**
+     * Ends the span without a response, e.g. because the client went away.
+     */
+    void end(String error) {
+        end(0, error);
+    }
+
+    private void end(int statusCode, String error) {
+        if (!ended.compareAndSet(false, true) || !sampled) {
+            return;
+        }
+        long endNanoTime = System.nanoTime();
+
+        Map<String, Object> serverAttributes = new LinkedHashMap<>(attributes);
+        if (statusCode > 0) {
+            serverAttributes.put("http.response.status_code", (long) statusCode);
+        }
+        tracer.export(new Span(traceId, spanId, parentSpanId, traceState, String.valueOf(attributes.get("http.request.method")),
+                Span.Kind.SERVER, startEpochNanos, epochNanos(endNanoTime), serverAttributes, error));
+
+        exportChild(ProxyTracer.newSpanId(), "resolve", Span.Kind.INTERNAL,
+                Event.RESOLUTION_STARTED, Event.RESOLUTION_SUCCEEDED, endNanoTime);
+        exportChild(ProxyTracer.newSpanId(), "connect", Span.Kind.INTERNAL, Event.CONNECTION_STARTED,
+                requestTimings.isMarked(Event.SSL_HANDSHAKE_STARTED) ? Event.SSL_HANDSHAKE_STARTED : Event.CONNECTION_SUCCEEDED,
+                endNanoTime);
+        exportChild(ProxyTracer.newSpanId(), "tls_handshake", Span.Kind.INTERNAL,
+                Event.SSL_HANDSHAKE_STARTED, Event.CONNECTION_SUCCEEDED, endNanoTime);
+        exportChild(clientSpanId, String.valueOf(attributes.get("http.request.method")), Span.Kind.CLIENT,
+                Event.REQUEST_SENDING, Event.RESPONSE_RECEIVED, endNanoTime);
+    }
+
+    /**
+     * Exports a child span between two events, if the first one happened. If
+     * the second one didn't, the child ends with its parent, as a failure.
+     */
+    private void exportChild(String childSpanId, String name, Span.Kind kind, Event from, Event to, long endNanoTime) {
+        if (!requestTimings.isMarked(from)) {
+            return;
+        }
+        boolean completed = requestTimings.isMarked(to);
+        Map<String, Object> childAttributes = new LinkedHashMap<>();
+        if (attributes.containsKey("server.address")) {
+            childAttributes.put("server.address", attributes.get("server.address"));
+        }
+        tracer.export(new Span(traceId, childSpanId, spanId, traceState, name, kind,
+                epochNanos(requestTimings.getNanoTime(from)),
+                epochNanos(completed ? requestTimings.getNanoTime(to) : endNanoTime),
+                childAttributes,
+                completed ? null : "incomplete"));
+    }
+
+    private long epochNanos(long nanoTime) {
+        return startEpochNanos + (nanoTime - startNanoTime);
+    }
+}
@@ -12,6 +12,11 @@ import java.util.List;
  * proxy-to-server thread pools.
  */
 public class ProxyThreadPools {
+    /**
+     * The names of the pools, in the order {@link #getAllEventLoops()} returns them.
+     */
+    static final List<String> POOL_NAMES = ImmutableList.of("ClientToProxyAcceptor", "ClientToProxyWorker", "ProxyToServerWorker");
+
     /**
      * These {@link EventLoopGroup}s accept incoming connections to the
      * proxies. A different EventLoopGroup is used for each
@@ -34,12 +39,12 @@ public class ProxyThreadPools {
     private final NioEventLoopGroup proxyToServerWorkerPool;
 
     public ProxyThreadPools(SelectorProvider selectorProvider, int incomingAcceptorThreads, int incomingWorkerThreads, int outgoingWorkerThreads, String serverGroupName, int serverGroupId) {
-        clientToProxyAcceptorPool = new NioEventLoopGroup(incomingAcceptorThreads, new CategorizedThreadFactory(serverGroupName, "ClientToProxyAcceptor", serverGroupId), selectorProvider);
+        clientToProxyAcceptorPool = new NioEventLoopGroup(incomingAcceptorThreads, new CategorizedThreadFactory(serverGroupName, POOL_NAMES.get(0), serverGroupId), selectorProvider);
 
-        clientToProxyWorkerPool = new NioEventLoopGroup(incomingWorkerThreads, new CategorizedThreadFactory(serverGroupName, "ClientToProxyWorker", serverGroupId), selectorProvider);
+        clientToProxyWorkerPool = new NioEventLoopGroup(incomingWorkerThreads, new CategorizedThreadFactory(serverGroupName, POOL_NAMES.get(1), serverGroupId), selectorProvider);
         clientToProxyWorkerPool.setIoRatio(90);
 
-        proxyToServerWorkerPool = new NioEventLoopGroup(outgoingWorkerThreads, new CategorizedThreadFactory(serverGroupName, "ProxyToServerWorker", serverGroupId), selectorProvider);
+        proxyToServerWorkerPool = new NioEventLoopGroup(outgoingWorkerThreads, new CategorizedThreadFactory(serverGroupName, POOL_NAMES.get(2), serverGroupId), selectorProvider);
         proxyToServerWorkerPool.setIoRatio(90);
     }
 
@@ -1,8 +1,10 @@
 package org.littleshoot.proxy.impl;
 
+import com.google.common.base.Throwables;
 import com.google.common.net.HostAndPort;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
@@ -11,12 +13,16 @@ import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
 import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.channel.udt.nio.NioUdtProvider;
 import io.netty.handler.codec.haproxy.HAProxyMessage;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpMessage;
+import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpObject;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpRequest;
@@ -25,9 +31,13 @@ import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseDecoder;
 import io.netty.handler.codec.http.HttpResponseEncoder;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpStatusClass;
 import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.codec.http2.HttpConversionUtil;
 import io.netty.handler.codec.socksx.v4.DefaultSocks4CommandRequest;
 import io.netty.handler.codec.socksx.v4.Socks4ClientDecoder;
 import io.netty.handler.codec.socksx.v4.Socks4ClientEncoder;
@@ -50,10 +60,10 @@ import io.netty.handler.codec.socksx.v5.Socks5PasswordAuthResponse;
 import io.netty.handler.codec.socksx.v5.Socks5PasswordAuthResponseDecoder;
 import io.netty.handler.codec.socksx.v5.Socks5PasswordAuthStatus;
 import io.netty.handler.proxy.ProxyConnectException;
-import io.netty.handler.timeout.IdleStateHandler;
 import io.netty.handler.traffic.GlobalTrafficShapingHandler;
 import io.netty.resolver.AddressResolverGroup;
 import io.netty.resolver.DefaultAddressResolverGroup;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.util.ReferenceCounted;
 import io.netty.util.concurrent.Future;
 import org.littleshoot.proxy.ActivityTracker;
@@ -63,12 +73,15 @@ import org.littleshoot.proxy.ChainedProxyManager;
 import org.littleshoot.proxy.ChainedProxyType;
 import org.littleshoot.proxy.FullFlowContext;
 import org.littleshoot.proxy.HttpFilters;
-import org.littleshoot.proxy.MitmManager;
+import org.littleshoot.proxy.RequestTimings;
 import org.littleshoot.proxy.TransportProtocol;
 import org.littleshoot.proxy.UnknownTransportProtocolException;
 import org.littleshoot.proxy.extras.HAProxyMessageEncoder;
 
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.SSLProtocolException;
 import javax.net.ssl.SSLSession;
@@ -76,18 +89,22 @@ import javax.net.ssl.SSLSession;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
 
 import static org.littleshoot.proxy.impl.ConnectionState.AWAITING_CHUNK;
 import static org.littleshoot.proxy.impl.ConnectionState.AWAITING_CONNECT_OK;
 import static org.littleshoot.proxy.impl.ConnectionState.AWAITING_INITIAL;
 import static org.littleshoot.proxy.impl.ConnectionState.CONNECTING;
 import static org.littleshoot.proxy.impl.ConnectionState.DISCONNECTED;
+import static org.littleshoot.proxy.impl.ConnectionState.DISCONNECT_REQUESTED;
 import static org.littleshoot.proxy.impl.ConnectionState.HANDSHAKING;
 
 /**
@@ -117,8 +134,14 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
     private static final String HTTP_RESPONSE_READ_MONITOR_NAME = "responseReadMonitor";
     private static final String SOCKS_ENCODER_NAME = "socksEncoder";
     private static final String SOCKS_DECODER_NAME = "socksDecoder";
+    private static final String HTTP2_STREAM_TUNNEL_CODEC_NAME = "http2StreamTunnelCodec";
     private static final String MAIN_HANDLER_NAME = "handler";
-    private final ClientToProxyConnection clientConnection;
+    /**
+     * The client connection this connection writes responses to. Only changes
+     * while the connection is idle, when it moves between the streams of an
+     * HTTP/2 client connection, see {@link #releaseToHttp2Connection}.
+     */
+    private volatile ClientToProxyConnection clientConnection;
     private final ProxyToServerConnection serverConnection = this;
     private volatile TransportProtocol transportProtocol;
     private volatile ChainedProxyType chainedProxyType;
@@ -131,11 +154,23 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
     private volatile ChainedProxy chainedProxy;
     private final Queue<ChainedProxy> availableChainedProxies;
 
+    /**
+     * Whether this connection became saturated, and told the client
+     * connection to stop reading. Only touched on the event loop.
+     */
+    private boolean saturatingClient;
+
     /**
      * The filters to apply to response/chunks received from server.
      */
     private volatile HttpFilters currentFilters;
 
+    /**
+     * The timings of the request whose response is being received from the
+     * server, or of the request that made this connection connect.
+     */
+    private volatile RequestTimings currentRequestTimings;
+
     /**
      * Encapsulates the flow for establishing a connection, which can vary
      * depending on how things are configured.
@@ -149,6 +184,18 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
      */
     private volatile boolean disableSni;
 
+    /**
+     * True when the current connection flow man-in-the-middles a CONNECT request. Set in
+     * {@link #initializeConnectionFlow()}.
+     */
+    private volatile boolean mitmAttempted;
+
+    /**
+     * The origin on whose pooled HTTP/2 connection this connection opens a stream, or null when it has a socket of its
+     * own. Set in {@link #initializeConnectionFlow()}.
+     */
+    private volatile String http2Origin;
+
     /**
      * While we're in the process of connecting, it's possible that we'll
      * receive a new message to write. This lock helps us synchronize and wait
@@ -174,6 +221,54 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
      */
     private volatile HttpResponse currentHttpResponse;
 
+    /**
+     * True once a request from the client allowed pipelining. From then on,
+     * everything the client sends on this connection is written from the
+     * event loop of the server's channel, in order, so that it can be held
+     * back there until the responses to earlier requests are complete. Only
+     * accessed by the client's event loop.
+     */
+    private boolean pipelining;
+
+    /**
+     * Requests that were pipelined behind the {@link #currentHttpRequest}
+     * and whose responses are not yet complete, oldest first. This and the
+     * fields below are only accessed by the event loop of the server's
+     * channel.
+     */
+    private final Deque<PendingRequest> pipelinedRequests = new ArrayDeque<>();
+
+    /**
+     * Messages from the client that are held back until the responses to
+     * earlier requests are complete, because their request may not be
+     * pipelined. See {@link #mayPipeline(HttpRequest, HttpFilters)}.
+     */
+    private final Deque<HeldMessage> heldMessages = new ArrayDeque<>();
+
+    /**
+     * The last request whose response completed, or that was given up on
+     * when the connection closed.
+     */
+    private HttpRequest answeredRequest;
+
+    /**
+     * True if the {@link #currentHttpRequest} was pipelined, so that it can
+     * be retried on a new connection.
+     */
+    private boolean currentRequestPipelined;
+
+    /**
+     * True once the response to the {@link #currentHttpRequest} has started
+     * to arrive, after which that request can't be retried.
+     */
+    private boolean responseStarted;
+
+    /**
+     * The bytes of content in {@link #heldMessages}, for
+     * {@link #getBufferedBytes()} to read from other threads.
+     */
+    private volatile long heldBytes;
+
     /**
      * Limits bandwidth when throttling is enabled.
      */
@@ -186,6 +281,7 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
             ClientToProxyConnection clientConnection,
             String serverHostAndPort,
             HttpFilters initialFilters,
+            RequestTimings initialRequestTimings,
             HttpRequest initialHttpRequest,
             GlobalTrafficShapingHandler globalTrafficShapingHandler)
             throws UnknownHostException {
@@ -206,6 +302,7 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
                 chainedProxies.poll(),
                 chainedProxies,
                 initialFilters,
+                initialRequestTimings,
                 globalTrafficShapingHandler);
     }
 
@@ -216,6 +313,7 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
             ChainedProxy chainedProxy,
             Queue<ChainedProxy> availableChainedProxies,
             HttpFilters initialFilters,
+            RequestTimings initialRequestTimings,
             GlobalTrafficShapingHandler globalTrafficShapingHandler)
             throws UnknownHostException {
         super(DISCONNECTED, proxyServer, true);
@@ -225,6 +323,7 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
         this.availableChainedProxies = availableChainedProxies;
         this.trafficHandler = globalTrafficShapingHandler;
         this.currentFilters = initialFilters;
+        this.currentRequestTimings = initialRequestTimings;
 
         // Report connection status to HttpFilters
         currentFilters.proxyToServerConnectionQueued();
@@ -272,14 +371,31 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
         }
 
         currentFilters.serverToProxyResponseReceiving();
+        if (!isInterimResponse(httpResponse)) {
+            RequestTimings requestTimings = currentRequestTimings;
+            if (requestTimings != null && !requestTimings.isMarked(RequestTimings.Event.REQUEST_SENT)) {
+                // the server answered before the end of the request reached it, as servers may once they've read the
+                // headers of a request without a body: the rest of the request isn't waited for
+                requestTimings.mark(RequestTimings.Event.REQUEST_SENT);
+            }
+            mark(RequestTimings.Event.RESPONSE_RECEIVING);
+        }
+
+        if (isHttp2Stream()) {
+            httpResponse.headers().remove(HttpConversionUtil.ExtensionHeaderNames.STREAM_ID.text());
+        }
 
         rememberCurrentResponse(httpResponse);
+        if (!isInterimResponse(httpResponse)) {
+            responseStarted = true;
+        }
         respondWith(httpResponse);
 
         if (ProxyUtils.isChunked(httpResponse)) {
             return AWAITING_CHUNK;
         } else {
             currentFilters.serverToProxyResponseReceived();
+            responseCompleted();
 
             return AWAITING_INITIAL;
         }
@@ -310,7 +426,8 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
      * <p>
      * Thanks to <a href="https://github.com/nataliakoval">nataliakoval</a> for
      * pointing out that with connections being reused as they are, this needs
-     * to be sensitive to the current request.
+     * to be sensitive to the current request. When requests are pipelined,
+     * the current request is the oldest one still awaiting its response.
      * </p>
      */
     private class HeadAwareHttpResponseDecoder extends HttpResponseDecoder {
@@ -339,16 +456,71 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
      **************************************************************************/
 
     /**
-     * Like {@link #write(Object)} and also sets the current filters to the
-     * given value.
+     * Like {@link #write(Object)} and also sets the current filters and
+     * request timings to the given values, once the responses to any earlier
+     * pipelined requests are complete.
      */
-    void write(Object msg, HttpFilters filters) {
-        currentFilters = filters;
-        write(msg);
+    void write(Object msg, HttpFilters filters, RequestTimings requestTimings) {
+        writeFromClient(msg, filters, requestTimings);
     }
 
     @Override
     ChannelFuture write(Object msg) {
+        return writeFromClient(msg, null, null);
+    }
+
+    /**
+     * Writes a message from the client. Unless the client's requests have
+     * allowed pipelining, it's written right away. Otherwise it's handed to
+     * the event loop of the server's channel, see {@link #pipelining}.
+     */
+    private ChannelFuture writeFromClient(Object msg, @Nullable HttpFilters filters,
+                                          @Nullable RequestTimings requestTimings) {
+        Channel channel = this.channel;
+        if (!pipelining) {
+            if (channel == null || !(msg instanceof HttpRequest) || !allowsPipelining((HttpRequest) msg, filters)) {
+                if (filters != null) {
+                    currentFilters = filters;
+                    currentRequestTimings = requestTimings;
+                }
+                return writeNow(msg);
+            }
+            pipelining = true;
+        }
+
+        ReferenceCountUtil.retain(msg);
+        Runnable write = () -> {
+            try {
+                writeOrHold(msg, filters, requestTimings);
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        };
+        if (channel.eventLoop().inEventLoop()) {
+            write.run();
+        } else {
+            channel.eventLoop().execute(write);
+        }
+        return clientConnection.channel.newSucceededFuture();
+    }
+
+    /**
+     * Writes a message from the client on the event loop of the server's
+     * channel, unless it has to wait for the responses to earlier requests
+     * to complete first. In that case it's held back, along with everything
+     * the client sends after it, until {@link #releaseHeldMessages()}.
+     */
+    private void writeOrHold(Object msg, @Nullable HttpFilters filters, @Nullable RequestTimings requestTimings) {
+        if (heldMessages.isEmpty() && mayWrite(msg, filters)) {
+            writeAccepted(msg, filters, requestTimings);
+        } else {
+            LOG.debug("Holding back message until outstanding responses are complete: {}", msg);
+            heldMessages.add(new HeldMessage(ReferenceCountUtil.retain(msg), filters, requestTimings));
+            heldBytes += contentBytes(msg);
+        }
+    }
+
+    private ChannelFuture writeNow(Object msg) {
         LOG.debug("Requested write of {}", msg);
 
         if (msg instanceof ReferenceCounted) {
@@ -379,7 +551,8 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
             // already disconnected
             if (isConnecting() || getCurrentState().isDisconnectingOrDisconnected()) {
                 LOG.debug("Connection failed or timed out while waiting to write message to server. Message will be discarded: {}", msg);
-                return channel.newFailedFuture(new Exception("Connection failed or timed out while waiting to write message to server. Message will be discarded."));
+                // a connection that never got as far as opening an HTTP/2 stream has no channel of its own
+                return (channel != null ? channel : clientConnection.channel).newFailedFuture(new Exception("Connection failed or timed out while waiting to write message to server. Message will be discarded."));
             }
 
             LOG.debug("Using existing connection to: {}", remoteAddress);
@@ -393,8 +566,12 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
             chainedProxy.filterRequest(httpObject);
         }
         if (httpObject instanceof HttpRequest) {
-            // Remember that we issued this HttpRequest for later
-            currentHttpRequest = (HttpRequest) httpObject;
+            // Remember that we issued this HttpRequest for later, unless it's pipelined behind another request that is
+            // still awaiting its response
+            PendingRequest newest = pipelinedRequests.peekLast();
+            if (newest == null || newest.request != httpObject) {
+                currentHttpRequest = (HttpRequest) httpObject;
+            }
         }
         return super.writeHttp(httpObject);
     }
@@ -407,17 +584,21 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
     protected void become(ConnectionState newState) {
         // Report connection status to HttpFilters
         if (getCurrentState() == DISCONNECTED && newState == CONNECTING) {
+            mark(RequestTimings.Event.CONNECTION_STARTED);
             currentFilters.proxyToServerConnectionStarted();
         } else if (getCurrentState() == CONNECTING) {
             if (newState == HANDSHAKING) {
+                mark(RequestTimings.Event.SSL_HANDSHAKE_STARTED);
                 currentFilters.proxyToServerConnectionSSLHandshakeStarted();
             } else if (newState == AWAITING_INITIAL) {
+                mark(RequestTimings.Event.CONNECTION_SUCCEEDED);
                 currentFilters.proxyToServerConnectionSucceeded(ctx);
             } else if (newState == DISCONNECTED) {
                 currentFilters.proxyToServerConnectionFailed();
             }
         } else if (getCurrentState() == HANDSHAKING) {
             if (newState == AWAITING_INITIAL) {
+                mark(RequestTimings.Event.CONNECTION_SUCCEEDED);
                 currentFilters.proxyToServerConnectionSucceeded(ctx);
             } else if (newState == DISCONNECTED) {
                 currentFilters.proxyToServerConnectionFailed();
@@ -427,19 +608,84 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
             currentFilters.serverToProxyResponseReceived();
         }
 
+        boolean responseCompleted = getCurrentState() == AWAITING_CHUNK && newState == AWAITING_INITIAL;
         super.become(newState);
+        if (responseCompleted) {
+            responseCompleted();
+        }
     }
 
     @Override
     protected void becameSaturated() {
         super.becameSaturated();
-        clientConnection.serverBecameSaturated(this);
+        if (!saturatingClient) {
+            saturatingClient = true;
+            clientConnection.serverBecameSaturated(this);
+        }
     }
 
     @Override
     protected void becameWritable() {
         super.becameWritable();
-        clientConnection.serverBecameWriteable(this);
+        stopSaturatingClient();
+    }
+
+    /**
+     * Lets the client connection read again as far as this connection is
+     * concerned, if it was saturated.
+     */
+    private void stopSaturatingClient() {
+        if (saturatingClient) {
+            saturatingClient = false;
+            clientConnection.serverBecameWriteable(this);
+        }
+    }
+
+    /**
+     * Stops reading from the server while the client connection is
+     * saturated, and resumes once it's writable again. May be called from any
+     * thread, and takes effect on this connection's event loop.
+     */
+    void clientWritabilityChanged() {
+        runOnEventLoop(() -> {
+            if (clientConnection.isSaturated()) {
+                stopReading();
+            } else {
+                resumeReading();
+            }
+        });
+    }
+
+    /**
+     * Hands this connection to the given HTTP/2 client connection once the
+     * stream that used it has closed, so that the client's other streams can
+     * reuse it. Closes it instead if it can't carry another request.
+     */
+    void releaseToHttp2Connection(ClientToProxyConnection http2Connection) {
+        if (channel == null) {
+            return;
+        }
+        runOnEventLoop(() -> {
+            HttpResponse lastResponse = currentHttpResponse;
+            boolean reusable = !isHttp2Stream() && !isTunneling() && is(AWAITING_INITIAL) && channel.isActive()
+                    && lastResponse != null && HttpUtil.isKeepAlive(lastResponse)
+                    && !responseOutstanding() && heldMessages.isEmpty();
+            if (!reusable) {
+                disconnect();
+                return;
+            }
+            stopSaturatingClient();
+            clientConnection = http2Connection;
+            http2Connection.serverConnectionIdle(this);
+        });
+    }
+
+    /**
+     * Moves this idle connection over to a stream of the HTTP/2 client
+     * connection it was released to.
+     */
+    void setClientConnection(ClientToProxyConnection clientConnection) {
+        this.clientConnection = clientConnection;
     }
 
     @Override
@@ -459,7 +705,10 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
                 LOG.error("Unable to record connectionFailed", e);
             }
         }
+        // a closed channel doesn't become writable again
+        stopSaturatingClient();
         clientConnection.serverDisconnected(this);
+        retryUnansweredRequests();
     }
 
     @Override
@@ -512,6 +761,14 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
         return serverHostAndPort;
     }
 
+    /**
+     * The timings of the request whose response is currently being received,
+     * or of the last request proxied over this connection.
+     */
+    public RequestTimings getRequestTimings() {
+        return currentRequestTimings;
+    }
+
     public boolean hasUpstreamChainedProxy() {
         return getChainedProxyAddress() != null;
     }
@@ -529,6 +786,14 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
         return initialRequest;
     }
 
+    /**
+     * Returns true if this connection sends its request on a stream of a
+     * pooled HTTP/2 connection, which carries a single request only.
+     */
+    boolean isHttp2Stream() {
+        return http2Origin != null;
+    }
+
     @Override
     protected HttpFilters getHttpFiltersFromProxyServer(HttpRequest httpRequest) {
         return currentFilters;
@@ -560,6 +825,310 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
                 currentHttpResponse, httpObject);
     }
 
+    /**
+     * Interim (1xx) responses other than 101 Switching Protocols precede the
+     * final response to a request rather than completing it.
+     */
+    static boolean isInterimResponse(HttpResponse response) {
+        return response.status().codeClass() == HttpStatusClass.INFORMATIONAL
+                && response.status().code() != HttpResponseStatus.SWITCHING_PROTOCOLS.code();
+    }
+
+    /**
+     * Returns true if the given request may be written to the server while
+     * the response to the current request is still outstanding. That's only
+     * the case for idempotent requests without a body, pipelined behind
+     * other idempotent requests, on an established connection to an
+     * HTTP/1.1 server that kept the connection alive after its last
+     * response, and only if the filters allow it.
+     */
+    private boolean mayPipeline(HttpRequest request, @Nullable HttpFilters filters) {
+        if (isHttp2Stream() || isTunneling() || !is(AWAITING_INITIAL) && !is(AWAITING_CHUNK)) {
+            return false;
+        }
+
+        HttpResponse lastResponse = currentHttpResponse;
+        if (lastResponse == null
+                || !HttpVersion.HTTP_1_1.equals(lastResponse.protocolVersion())
+                || !HttpUtil.isKeepAlive(lastResponse)) {
+            return false;
+        }
+
+        if (!ProxyUtils.isIdempotent(request)
+                || HttpUtil.isTransferEncodingChunked(request)
+                || HttpUtil.getContentLength(request, 0L) > 0
+                || request.headers().contains(HttpHeaderNames.UPGRADE)
+                || !ProxyUtils.isIdempotent(currentHttpRequest)) {
+            return false;
+        }
+
+        for (PendingRequest pending : pipelinedRequests) {
+            if (!ProxyUtils.isIdempotent(pending.request)) {
+                return false;
+            }
+        }
+
+        return allowsPipelining(request, filters);
+    }
+
+    /**
+     * Whether the filters of the given request allow it to be pipelined.
+     */
+    private boolean allowsPipelining(HttpRequest request, @Nullable HttpFilters filters) {
+        return filters != null && !isHttp2Stream() && !ProxyUtils.isCONNECT(request)
+                && filters.proxyToServerAllowPipelining();
+    }
+
+    /**
+     * Whether the response to the {@link #currentHttpRequest} is still
+     * outstanding. CONNECTs don't count, since their responses are consumed
+     * by the {@link ConnectionFlow}.
+     */
+    private boolean responseOutstanding() {
+        HttpRequest request = currentHttpRequest;
+        return request != null && request != answeredRequest && !ProxyUtils.isCONNECT(request);
+    }
+
+    /**
+     * Whether a message from the client may be written now. Requests that
+     * don't allow pipelining are written just as they would be without it,
+     * unless other requests have been pipelined ahead of them.
+     */
+    private boolean mayWrite(Object msg, @Nullable HttpFilters filters) {
+        if (isConnecting() || is(DISCONNECT_REQUESTED)) {
+            return false;
+        }
+        if (msg instanceof HttpRequest) {
+            HttpRequest request = (HttpRequest) msg;
+            if (!responseOutstanding()) {
+                return true;
+            }
+            return allowsPipelining(request, filters)
+                    ? mayPipeline(request, filters)
+                    : pipelinedRequests.isEmpty();
+        }
+        // the rest of a request can only follow it on the connection it was written to
+        return !is(DISCONNECTED);
+    }
+
+    /**
+     * Writes a message that {@link #mayWrite(Object, HttpFilters)}, and
+     * starts tracking its request if it's pipelined.
+     */
+    private void writeAccepted(Object msg, @Nullable HttpFilters filters, @Nullable RequestTimings requestTimings) {
+        if (msg instanceof HttpRequest && responseOutstanding() && allowsPipelining((HttpRequest) msg, filters)) {
+            LOG.debug("Pipelining request behind {} outstanding response(s): {}", pipelinedRequests.size() + 1, msg);
+            pipelinedRequests.add(new PendingRequest((HttpRequest) msg, filters, requestTimings));
+        } else if (filters != null) {
+            currentFilters = filters;
+            currentRequestTimings = requestTimings;
+            currentRequestPipelined = false;
+        }
+        writeNow(msg);
+    }
+
+    /**
+     * The filters of the request that was most recently written to the server.
+     */
+    private HttpFilters filtersForWrites() {
+        PendingRequest newest = pipelinedRequests.peekLast();
+        return newest != null ? newest.filters : currentFilters;
+    }
+
+    /**
+     * The timings of the request that was most recently written to the
+     * server.
+     */
+    @Nullable
+    private RequestTimings requestTimingsForWrites() {
+        PendingRequest newest = pipelinedRequests.peekLast();
+        return newest != null ? newest.requestTimings : currentRequestTimings;
+    }
+
+    /**
+     * Marks an event in the timings of the current request, if any.
+     */
+    private void mark(RequestTimings.Event event) {
+        RequestTimings requestTimings = currentRequestTimings;
+        if (requestTimings != null) {
+            requestTimings.mark(event);
+        }
+    }
+
+    /**
+     * Called once the response to the current request is complete. Moves on
+     * to the next pipelined request, if any, and writes the messages that no
+     * longer need to be held back.
+     */
+    private void responseCompleted() {
+        if (isInterimResponse(currentHttpResponse)) {
+            // the final response is yet to come
+            return;
+        }
+
+        RequestTimings requestTimings = currentRequestTimings;
+        if (requestTimings != null) {
+            requestTimings.mark(RequestTimings.Event.RESPONSE_RECEIVED);
+            recordResponseCompleted(requestTimings);
+            FlightRecorderEvents.requestCompleted(this, currentHttpRequest, currentHttpResponse, requestTimings);
+        }
+
+        answeredRequest = currentHttpRequest;
+        responseStarted = false;
+        PendingRequest next = pipelinedRequests.poll();
+        if (next != null) {
+            currentHttpRequest = next.request;
+            currentFilters = next.filters;
+            currentRequestTimings = next.requestTimings;
+            currentRequestPipelined = true;
+        } else {
+            currentRequestPipelined = false;
+        }
+        releaseHeldMessages();
+    }
+
+    /**
+     * Writes held messages, in order, for as long as they may be written.
+     * Stops at a request that has to wait for outstanding responses, and
+     * while the connection is being established or closed.
+     */
+    private void releaseHeldMessages() {
+        while (!heldMessages.isEmpty()) {
+            HeldMessage held = heldMessages.peek();
+            if (!mayWrite(held.msg, held.filters)) {
+                return;
+            }
+            heldMessages.poll();
+            heldBytes -= contentBytes(held.msg);
+            try {
+                writeAccepted(held.msg, held.filters, held.requestTimings);
+            } finally {
+                ReferenceCountUtil.release(held.msg);
+            }
+        }
+    }
+
+    /**
+     * Called when the connection to the server has closed. Pipelined requests
+     * that the server never started to answer are retried on a new
+     * connection, ahead of any messages that are still held back. Other
+     * requests that are left without a response are not retried, just as
+     * they wouldn't be without pipelining.
+     */
+    private void retryUnansweredRequests() {
+        if (clientConnection.getCurrentState().isDisconnectingOrDisconnected()) {
+            discardPendingRequests();
+            return;
+        }
+
+        List<HeldMessage> retries = new ArrayList<>();
+        if (currentRequestPipelined && responseOutstanding() && !responseStarted) {
+            retries.add(new HeldMessage(copyForRetry(currentHttpRequest), currentFilters, currentRequestTimings));
+        }
+        for (PendingRequest pending : pipelinedRequests) {
+            retries.add(new HeldMessage(copyForRetry(pending.request), pending.filters, pending.requestTimings));
+        }
+        forgetPipelinedRequests();
+
+        // the remainder of a request that had started to be written can't be sent on a new connection
+        while (!heldMessages.isEmpty() && !(heldMessages.peek().msg instanceof HttpRequest)) {
+            dropHeldMessage();
+        }
+
+        for (int i = retries.size() - 1; i >= 0; i--) {
+            LOG.debug("Retrying unanswered pipelined request: {}", retries.get(i).msg);
+            heldMessages.addFirst(retries.get(i));
+        }
+        releaseHeldMessages();
+    }
+
+    /**
+     * Forgets about outstanding requests and drops held messages, once there
+     * is no connection left to send them on.
+     */
+    private void discardPendingRequests() {
+        runOnEventLoop(() -> {
+            forgetPipelinedRequests();
+            while (!heldMessages.isEmpty()) {
+                dropHeldMessage();
+            }
+        });
+    }
+
+    private void forgetPipelinedRequests() {
+        pipelinedRequests.clear();
+        answeredRequest = currentHttpRequest;
+        currentRequestPipelined = false;
+        responseStarted = false;
+    }
+
+    private void dropHeldMessage() {
+        HeldMessage held = heldMessages.poll();
+        heldBytes -= contentBytes(held.msg);
+        ReferenceCountUtil.release(held.msg);
+    }
+
+    private static long contentBytes(Object msg) {
+        if (msg instanceof ByteBufHolder) {
+            return ((ByteBufHolder) msg).content().readableBytes();
+        } else if (msg instanceof ByteBuf) {
+            return ((ByteBuf) msg).readableBytes();
+        }
+        return 0;
+    }
+
+    /**
+     * Adds the content of the messages held back until earlier responses
+     * complete to the bytes buffered by the connection.
+     */
+    @Override
+    long getBufferedBytes() {
+        return super.getBufferedBytes() + heldBytes;
+    }
+
+    /**
+     * Pipelined requests never have a body, so the request line and headers
+     * are all that's needed to send them again.
+     */
+    private static HttpRequest copyForRetry(HttpRequest request) {
+        DefaultFullHttpRequest copy = new DefaultFullHttpRequest(request.protocolVersion(), request.method(), request.uri());
+        copy.headers().set(request.headers());
+        return copy;
+    }
+
+    /**
+     * A request that has been pipelined to the server, and the filters to
+     * apply to its response.
+     */
+    private static class PendingRequest {
+        private final HttpRequest request;
+        private final HttpFilters filters;
+        private final RequestTimings requestTimings;
+
+        private PendingRequest(HttpRequest request, HttpFilters filters, @Nullable RequestTimings requestTimings) {
+            this.request = request;
+            this.filters = filters;
+            this.requestTimings = requestTimings;
+        }
+    }
+
+    /**
+     * A message from the client that is waiting to be written to the server,
+     * and the filters and timings that came with it (null for anything but
+     * requests).
+     */
+    private static class HeldMessage {
+        private final Object msg;
+        private final HttpFilters filters;
+        private final RequestTimings requestTimings;
+
+        private HeldMessage(Object msg, @Nullable HttpFilters filters, @Nullable RequestTimings requestTimings) {
+            this.msg = msg;
+            this.filters = filters;
+            this.requestTimings = requestTimings;
+        }
+    }
+
     /**
      * Configures the connection to the upstream server and begins the {@link ConnectionFlow}.
      *
@@ -580,9 +1149,17 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
      * handling CONNECTs.
      */
     private void initializeConnectionFlow() {
+        http2Origin = http2OriginFor(initialRequest);
+        if (http2Origin != null) {
+            mitmAttempted = false;
+            connectionFlow = new ConnectionFlow(clientConnection, this, connectLock)
+                    .then(OpenHttp2Stream());
+            return;
+        }
+
         connectionFlow = new ConnectionFlow(clientConnection, this,
                 connectLock)
-                .then(ConnectChannel);
+                .then(ConnectChannel());
 
         if (hasUpstreamChainedProxy()) {
             if (chainedProxy.requiresEncryption()) {
@@ -590,27 +1167,26 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
             }
             switch (chainedProxyType) {
                 case SOCKS4:
-                    connectionFlow.then(SOCKS4CONNECTWithChainedProxy);
+                    connectionFlow.then(SOCKS4CONNECTWithChainedProxy());
                     break;
                 case SOCKS5:
-                    connectionFlow.then(SOCKS5InitialRequest);
+                    connectionFlow.then(SOCKS5InitialRequest());
                     break;
                 default:
                     break;
             }
         }
 
+        mitmAttempted = ProxyUtils.isCONNECT(initialRequest) && isMitmEnabled();
+
         if (ProxyUtils.isCONNECT(initialRequest)) {
             // If we're chaining to an upstream HTTP proxy, forward the CONNECT request.
             // Do not chain the CONNECT request for SOCKS proxies.
             if (hasUpstreamChainedProxy() && (chainedProxyType == ChainedProxyType.HTTP)) {
-                connectionFlow.then(serverConnection.HTTPCONNECTWithChainedProxy);
+                connectionFlow.then(serverConnection.HTTPCONNECTWithChainedProxy());
             }
 
-            MitmManager mitmManager = proxyServer.getMitmManager();
-            boolean isMitmEnabled = currentFilters.proxyToServerAllowMitm() && mitmManager != null;
-
-            if (isMitmEnabled) {
+            if (mitmAttempted) {
                 // When MITM is enabled and when chained proxy is set up, remoteAddress
                 // will be the chained proxy's address. So we use serverHostAndPort
                 // which is the end server's address.
@@ -627,14 +1203,71 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
                 }
 
             	connectionFlow
-                        .then(clientConnection.RespondCONNECTSuccessful)
-                        .then(serverConnection.MitmEncryptClientChannel);
+                        .then(clientConnection.RespondCONNECTSuccessful())
+                        .then(serverConnection.MitmEncryptClientChannel());
             } else {
-                connectionFlow.then(serverConnection.StartTunneling)
-                        .then(clientConnection.RespondCONNECTSuccessful)
-                        .then(clientConnection.StartTunneling);
+                connectionFlow.then(serverConnection.StartTunneling())
+                        .then(clientConnection.RespondCONNECTSuccessful())
+                        .then(clientConnection.StartTunneling());
+            }
+        } else if (clientConnection.isHttp2Stream() && clientConnection.isMitming()) {
+            // Each stream of a man-in-the-middled HTTP/2 connection gets its own connection to the server, which
+            // has to be tunnelled through an HTTP chained proxy and encrypted just like the one for the CONNECT.
+            if (hasUpstreamChainedProxy() && (chainedProxyType == ChainedProxyType.HTTP)) {
+                connectionFlow.then(serverConnection.HTTPCONNECTWithChainedProxy());
+            }
+            HostAndPort parsedHostAndPort = HostAndPort.fromString(serverHostAndPort);
+            connectionFlow.then(serverConnection.EncryptChannel(proxyServer.getMitmManager()
+                    .serverSslEngine(parsedHostAndPort.getHost(), parsedHostAndPort.getPort())));
+        }
+    }
+
+    /**
+     * Determines whether the given request is sent on a stream of a pooled HTTP/2 connection, and returns the origin of
+     * that connection if so. That is the case for the requests of man-in-the-middled HTTP/2 clients when
+     * {@link DefaultHttpProxyServer#isServerHttp2()} is enabled, and for plain HTTP requests when
+     * {@link DefaultHttpProxyServer#isServerH2cPriorKnowledge()} is enabled, unless a chained proxy or the PROXY
+     * protocol is in the way, or the origin is known not to speak HTTP/2.
+     */
+    @Nullable
+    private String http2OriginFor(HttpRequest request) {
+        Http2ConnectionPool http2ConnectionPool = proxyServer.getHttp2ConnectionPool();
+        if (http2ConnectionPool == null || ProxyUtils.isCONNECT(request) || hasUpstreamChainedProxy()
+                || proxyServer.isSendProxyProtocol() || request.headers().contains(HttpHeaderNames.UPGRADE)) {
+            return null;
+        }
+        String origin;
+        if (clientConnection.isMitming()) {
+            if (!clientConnection.isHttp2Stream() || !proxyServer.isServerHttp2()) {
+                return null;
             }
+            origin = Http2ConnectionPool.originFor(true, serverHostAndPort);
+        } else if (proxyServer.isServerH2cPriorKnowledge() && !clientConnection.isTunneling()) {
+            origin = Http2ConnectionPool.originFor(false, serverHostAndPort);
+        } else {
+            return null;
+        }
+        return http2ConnectionPool.isHttp1Only(origin) ? null : origin;
+    }
+
+    /**
+     * Determines whether a CONNECT request should be man-in-the-middled. Hosts that the
+     * {@link MitmBypassIndex} has learned to fail MITM are tunnelled instead.
+     */
+    private boolean isMitmEnabled() {
+        if (proxyServer.getMitmManager() == null || !currentFilters.proxyToServerAllowMitm()) {
+            return false;
+        }
+        if (clientConnection.isHttp2Stream()) {
+            LOG.debug("Not man-in-the-middling CONNECT received over HTTP/2, tunnelling instead");
+            return false;
         }
+        MitmBypassIndex mitmBypassIndex = proxyServer.getMitmBypassIndex();
+        if (mitmBypassIndex != null && mitmBypassIndex.shouldBypass(serverHostAndPort)) {
+            LOG.debug("Previous MITM attempts to {} failed, tunnelling instead", serverHostAndPort);
+            return false;
+        }
+        return true;
     }
 
     private void addFirstOrReplaceHandler(String name, ChannelHandler handler) {
@@ -653,270 +1286,326 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
     /**
      * Opens the socket connection.
      */
-    private final ConnectionFlowStep ConnectChannel = new ConnectionFlowStep(this,
-            CONNECTING) {
-        @Override
-        boolean shouldExecuteOnEventLoop() {
-            return false;
-        }
-
-        @Override
-        protected Future<?> execute() {
-            Bootstrap cb = new Bootstrap()
-                .group(proxyServer.getProxyToServerWorkerFor(transportProtocol))
-                .resolver(remoteAddressResolver);
-
-            switch (transportProtocol) {
-            case TCP:
-                LOG.debug("Connecting to server with TCP");
-                cb.channelFactory(NioSocketChannel::new);
-                break;
-            case UDT:
-                LOG.debug("Connecting to server with UDT");
-                cb.channelFactory(NioUdtProvider.BYTE_CONNECTOR)
-                        .option(ChannelOption.SO_REUSEADDR, true);
-                break;
-            default:
-                throw new UnknownTransportProtocolException(transportProtocol);
+    private ConnectionFlowStep ConnectChannel() {
+        return new ConnectionFlowStep(this,
+                CONNECTING) {
+            @Override
+            boolean shouldExecuteOnEventLoop() {
+                return false;
             }
 
-            cb.handler(new ChannelInitializer<>() {
-                protected void initChannel(Channel ch) {
-                    initChannelPipeline(ch.pipeline());
+            @Override
+            protected Future<?> execute() {
+                // reconnect on the event loop of the previous channel, which the state of pipelining is confined to
+                EventLoopGroup group = proxyServer.getProxyToServerWorkerFor(transportProtocol);
+                Channel previousChannel = ProxyToServerConnection.this.channel;
+                if (previousChannel != null && previousChannel.eventLoop().parent() == group) {
+                    group = previousChannel.eventLoop();
+                }
+                Bootstrap cb = new Bootstrap()
+                    .group(group)
+                    .resolver(remoteAddressResolver);
+
+                switch (transportProtocol) {
+                case TCP:
+                    LOG.debug("Connecting to server with TCP");
+                    cb.channelFactory(NioSocketChannel::new);
+                    break;
+                case UDT:
+                    LOG.debug("Connecting to server with UDT");
+                    cb.channelFactory(NioUdtProvider.BYTE_CONNECTOR)
+                            .option(ChannelOption.SO_REUSEADDR, true);
+                    break;
+                default:
+                    throw new UnknownTransportProtocolException(transportProtocol);
                 }
-            });
-            cb.option(ChannelOption.CONNECT_TIMEOUT_MILLIS,
-                    proxyServer.getConnectTimeout());
 
-            if (localAddress != null) {
-                return cb.connect(remoteAddress, localAddress);
-            } else {
-                return cb.connect(remoteAddress);
+                cb.handler(new ChannelInitializer<>() {
+                    protected void initChannel(Channel ch) {
+                        initChannelPipeline(ch.pipeline());
+                    }
+                });
+                cb.option(ChannelOption.CONNECT_TIMEOUT_MILLIS,
+                        proxyServer.getConnectTimeout());
+
+                if (localAddress != null) {
+                    return cb.connect(remoteAddress, localAddress);
+                } else {
+                    return cb.connect(remoteAddress);
+                }
             }
-        }
-    };
+        };
+    }
 
     /**
-     * Writes the HTTP CONNECT to the server and waits for a 200 response.
+     * Opens a stream on a pooled HTTP/2 connection to the server, connecting one first if necessary.
      */
-    private final ConnectionFlowStep HTTPCONNECTWithChainedProxy = new ConnectionFlowStep(
-            this, AWAITING_CONNECT_OK) {
-        protected Future<?> execute() {
-            LOG.debug("Handling CONNECT request through Chained Proxy");
-            chainedProxy.filterRequest(initialRequest);
-            MitmManager mitmManager = proxyServer.getMitmManager();
-            boolean isMitmEnabled = currentFilters.proxyToServerAllowMitm() && mitmManager != null;
-            /*
-             * We ignore the LastHttpContent which we read from the client
-             * connection when we are negotiating connect (see readHttp()
-             * in ProxyConnection). This cannot be ignored while we are
-             * doing MITM + Chained Proxy because the HttpRequestEncoder
-             * of the ProxyToServerConnection will be in an invalid state
-             * when the next request is written. Writing the EmptyLastContent
-             * resets its state.
-             */
-            if(isMitmEnabled){
-                ChannelFuture future = writeToChannel(initialRequest);
-                future.addListener((ChannelFutureListener) arg0 -> {
-                    if(arg0.isSuccess()){
-                        writeToChannel(LastHttpContent.EMPTY_LAST_CONTENT);
-                    }
-                });
-                return future;
-            } else {
-                return writeToChannel(initialRequest);
+    private ConnectionFlowStep OpenHttp2Stream() {
+        return new ConnectionFlowStep(this,
+                CONNECTING) {
+            @Override
+            boolean shouldExecuteOnEventLoop() {
+                return false;
             }
-        }
 
-        void onSuccess(ConnectionFlow flow) {
-            // Do nothing, since we want to wait for the CONNECT response to
-            // come back
-        }
+            @Override
+            protected Future<?> execute() {
+                Supplier<SSLEngine> sslEngineFactory = null;
+                if (clientConnection.isMitming()) {
+                    HostAndPort parsedHostAndPort = HostAndPort.fromString(serverHostAndPort);
+                    sslEngineFactory = () -> disableSni
+                            ? proxyServer.getMitmManager().serverSslEngine()
+                            : proxyServer.getMitmManager().serverSslEngine(parsedHostAndPort.getHost(), parsedHostAndPort.getPort());
+                }
+                LOG.debug("Opening HTTP/2 stream to {}", http2Origin);
+                return proxyServer.getHttp2ConnectionPool().openStream(http2Origin, remoteAddress, localAddress,
+                        sslEngineFactory, new ChannelInitializer<Http2StreamChannel>() {
+                            @Override
+                            protected void initChannel(Http2StreamChannel streamChannel) {
+                                initHttp2StreamPipeline(streamChannel.pipeline());
+                            }
+                        });
+            }
+        };
+    }
 
-        void read(ConnectionFlow flow, Object msg) {
-            // Here we're handling the response from a chained proxy to our
-            // earlier CONNECT request
-            boolean connectOk = false;
-            if (msg instanceof HttpResponse) {
-                HttpResponse httpResponse = (HttpResponse) msg;
-                int statusCode = httpResponse.status().code();
-                if (statusCode >= 200 && statusCode <= 299) {
-                    connectOk = true;
+    /**
+     * Writes the HTTP CONNECT to the server and waits for a 200 response.
+     */
+    private ConnectionFlowStep HTTPCONNECTWithChainedProxy() {
+        return new ConnectionFlowStep(
+                this, AWAITING_CONNECT_OK) {
+            protected Future<?> execute() {
+                LOG.debug("Handling CONNECT request through Chained Proxy");
+                if (!ProxyUtils.isCONNECT(initialRequest)) {
+                    // a request of a man-in-the-middled HTTP/2 stream, which needs a tunnel of its own
+                    HttpRequest connectRequest = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.CONNECT,
+                            serverHostAndPort);
+                    connectRequest.headers().set(HttpHeaderNames.HOST, serverHostAndPort);
+                    chainedProxy.filterRequest(connectRequest);
+                    return writeToChannel(connectRequest);
+                }
+                chainedProxy.filterRequest(initialRequest);
+                /*
+                 * We ignore the LastHttpContent which we read from the client
+                 * connection when we are negotiating connect (see readHttp()
+                 * in ProxyConnection). This cannot be ignored while we are
+                 * doing MITM + Chained Proxy because the HttpRequestEncoder
+                 * of the ProxyToServerConnection will be in an invalid state
+                 * when the next request is written. Writing the EmptyLastContent
+                 * resets its state.
+                 */
+                if(mitmAttempted){
+                    ChannelFuture future = writeToChannel(initialRequest);
+                    future.addListener((ChannelFutureListener) arg0 -> {
+                        if(arg0.isSuccess()){
+                            writeToChannel(LastHttpContent.EMPTY_LAST_CONTENT);
+                        }
+                    });
+                    return future;
+                } else {
+                    return writeToChannel(initialRequest);
                 }
             }
-            if (connectOk) {
-                flow.advance();
-            } else {
-                flow.fail();
+
+            void onSuccess(ConnectionFlow flow) {
+                // Do nothing, since we want to wait for the CONNECT response to
+                // come back
             }
-        }
-    };
+
+            void read(ConnectionFlow flow, Object msg) {
+                // Here we're handling the response from a chained proxy to our
+                // earlier CONNECT request
+                boolean connectOk = false;
+                if (msg instanceof HttpResponse) {
+                    HttpResponse httpResponse = (HttpResponse) msg;
+                    int statusCode = httpResponse.status().code();
+                    if (statusCode >= 200 && statusCode <= 299) {
+                        connectOk = true;
+                    }
+                }
+                if (connectOk) {
+                    flow.advance();
+                } else {
+                    flow.fail();
+                }
+            }
+        };
+    }
 
     /**
      * Establishes a SOCKS4 connection.
      */
-    private final ConnectionFlowStep SOCKS4CONNECTWithChainedProxy = new ConnectionFlowStep(
-            this, AWAITING_CONNECT_OK) {
-
-        @Override
-        protected Future<?> execute() {
-            InetSocketAddress destinationAddress;
-            try {
-                destinationAddress = addressFor(serverHostAndPort, proxyServer);
-            } catch (UnknownHostException e) {
-                return channel.newFailedFuture(e);
-            }
+    private ConnectionFlowStep SOCKS4CONNECTWithChainedProxy() {
+        return new ConnectionFlowStep(
+                this, AWAITING_CONNECT_OK) {
+
+            @Override
+            protected Future<?> execute() {
+                InetSocketAddress destinationAddress;
+                try {
+                    destinationAddress = addressFor(serverHostAndPort, proxyServer);
+                } catch (UnknownHostException e) {
+                    return channel.newFailedFuture(e);
+                }
 
-            DefaultSocks4CommandRequest connectRequest = new DefaultSocks4CommandRequest(
-                Socks4CommandType.CONNECT, destinationAddress.getHostString(), destinationAddress.getPort());
+                DefaultSocks4CommandRequest connectRequest = new DefaultSocks4CommandRequest(
+                    Socks4CommandType.CONNECT, destinationAddress.getHostString(), destinationAddress.getPort());
 
-            addFirstOrReplaceHandler(SOCKS_ENCODER_NAME, Socks4ClientEncoder.INSTANCE);
-            addFirstOrReplaceHandler(SOCKS_DECODER_NAME, new Socks4ClientDecoder());
-            return writeToChannel(connectRequest);
-        }
+                addFirstOrReplaceHandler(SOCKS_ENCODER_NAME, Socks4ClientEncoder.INSTANCE);
+                addFirstOrReplaceHandler(SOCKS_DECODER_NAME, new Socks4ClientDecoder());
+                return writeToChannel(connectRequest);
+            }
 
-        @Override
-        void read(ConnectionFlow flow, Object msg) {
-            removeHandlerIfPresent(SOCKS_ENCODER_NAME);
-            removeHandlerIfPresent(SOCKS_DECODER_NAME);
-            if (msg instanceof Socks4CommandResponse) {
-                if (((Socks4CommandResponse) msg).status() == Socks4CommandStatus.SUCCESS) {
-                    flow.advance();
-                    return;
+            @Override
+            void read(ConnectionFlow flow, Object msg) {
+                removeHandlerIfPresent(SOCKS_ENCODER_NAME);
+                removeHandlerIfPresent(SOCKS_DECODER_NAME);
+                if (msg instanceof Socks4CommandResponse) {
+                    if (((Socks4CommandResponse) msg).status() == Socks4CommandStatus.SUCCESS) {
+                        flow.advance();
+                        return;
+                    }
                 }
+                flow.fail();
             }
-            flow.fail();
-        }
 
-        @Override
-        void onSuccess(ConnectionFlow flow) {
-            // Do not advance the flow until the SOCKS response has been parsed
-        }
-    };
+            @Override
+            void onSuccess(ConnectionFlow flow) {
+                // Do not advance the flow until the SOCKS response has been parsed
+            }
+        };
+    }
 
     /**
      * Initiates a SOCKS5 connection.
      */
-    private final ConnectionFlowStep SOCKS5InitialRequest = new ConnectionFlowStep(
-            this, AWAITING_CONNECT_OK) {
+    private ConnectionFlowStep SOCKS5InitialRequest() {
+        return new ConnectionFlowStep(
+                this, AWAITING_CONNECT_OK) {
+
+            @Override
+            protected Future<?> execute() {
+                List<Socks5AuthMethod> authMethods = new ArrayList<>(2);
+                authMethods.add(Socks5AuthMethod.NO_AUTH);
+                if ((username != null) || (password != null)) {
+                    authMethods.add(Socks5AuthMethod.PASSWORD);
+                }
+                DefaultSocks5InitialRequest initialRequest = new DefaultSocks5InitialRequest(authMethods);
 
-        @Override
-        protected Future<?> execute() {
-            List<Socks5AuthMethod> authMethods = new ArrayList<>(2);
-            authMethods.add(Socks5AuthMethod.NO_AUTH);
-            if ((username != null) || (password != null)) {
-                authMethods.add(Socks5AuthMethod.PASSWORD);
+                addFirstOrReplaceHandler(SOCKS_ENCODER_NAME, Socks5ClientEncoder.DEFAULT);
+                addFirstOrReplaceHandler(SOCKS_DECODER_NAME, new Socks5InitialResponseDecoder());
+                return writeToChannel(initialRequest);
             }
-            DefaultSocks5InitialRequest initialRequest = new DefaultSocks5InitialRequest(authMethods);
 
-            addFirstOrReplaceHandler(SOCKS_ENCODER_NAME, Socks5ClientEncoder.DEFAULT);
-            addFirstOrReplaceHandler(SOCKS_DECODER_NAME, new Socks5InitialResponseDecoder());
-            return writeToChannel(initialRequest);
-        }
+            @Override
+            void read(ConnectionFlow flow, Object msg) {
+                if (msg instanceof Socks5InitialResponse) {
+                    Socks5AuthMethod selectedAuthMethod = ((Socks5InitialResponse) msg).authMethod();
 
-        @Override
-        void read(ConnectionFlow flow, Object msg) {
-            if (msg instanceof Socks5InitialResponse) {
-                Socks5AuthMethod selectedAuthMethod = ((Socks5InitialResponse) msg).authMethod();
-
-                final boolean authSuccess;
-                if (selectedAuthMethod == Socks5AuthMethod.NO_AUTH) {
-                    // Immediately proceed to SOCKS CONNECT
-                    flow.first(SOCKS5CONNECTRequestWithChainedProxy);
-                    authSuccess = true;
-                }
-                else if (selectedAuthMethod == Socks5AuthMethod.PASSWORD) {
-                    // Insert a password negotiation step:
-                    flow.first(SOCKS5SendPasswordCredentials);
-                    authSuccess = true;
-                }
-                else {
-                    // Server returned Socks5AuthMethod.UNACCEPTED or a method we do not support
-                    authSuccess = false;
-                }
+                    final boolean authSuccess;
+                    if (selectedAuthMethod == Socks5AuthMethod.NO_AUTH) {
+                        // Immediately proceed to SOCKS CONNECT
+                        flow.first(SOCKS5CONNECTRequestWithChainedProxy());
+                        authSuccess = true;
+                    }
+                    else if (selectedAuthMethod == Socks5AuthMethod.PASSWORD) {
+                        // Insert a password negotiation step:
+                        flow.first(SOCKS5SendPasswordCredentials());
+                        authSuccess = true;
+                    }
+                    else {
+                        // Server returned Socks5AuthMethod.UNACCEPTED or a method we do not support
+                        authSuccess = false;
+                    }
 
-                if (authSuccess) {
-                    flow.advance();
-                    return;
+                    if (authSuccess) {
+                        flow.advance();
+                        return;
+                    }
                 }
+                flow.fail();
             }
-            flow.fail();
-        }
 
-        @Override
-        void onSuccess(ConnectionFlow flow) {
-            // Do not advance the flow until the SOCKS response has been parsed
-        }
-    };
+            @Override
+            void onSuccess(ConnectionFlow flow) {
+                // Do not advance the flow until the SOCKS response has been parsed
+            }
+        };
+    }
 
     /**
-     * Sends SOCKS5 password credentials after {@link #SOCKS5InitialRequest} has completed.
+     * Sends SOCKS5 password credentials after {@link #SOCKS5InitialRequest()} has completed.
      */
-    private final ConnectionFlowStep SOCKS5SendPasswordCredentials = new ConnectionFlowStep(
-            this, AWAITING_CONNECT_OK) {
+    private ConnectionFlowStep SOCKS5SendPasswordCredentials() {
+        return new ConnectionFlowStep(
+                this, AWAITING_CONNECT_OK) {
 
-        @Override
-        protected Future<?> execute() {
-            DefaultSocks5PasswordAuthRequest authRequest = new DefaultSocks5PasswordAuthRequest(
-                username != null ? username : "", password != null ? password : "");
+            @Override
+            protected Future<?> execute() {
+                DefaultSocks5PasswordAuthRequest authRequest = new DefaultSocks5PasswordAuthRequest(
+                    username != null ? username : "", password != null ? password : "");
 
-            addFirstOrReplaceHandler(SOCKS_DECODER_NAME, new Socks5PasswordAuthResponseDecoder());
-            return writeToChannel(authRequest);
-        }
+                addFirstOrReplaceHandler(SOCKS_DECODER_NAME, new Socks5PasswordAuthResponseDecoder());
+                return writeToChannel(authRequest);
+            }
 
-        @Override
-        void read(ConnectionFlow flow, Object msg) {
-            if (msg instanceof Socks5PasswordAuthResponse) {
-                if (((Socks5PasswordAuthResponse) msg).status() == Socks5PasswordAuthStatus.SUCCESS) {
-                    flow.first(SOCKS5CONNECTRequestWithChainedProxy);
-                    flow.advance();
-                    return;
+            @Override
+            void read(ConnectionFlow flow, Object msg) {
+                if (msg instanceof Socks5PasswordAuthResponse) {
+                    if (((Socks5PasswordAuthResponse) msg).status() == Socks5PasswordAuthStatus.SUCCESS) {
+                        flow.first(SOCKS5CONNECTRequestWithChainedProxy());
+                        flow.advance();
+                        return;
+                    }
                 }
+                flow.fail();
             }
-            flow.fail();
-        }
 
-        @Override
-        void onSuccess(ConnectionFlow flow) {
-            // Do not advance the flow until the SOCKS response has been parsed
-        }
-    };
+            @Override
+            void onSuccess(ConnectionFlow flow) {
+                // Do not advance the flow until the SOCKS response has been parsed
+            }
+        };
+    }
 
     /**
-     * Establishes a SOCKS5 connection after {@link #SOCKS5InitialRequest} and
-     * (optionally) {@link #SOCKS5SendPasswordCredentials} have completed.
+     * Establishes a SOCKS5 connection after {@link #SOCKS5InitialRequest()} and
+     * (optionally) {@link #SOCKS5SendPasswordCredentials()} have completed.
      */
-    private final ConnectionFlowStep SOCKS5CONNECTRequestWithChainedProxy = new ConnectionFlowStep(
-            this, AWAITING_CONNECT_OK) {
-
-        @Override
-        protected Future<?> execute() {
-            InetSocketAddress destinationAddress = unresolvedAddressFor(serverHostAndPort);
-            DefaultSocks5CommandRequest connectRequest = new DefaultSocks5CommandRequest(
-                Socks5CommandType.CONNECT, Socks5AddressType.DOMAIN, destinationAddress.getHostString(), destinationAddress.getPort());
-
-            addFirstOrReplaceHandler(SOCKS_DECODER_NAME, new Socks5CommandResponseDecoder());
-            return writeToChannel(connectRequest);
-        }
+    private ConnectionFlowStep SOCKS5CONNECTRequestWithChainedProxy() {
+        return new ConnectionFlowStep(
+                this, AWAITING_CONNECT_OK) {
+
+            @Override
+            protected Future<?> execute() {
+                InetSocketAddress destinationAddress = unresolvedAddressFor(serverHostAndPort);
+                DefaultSocks5CommandRequest connectRequest = new DefaultSocks5CommandRequest(
+                    Socks5CommandType.CONNECT, Socks5AddressType.DOMAIN, destinationAddress.getHostString(), destinationAddress.getPort());
+
+                addFirstOrReplaceHandler(SOCKS_DECODER_NAME, new Socks5CommandResponseDecoder());
+                return writeToChannel(connectRequest);
+            }
 
-        @Override
-        void read(ConnectionFlow flow, Object msg) {
-            removeHandlerIfPresent(SOCKS_ENCODER_NAME);
-            removeHandlerIfPresent(SOCKS_DECODER_NAME);
-            if (msg instanceof Socks5CommandResponse) {
-                if (((Socks5CommandResponse) msg).status() == Socks5CommandStatus.SUCCESS) {
-                    flow.advance();
-                    return;
+            @Override
+            void read(ConnectionFlow flow, Object msg) {
+                removeHandlerIfPresent(SOCKS_ENCODER_NAME);
+                removeHandlerIfPresent(SOCKS_DECODER_NAME);
+                if (msg instanceof Socks5CommandResponse) {
+                    if (((Socks5CommandResponse) msg).status() == Socks5CommandStatus.SUCCESS) {
+                        flow.advance();
+                        return;
+                    }
                 }
+                flow.fail();
             }
-            flow.fail();
-        }
 
-        @Override
-        void onSuccess(ConnectionFlow flow) {
-            // Do not advance the flow until the SOCKS response has been parsed
-        }
-    };
+            @Override
+            void onSuccess(ConnectionFlow flow) {
+                // Do not advance the flow until the SOCKS response has been parsed
+            }
+        };
+    }
 
     /**
      * <p>
@@ -928,31 +1617,38 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
      * respond to the CONNECT request.
      * </p>
      */
-    private final ConnectionFlowStep MitmEncryptClientChannel = new ConnectionFlowStep(
-            this, HANDSHAKING) {
-        @Override
-        boolean shouldExecuteOnEventLoop() {
-            return false;
-        }
+    private ConnectionFlowStep MitmEncryptClientChannel() {
+        return new ConnectionFlowStep(
+                this, HANDSHAKING) {
+            @Override
+            boolean shouldExecuteOnEventLoop() {
+                return false;
+            }
 
-        @Override
-        boolean shouldSuppressInitialRequest() {
-            return true;
-        }
+            @Override
+            boolean shouldSuppressInitialRequest() {
+                return true;
+            }
 
-        @Override
-        protected Future<?> execute() {
-            return clientConnection
-                    .encrypt(proxyServer.getMitmManager()
-                            .clientSslEngineFor(initialRequest, sslEngine.getSession()), false)
-                    .addListener(
-                            future -> {
-                                if (future.isSuccess()) {
-                                    clientConnection.setMitming(true);
-                                }
-                            });
-        }
-    };
+            @Override
+            protected Future<?> execute() {
+                return clientConnection
+                        .encrypt(proxyServer.getMitmManager()
+                                .clientSslEngineFor(initialRequest, sslEngine.getSession()), false)
+                        .addListener(
+                                future -> {
+                                    if (future.isSuccess()) {
+                                        clientConnection.setMitming(true);
+                                        MitmBypassIndex mitmBypassIndex = proxyServer.getMitmBypassIndex();
+                                        if (mitmBypassIndex != null) {
+                                            mitmBypassIndex.recordSuccess(serverHostAndPort);
+                                        }
+                                        clientConnection.switchToHttp2IfNegotiated();
+                                    }
+                                });
+            }
+        };
+    }
 
     /**
      * Called when the connection to the server or upstream chained proxy fails. This method may return true to indicate
@@ -963,6 +1659,14 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
      */
     protected boolean connectionFailed(Throwable cause)
             throws UnknownHostException {
+        // the origin turned out not to speak HTTP/2, so retry with a connection of our own
+        if (http2Origin != null && proxyServer.getHttp2ConnectionPool().isHttp1Only(http2Origin)) {
+            LOG.debug("{} does not speak HTTP/2, retrying over HTTP/1.1", http2Origin);
+            resetConnectionForRetry();
+            connectAndWrite(initialRequest);
+            return true;
+        }
+
         // unlike a browser, java throws an exception when receiving an unrecognized_name TLS warning, even if the server
         // sends back a valid certificate for the expected host. we can retry the connection without SNI to allow the proxy
         // to connect to these misconfigured hosts. we should only retry the connection without SNI if the connection
@@ -986,6 +1690,8 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
         // disabling SNI. before falling back to a chained proxy, re-enable SNI.
         disableSni = false;
 
+        recordMitmFailureIfNecessary(cause);
+
         if (chainedProxy != null) {
             LOG.info("Connection to upstream server via chained proxy failed", cause);
             // Let the ChainedProxy know that we were unable to connect
@@ -1006,11 +1712,24 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
         }
 
         resetInitialRequest();
+        discardPendingRequests();
 
         // no chained proxy fallback or other retry mechanism available
         return false;
     }
 
+    /**
+     * Remembers TLS failures of man-in-the-middled CONNECTs, whether the server or the client rejected the handshake,
+     * so that the {@link MitmBypassIndex} can tunnel future requests to this host.
+     */
+    private void recordMitmFailureIfNecessary(@Nullable Throwable cause) {
+        MitmBypassIndex mitmBypassIndex = proxyServer.getMitmBypassIndex();
+        if (mitmAttempted && mitmBypassIndex != null && cause != null
+                && Throwables.getCausalChain(cause).stream().anyMatch(SSLException.class::isInstance)) {
+            mitmBypassIndex.recordFailure(serverHostAndPort);
+        }
+    }
+
     /**
      * Convenience method to prepare to retry this connection. Closes the connection's channel and sets up
      * the connection again using {@link #setupConnectionParameters()}.
@@ -1018,10 +1737,15 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
      * @throws UnknownHostException when {@link #setupConnectionParameters()} is unable to resolve the hostname
      */
     private void resetConnectionForRetry() throws UnknownHostException {
-        // Remove ourselves as handler on the old context
-        ctx.pipeline().remove(this);
-        ctx.close();
-        ctx = null;
+        // Remove ourselves as handler on the old context, unless the failed channel has already torn down its pipeline.
+        // There is no context if we never got as far as opening an HTTP/2 stream.
+        if (ctx != null) {
+            if (ctx.pipeline().context(this) != null) {
+                ctx.pipeline().remove(this);
+            }
+            ctx.close();
+            ctx = null;
+        }
 
         setupConnectionParameters();
     }
@@ -1049,6 +1773,7 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
             password = null;
 
             // Report DNS resolution to HttpFilters
+            mark(RequestTimings.Event.RESOLUTION_STARTED);
             remoteAddress = currentFilters.proxyToServerResolutionStarted(serverHostAndPort);
 
             // save the hostname and port of the unresolved address in hostAndPort, in case name resolution fails
@@ -1070,6 +1795,7 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
                 throw e;
             }
 
+            mark(RequestTimings.Event.RESOLUTION_SUCCEEDED);
             currentFilters.proxyToServerResolutionSucceeded(serverHostAndPort, remoteAddress);
 
 
@@ -1091,6 +1817,7 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
      */
     private void initChannelPipeline(ChannelPipeline pipeline) {
 
+        consolidateFlushes(pipeline);
         if (trafficHandler != null) {
             pipeline.addLast("global-traffic-shaping", trafficHandler);
         }
@@ -1114,14 +1841,38 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
             aggregateContentForFiltering(pipeline, numberOfBytesToBuffer);
         }
 
-        pipeline.addLast(HTTP_RESPONSE_READ_MONITOR_NAME, responseReadMonitor);
+        pipeline.addLast(HTTP_RESPONSE_READ_MONITOR_NAME, ResponseReadMonitor.INSTANCE);
         pipeline.addLast(HTTP_REQUEST_WRITTEN_MONITOR_NAME, requestWrittenMonitor);
 
-        // Set idle timeout
-        pipeline.addLast(
-                "idle",
-                new IdleStateHandler(0, 0, proxyServer
-                        .getIdleConnectionTimeout()));
+        pipeline.addLast(MAIN_HANDLER_NAME, this);
+    }
+
+    /**
+     * Initialize the {@link ChannelPipeline} of a stream on a pooled HTTP/2
+     * connection. The {@link Http2StreamFrameToHttpObjectCodec} translates
+     * between the stream's frames and {@link HttpObject}s, so that the rest of
+     * the pipeline is the same as for a connection of our own.
+     */
+    private void initHttp2StreamPipeline(ChannelPipeline pipeline) {
+        if (trafficHandler != null) {
+            pipeline.addLast("global-traffic-shaping", trafficHandler);
+        }
+
+        // below the tunnel codec, so that they count the content of the stream's DATA frames either way
+        pipeline.addLast("bytesReadMonitor", bytesReadMonitor);
+        pipeline.addLast("bytesWrittenMonitor", bytesWrittenMonitor);
+
+        pipeline.addLast(HTTP2_STREAM_TUNNEL_CODEC_NAME, new Http2StreamTunnelCodec(this));
+        pipeline.addLast(HTTP_DECODER_NAME, new Http2StreamFrameToHttpObjectCodec(false));
+
+        int numberOfBytesToBuffer = proxyServer.getFiltersSource()
+                .getMaximumResponseBufferSizeInBytes();
+        if (numberOfBytesToBuffer > 0) {
+            aggregateContentForFiltering(pipeline, numberOfBytesToBuffer);
+        }
+
+        pipeline.addLast(HTTP_RESPONSE_READ_MONITOR_NAME, ResponseReadMonitor.INSTANCE);
+        pipeline.addLast(HTTP_REQUEST_WRITTEN_MONITOR_NAME, requestWrittenMonitor);
 
         pipeline.addLast(MAIN_HANDLER_NAME, this);
     }
@@ -1151,7 +1902,7 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
 
         if (shouldForwardInitialRequest) {
             LOG.debug("Writing initial request: {}", initialRequest);
-            write(initialRequest);
+            writeNow(initialRequest);
         } else {
             LOG.debug("Dropping initial request: {}", initialRequest);
         }
@@ -1160,6 +1911,14 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
         // completely dropped (HTTPS CONNECTs). if the initialRequest is reference counted (typically because the HttpObjectAggregator is in
         // the pipeline to generate FullHttpRequests), we need to manually release it to avoid a memory leak.
         resetInitialRequest();
+
+        // messages held back while connecting may be pipelined behind the initial request now
+        releaseHeldMessages();
+
+        if (isTunneling() && clientConnection.isTunneling()) {
+            // the CONNECT tunnel is established: its bytes no longer need to go through either connection
+            TunnelRelayHandler.relay(clientConnection, this);
+        }
     }
 
     private void resetInitialRequest() {
@@ -1236,17 +1995,29 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
         }
     };
 
-    private final ResponseReadMonitor responseReadMonitor = new ResponseReadMonitor() {
-        @Override
-        protected void responseRead(HttpResponse httpResponse) {
-            FullFlowContext flowContext = new FullFlowContext(clientConnection,
-                    ProxyToServerConnection.this);
-            for (ActivityTracker tracker : proxyServer
-                    .getActivityTrackers()) {
-                tracker.responseReceivedFromServer(flowContext, httpResponse);
+    @Override
+    protected void responseRead(HttpResponse httpResponse) {
+        FullFlowContext flowContext = new FullFlowContext(clientConnection, this);
+        for (ActivityTracker tracker : proxyServer
+                .getActivityTrackers()) {
+            tracker.responseReceivedFromServer(flowContext, httpResponse);
+        }
+    }
+
+    /**
+     * Reports the timings of a request whose response has been completely
+     * received to the {@link ActivityTracker}s.
+     */
+    private void recordResponseCompleted(RequestTimings requestTimings) {
+        FullFlowContext flowContext = new FullFlowContext(clientConnection, this);
+        try {
+            for (ActivityTracker tracker : proxyServer.getActivityTrackers()) {
+                tracker.responseCompletedFromServer(flowContext, requestTimings);
             }
+        } catch (Throwable t) {
+            LOG.warn("Error while invoking ActivityTracker on response completion", t);
         }
-    };
+    }
 
     private final BytesWrittenMonitor bytesWrittenMonitor = new BytesWrittenMonitor() {
         @Override
@@ -1274,7 +2045,11 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
                 LOG.warn("Error while invoking ActivityTracker on request", t);
             }
 
-            currentFilters.proxyToServerRequestSending();
+            RequestTimings requestTimings = requestTimingsForWrites();
+            if (requestTimings != null) {
+                requestTimings.mark(RequestTimings.Event.REQUEST_SENDING);
+            }
+            filtersForWrites().proxyToServerRequestSending();
         }
 
         @Override
@@ -1284,7 +2059,11 @@ public class ProxyToServerConnection extends ProxyConnection<HttpResponse> {
         @Override
         protected void contentWritten(HttpContent httpContent) {
             if (httpContent instanceof LastHttpContent) {
-                currentFilters.proxyToServerRequestSent();
+                RequestTimings requestTimings = requestTimingsForWrites();
+                if (requestTimings != null && !requestTimings.isMarked(RequestTimings.Event.REQUEST_SENT)) {
+                    requestTimings.mark(RequestTimings.Event.REQUEST_SENT);
+                }
+                filtersForWrites().proxyToServerRequestSent();
             }
         }
     };
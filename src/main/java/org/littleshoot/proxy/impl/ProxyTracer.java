@@ -0,0 +1,287 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import org.littleshoot.proxy.RequestTimings;
+import org.littleshoot.proxy.Span;
+import org.littleshoot.proxy.SpanExporter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Continues the W3C trace context (https://www.w3.org/TR/trace-context/) of
+ * the requests going through the proxy, and records their spans.
+ * </p>
+ *
+ * <p>
+ * A request's traceparent header makes the proxy's span a child of the
+ * client's; without a valid one, the proxy starts a new, sampled trace. The
+ * request to the server carries a traceparent naming the proxy's client
+ * span, and the tracestate it came with. The spans of sampled requests are
+ * queued as they end, and handed to the {@link SpanExporter} in batches by a
+ * dedicated thread, so that a slow backend never holds up an event loop:
+ * when the queue is full, spans are dropped and counted instead.
+ * </p>
+ */
+class ProxyTracer {
+    private static final Logger LOG = LoggerFactory.getLogger(ProxyTracer.class);
+
+    static final String TRACEPARENT = "traceparent";
+    static final String TRACESTATE = "tracestate";
+
+    static final int DEFAULT_QUEUE_CAPACITY = 2048;
+    static final int MAX_BATCH_SIZE = 512;
+    static final long DEFAULT_EXPORT_DELAY_MILLIS = 1000;
+
+    /**
+     * The longest the exporter thread waits for spans before checking
+     * whether it's being stopped.
+     */
+    private static final long STOP_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    /**
+     * The longest tracestate the proxy propagates, as recommended by the
+     * specification. Longer ones are dropped.
+     */
+    private static final int MAX_TRACESTATE_LENGTH = 512;
+
+    private final SpanExporter exporter;
+    private final BlockingQueue<Span> queue;
+    private final long exportDelayNanos;
+    private final AtomicLong droppedSpans = new AtomicLong();
+
+    private volatile boolean stopped;
+    private Thread exporterThread;
+
+    ProxyTracer(SpanExporter exporter) {
+        this(exporter, DEFAULT_QUEUE_CAPACITY, DEFAULT_EXPORT_DELAY_MILLIS);
+    }
+
+    ProxyTracer(SpanExporter exporter, int queueCapacity, long exportDelayMillis) {
+        this.exporter = exporter;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.exportDelayNanos = TimeUnit.MILLISECONDS.toNanos(exportDelayMillis);
+    }
+
+    synchronized void start() {
+        if (exporterThread == null) {
+            exporterThread = new Thread(this::exportUntilStopped, "LittleProxy-span-exporter");
+            exporterThread.setDaemon(true);
+            exporterThread.start();
+        }
+    }
+
+    /**
+     * Stops the exporter thread once it has exported the queued spans, and
+     * shuts the exporter down. Spans that end afterwards are not exported.
+     * The thread isn't interrupted, as that would also interrupt an export in
+     * progress, and close the channel of an exporter writing to a file.
+     */
+    synchronized void stop() {
+        stopped = true;
+        if (exporterThread != null) {
+            try {
+                exporterThread.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exporterThread = null;
+        }
+    }
+
+    /**
+     * The number of spans dropped because the exporter fell behind.
+     */
+    long getDroppedSpans() {
+        return droppedSpans.get();
+    }
+
+    /**
+     * Starts the span of a request just read from a client, continuing the
+     * trace context of its headers if they have a valid one.
+     */
+    ProxySpan startSpan(HttpRequest request, RequestTimings requestTimings, InetSocketAddress clientAddress) {
+        HttpHeaders headers = request.headers();
+        String traceId;
+        String parentSpanId;
+        String traceState = null;
+        boolean sampled;
+
+        String traceparent = headers.getAll(TRACEPARENT).size() == 1 ? headers.get(TRACEPARENT).trim() : null;
+        if (traceparent != null && isValidTraceparent(traceparent)) {
+            traceId = traceparent.substring(3, 35);
+            parentSpanId = traceparent.substring(36, 52);
+            sampled = (Integer.parseInt(traceparent.substring(53, 55), 16) & 1) != 0;
+            List<String> traceStates = headers.getAll(TRACESTATE);
+            if (!traceStates.isEmpty()) {
+                traceState = String.join(",", traceStates);
+                if (traceState.isEmpty() || traceState.length() > MAX_TRACESTATE_LENGTH) {
+                    traceState = null;
+                }
+            }
+        } else {
+            traceId = newTraceId();
+            parentSpanId = null;
+            sampled = true;
+        }
+
+        Map<String, Object> attributes = new ConcurrentHashMap<>();
+        attributes.put("http.request.method", request.method().name());
+        attributes.put("url.full", request.uri());
+        attributes.put("network.protocol.version", request.protocolVersion().text());
+        if (clientAddress != null) {
+            attributes.put("client.address", clientAddress.getHostString());
+            attributes.put("client.port", (long) clientAddress.getPort());
+        }
+        return new ProxySpan(this, traceId, parentSpanId, traceState, sampled, requestTimings, attributes);
+    }
+
+    /**
+     * Queues a finished span for export, or drops it if the queue is full.
+     */
+    void export(Span span) {
+        if (stopped || !queue.offer(span)) {
+            droppedSpans.incrementAndGet();
+        }
+    }
+
+    private void exportUntilStopped() {
+        List<Span> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        try {
+            while (!stopped) {
+                // wait for a full batch, for the export delay to expire, or for stop()
+                long deadline = System.nanoTime() + exportDelayNanos;
+                while (batch.size() < MAX_BATCH_SIZE && !stopped) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    Span span = queue.poll(Math.min(remaining, STOP_CHECK_NANOS), TimeUnit.NANOSECONDS);
+                    if (span != null) {
+                        batch.add(span);
+                        queue.drainTo(batch, MAX_BATCH_SIZE - batch.size());
+                    }
+                }
+                exportBatch(batch);
+            }
+        } catch (InterruptedException e) {
+            // not restoring the interrupt, which would fail the exports of the queued spans
+            LOG.warn("Span exporter thread interrupted, exporting the queued spans and stopping");
+        }
+
+        do {
+            queue.drainTo(batch, MAX_BATCH_SIZE - batch.size());
+            exportBatch(batch);
+        } while (!queue.isEmpty());
+
+        try {
+            exporter.shutdown();
+        } catch (RuntimeException e) {
+            LOG.warn("Unable to shut down span exporter", e);
+        }
+    }
+
+    private void exportBatch(List<Span> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            exporter.export(batch);
+        } catch (IOException | RuntimeException e) {
+            droppedSpans.addAndGet(batch.size());
+            LOG.warn("Unable to export {} spans", batch.size(), e);
+        }
+        batch.clear();
+    }
+
+    /**
+     * Checks a traceparent header: a version that isn't ff, followed by a
+     * trace id, a parent id and flags, with neither id all zeros. Later
+     * versions may append fields, which are ignored.
+     */
+    static boolean isValidTraceparent(String traceparent) {
+        if (traceparent.length() < 55
+                || traceparent.charAt(2) != '-' || traceparent.charAt(35) != '-' || traceparent.charAt(52) != '-') {
+            return false;
+        }
+        String version = traceparent.substring(0, 2);
+        if (!isLowerHex(version) || version.equals("ff")) {
+            return false;
+        }
+        if (version.equals("00") ? traceparent.length() != 55
+                : traceparent.length() > 55 && traceparent.charAt(55) != '-') {
+            return false;
+        }
+        String traceId = traceparent.substring(3, 35);
+        String parentId = traceparent.substring(36, 52);
+        return isLowerHex(traceId) && !isAllZeros(traceId)
+                && isLowerHex(parentId) && !isAllZeros(parentId)
+                && isLowerHex(traceparent.substring(53, 55));
+    }
+
+    private static boolean isLowerHex(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isAllZeros(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) != '0') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static String newTraceId() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long high;
+        long low;
+        do {
+            high = random.nextLong();
+            low = random.nextLong();
+        } while (high == 0 && low == 0);
+        return toHex(high) + toHex(low);
+    }
+
+    static String newSpanId() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long id;
+        do {
+            id = random.nextLong();
+        } while (id == 0);
+        return toHex(id);
+    }
+
+    private static String toHex(long value) {
+        String hex = Long.toHexString(value);
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+
+    /**
+     * The current wall clock time, in nanoseconds since the epoch.
+     */
+    static long epochNanos() {
+        Instant now = Instant.now();
+        return TimeUnit.SECONDS.toNanos(now.getEpochSecond()) + now.getNano();
+    }
+}
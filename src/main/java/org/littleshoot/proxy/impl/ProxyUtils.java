@@ -35,7 +35,6 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
 import java.util.Set;
-import java.util.regex.Pattern;
 
 /**
  * Utilities for the proxy.
@@ -62,6 +61,18 @@ public class ProxyUtils {
             HttpHeaderNames.UPGRADE.toString()
     );
 
+    /**
+     * Request methods that are idempotent according to RFC 7231, section 4.2.2.
+     */
+    private static final Set<HttpMethod> IDEMPOTENT_METHODS = ImmutableSet.of(
+            HttpMethod.GET,
+            HttpMethod.HEAD,
+            HttpMethod.OPTIONS,
+            HttpMethod.TRACE,
+            HttpMethod.PUT,
+            HttpMethod.DELETE
+    );
+
     private static final Logger LOG = LoggerFactory.getLogger(ProxyUtils.class);
 
     /**
@@ -69,11 +80,6 @@ public class ProxyUtils {
      */
     private static final Splitter COMMA_SEPARATED_HEADER_VALUE_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
 
-    // Schemes are case-insensitive:
-    // https://tools.ietf.org/html/rfc3986#section-3.1
-    private static final Pattern HTTP_PREFIX = Pattern.compile("^(http|ws)s?://.*",
-            Pattern.CASE_INSENSITIVE);
-
     /**
      * Strips the host from a URI string. This will turn "https://host.com/path"
      * into "/path".
@@ -83,17 +89,38 @@ public class ProxyUtils {
      * @return A string with the URI stripped.
      */
     public static String stripHost(final String uri) {
-        if (!HTTP_PREFIX.matcher(uri).matches()) {
+        final int authorityStart = authorityStart(uri);
+        if (authorityStart == 0) {
             // It's likely a URI path, not the full URI (i.e. the host is
             // already stripped).
             return uri;
         }
-        final String noHttpUri = StringUtils.substringAfter(uri, "://");
-        final int slashIndex = noHttpUri.indexOf("/");
+        final int slashIndex = uri.indexOf('/', authorityStart);
         if (slashIndex == -1) {
             return "/";
         }
-        return noHttpUri.substring(slashIndex);
+        return uri.substring(slashIndex);
+    }
+
+    /**
+     * Returns the index at which the authority of a URI starts, i.e. right
+     * after the "://" of an http, https, ws or wss URI, or 0 if the URI
+     * doesn't start with any of these schemes. Schemes are case-insensitive:
+     * https://tools.ietf.org/html/rfc3986#section-3.1
+     */
+    private static int authorityStart(final String uri) {
+        int index;
+        if (uri.regionMatches(true, 0, "http", 0, 4)) {
+            index = 4;
+        } else if (uri.regionMatches(true, 0, "ws", 0, 2)) {
+            index = 2;
+        } else {
+            return 0;
+        }
+        if (index < uri.length() && (uri.charAt(index) == 's' || uri.charAt(index) == 'S')) {
+            index++;
+        }
+        return uri.startsWith("://", index) ? index + 3 : 0;
     }
 
     /**
@@ -135,23 +162,14 @@ public class ProxyUtils {
      * @return The host and port string.
      */
     public static String parseHostAndPort(final String uri) {
-        final String tempUri;
-        if (!HTTP_PREFIX.matcher(uri).matches()) {
-            // Browsers particularly seem to send requests in this form when
-            // they use CONNECT.
-            tempUri = uri;
-        } else {
-            // We can't just take a substring from a hard-coded index because it
-            // could be either http or https.
-            tempUri = StringUtils.substringAfter(uri, "://");
-        }
-        final String hostAndPort;
-        if (tempUri.contains("/")) {
-            hostAndPort = tempUri.substring(0, tempUri.indexOf("/"));
-        } else {
-            hostAndPort = tempUri;
+        // Browsers particularly seem to send requests without a scheme when
+        // they use CONNECT, in which case the whole URI is the host and port.
+        final int authorityStart = authorityStart(uri);
+        final int slashIndex = uri.indexOf('/', authorityStart);
+        if (slashIndex == -1) {
+            return authorityStart == 0 ? uri : uri.substring(authorityStart);
         }
-        return hostAndPort;
+        return uri.substring(authorityStart, slashIndex);
     }
 
     /**
@@ -277,6 +295,17 @@ public class ProxyUtils {
         return httpRequest != null && HttpMethod.HEAD.equals(httpRequest.method());
     }
 
+    /**
+     * Returns true if the specified HttpRequest uses an idempotent method, which can safely be sent to the server more
+     * than once (RFC 7231, section 4.2.2).
+     *
+     * @param httpRequest http request
+     * @return true if the request's method is idempotent, otherwise false
+     */
+    public static boolean isIdempotent(HttpRequest httpRequest) {
+        return httpRequest != null && IDEMPOTENT_METHODS.contains(httpRequest.method());
+    }
+
     private static boolean checkTrueOrFalse(final String val,
             final String str1, final String str2) {
         final String str = val.trim();
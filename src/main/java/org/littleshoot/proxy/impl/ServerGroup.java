@@ -8,10 +8,13 @@ import org.littleshoot.proxy.UnknownTransportProtocolException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.nio.channels.spi.SelectorProvider;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -94,10 +97,16 @@ public class ServerGroup {
      */
     private final AtomicBoolean stopped = new AtomicBoolean(false);
 
+    /**
+     * Probes the event loops of this ServerGroup for lag and stalls, or null if they aren't probed.
+     */
+    private final EventLoopLagMonitor eventLoopLagMonitor;
+
     /**
      * Creates a new ServerGroup instance for a proxy. Threads created for this ServerGroup will have the specified
      * ServerGroup name in the Thread name. This constructor does not actually initialize any thread pools; instead,
-     * thread pools for specific transport protocols are lazily initialized as needed.
+     * thread pools for specific transport protocols are lazily initialized as needed. Event loops aren't probed for
+     * lag.
      *
      * @param name ServerGroup name to include in thread names
      * @param incomingAcceptorThreads number of acceptor threads per protocol
@@ -105,11 +114,27 @@ public class ServerGroup {
      * @param outgoingWorkerThreads number of proxy-to-server worker threads per protocol
      */
     public ServerGroup(String name, int incomingAcceptorThreads, int incomingWorkerThreads, int outgoingWorkerThreads) {
+        this(name, incomingAcceptorThreads, incomingWorkerThreads, outgoingWorkerThreads,
+                EventLoopLagMonitor.DEFAULT_PROBE_INTERVAL, EventLoopLagMonitor.DEFAULT_STALL_THRESHOLD);
+    }
+
+    /**
+     * Like {@link #ServerGroup(String, int, int, int)}, and probes every event loop for lag at the given interval (see
+     * {@link EventLoopLagMonitor}).
+     *
+     * @param eventLoopProbeInterval interval between two probes of an event loop, or {@link Duration#ZERO} not to probe
+     * @param eventLoopStallThreshold lag past which the stack of a stalled event loop is logged
+     */
+    public ServerGroup(String name, int incomingAcceptorThreads, int incomingWorkerThreads, int outgoingWorkerThreads,
+                       Duration eventLoopProbeInterval, Duration eventLoopStallThreshold) {
         this.name = name;
         this.serverGroupId = serverGroupCount.getAndIncrement();
         this.incomingAcceptorThreads = incomingAcceptorThreads;
         this.incomingWorkerThreads = incomingWorkerThreads;
         this.outgoingWorkerThreads = outgoingWorkerThreads;
+        this.eventLoopLagMonitor = eventLoopProbeInterval.isZero() || eventLoopProbeInterval.isNegative()
+                ? null
+                : new EventLoopLagMonitor(this, eventLoopProbeInterval, eventLoopStallThreshold, name, serverGroupId);
     }
 
     /**
@@ -148,6 +173,10 @@ public class ServerGroup {
                             name,
                             serverGroupId);
                     protocolThreadPools.put(protocol, threadPools);
+
+                    if (eventLoopLagMonitor != null) {
+                        eventLoopLagMonitor.start();
+                    }
                 }
             }
         }
@@ -155,6 +184,15 @@ public class ServerGroup {
         return protocolThreadPools.get(protocol);
     }
 
+    /**
+     * Returns the thread pools that have been initialized so far, by transport protocol.
+     */
+    Map<TransportProtocol, ProxyThreadPools> getInitializedThreadPools() {
+        synchronized (THREAD_POOL_INIT_LOCK) {
+            return new EnumMap<>(protocolThreadPools);
+        }
+    }
+
     /**
      * Lock controlling access to the {@link #registerProxyServer(HttpProxyServer)} and {@link #unregisterProxyServer(HttpProxyServer, boolean)}
      * methods.
@@ -211,6 +249,10 @@ public class ServerGroup {
 
         log.info("Shutting down server group event loops {}", graceful ? "(graceful)" : "(non-graceful)");
 
+        if (eventLoopLagMonitor != null) {
+            eventLoopLagMonitor.stop();
+        }
+
         // loop through all event loops managed by this server group. this includes acceptor and worker event loops
         // for both TCP and UDP transport protocols.
         List<EventLoopGroup> allEventLoopGroups = new ArrayList<>();
@@ -281,6 +323,22 @@ public class ServerGroup {
         return getThreadPoolsForProtocol(protocol).getProxyToServerWorkerPool();
     }
 
+    /**
+     * @return the monitor probing the event loops of this ServerGroup for lag, or null if they aren't probed
+     */
+    @Nullable
+    public EventLoopLagMonitor getEventLoopLagMonitor() {
+        return eventLoopLagMonitor;
+    }
+
+    /**
+     * @return a factory of threads named after this ServerGroup, for threads of the given category that are not in
+     * its thread pools
+     */
+    CategorizedThreadFactory newThreadFactory(String category) {
+        return new CategorizedThreadFactory(name, category, serverGroupId);
+    }
+
     /**
      * @return true if this ServerGroup has already been stopped
      */
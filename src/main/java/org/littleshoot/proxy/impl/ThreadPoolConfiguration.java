@@ -1,5 +1,7 @@
 package org.littleshoot.proxy.impl;
 
+import java.time.Duration;
+
 /**
  * Configuration object for the proxy's thread pools. Controls the number of acceptor and worker threads in the Netty
  * {@link io.netty.channel.EventLoopGroup} used by the proxy.
@@ -8,6 +10,8 @@ public class ThreadPoolConfiguration {
     private int acceptorThreads = ServerGroup.DEFAULT_INCOMING_ACCEPTOR_THREADS;
     private int clientToProxyWorkerThreads = ServerGroup.DEFAULT_INCOMING_WORKER_THREADS;
     private int proxyToServerWorkerThreads = ServerGroup.DEFAULT_OUTGOING_WORKER_THREADS;
+    private Duration eventLoopProbeInterval = EventLoopLagMonitor.DEFAULT_PROBE_INTERVAL;
+    private Duration eventLoopStallThreshold = EventLoopLagMonitor.DEFAULT_STALL_THRESHOLD;
 
     public int getClientToProxyWorkerThreads() {
         return clientToProxyWorkerThreads;
@@ -59,4 +63,36 @@ public class ThreadPoolConfiguration {
         return this;
     }
 
+    public Duration getEventLoopProbeInterval() {
+        return eventLoopProbeInterval;
+    }
+
+    /**
+     * Set the interval at which every event loop is probed for lag (see {@link EventLoopLagMonitor}), or
+     * {@link Duration#ZERO} not to probe them. By default, they aren't probed.
+     *
+     * @param eventLoopProbeInterval interval between two probes of an event loop
+     * @return this thread pool configuration instance, for chaining
+     */
+    public ThreadPoolConfiguration withEventLoopProbeInterval(Duration eventLoopProbeInterval) {
+        this.eventLoopProbeInterval = eventLoopProbeInterval;
+        return this;
+    }
+
+    public Duration getEventLoopStallThreshold() {
+        return eventLoopStallThreshold;
+    }
+
+    /**
+     * Set the lag past which an event loop is considered stalled, and the stack of its thread is logged to show what
+     * is blocking it. The default value is {@link EventLoopLagMonitor#DEFAULT_STALL_THRESHOLD}.
+     *
+     * @param eventLoopStallThreshold lag past which an event loop is considered stalled
+     * @return this thread pool configuration instance, for chaining
+     */
+    public ThreadPoolConfiguration withEventLoopStallThreshold(Duration eventLoopStallThreshold) {
+        this.eventLoopStallThreshold = eventLoopStallThreshold;
+        return this;
+    }
+
 }
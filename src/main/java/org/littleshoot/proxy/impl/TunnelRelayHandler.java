@@ -0,0 +1,141 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.socket.ChannelInputShutdownEvent;
+import io.netty.channel.socket.DuplexChannel;
+import io.netty.handler.ssl.SslHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Relays the bytes of an established CONNECT tunnel from one connection's
+ * channel to the other's, without going through the HTTP state machine of
+ * the connection they were read by. One is added to each of the two
+ * pipelines, right before the connection itself, which still handles the
+ * channel's other events, such as it closing.
+ * </p>
+ *
+ * <p>
+ * The buffers read in one go are flushed to the other channel at once, and
+ * the connection's last read time is only updated then. The other
+ * connection's last write time is updated by its bytes written monitor as
+ * they're flushed. When the other channel can't take any more, this channel
+ * stops reading until it can, on its own event loop. The writability change
+ * is passed on to the other connection as well.
+ * </p>
+ *
+ * <p>
+ * When both channels are plain TCP connections, a connection that's shut
+ * down for output by one peer is shut down for output towards the other
+ * peer, once the bytes relayed before are written, rather than closed, so
+ * that the other peer may still answer. Each channel is closed once it's
+ * shut down both ways.
+ * </p>
+ */
+class TunnelRelayHandler extends ChannelInboundHandlerAdapter {
+    private static final Logger LOG = LoggerFactory.getLogger(TunnelRelayHandler.class);
+
+    static final String TUNNEL_RELAY_NAME = "tunnelRelay";
+
+    private final ProxyConnection<?> connection;
+    private final ProxyConnection<?> peer;
+    private final Channel peerChannel;
+
+    /**
+     * Whether buffers were written to the other channel since the last flush.
+     * Only touched on the event loop.
+     */
+    private boolean flushPending;
+
+    private TunnelRelayHandler(ProxyConnection<?> connection, ProxyConnection<?> peer) {
+        this.connection = connection;
+        this.peer = peer;
+        this.peerChannel = peer.channel;
+    }
+
+    /**
+     * Relays the bytes that the two connections of a tunnel read from now on
+     * to each other.
+     */
+    static void relay(ProxyConnection<?> clientConnection, ProxyConnection<?> serverConnection) {
+        if (allowsHalfClosure(clientConnection.channel) && allowsHalfClosure(serverConnection.channel)) {
+            clientConnection.channel.config().setOption(ChannelOption.ALLOW_HALF_CLOSURE, true);
+            serverConnection.channel.config().setOption(ChannelOption.ALLOW_HALF_CLOSURE, true);
+        }
+        addRelay(clientConnection, serverConnection);
+        addRelay(serverConnection, clientConnection);
+    }
+
+    private static boolean allowsHalfClosure(Channel channel) {
+        // a TLS session can't be shut down one way only
+        return channel instanceof DuplexChannel && channel.pipeline().get(SslHandler.class) == null;
+    }
+
+    private static void addRelay(ProxyConnection<?> connection, ProxyConnection<?> peer) {
+        ChannelPipeline pipeline = connection.channel.pipeline();
+        if (pipeline.get(TUNNEL_RELAY_NAME) == null && pipeline.context(connection) != null) {
+            pipeline.addBefore(connection.ctx.name(), TUNNEL_RELAY_NAME, new TunnelRelayHandler(connection, peer));
+        }
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (msg instanceof ByteBuf) {
+            peerChannel.write(msg);
+            flushPending = true;
+        } else {
+            ctx.fireChannelRead(msg);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        if (flushPending) {
+            flushPending = false;
+            connection.lastReadTime = System.currentTimeMillis();
+            peerChannel.flush();
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        // the other connection is the only one writing to this channel. Its reading is toggled on its own event loop,
+        // according to this channel's writability by then
+        Channel channel = ctx.channel();
+        peer.runOnEventLoop(() -> {
+            if (channel.isWritable()) {
+                peer.resumeReading();
+            } else {
+                peer.stopReading();
+            }
+        });
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+        if (evt instanceof ChannelInputShutdownEvent && peerChannel instanceof DuplexChannel) {
+            LOG.debug("{} shut down its output, shutting down the output to {}", ctx.channel(), peerChannel);
+            DuplexChannel channel = (DuplexChannel) ctx.channel();
+            DuplexChannel peerDuplexChannel = (DuplexChannel) peerChannel;
+            peerChannel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(written ->
+                    peerDuplexChannel.shutdownOutput().addListener(shutdown -> closeIfShutdown(peerDuplexChannel)));
+            closeIfShutdown(channel);
+        }
+        ctx.fireUserEventTriggered(evt);
+    }
+
+    private static void closeIfShutdown(DuplexChannel channel) {
+        if (channel.isShutdown()) {
+            channel.close();
+        }
+    }
+}
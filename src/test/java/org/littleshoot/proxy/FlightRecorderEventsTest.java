@@ -0,0 +1,105 @@
+package org.littleshoot.proxy;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.server.Server;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Objects;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.littleshoot.proxy.TestUtils.createProxiedHttpClient;
+
+/**
+ * Tests the Java Flight Recorder events of the proxy, as enabled by the
+ * littleproxy.jfc settings.
+ */
+public final class FlightRecorderEventsTest {
+    private Server webServer;
+    private HttpProxyServer proxyServer;
+
+    @TempDir
+    Path dir;
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (proxyServer != null) {
+            proxyServer.abort();
+        }
+        if (webServer != null) {
+            webServer.stop();
+        }
+    }
+
+    @Test
+    public void testRecordsConnectionAndRequestLifecycle() throws Exception {
+        webServer = TestUtils.startWebServer(false);
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withFiltersSource(new HttpFiltersSourceAdapter())
+                .start();
+
+        Configuration settings;
+        try (Reader reader = new InputStreamReader(
+                Objects.requireNonNull(getClass().getResourceAsStream("/littleproxy.jfc")), StandardCharsets.UTF_8)) {
+            settings = Configuration.create(reader);
+        }
+        Path file = dir.resolve("recording.jfr");
+        try (Recording recording = new Recording(settings)) {
+            recording.enable("org.littleshoot.proxy.FilterInvocation").withoutThreshold();
+            recording.start();
+
+            try (CloseableHttpClient httpClient = createProxiedHttpClient(proxyServer.getListenAddress().getPort())) {
+                HttpResponse response = httpClient.execute(new HttpGet(
+                        "http://127.0.0.1:" + TestUtils.findLocalHttpPort(webServer) + "/"));
+                assertThat(response.getStatusLine().getStatusCode()).isEqualTo(200);
+                EntityUtils.consume(response.getEntity());
+            }
+            // the client connection is recorded once the proxy sees it close
+            proxyServer.stop();
+            proxyServer = null;
+
+            recording.stop();
+            recording.dump(file);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+        assertThat(events).extracting(event -> event.getEventType().getName())
+                .contains("org.littleshoot.proxy.ClientConnection",
+                        "org.littleshoot.proxy.StateTransition",
+                        "org.littleshoot.proxy.ConnectionFlowStep",
+                        "org.littleshoot.proxy.Request",
+                        "org.littleshoot.proxy.FilterInvocation");
+
+        RecordedEvent request = events.stream()
+                .filter(event -> event.getEventType().getName().equals("org.littleshoot.proxy.Request"))
+                .findFirst()
+                .orElseThrow();
+        assertThat(request.getString("method")).isEqualTo("GET");
+        assertThat(request.getInt("status")).isEqualTo(200);
+        assertThat(request.getDuration("total")).isPositive();
+
+        assertThat(events)
+                .filteredOn(event -> event.getEventType().getName().equals("org.littleshoot.proxy.ConnectionFlowStep"))
+                .extracting(event -> event.getString("step"))
+                .contains("CONNECTING");
+        assertThat(events)
+                .filteredOn(event -> event.getEventType().getName().equals("org.littleshoot.proxy.FilterInvocation"))
+                .extracting(event -> event.getString("callback"))
+                .contains("clientToProxyRequest", "proxyToClientResponse");
+    }
+}
@@ -0,0 +1,138 @@
+package org.littleshoot.proxy;
+
+import org.junit.jupiter.api.Test;
+import org.littleshoot.proxy.extras.TestMitmManager;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.net.InetSocketAddress;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests that clients negotiate HTTP/2 with a man in the middle proxy and
+ * multiplex their requests over a single connection.
+ */
+public final class Http2ClientTest extends AbstractProxyTest {
+    private final AtomicInteger clientConnections = new AtomicInteger();
+
+    @Override
+    protected void setUp() {
+        proxyServer = bootstrapProxy(true).start();
+    }
+
+    private HttpProxyServerBootstrap bootstrapProxy(boolean clientHttp2) {
+        return bootstrapProxy()
+                .withPort(0)
+                .withManInTheMiddle(new TestMitmManager())
+                .withClientHttp2(clientHttp2)
+                .plusActivityTracker(new ActivityTrackerAdapter() {
+                    @Override
+                    public void clientConnected(InetSocketAddress clientAddress) {
+                        clientConnections.incrementAndGet();
+                    }
+                });
+    }
+
+    @Test
+    public void testConcurrentRequestsShareOneHttp2Connection() throws Exception {
+        HttpClient client = newHttpClient();
+        URI uri = URI.create("https://127.0.0.1:" + httpsWebServerPort + "/");
+
+        // establish the connection first, so that the concurrent requests don't race to open their own
+        HttpResponse<String> first = client.send(HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.ofString());
+        assertThat(first.version()).isEqualTo(HttpClient.Version.HTTP_2);
+        assertThat(first.body()).isEqualTo("Received 0 bytes\n");
+
+        List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            responses.add(client.sendAsync(HttpRequest.newBuilder(uri.resolve("/get" + i)).build(),
+                    HttpResponse.BodyHandlers.ofString()));
+            responses.add(client.sendAsync(HttpRequest.newBuilder(uri.resolve("/post" + i))
+                            .POST(HttpRequest.BodyPublishers.ofString("body-" + i)).build(),
+                    HttpResponse.BodyHandlers.ofString()));
+        }
+        for (int i = 0; i < responses.size(); i++) {
+            HttpResponse<String> response = responses.get(i).get(30, TimeUnit.SECONDS);
+            assertThat(response.statusCode()).isEqualTo(200);
+            assertThat(response.version()).isEqualTo(HttpClient.Version.HTTP_2);
+            assertThat(response.body()).isEqualTo(i % 2 == 0 ? "Received 0 bytes\n" : "Received 6 bytes\n");
+            assertThat(response.headers().firstValue("via")).isPresent();
+        }
+
+        assertThat(clientConnections.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testHttp11WhenClientHttp2IsDisabled() throws Exception {
+        proxyServer.abort();
+        proxyServer = bootstrapProxy(false).start();
+
+        HttpResponse<String> response = newHttpClient().send(
+                HttpRequest.newBuilder(URI.create("https://127.0.0.1:" + httpsWebServerPort + "/")).build(),
+                HttpResponse.BodyHandlers.ofString());
+
+        assertThat(response.statusCode()).isEqualTo(200);
+        assertThat(response.version()).isEqualTo(HttpClient.Version.HTTP_1_1);
+        assertThat(response.body()).isEqualTo("Received 0 bytes\n");
+    }
+
+    private HttpClient newHttpClient() throws Exception {
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, new TrustManager[]{new TrustingTrustManager()}, null);
+        return HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .proxy(ProxySelector.of(new InetSocketAddress("127.0.0.1", proxyServer.getListenAddress().getPort())))
+                .sslContext(sslContext)
+                .build();
+    }
+
+    /**
+     * Trusts the proxy's self-signed certificates. Being an
+     * {@link X509ExtendedTrustManager}, it also skips hostname verification.
+     */
+    private static final class TrustingTrustManager extends X509ExtendedTrustManager {
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) {
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+}
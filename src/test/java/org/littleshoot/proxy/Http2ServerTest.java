@@ -0,0 +1,359 @@
+package org.littleshoot.proxy;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.AttributeKey;
+import org.junit.jupiter.api.Test;
+import org.littleshoot.proxy.extras.SelfSignedSslEngineSource;
+import org.littleshoot.proxy.extras.TestMitmManager;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.net.InetSocketAddress;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests that requests are multiplexed over pooled HTTP/2 connections to
+ * servers, both over TLS with ALPN and over h2c with prior knowledge.
+ */
+public final class Http2ServerTest extends AbstractProxyTest {
+    private static final AttributeKey<AtomicInteger> ACTIVE_STREAMS = AttributeKey.valueOf("activeStreams");
+
+    private final AtomicInteger serverConnections = new AtomicInteger();
+    private final AtomicInteger maxStreamsPerConnection = new AtomicInteger();
+    private final AtomicInteger clientConnections = new AtomicInteger();
+    private final AtomicInteger bytesSentToServer = new AtomicInteger();
+    private final AtomicInteger bytesReceivedFromServer = new AtomicInteger();
+
+    private EventLoopGroup http2ServerGroup;
+    private Channel http2Server;
+
+    @Override
+    protected void setUp() {
+        http2ServerGroup = new NioEventLoopGroup(2);
+        proxyServer = bootstrapProxy()
+                .withPort(0)
+                .withServerH2cPriorKnowledge(true)
+                .plusActivityTracker(new ActivityTrackerAdapter() {
+                    @Override
+                    public void bytesSentToServer(FullFlowContext flowContext, int numberOfBytes) {
+                        bytesSentToServer.addAndGet(numberOfBytes);
+                    }
+
+                    @Override
+                    public void bytesReceivedFromServer(FullFlowContext flowContext, int numberOfBytes) {
+                        bytesReceivedFromServer.addAndGet(numberOfBytes);
+                    }
+                })
+                .start();
+    }
+
+    @Override
+    protected void tearDown() {
+        http2ServerGroup.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testH2cRequestsShareOneConnection() throws Exception {
+        int port = startHttp2Server(false, Integer.MAX_VALUE, 0);
+
+        List<HttpResponse<String>> responses = sendConcurrently(newHttpClient(HttpClient.Version.HTTP_1_1),
+                URI.create("http://127.0.0.1:" + port + "/"), 10);
+
+        for (int i = 0; i < responses.size(); i++) {
+            assertThat(responses.get(i).statusCode()).isEqualTo(200);
+            assertThat(responses.get(i).body()).isEqualTo(i % 2 == 0 ? "Received 0 bytes\n" : "Received 6 bytes\n");
+            assertThat(responses.get(i).headers().firstValue("x-http2-stream-id")).isEmpty();
+        }
+        assertThat(serverConnections.get()).isEqualTo(1);
+        // the content of the DATA frames of the streams: the bodies of the 10 POSTs, and of all 21 responses
+        assertThat(bytesSentToServer.get()).isEqualTo(10 * "body-0".length());
+        assertThat(bytesReceivedFromServer.get()).isEqualTo(21 * "Received 0 bytes\n".length());
+    }
+
+    @Test
+    public void testNewConnectionOnceMaxConcurrentStreamsIsReached() throws Exception {
+        int port = startHttp2Server(false, 2, 300);
+
+        List<HttpResponse<String>> responses = sendConcurrently(newHttpClient(HttpClient.Version.HTTP_1_1),
+                URI.create("http://127.0.0.1:" + port + "/"), 4);
+
+        assertThat(responses).allSatisfy(response -> assertThat(response.statusCode()).isEqualTo(200));
+        assertThat(maxStreamsPerConnection.get()).isLessThanOrEqualTo(2);
+        assertThat(serverConnections.get()).isGreaterThan(1);
+    }
+
+    @Test
+    public void testH2cFallsBackToHttp11() throws Exception {
+        HttpClient client = newHttpClient(HttpClient.Version.HTTP_1_1);
+        URI uri = URI.create("http://127.0.0.1:" + webServerPort + "/");
+
+        for (int i = 0; i < 2; i++) {
+            HttpResponse<String> response = client.send(HttpRequest.newBuilder(uri).build(),
+                    HttpResponse.BodyHandlers.ofString());
+            assertThat(response.statusCode()).isEqualTo(200);
+            assertThat(response.body()).isEqualTo("Received 0 bytes\n");
+        }
+    }
+
+    @Test
+    public void testMitmHttp2ClientsShareOneTlsConnection() throws Exception {
+        int port = startHttp2Server(true, Integer.MAX_VALUE, 0);
+        proxyServer.abort();
+        proxyServer = bootstrapMitmProxy().start();
+
+        List<HttpResponse<String>> responses = sendConcurrently(newHttpClient(HttpClient.Version.HTTP_2),
+                URI.create("https://127.0.0.1:" + port + "/"), 10);
+
+        assertThat(responses).allSatisfy(response -> {
+            assertThat(response.statusCode()).isEqualTo(200);
+            assertThat(response.version()).isEqualTo(HttpClient.Version.HTTP_2);
+        });
+        assertThat(responses.get(1).body()).isEqualTo("Received 6 bytes\n");
+        assertThat(clientConnections.get()).isEqualTo(1);
+        // one connection for the man-in-the-middled CONNECT, closed once the client switched to HTTP/2, and one
+        // shared by all the streams
+        assertThat(serverConnections.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void testMitmFallsBackToHttp11WhenServerDoesNotSelectHttp2() throws Exception {
+        proxyServer.abort();
+        proxyServer = bootstrapMitmProxy().start();
+        HttpClient client = newHttpClient(HttpClient.Version.HTTP_2);
+        URI uri = URI.create("https://127.0.0.1:" + httpsWebServerPort + "/");
+
+        for (int i = 0; i < 2; i++) {
+            HttpResponse<String> response = client.send(HttpRequest.newBuilder(uri).build(),
+                    HttpResponse.BodyHandlers.ofString());
+            assertThat(response.statusCode()).isEqualTo(200);
+            assertThat(response.body()).isEqualTo("Received 0 bytes\n");
+        }
+    }
+
+    @Test
+    public void testMitmHttp2StreamsReuseHttp11Connections() throws Exception {
+        AtomicInteger connectionsSucceeded = new AtomicInteger();
+        proxyServer.abort();
+        proxyServer = bootstrapMitmProxy(false)
+                .withFiltersSource(new HttpFiltersSourceAdapter() {
+                    @Override
+                    public HttpFilters filterRequest(io.netty.handler.codec.http.HttpRequest originalRequest) {
+                        return new HttpFiltersAdapter(originalRequest) {
+                            @Override
+                            public void proxyToServerConnectionSucceeded(ChannelHandlerContext serverCtx) {
+                                connectionsSucceeded.incrementAndGet();
+                            }
+                        };
+                    }
+                })
+                .start();
+        HttpClient client = newHttpClient(HttpClient.Version.HTTP_2);
+        URI uri = URI.create("https://127.0.0.1:" + httpsWebServerPort + "/");
+
+        for (int i = 0; i < 5; i++) {
+            HttpResponse<String> response = client.send(HttpRequest.newBuilder(uri).build(),
+                    HttpResponse.BodyHandlers.ofString());
+            assertThat(response.statusCode()).isEqualTo(200);
+            assertThat(response.version()).isEqualTo(HttpClient.Version.HTTP_2);
+            // give the stream's server connection time to be handed back once the stream has closed
+            Thread.sleep(100);
+        }
+        assertThat(clientConnections.get()).isEqualTo(1);
+        // one connection for the man-in-the-middled CONNECT, closed once the client switched to HTTP/2, and one
+        // HTTP/1.1 connection reused by the streams one after the other
+        assertThat(connectionsSucceeded.get()).isEqualTo(2);
+    }
+
+    private HttpProxyServerBootstrap bootstrapMitmProxy() {
+        return bootstrapMitmProxy(true);
+    }
+
+    private HttpProxyServerBootstrap bootstrapMitmProxy(boolean serverHttp2) {
+        return bootstrapProxy()
+                .withPort(0)
+                .withManInTheMiddle(new TestMitmManager())
+                .withClientHttp2(true)
+                .withServerHttp2(serverHttp2)
+                .plusActivityTracker(new ActivityTrackerAdapter() {
+                    @Override
+                    public void clientConnected(InetSocketAddress clientAddress) {
+                        clientConnections.incrementAndGet();
+                    }
+                });
+    }
+
+    /**
+     * Sends one request to establish the connections, and then the given
+     * number of GETs and POSTs concurrently.
+     */
+    private List<HttpResponse<String>> sendConcurrently(HttpClient client, URI uri, int count) throws Exception {
+        HttpResponse<String> first = client.send(HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.ofString());
+        assertThat(first.statusCode()).isEqualTo(200);
+
+        List<CompletableFuture<HttpResponse<String>>> futures = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            futures.add(client.sendAsync(HttpRequest.newBuilder(uri.resolve("/get" + i)).build(),
+                    HttpResponse.BodyHandlers.ofString()));
+            futures.add(client.sendAsync(HttpRequest.newBuilder(uri.resolve("/post" + i))
+                            .POST(HttpRequest.BodyPublishers.ofString("body-" + i)).build(),
+                    HttpResponse.BodyHandlers.ofString()));
+        }
+        List<HttpResponse<String>> responses = new ArrayList<>();
+        for (CompletableFuture<HttpResponse<String>> future : futures) {
+            responses.add(future.get(30, TimeUnit.SECONDS));
+        }
+        return responses;
+    }
+
+    /**
+     * Starts an HTTP/2-only server that answers each request with the number
+     * of bytes it received, after the given delay.
+     */
+    private int startHttp2Server(boolean tls, int maxConcurrentStreams, long delayMillis) throws Exception {
+        SelfSignedSslEngineSource sslEngineSource = tls
+                ? new SelfSignedSslEngineSource("target/littleproxy_keystore.jks", true, true)
+                : null;
+        http2Server = new ServerBootstrap()
+                .group(http2ServerGroup)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        serverConnections.incrementAndGet();
+                        ch.attr(ACTIVE_STREAMS).set(new AtomicInteger());
+                        if (sslEngineSource != null) {
+                            SSLEngine sslEngine = sslEngineSource.newSslEngine();
+                            sslEngine.setUseClientMode(false);
+                            SSLParameters sslParameters = sslEngine.getSSLParameters();
+                            sslParameters.setApplicationProtocols(new String[]{ApplicationProtocolNames.HTTP_2});
+                            sslEngine.setSSLParameters(sslParameters);
+                            ch.pipeline().addLast(new SslHandler(sslEngine));
+                        }
+                        ch.pipeline().addLast(Http2FrameCodecBuilder.forServer()
+                                .initialSettings(Http2Settings.defaultSettings()
+                                        .maxConcurrentStreams(maxConcurrentStreams))
+                                .build());
+                        ch.pipeline().addLast(new Http2MultiplexHandler(new ChannelInitializer<Http2StreamChannel>() {
+                            @Override
+                            protected void initChannel(Http2StreamChannel streamChannel) {
+                                streamChannel.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(true));
+                                streamChannel.pipeline().addLast(new HttpObjectAggregator(65536));
+                                streamChannel.pipeline().addLast(new ReceivedBytesHandler(delayMillis));
+                            }
+                        }));
+                    }
+                })
+                .bind("127.0.0.1", 0)
+                .sync()
+                .channel();
+        return ((InetSocketAddress) http2Server.localAddress()).getPort();
+    }
+
+    private final class ReceivedBytesHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+        private final long delayMillis;
+
+        private ReceivedBytesHandler(long delayMillis) {
+            this.delayMillis = delayMillis;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+            AtomicInteger activeStreams = ctx.channel().parent().attr(ACTIVE_STREAMS).get();
+            maxStreamsPerConnection.accumulateAndGet(activeStreams.incrementAndGet(), Math::max);
+
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                    Unpooled.copiedBuffer("Received " + request.content().readableBytes() + " bytes\n",
+                            StandardCharsets.UTF_8));
+            response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+            ctx.executor().schedule(() -> {
+                activeStreams.decrementAndGet();
+                ctx.writeAndFlush(response);
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private HttpClient newHttpClient(HttpClient.Version version) throws Exception {
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, new TrustManager[]{new TrustingTrustManager()}, null);
+        return HttpClient.newBuilder()
+                .version(version)
+                .proxy(ProxySelector.of(new InetSocketAddress("127.0.0.1", proxyServer.getListenAddress().getPort())))
+                .sslContext(sslContext)
+                .build();
+    }
+
+    /**
+     * Trusts the proxy's self-signed certificates, without verifying host
+     * names.
+     */
+    private static final class TrustingTrustManager extends X509ExtendedTrustManager {
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) {
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package org.littleshoot.proxy;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.server.Server;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.littleshoot.proxy.extras.MetricsActivityTracker;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.littleshoot.proxy.TestUtils.buildHttpClient;
+import static org.littleshoot.proxy.TestUtils.createProxiedHttpClient;
+
+/**
+ * Tests the OpenMetrics endpoint served by the proxy.
+ */
+public final class MetricsEndpointTest {
+    private Server webServer;
+    private HttpProxyServer proxyServer;
+
+    @BeforeEach
+    void setUp() {
+        webServer = TestUtils.startWebServer(false);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (proxyServer != null) {
+            proxyServer.abort();
+        }
+        if (webServer != null) {
+            webServer.stop();
+        }
+    }
+
+    @Test
+    public void testServesMetrics() throws Exception {
+        MetricsActivityTracker tracker = new MetricsActivityTracker();
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withMetricsAddress(new InetSocketAddress("127.0.0.1", 0))
+                .withThrottling(1_000_000, 1_000_000)
+                .plusActivityTracker(tracker)
+                .start();
+        assertThat(proxyServer.getMetricsAddress()).isNotNull();
+
+        try (CloseableHttpClient httpClient = createProxiedHttpClient(proxyServer.getListenAddress().getPort())) {
+            HttpResponse response = httpClient.execute(new HttpGet(
+                    "http://127.0.0.1:" + TestUtils.findLocalHttpPort(webServer) + "/"));
+            assertThat(response.getStatusLine().getStatusCode()).isEqualTo(200);
+            EntityUtils.consume(response.getEntity());
+        }
+        // the server connection records its timings once the response has been forwarded to the client
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (tracker.getTimeToFirstByte().getCount() == 0) {
+            assertThat(System.nanoTime()).as("Timed out waiting for the response to complete").isLessThan(deadline);
+            Thread.sleep(10);
+        }
+
+        try (CloseableHttpClient httpClient = buildHttpClient(false, false, 0, null, null)) {
+            HttpResponse response = httpClient.execute(new HttpGet(metricsUrl("/metrics")));
+            assertThat(response.getStatusLine().getStatusCode()).isEqualTo(200);
+            assertThat(response.getFirstHeader("Content-Type").getValue()).startsWith("application/openmetrics-text");
+
+            String metrics = EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+            assertThat(metrics)
+                    .contains("# TYPE littleproxy_event_loop_pending_tasks gauge\n")
+                    .contains("littleproxy_event_loop_pending_tasks{transport=\"tcp\",pool=\"ClientToProxyWorker\",loop=\"0\"} ")
+                    .contains("littleproxy_channels{type=\"listener\"} 1\n")
+                    .contains("littleproxy_allocator_used_bytes{memory=\"direct\"} ")
+                    .contains("littleproxy_throttle_limit_bytes_per_second{direction=\"read\"} 1000000\n")
+                    .contains("littleproxy_requests_total 1\n")
+                    .contains("littleproxy_responses_total{code=\"2xx\"} 1\n")
+                    .contains("# TYPE littleproxy_request_latency_seconds summary\n")
+                    .contains("littleproxy_request_latency_seconds_count 1\n")
+                    .contains("littleproxy_server_time_to_first_byte_seconds_count 1\n")
+                    .endsWith("# EOF\n");
+
+            HttpResponse notFound = httpClient.execute(new HttpGet(metricsUrl("/other")));
+            assertThat(notFound.getStatusLine().getStatusCode()).isEqualTo(404);
+            EntityUtils.consume(notFound.getEntity());
+
+            HttpResponse notAllowed = httpClient.execute(new HttpPost(metricsUrl("/metrics")));
+            assertThat(notAllowed.getStatusLine().getStatusCode()).isEqualTo(405);
+            EntityUtils.consume(notAllowed.getEntity());
+        }
+    }
+
+    @Test
+    public void testUsesExistingMetricsTracker() throws Exception {
+        MetricsActivityTracker metrics = new MetricsActivityTracker();
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withMetricsAddress(new InetSocketAddress("127.0.0.1", 0))
+                .plusActivityTracker(metrics)
+                .start();
+
+        metrics.clientConnected(new InetSocketAddress("127.0.0.1", 1234));
+
+        try (CloseableHttpClient httpClient = buildHttpClient(false, false, 0, null, null)) {
+            HttpResponse response = httpClient.execute(new HttpGet(metricsUrl("/metrics")));
+            String body = EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+            assertThat(body).contains("littleproxy_client_connections_total 1\n");
+        }
+    }
+
+    @Test
+    public void testListsAndClosesConnections() throws Exception {
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withMetricsAddress(new InetSocketAddress("127.0.0.1", 0))
+                .withMetricsConnectionClose(true)
+                .start();
+
+        try (Socket client = new Socket("127.0.0.1", proxyServer.getListenAddress().getPort());
+             CloseableHttpClient httpClient = buildHttpClient(false, false, 0, null, null)) {
+            String hostAndPort = "127.0.0.1:" + TestUtils.findLocalHttpPort(webServer);
+            client.getOutputStream().write(("GET http://" + hostAndPort + "/ HTTP/1.1\r\nHost: " + hostAndPort
+                    + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            client.getOutputStream().flush();
+            // the response headers, at least
+            assertThat(client.getInputStream().read(new byte[1024])).isPositive();
+
+            HttpResponse response = httpClient.execute(new HttpGet(metricsUrl("/connections")));
+            assertThat(response.getStatusLine().getStatusCode()).isEqualTo(200);
+            assertThat(response.getFirstHeader("Content-Type").getValue()).startsWith("application/json");
+            String connections = EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+            assertThat(connections)
+                    .contains("{\"id\":1,\"client\":\"127.0.0.1:" + client.getLocalPort() + "\",\"state\":\"AWAITING_INITIAL\"")
+                    .contains("\"servers\":[{\"server\":\"" + hostAndPort + "\"")
+                    .contains("\"tunneling\":false,\"saturated\":false");
+
+            assertThat(list(httpClient, "/connections?state=AWAITING_INITIAL")).contains("{\"id\":1,");
+            assertThat(list(httpClient, "/connections?state=DISCONNECTED")).isEqualTo("[\n]\n");
+            assertThat(list(httpClient, "/connections?after=1")).isEqualTo("[\n]\n");
+            assertThat(list(httpClient, "/connections?limit=0")).isEqualTo("[\n]\n");
+
+            HttpResponse badState = httpClient.execute(new HttpGet(metricsUrl("/connections?state=NONE")));
+            assertThat(badState.getStatusLine().getStatusCode()).isEqualTo(400);
+            EntityUtils.consume(badState.getEntity());
+
+            HttpResponse unknown = httpClient.execute(new HttpPost(metricsUrl("/connections/2/close")));
+            assertThat(unknown.getStatusLine().getStatusCode()).isEqualTo(404);
+            EntityUtils.consume(unknown.getEntity());
+
+            HttpResponse closed = httpClient.execute(new HttpPost(metricsUrl("/connections/1/close")));
+            assertThat(closed.getStatusLine().getStatusCode()).isEqualTo(204);
+
+            client.setSoTimeout(10_000);
+            byte[] buf = new byte[8192];
+            while (client.getInputStream().read(buf) >= 0) {
+                // skip the rest of the response until the proxy hangs up
+            }
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            String remaining;
+            do {
+                assertThat(System.nanoTime()).as("Timed out waiting for the connection to go").isLessThan(deadline);
+                HttpResponse listing = httpClient.execute(new HttpGet(metricsUrl("/connections")));
+                remaining = EntityUtils.toString(listing.getEntity(), StandardCharsets.UTF_8);
+            } while (!remaining.equals("[\n]\n"));
+        }
+    }
+
+    @Test
+    public void testDoesNotCloseConnectionsByDefault() throws Exception {
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withMetricsAddress(new InetSocketAddress("127.0.0.1", 0))
+                .start();
+
+        try (Socket client = new Socket("127.0.0.1", proxyServer.getListenAddress().getPort());
+             CloseableHttpClient httpClient = buildHttpClient(false, false, 0, null, null)) {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (!list(httpClient, "/connections").contains("{\"id\":1,")) {
+                assertThat(System.nanoTime()).as("Timed out waiting for the connection").isLessThan(deadline);
+                Thread.sleep(10);
+            }
+
+            HttpResponse response = httpClient.execute(new HttpPost(metricsUrl("/connections/1/close")));
+            assertThat(response.getStatusLine().getStatusCode()).isEqualTo(404);
+            EntityUtils.consume(response.getEntity());
+            assertThat(list(httpClient, "/connections")).contains("{\"id\":1,");
+        }
+    }
+
+    @Test
+    public void testNoMetricsByDefault() {
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .start();
+
+        assertThat(proxyServer.getMetricsAddress()).isNull();
+    }
+
+    private String list(CloseableHttpClient httpClient, String path) throws Exception {
+        HttpResponse response = httpClient.execute(new HttpGet(metricsUrl(path)));
+        assertThat(response.getStatusLine().getStatusCode()).isEqualTo(200);
+        return EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+    }
+
+    private String metricsUrl(String path) {
+        return "http://127.0.0.1:" + proxyServer.getMetricsAddress().getPort() + path;
+    }
+}
@@ -0,0 +1,96 @@
+package org.littleshoot.proxy;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.littleshoot.proxy.extras.SelfSignedMitmManager;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.littleshoot.proxy.impl.MitmBypassIndex;
+import org.littleshoot.proxy.test.SocketClientUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests that hosts whose MITM handshakes fail are tunnelled on subsequent CONNECTs.
+ */
+public final class MitmBypassTest {
+    private static final String PONG = "pong, which is not a TLS record\r\n";
+
+    private final MitmBypassIndex mitmBypassIndex = new MitmBypassIndex(1, Duration.ofMinutes(1), null);
+    private ServerSocket notTlsServer;
+    private Thread notTlsServerThread;
+    private HttpProxyServer proxyServer;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        notTlsServer = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        notTlsServerThread = new Thread(this::answerEverythingWithPong, "not-tls-server");
+        notTlsServerThread.setDaemon(true);
+        notTlsServerThread.start();
+
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withManInTheMiddle(new SelfSignedMitmManager())
+                .withMitmBypassIndex(mitmBypassIndex)
+                .start();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        try {
+            if (proxyServer != null) {
+                proxyServer.abort();
+            }
+        } finally {
+            notTlsServer.close();
+        }
+    }
+
+    @Test
+    public void testFailingHostIsTunnelledAfterMitmFailure() throws IOException {
+        String hostAndPort = "127.0.0.1:" + notTlsServer.getLocalPort();
+
+        try (Socket socket = SocketClientUtil.getSocketToProxyServer(proxyServer)) {
+            SocketClientUtil.writeStringToSocket(connect(hostAndPort), socket);
+            assertThat(SocketClientUtil.readStringFromSocket(socket)).startsWith("HTTP/1.1 502");
+        }
+        assertThat(mitmBypassIndex.shouldBypass(hostAndPort)).isTrue();
+
+        try (Socket socket = SocketClientUtil.getSocketToProxyServer(proxyServer)) {
+            SocketClientUtil.writeStringToSocket(connect(hostAndPort), socket);
+            assertThat(SocketClientUtil.readStringFromSocket(socket)).startsWith("HTTP/1.1 200");
+
+            SocketClientUtil.writeStringToSocket("ping", socket);
+            assertThat(SocketClientUtil.readStringFromSocket(socket)).isEqualTo(PONG);
+        }
+    }
+
+    private static String connect(String hostAndPort) {
+        return "CONNECT " + hostAndPort + " HTTP/1.1\r\nHost: " + hostAndPort + "\r\n\r\n";
+    }
+
+    private void answerEverythingWithPong() {
+        while (!notTlsServer.isClosed()) {
+            try (Socket socket = notTlsServer.accept()) {
+                InputStream in = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+                byte[] buffer = new byte[8192];
+                while (in.read(buffer) != -1) {
+                    out.write(PONG.getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // the proxy closed the connection, or the server socket was closed
+            }
+        }
+    }
+}
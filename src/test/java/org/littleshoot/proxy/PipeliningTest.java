@@ -0,0 +1,205 @@
+package org.littleshoot.proxy;
+
+import io.netty.handler.codec.http.HttpRequest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.littleshoot.proxy.test.SocketClientUtil;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests that requests which clients pipeline are tracked and pipelined to the
+ * server when the filters allow it, and that their responses come back in
+ * order.
+ */
+public final class PipeliningTest {
+    private ServerSocket server;
+    private HttpProxyServer proxyServer;
+
+    private final AtomicInteger serverConnections = new AtomicInteger();
+    private final AtomicBoolean serverSawPipelinedRequest = new AtomicBoolean();
+    private volatile boolean closeAfterSecondRequest;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread serverThread = new Thread(this::acceptConnections, "pipelining-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        try {
+            if (proxyServer != null) {
+                proxyServer.abort();
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testRequestsArePipelinedWhenFiltersAllowIt() throws IOException {
+        startProxy(true);
+
+        assertThat(sendPipelinedRequests("/a", "/b", "/c")).containsExactly("/a", "/b", "/c");
+        assertThat(serverSawPipelinedRequest).isTrue();
+        assertThat(serverConnections.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testRequestsAreWrittenAsTheyArriveByDefault() throws IOException {
+        startProxy(false);
+
+        assertThat(sendPipelinedRequests("/a", "/b", "/c")).containsExactly("/a", "/b", "/c");
+        assertThat(serverSawPipelinedRequest).isTrue();
+        assertThat(serverConnections.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testUnansweredPipelinedRequestIsRetriedOnNewConnection() throws IOException {
+        closeAfterSecondRequest = true;
+        startProxy(true);
+
+        assertThat(sendPipelinedRequests("/a", "/b", "/c")).containsExactly("/a", "/b", "/c");
+        assertThat(serverSawPipelinedRequest).isTrue();
+        assertThat(serverConnections.get()).isEqualTo(2);
+    }
+
+    private void startProxy(boolean allowPipelining) {
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withFiltersSource(new HttpFiltersSourceAdapter() {
+                    @Override
+                    public HttpFilters filterRequest(HttpRequest originalRequest) {
+                        return new HttpFiltersAdapter(originalRequest) {
+                            @Override
+                            public boolean proxyToServerAllowPipelining() {
+                                return allowPipelining;
+                            }
+                        };
+                    }
+                })
+                .start();
+    }
+
+    /**
+     * Sends all requests to the proxy at once and returns the bodies of the
+     * responses, in the order they arrived.
+     */
+    private List<String> sendPipelinedRequests(String... paths) throws IOException {
+        String hostAndPort = "127.0.0.1:" + server.getLocalPort();
+        StringBuilder requests = new StringBuilder();
+        for (String path : paths) {
+            requests.append("GET http://").append(hostAndPort).append(path).append(" HTTP/1.1\r\n")
+                    .append("Host: ").append(hostAndPort).append("\r\n\r\n");
+        }
+
+        List<String> bodies = new ArrayList<>();
+        try (Socket socket = SocketClientUtil.getSocketToProxyServer(proxyServer)) {
+            socket.getOutputStream().write(requests.toString().getBytes(StandardCharsets.US_ASCII));
+            socket.getOutputStream().flush();
+
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            for (int i = 0; i < paths.length; i++) {
+                assertThat(readLine(in)).startsWith("HTTP/1.1 200");
+                int contentLength = 0;
+                for (String header = readLine(in); !header.isEmpty(); header = readLine(in)) {
+                    if (header.toLowerCase().startsWith("content-length:")) {
+                        contentLength = Integer.parseInt(header.substring("content-length:".length()).trim());
+                    }
+                }
+                byte[] body = new byte[contentLength];
+                for (int read = 0; read < contentLength; ) {
+                    int n = in.read(body, read, contentLength - read);
+                    assertThat(n).isNotNegative();
+                    read += n;
+                }
+                bodies.add(new String(body, StandardCharsets.US_ASCII));
+            }
+        }
+        return bodies;
+    }
+
+    private void acceptConnections() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                int connection = serverConnections.incrementAndGet();
+                Thread connectionThread = new Thread(() -> answerRequests(socket, connection), "pipelining-server-connection");
+                connectionThread.setDaemon(true);
+                connectionThread.start();
+            } catch (IOException e) {
+                // the server socket was closed
+            }
+        }
+    }
+
+    /**
+     * Answers each request with its path. Before answering, waits a little to
+     * see whether the proxy sends the next request without waiting for the
+     * response.
+     */
+    private void answerRequests(Socket socket, int connection) {
+        try (Socket s = socket) {
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            OutputStream out = s.getOutputStream();
+            for (int request = 1; ; request++) {
+                String requestLine = readLine(in);
+                while (!readLine(in).isEmpty()) {
+                    // skip the headers
+                }
+
+                Thread.sleep(300);
+                if (in.available() > 0) {
+                    serverSawPipelinedRequest.set(true);
+                }
+
+                boolean close = closeAfterSecondRequest && connection == 1 && request == 2;
+                String path = requestLine.split(" ")[1];
+                String response = "HTTP/1.1 200 OK\r\n"
+                        + "Content-Length: " + path.length() + "\r\n"
+                        + (close ? "Connection: close\r\n" : "")
+                        + "\r\n"
+                        + path;
+                out.write(response.getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                if (close) {
+                    return;
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // the proxy closed the connection
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (int b = in.read(); b != '\n'; b = in.read()) {
+            if (b == -1) {
+                throw new IOException("Connection closed");
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString(StandardCharsets.US_ASCII);
+    }
+}
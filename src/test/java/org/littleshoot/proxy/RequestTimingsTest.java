@@ -0,0 +1,106 @@
+package org.littleshoot.proxy;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.matchers.Times;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.littleshoot.proxy.TestUtils.createProxiedHttpClient;
+import static org.mockserver.model.HttpRequest.request;
+import static org.mockserver.model.HttpResponse.response;
+
+/**
+ * Tests that the phases of proxying a request are timed and reported to
+ * {@link ActivityTracker}s.
+ */
+public final class RequestTimingsTest {
+    private static final long SERVER_DELAY_MILLIS = 200;
+
+    private ClientAndServer mockServer;
+    private int mockServerPort;
+    private HttpProxyServer proxyServer;
+
+    private final BlockingQueue<RequestTimings> completed = new LinkedBlockingQueue<>();
+    private final BlockingQueue<RequestTimings> fromFlowContext = new LinkedBlockingQueue<>();
+
+    @BeforeEach
+    void setUp() {
+        mockServer = new ClientAndServer(0);
+        mockServerPort = mockServer.getLocalPort();
+        mockServer.when(request()
+                        .withMethod("GET")
+                        .withPath("/"),
+                Times.unlimited())
+                .respond(response()
+                        .withStatusCode(200)
+                        .withBody("Success!")
+                        .withDelay(TimeUnit.MILLISECONDS, SERVER_DELAY_MILLIS));
+
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .plusActivityTracker(new ActivityTrackerAdapter() {
+                    @Override
+                    public void responseCompletedFromServer(FullFlowContext flowContext, RequestTimings requestTimings) {
+                        completed.add(requestTimings);
+                        fromFlowContext.add(flowContext.getRequestTimings());
+                    }
+                })
+                .start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (mockServer != null) {
+            mockServer.stop();
+        }
+
+        if (proxyServer != null) {
+            proxyServer.abort();
+        }
+    }
+
+    @Test
+    public void testTimingsAreReportedForNewAndReusedConnections() throws Exception {
+        try (CloseableHttpClient httpClient = createProxiedHttpClient(proxyServer.getListenAddress().getPort())) {
+            get(httpClient);
+            get(httpClient);
+        }
+
+        RequestTimings first = completed.poll(5, TimeUnit.SECONDS);
+        assertThat(first).isNotNull();
+        assertThat(fromFlowContext.poll()).isSameAs(first);
+        assertThat(first.getResolutionNanos()).isGreaterThanOrEqualTo(0);
+        assertThat(first.getConnectNanos()).isGreaterThanOrEqualTo(0);
+        assertThat(first.getSslHandshakeNanos()).as("No TLS to a plain HTTP server").isEqualTo(-1);
+        assertThat(first.getRequestSendNanos()).isGreaterThanOrEqualTo(0);
+        assertThat(first.getTimeToFirstByteNanos())
+                .isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(SERVER_DELAY_MILLIS));
+        assertThat(first.getTransferNanos()).isGreaterThanOrEqualTo(0);
+        assertThat(first.getTotalNanos()).isGreaterThanOrEqualTo(first.getTimeToFirstByteNanos());
+
+        RequestTimings second = completed.poll(5, TimeUnit.SECONDS);
+        assertThat(second).isNotNull().isNotSameAs(first);
+        assertThat(second.getResolutionNanos()).as("Connection was reused").isEqualTo(-1);
+        assertThat(second.getConnectNanos()).as("Connection was reused").isEqualTo(-1);
+        assertThat(second.getTimeToFirstByteNanos())
+                .isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(SERVER_DELAY_MILLIS));
+        assertThat(second.getTotalNanos()).isGreaterThanOrEqualTo(0);
+    }
+
+    private void get(CloseableHttpClient httpClient) throws Exception {
+        HttpResponse response = httpClient.execute(new HttpGet("http://127.0.0.1:" + mockServerPort + "/"));
+        assertThat(response.getStatusLine().getStatusCode()).isEqualTo(200);
+        EntityUtils.consume(response.getEntity());
+    }
+}
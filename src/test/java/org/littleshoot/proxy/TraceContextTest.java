@@ -0,0 +1,211 @@
+package org.littleshoot.proxy;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.littleshoot.proxy.extras.FileSpanExporter;
+import org.littleshoot.proxy.extras.OtlpHttpSpanExporter;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+import org.mockserver.integration.ClientAndServer;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.littleshoot.proxy.TestUtils.createProxiedHttpClient;
+import static org.mockserver.model.HttpRequest.request;
+import static org.mockserver.model.HttpResponse.response;
+
+/**
+ * Tests the propagation of the W3C trace context through the proxy, and the
+ * export of the spans of proxied requests.
+ */
+public final class TraceContextTest {
+    private static final String TRACE_ID = "4bf92f3577b34da6a3ce929d0e0e4736";
+    private static final String CLIENT_SPAN_ID = "00f067aa0ba902b7";
+
+    private ClientAndServer mockServer;
+    private int mockServerPort;
+    private HttpProxyServer proxyServer;
+
+    @TempDir
+    Path dir;
+
+    @BeforeEach
+    void setUp() {
+        mockServer = new ClientAndServer(0);
+        mockServerPort = mockServer.getLocalPort();
+        mockServer.when(request().withMethod("GET").withPath("/traced"))
+                .respond(response().withStatusCode(200).withBody("traced"));
+        // stands in for an OpenTelemetry collector
+        mockServer.when(request().withMethod("POST").withPath("/v1/traces"))
+                .respond(response().withStatusCode(200).withBody("{}"));
+    }
+
+    @AfterEach
+    void tearDown() {
+        try {
+            if (proxyServer != null) {
+                proxyServer.abort();
+            }
+        } finally {
+            mockServer.stop();
+        }
+    }
+
+    @Test
+    public void testContinuesIncomingTraceAndExportsToCollector() throws Exception {
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withSpanExporter(new OtlpHttpSpanExporter(URI.create("http://127.0.0.1:" + mockServerPort + "/v1/traces")))
+                .start();
+
+        HttpGet get = new HttpGet("http://127.0.0.1:" + mockServerPort + "/traced");
+        get.setHeader("traceparent", "00-" + TRACE_ID + "-" + CLIENT_SPAN_ID + "-01");
+        get.setHeader("tracestate", "congo=t61rcWkgMzE");
+        execute(get);
+
+        org.mockserver.model.HttpRequest[] proxied = mockServer.retrieveRecordedRequests(request().withPath("/traced"));
+        assertThat(proxied).hasSize(1);
+        String traceparent = proxied[0].getFirstHeader("traceparent");
+        assertThat(traceparent).matches("00-" + TRACE_ID + "-[0-9a-f]{16}-01");
+        assertThat(traceparent).doesNotContain(CLIENT_SPAN_ID);
+        assertThat(proxied[0].getFirstHeader("tracestate")).isEqualTo("congo=t61rcWkgMzE");
+
+        // stopping the proxy exports the queued spans
+        proxyServer.stop();
+        proxyServer = null;
+
+        org.mockserver.model.HttpRequest[] exports = mockServer.retrieveRecordedRequests(request().withPath("/v1/traces"));
+        assertThat(exports).isNotEmpty();
+        // the stand-in pretty prints the JSON it received
+        String json = exports[0].getBodyAsString().replaceAll("\\s+", "");
+        assertThat(json).contains("\"service.name\"", "\"traceId\":\"" + TRACE_ID + "\"",
+                "\"parentSpanId\":\"" + CLIENT_SPAN_ID + "\"", "\"traceState\":\"congo=t61rcWkgMzE\"",
+                "\"kind\":2", "\"kind\":3", "\"spanId\":\"" + traceparent.substring(36, 52) + "\"",
+                "{\"key\":\"http.response.status_code\",\"value\":{\"intValue\":\"200\"}}");
+    }
+
+    @Test
+    public void testStartsNewTraceWithoutValidTraceparent() throws Exception {
+        List<Span> spans = new CopyOnWriteArrayList<>();
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withSpanExporter(new RecordingSpanExporter(spans))
+                .start();
+
+        HttpGet get = new HttpGet("http://127.0.0.1:" + mockServerPort + "/traced");
+        get.setHeader("traceparent", "00-00000000000000000000000000000000-" + CLIENT_SPAN_ID + "-01");
+        execute(get);
+
+        proxyServer.stop();
+        proxyServer = null;
+
+        Span server = spans.stream().filter(span -> span.getKind() == Span.Kind.SERVER).findFirst().orElseThrow();
+        assertThat(server.getTraceId()).matches("[0-9a-f]{32}").isNotEqualTo("00000000000000000000000000000000");
+        assertThat(server.getParentSpanId()).isNull();
+        assertThat(server.getName()).isEqualTo("GET");
+        assertThat(server.getError()).isNull();
+        assertThat(server.getEndEpochNanos()).isGreaterThan(server.getStartEpochNanos());
+        assertThat(server.getAttributes()).containsEntry("http.response.status_code", 200L)
+                .containsEntry("server.address", "127.0.0.1:" + mockServerPort);
+
+        Span connect = spans.stream().filter(span -> span.getName().equals("connect")).findFirst().orElseThrow();
+        assertThat(connect.getKind()).isEqualTo(Span.Kind.INTERNAL);
+        assertThat(connect.getParentSpanId()).isEqualTo(server.getSpanId());
+
+        Span client = spans.stream().filter(span -> span.getKind() == Span.Kind.CLIENT).findFirst().orElseThrow();
+        assertThat(client.getParentSpanId()).isEqualTo(server.getSpanId());
+        String traceparent = mockServer.retrieveRecordedRequests(request().withPath("/traced"))[0].getFirstHeader("traceparent");
+        assertThat(traceparent).isEqualTo("00-" + server.getTraceId() + "-" + client.getSpanId() + "-01");
+    }
+
+    @Test
+    public void testStopDoesNotInterruptExportInProgress() throws Exception {
+        CountDownLatch exporting = new CountDownLatch(1);
+        AtomicBoolean interrupted = new AtomicBoolean();
+        List<Span> spans = new CopyOnWriteArrayList<>();
+        proxyServer = DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withSpanExporter(new RecordingSpanExporter(spans) {
+                    @Override
+                    public void export(List<Span> batch) {
+                        exporting.countDown();
+                        try {
+                            Thread.sleep(200);
+                        } catch (InterruptedException e) {
+                            interrupted.set(true);
+                        }
+                        super.export(batch);
+                    }
+                })
+                .start();
+
+        execute(new HttpGet("http://127.0.0.1:" + mockServerPort + "/traced"));
+        assertThat(exporting.await(10, TimeUnit.SECONDS)).isTrue();
+        proxyServer.stop();
+        proxyServer = null;
+
+        assertThat(interrupted).isFalse();
+        assertThat(spans).anyMatch(span -> span.getKind() == Span.Kind.SERVER);
+    }
+
+    @Test
+    public void testFileSpanExporterWritesOtlpJsonLines() throws Exception {
+        Path file = dir.resolve("spans.jsonl");
+        FileSpanExporter exporter = new FileSpanExporter(file, "edge-proxy");
+        exporter.export(List.of(new Span(TRACE_ID, CLIENT_SPAN_ID, null, null, "GET", Span.Kind.SERVER,
+                1_000_000_000L, 2_000_000_000L, Map.of("url.full", "http://example.com/\"quoted\""), "502 Bad Gateway")));
+        exporter.export(List.of(new Span(TRACE_ID, "b7ad6b7169203331", CLIENT_SPAN_ID, null, "connect", Span.Kind.INTERNAL,
+                1_100_000_000L, 1_200_000_000L, Map.of(), null)));
+        exporter.shutdown();
+
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertThat(lines).hasSize(2);
+        assertThat(lines.get(0)).startsWith("{\"resourceSpans\":[{\"resource\":{\"attributes\":[{\"key\":\"service.name\",\"value\":{\"stringValue\":\"edge-proxy\"}}]}")
+                .contains("\"startTimeUnixNano\":\"1000000000\"", "\"endTimeUnixNano\":\"2000000000\"",
+                        "\"stringValue\":\"http://example.com/\\\"quoted\\\"\"",
+                        "\"status\":{\"code\":2,\"message\":\"502 Bad Gateway\"}")
+                .doesNotContain("parentSpanId");
+        assertThat(lines.get(1)).contains("\"parentSpanId\":\"" + CLIENT_SPAN_ID + "\"", "\"kind\":1")
+                .doesNotContain("status");
+    }
+
+    private void execute(HttpGet get) throws Exception {
+        try (CloseableHttpClient httpClient = createProxiedHttpClient(proxyServer.getListenAddress().getPort())) {
+            HttpResponse response = httpClient.execute(get);
+            assertThat(response.getStatusLine().getStatusCode()).isEqualTo(200);
+            EntityUtils.consume(response.getEntity());
+        }
+    }
+
+    private static class RecordingSpanExporter implements SpanExporter {
+        private final List<Span> spans;
+
+        RecordingSpanExporter(List<Span> spans) {
+            this.spans = spans;
+        }
+
+        @Override
+        public void export(List<Span> spans) {
+            this.spans.addAll(spans);
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package org.littleshoot.proxy.extras;
+
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.littleshoot.proxy.FlowContext;
+
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public final class AccessLogActivityTrackerTest {
+    private static final InetSocketAddress CLIENT = new InetSocketAddress("127.0.0.1", 50000);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void testWritesJsonLines() throws Exception {
+        Path log = dir.resolve("access.log");
+        try (AccessLogActivityTracker tracker = new AccessLogActivityTracker(log, AccessLogFormat.JSON)) {
+            exchange(tracker, HttpMethod.GET, "/a?q=\"x\"", HttpResponseStatus.OK, 42);
+            exchange(tracker, HttpMethod.POST, "/b", HttpResponseStatus.BAD_GATEWAY, -1);
+        }
+
+        List<String> lines = Files.readAllLines(log, StandardCharsets.US_ASCII);
+        assertThat(lines).hasSize(2);
+        assertThat(lines.get(0))
+                .startsWith("{\"time\":\"")
+                .contains("\"client\":\"127.0.0.1:50000\",\"method\":\"GET\",\"uri\":\"/a?q=\\\"x\\\"\","
+                        + "\"status\":200,\"bytes\":42,\"durationMicros\":");
+        assertThat(lines.get(1)).contains("\"method\":\"POST\",\"uri\":\"/b\",\"status\":502,\"bytes\":-1,");
+    }
+
+    @Test
+    public void testDecodesBinaryLog() throws Exception {
+        Path log = dir.resolve("access.bin");
+        try (AccessLogActivityTracker tracker = new AccessLogActivityTracker(log, AccessLogFormat.BINARY)) {
+            FlowContext flowContext = flowContext();
+            tracker.requestReceivedFromClient(flowContext, new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/a"));
+            // the interim response doesn't complete the request
+            tracker.responseSentToClient(flowContext, response(HttpResponseStatus.CONTINUE, -1));
+            tracker.responseSentToClient(flowContext, response(HttpResponseStatus.OK, 7));
+            exchange(tracker, HttpMethod.GET, "/é€", HttpResponseStatus.NOT_FOUND, 0);
+            tracker.close();
+            assertThat(tracker.getWrittenRecords()).isEqualTo(2);
+            assertThat(tracker.getDroppedRecords()).isZero();
+        }
+
+        StringWriter json = new StringWriter();
+        try (InputStream in = Files.newInputStream(log)) {
+            AccessLogDecoder.decode(in, json);
+        }
+        String[] lines = json.toString().split("\n");
+        assertThat(lines).hasSize(2);
+        assertThat(lines[0]).contains("\"client\":\"127.0.0.1:50000\",\"method\":\"GET\",\"uri\":\"/a\",\"status\":200,\"bytes\":7,");
+        // non-ASCII chars are escaped, and those beyond ISO-8859-1 replaced
+        assertThat(lines[1]).contains("\"uri\":\"/\\u00e9?\",\"status\":404,\"bytes\":0,");
+    }
+
+    @Test
+    public void testRotatesBySize() throws Exception {
+        Path log = dir.resolve("access.log");
+        long maxFileBytes = 2048;
+        try (AccessLogActivityTracker tracker = new AccessLogActivityTracker(log, AccessLogFormat.JSON,
+                16, maxFileBytes, Duration.ofDays(1))) {
+            for (int i = 0; i < 40; i++) {
+                exchange(tracker, HttpMethod.GET, "/" + i, HttpResponseStatus.OK, i);
+                if (i % 8 == 7) {
+                    // let the writer drain the small ring
+                    while (tracker.getWrittenRecords() + tracker.getDroppedRecords() < i + 1) {
+                        Thread.sleep(1);
+                    }
+                }
+            }
+            tracker.close();
+            assertThat(tracker.getWrittenRecords()).isEqualTo(40);
+        }
+
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> listing = Files.list(dir)) {
+            listing.forEach(files::add);
+        }
+        assertThat(files.size()).isGreaterThan(1);
+        int records = 0;
+        for (Path file : files) {
+            assertThat(file.getFileName().toString()).startsWith("access.log");
+            assertThat(Files.size(file)).isLessThanOrEqualTo(maxFileBytes);
+            records += Files.readAllLines(file, StandardCharsets.US_ASCII).size();
+        }
+        assertThat(records).isEqualTo(40);
+    }
+
+    @Test
+    public void testPairsHttp2ResponsesByStream() throws Exception {
+        Path log = dir.resolve("access.log");
+        try (AccessLogActivityTracker tracker = new AccessLogActivityTracker(log, AccessLogFormat.JSON)) {
+            FlowContext stream1 = flowContext(1);
+            FlowContext stream3 = flowContext(3);
+            tracker.requestReceivedFromClient(stream1, new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/slow"));
+            tracker.requestReceivedFromClient(stream3, new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/fast"));
+            tracker.responseSentToClient(stream3, response(HttpResponseStatus.OK, 1));
+            tracker.responseSentToClient(stream1, response(HttpResponseStatus.NOT_FOUND, 2));
+        }
+
+        List<String> lines = Files.readAllLines(log, StandardCharsets.US_ASCII);
+        assertThat(lines).hasSize(2);
+        assertThat(lines.get(0)).contains("\"uri\":\"/fast\",\"status\":200,\"bytes\":1,");
+        assertThat(lines.get(1)).contains("\"uri\":\"/slow\",\"status\":404,\"bytes\":2,");
+    }
+
+    @Test
+    public void testKeepsWritingAfterFailedRotation() throws Exception {
+        Path logDir = Files.createDirectory(dir.resolve("logs"));
+        Path log = logDir.resolve("access.log");
+        try (AccessLogActivityTracker tracker = new AccessLogActivityTracker(log, AccessLogFormat.JSON,
+                16, 2048, Duration.ofDays(1))) {
+            Files.delete(log);
+            Files.delete(logDir);
+            // enough records to rotate the log, which can't be renamed nor reopened
+            for (int i = 0; i < 40; i++) {
+                exchange(tracker, HttpMethod.GET, "/" + i, HttpResponseStatus.OK, i);
+                while (tracker.getWrittenRecords() + tracker.getDroppedRecords() < i + 1) {
+                    Thread.sleep(1);
+                }
+            }
+            assertThat(tracker.getDroppedRecords()).isPositive();
+
+            Files.createDirectory(logDir);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (!Files.exists(log)) {
+                assertThat(System.nanoTime()).as("Timed out waiting for the log to be reopened").isLessThan(deadline);
+                exchange(tracker, HttpMethod.GET, "/retry", HttpResponseStatus.OK, 0);
+                Thread.sleep(50);
+            }
+            exchange(tracker, HttpMethod.GET, "/last", HttpResponseStatus.OK, 0);
+        }
+
+        assertThat(Files.readAllLines(log, StandardCharsets.US_ASCII)).last().asString().contains("\"uri\":\"/last\"");
+    }
+
+    @Test
+    public void testRingBufferRejectsClaimsWhenFull() {
+        AccessLogRingBuffer ring = new AccessLogRingBuffer(2, 8);
+        long first = ring.claim();
+        long second = ring.claim();
+        assertThat(ring.claim()).isEqualTo(-1);
+
+        ring.slots()[ring.offset(second)] = 2;
+        ring.publish(second);
+        List<Byte> drained = new ArrayList<>();
+        // the second slot isn't readable before the first is published
+        assertThat(ring.drain((slots, offset) -> drained.add(slots[offset]), 10)).isZero();
+
+        ring.slots()[ring.offset(first)] = 1;
+        ring.publish(first);
+        assertThat(ring.drain((slots, offset) -> drained.add(slots[offset]), 10)).isEqualTo(2);
+        assertThat(drained).containsExactly((byte) 1, (byte) 2);
+        assertThat(ring.claim()).isEqualTo(2);
+    }
+
+    private static void exchange(AccessLogActivityTracker tracker, HttpMethod method, String uri,
+                                 HttpResponseStatus status, long contentLength) {
+        FlowContext flowContext = flowContext();
+        tracker.requestReceivedFromClient(flowContext, new DefaultHttpRequest(HttpVersion.HTTP_1_1, method, uri));
+        tracker.responseSentToClient(flowContext, response(status, contentLength));
+    }
+
+    private static HttpResponse response(HttpResponseStatus status, long contentLength) {
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, status);
+        if (contentLength >= 0) {
+            response.headers().set(HttpHeaderNames.CONTENT_LENGTH, contentLength);
+        }
+        return response;
+    }
+
+    private static FlowContext flowContext() {
+        return flowContext(0);
+    }
+
+    private static FlowContext flowContext(int streamId) {
+        FlowContext flowContext = mock(FlowContext.class);
+        when(flowContext.getClientAddress()).thenReturn(CLIENT);
+        when(flowContext.getClientStreamId()).thenReturn(streamId);
+        return flowContext;
+    }
+}
@@ -0,0 +1,144 @@
+package org.littleshoot.proxy.extras;
+
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.codec.http.HttpVersion;
+import org.junit.jupiter.api.Test;
+import org.littleshoot.proxy.FlowContext;
+import org.littleshoot.proxy.FullFlowContext;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public final class MetricsActivityTrackerTest {
+    private static final InetSocketAddress CLIENT = new InetSocketAddress("127.0.0.1", 50000);
+    private static final HttpRequest GET = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/");
+
+    private final MetricsActivityTracker tracker = new MetricsActivityTracker(2);
+
+    @Test
+    public void testCountsConnectionsRequestsResponsesAndBytes() {
+        FlowContext flowContext = flowContext();
+        tracker.clientConnected(CLIENT);
+        tracker.bytesReceivedFromClient(flowContext, 100);
+        tracker.requestReceivedFromClient(flowContext, GET);
+        tracker.requestReceivedFromClient(flowContext, GET);
+        tracker.bytesSentToClient(flowContext, 250);
+        tracker.responseSentToClient(flowContext, response(HttpResponseStatus.CONTINUE));
+        tracker.responseSentToClient(flowContext, response(HttpResponseStatus.OK));
+        tracker.responseSentToClient(flowContext, response(HttpResponseStatus.BAD_GATEWAY));
+
+        assertThat(tracker.getClientConnections()).isEqualTo(1);
+        assertThat(tracker.getActiveClientConnections()).isEqualTo(1);
+        assertThat(tracker.getRequestsReceived()).isEqualTo(2);
+        assertThat(tracker.getResponsesSent()).isEqualTo(3);
+        assertThat(tracker.getResponsesSent(HttpStatusClass.INFORMATIONAL)).isEqualTo(1);
+        assertThat(tracker.getResponsesSent(HttpStatusClass.SUCCESS)).isEqualTo(1);
+        assertThat(tracker.getResponsesSent(HttpStatusClass.SERVER_ERROR)).isEqualTo(1);
+        assertThat(tracker.getBytesReceivedFromClient()).isEqualTo(100);
+        assertThat(tracker.getBytesSentToClient()).isEqualTo(250);
+        // the interim response doesn't complete a request
+        assertThat(tracker.getRequestLatency().getCount()).isEqualTo(2);
+
+        tracker.clientDisconnected(CLIENT, null);
+        assertThat(tracker.getActiveClientConnections()).isZero();
+    }
+
+    @Test
+    public void testKeepsBusiestOriginsOnly() {
+        sendRequests("a:80", 3);
+        sendRequests("b:80", 1);
+        tracker.bytesSentToServer(fullFlowContext("a:80"), 10);
+        tracker.bytesReceivedFromServer(fullFlowContext("a:80"), 20);
+        tracker.responseReceivedFromServer(fullFlowContext("a:80"), response(HttpResponseStatus.SERVICE_UNAVAILABLE));
+
+        sendRequests("c:80", 1);
+
+        // c is only a candidate until the breakdown is read
+        assertThat(tracker.getOrigins()).extracting(MetricsActivityTracker.OriginMetrics::getOrigin)
+                .containsExactly("a:80", "c:80");
+        assertThat(tracker.getOriginEvictions()).isEqualTo(1);
+        MetricsActivityTracker.OriginMetrics busiest = tracker.getOrigins().get(0);
+        assertThat(busiest.getRequests()).isEqualTo(3);
+        assertThat(busiest.getServerErrors()).isEqualTo(1);
+        assertThat(busiest.getBytesSent()).isEqualTo(10);
+        assertThat(busiest.getBytesReceived()).isEqualTo(20);
+        // c took over b's count
+        assertThat(tracker.getOrigins().get(1).getRequests()).isEqualTo(2);
+        assertThat(tracker.getRequestsSentToServer()).isEqualTo(5);
+    }
+
+    @Test
+    public void testRebalancesOnceCandidatesFillUp() {
+        sendRequests("a:80", 3);
+        sendRequests("b:80", 1);
+        sendRequests("c:80", 1);
+        sendRequests("d:80", 1);
+
+        // c and d both started from b's count, and displaced b once there were as many candidates as origins
+        assertThat(tracker.getOriginEvictions()).isEqualTo(1);
+        assertThat(tracker.getOrigins()).extracting(MetricsActivityTracker.OriginMetrics::getRequests)
+                .containsExactly(3L, 2L);
+        assertThat(tracker.getOrigins().get(1).getOrigin()).isIn("c:80", "d:80");
+    }
+
+    @Test
+    public void testLatencyHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertThat(histogram.getPercentileMicros(99)).isZero();
+
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i, TimeUnit.MICROSECONDS);
+        }
+
+        assertThat(histogram.getCount()).isEqualTo(1000);
+        assertThat(histogram.getMaxMicros()).isEqualTo(1000);
+        assertThat(histogram.getMeanMicros()).isEqualTo(500.5);
+        assertThat((double) histogram.getPercentileMicros(50)).isCloseTo(500, within(500 / 16.0));
+        assertThat((double) histogram.getPercentileMicros(99)).isCloseTo(990, within(990 / 16.0));
+        assertThat(histogram.getPercentileMicros(100)).isEqualTo(1000);
+    }
+
+    @Test
+    public void testLatencyHistogramBuckets() {
+        for (long value : new long[]{0, 1, 15, 16, 17, 31, 32, 1000, 123456789, Long.MAX_VALUE}) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertThat(LatencyHistogram.highestValueIn(bucket)).isGreaterThanOrEqualTo(value);
+            if (bucket > 0) {
+                assertThat(LatencyHistogram.highestValueIn(bucket - 1)).isLessThan(value);
+            }
+        }
+    }
+
+    private void sendRequests(String origin, int count) {
+        for (int i = 0; i < count; i++) {
+            tracker.requestSentToServer(fullFlowContext(origin), GET);
+        }
+    }
+
+    private static FlowContext flowContext() {
+        FlowContext flowContext = mock(FlowContext.class);
+        when(flowContext.getClientAddress()).thenReturn(CLIENT);
+        return flowContext;
+    }
+
+    private static FullFlowContext fullFlowContext(String origin) {
+        FullFlowContext flowContext = mock(FullFlowContext.class);
+        when(flowContext.getServerHostAndPort()).thenReturn(origin);
+        return flowContext;
+    }
+
+    private static HttpResponse response(HttpResponseStatus status) {
+        return new DefaultHttpResponse(HttpVersion.HTTP_1_1, status);
+    }
+}
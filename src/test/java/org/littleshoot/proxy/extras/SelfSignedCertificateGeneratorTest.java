@@ -0,0 +1,86 @@
+package org.littleshoot.proxy.extras;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public final class SelfSignedCertificateGeneratorTest {
+
+    @TempDir
+    private File temporaryFolder;
+
+    @Test
+    public void testGenerateEcP256KeyStore() throws Exception {
+        assertGeneratedKeyStore(KeyAlgorithm.EC_P256);
+    }
+
+    @Test
+    public void testGenerateEcP384KeyStore() throws Exception {
+        assertGeneratedKeyStore(KeyAlgorithm.EC_P384);
+    }
+
+    @Test
+    public void testGenerateRsaKeyStore() throws Exception {
+        assertGeneratedKeyStore(KeyAlgorithm.RSA_2048);
+    }
+
+    private void assertGeneratedKeyStore(KeyAlgorithm keyAlgorithm) throws Exception {
+        KeyStore keyStore = SelfSignedCertificateGenerator.generateKeyStore(
+                keyAlgorithm, "littleproxy", 36500, "alias", "password");
+
+        assertThat(keyStore.getKey("alias", "password".toCharArray()).getAlgorithm())
+                .isEqualTo(keyAlgorithm.getKeyAlgorithm());
+        X509Certificate certificate = (X509Certificate) keyStore.getCertificate("alias");
+        assertThat(certificate.getSigAlgName()).isEqualToIgnoringCase(keyAlgorithm.getSignatureAlgorithm());
+        assertThat(certificate.getSubjectX500Principal().getName()).isEqualTo("CN=littleproxy");
+        assertThat(certificate.getIssuerX500Principal()).isEqualTo(certificate.getSubjectX500Principal());
+        assertThat(certificate.getVersion()).isEqualTo(3);
+        certificate.checkValidity();
+        certificate.verify(certificate.getPublicKey());
+    }
+
+    @Test
+    public void testSelfSignedSslEngineSourceGeneratesEcKeyStoreByDefault() throws Exception {
+        Path keyStorePath = temporaryFolder.toPath().resolve("generated_keystore.jks");
+        new SelfSignedSslEngineSource(keyStorePath.toString(), false, true, "littleproxy", "Be Your Own Lantern");
+
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (InputStream is = Files.newInputStream(keyStorePath)) {
+            keyStore.load(is, "Be Your Own Lantern".toCharArray());
+        }
+        assertThat(keyStore.getCertificate("littleproxy").getPublicKey().getAlgorithm()).isEqualTo("EC");
+
+        byte[] exported = Files.readAllBytes(temporaryFolder.toPath().resolve("littleproxy_cert"));
+        assertThat(CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(exported)))
+                .isEqualTo(keyStore.getCertificate("littleproxy"));
+
+        try (var files = Files.list(temporaryFolder.toPath())) {
+            assertThat(files.map(path -> path.getFileName().toString()))
+                    .containsExactlyInAnyOrder("generated_keystore.jks", "littleproxy_cert");
+        }
+    }
+
+    @Test
+    public void testSelfSignedSslEngineSourceWithRsa() throws Exception {
+        Path keyStorePath = temporaryFolder.toPath().resolve("rsa_keystore.jks");
+        SelfSignedSslEngineSource source = new SelfSignedSslEngineSource(keyStorePath.toString(), false, true,
+                "littleproxy", "Be Your Own Lantern", KeyAlgorithm.RSA_2048);
+
+        assertThat(source.newSslEngine()).isNotNull();
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (InputStream is = Files.newInputStream(keyStorePath)) {
+            keyStore.load(is, "Be Your Own Lantern".toCharArray());
+        }
+        assertThat(keyStore.getCertificate("littleproxy").getPublicKey().getAlgorithm()).isEqualTo("RSA");
+    }
+}
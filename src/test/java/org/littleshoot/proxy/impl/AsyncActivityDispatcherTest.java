@@ -0,0 +1,207 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.server.Server;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.littleshoot.proxy.ActivityTrackerAdapter;
+import org.littleshoot.proxy.ActivityTrackerOverflowPolicy;
+import org.littleshoot.proxy.FlowContext;
+import org.littleshoot.proxy.TestUtils;
+
+import javax.net.ssl.SSLSession;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.littleshoot.proxy.TestUtils.createProxiedHttpClient;
+
+public final class AsyncActivityDispatcherTest {
+    private static final InetSocketAddress CLIENT = new InetSocketAddress("127.0.0.1", 12345);
+
+    private DefaultHttpProxyServer proxyServer;
+    private Server webServer;
+    private AsyncActivityDispatcher dispatcher;
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (proxyServer != null) {
+            proxyServer.abort();
+        }
+        if (webServer != null) {
+            webServer.stop();
+        }
+        if (dispatcher != null) {
+            dispatcher.stop();
+        }
+    }
+
+    @Test
+    public void testCallsTrackersOffTheEventLoops() throws Exception {
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        List<HttpRequest> requests = new CopyOnWriteArrayList<>();
+        List<HttpResponse> responses = new CopyOnWriteArrayList<>();
+        AtomicLong bytesFromClient = new AtomicLong();
+        AtomicLong bytesToClient = new AtomicLong();
+
+        webServer = TestUtils.startWebServer(false);
+        proxyServer = (DefaultHttpProxyServer) DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withAsyncActivityTracking(1024, ActivityTrackerOverflowPolicy.DROP)
+                .plusActivityTracker(new ActivityTrackerAdapter() {
+                    @Override
+                    public void bytesReceivedFromClient(FlowContext flowContext, int numberOfBytes) {
+                        threads.add(Thread.currentThread().getName());
+                        bytesFromClient.addAndGet(numberOfBytes);
+                    }
+
+                    @Override
+                    public void requestReceivedFromClient(FlowContext flowContext, HttpRequest httpRequest) {
+                        threads.add(Thread.currentThread().getName());
+                        requests.add(httpRequest);
+                    }
+
+                    @Override
+                    public void bytesSentToClient(FlowContext flowContext, int numberOfBytes) {
+                        threads.add(Thread.currentThread().getName());
+                        bytesToClient.addAndGet(numberOfBytes);
+                    }
+
+                    @Override
+                    public void responseSentToClient(FlowContext flowContext, HttpResponse httpResponse) {
+                        threads.add(Thread.currentThread().getName());
+                        responses.add(httpResponse);
+                    }
+                })
+                .start();
+
+        try (CloseableHttpClient httpClient = createProxiedHttpClient(proxyServer.getListenAddress().getPort());
+             CloseableHttpResponse response = httpClient.execute(new HttpGet(
+                     "http://127.0.0.1:" + TestUtils.findLocalHttpPort(webServer) + "/"))) {
+            assertThat(response.getStatusLine().getStatusCode()).isEqualTo(200);
+            EntityUtils.consume(response.getEntity());
+        }
+        // stopping delivers the queued events
+        proxyServer.stop();
+
+        assertThat(threads).containsExactly("LittleProxy-activity-tracker");
+        assertThat(requests).hasSize(1);
+        assertThat(requests.get(0).uri()).endsWith("/");
+        assertThat(requests.get(0).headers().get("Via")).isNull();
+        assertThat(responses).hasSize(1);
+        assertThat(responses.get(0).status().code()).isEqualTo(200);
+        assertThat(bytesFromClient.get()).isPositive();
+        assertThat(bytesToClient.get()).isPositive();
+        assertThat(proxyServer.getAsyncActivityDispatcher().getDroppedEvents()).isZero();
+    }
+
+    @Test
+    public void testReportsConnectionsClosedByStopping() throws Exception {
+        AtomicInteger disconnectedClients = new AtomicInteger();
+        webServer = TestUtils.startWebServer(false);
+        proxyServer = (DefaultHttpProxyServer) DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withAsyncActivityTracking(1024, ActivityTrackerOverflowPolicy.DROP)
+                .plusActivityTracker(new ActivityTrackerAdapter() {
+                    @Override
+                    public void clientDisconnected(InetSocketAddress clientAddress, SSLSession sslSession) {
+                        disconnectedClients.incrementAndGet();
+                    }
+                })
+                .start();
+
+        try (CloseableHttpClient httpClient = createProxiedHttpClient(proxyServer.getListenAddress().getPort())) {
+            try (CloseableHttpResponse response = httpClient.execute(new HttpGet(
+                    "http://127.0.0.1:" + TestUtils.findLocalHttpPort(webServer) + "/"))) {
+                EntityUtils.consume(response.getEntity());
+            }
+            // the client keeps its connection alive, so that stopping closes it
+            proxyServer.stop();
+        }
+
+        assertThat(disconnectedClients).hasValue(1);
+    }
+
+    @Test
+    public void testDropsEventsWhenTrackersFallBehind() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger received = new AtomicInteger();
+        dispatcher = new AsyncActivityDispatcher(List.of(new BlockingTracker(release, received)),
+                2, ActivityTrackerOverflowPolicy.DROP);
+        dispatcher.start();
+
+        for (int i = 0; i < 10; i++) {
+            dispatcher.clientConnected(CLIENT);
+        }
+        // at most one event is being dispatched, and two are queued
+        assertThat(dispatcher.getDroppedEvents()).isBetween(7L, 8L);
+
+        release.countDown();
+        dispatcher.stop();
+        assertThat(received.get() + dispatcher.getDroppedEvents()).isEqualTo(10);
+    }
+
+    @Test
+    public void testBlocksWhenTrackersFallBehind() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger received = new AtomicInteger();
+        dispatcher = new AsyncActivityDispatcher(List.of(new BlockingTracker(release, received)),
+                1, ActivityTrackerOverflowPolicy.BLOCK);
+        dispatcher.start();
+
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < 5; i++) {
+                dispatcher.clientConnected(CLIENT);
+            }
+        });
+        producer.start();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (producer.getState() != Thread.State.WAITING && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(producer.getState()).isEqualTo(Thread.State.WAITING);
+        assertThat(producer.isAlive()).isTrue();
+
+        release.countDown();
+        producer.join(TimeUnit.SECONDS.toMillis(10));
+        dispatcher.stop();
+        assertThat(received.get()).isEqualTo(5);
+        assertThat(dispatcher.getDroppedEvents()).isZero();
+    }
+
+    /**
+     * Counts the connections, once released.
+     */
+    private static class BlockingTracker extends ActivityTrackerAdapter {
+        private final CountDownLatch release;
+        private final AtomicInteger received;
+
+        BlockingTracker(CountDownLatch release, AtomicInteger received) {
+            this.release = release;
+            this.received = received;
+        }
+
+        @Override
+        public void clientConnected(InetSocketAddress clientAddress) {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            received.incrementAndGet();
+        }
+    }
+}
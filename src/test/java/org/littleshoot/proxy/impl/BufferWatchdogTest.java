@@ -0,0 +1,169 @@
+package org.littleshoot.proxy.impl;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.littleshoot.proxy.HttpFiltersSourceAdapter;
+import org.littleshoot.proxy.MemoryPressureAction;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public final class BufferWatchdogTest {
+    private static final int MAX_BUFFERED_BYTES = 64 * 1024;
+
+    private DefaultHttpProxyServer proxyServer;
+    private BufferWatchdog watchdog;
+    private ServerSocket server;
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (watchdog != null) {
+            watchdog.stop();
+        }
+        if (proxyServer != null) {
+            proxyServer.abort();
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testPausesTheLargestConsumer() throws Exception {
+        startProxy(MemoryPressureAction.PAUSE_READING);
+
+        try (Socket client = new Socket("127.0.0.1", proxyServer.getListenAddress().getPort())) {
+            sendPartialRequest(client.getOutputStream());
+
+            BufferWatchdog watchdog = proxyServer.getBufferWatchdog();
+            waitUntil(() -> watchdog.getPausedConnections() == 1);
+            ClientToProxyConnection clientConnection = proxyServer.getClientConnections().firstEntry().getValue();
+            waitUntil(() -> !clientConnection.channel.config().isAutoRead());
+
+            assertThat(watchdog.getBufferedBytes()).isGreaterThan(MAX_BUFFERED_BYTES);
+            assertThat(watchdog.getDisconnectedConnections()).isZero();
+            assertThat(clientConnection.channel.isActive()).isTrue();
+        }
+    }
+
+    @Test
+    public void testDisconnectsTheLargestConsumer() throws Exception {
+        startProxy(MemoryPressureAction.DISCONNECT);
+
+        try (Socket client = new Socket("127.0.0.1", proxyServer.getListenAddress().getPort())) {
+            client.setSoTimeout((int) TimeUnit.SECONDS.toMillis(10));
+            sendPartialRequest(client.getOutputStream());
+
+            InputStream in = client.getInputStream();
+            // the proxy closes the connection without responding
+            assertThat(in.read()).isEqualTo(-1);
+
+            BufferWatchdog watchdog = proxyServer.getBufferWatchdog();
+            assertThat(watchdog.getDisconnectedConnections()).isEqualTo(1);
+            assertThat(watchdog.getPausedConnections()).isZero();
+        }
+    }
+
+    @Test
+    public void testClosesConnectionsPausedForTooLong() throws Exception {
+        // without a watchdog of its own
+        startProxy(0, MemoryPressureAction.PAUSE_READING);
+        watchdog = new BufferWatchdog(proxyServer, MAX_BUFFERED_BYTES, MemoryPressureAction.PAUSE_READING, 50, 500);
+        watchdog.start();
+
+        try (Socket client = new Socket("127.0.0.1", proxyServer.getListenAddress().getPort())) {
+            client.setSoTimeout((int) TimeUnit.SECONDS.toMillis(10));
+            sendPartialRequest(client.getOutputStream());
+
+            waitUntil(() -> watchdog.getPausedConnections() == 1);
+            long pausedAt = System.nanoTime();
+
+            // the aggregated content isn't freed by pausing, so the connection is closed once it's paused for too long
+            assertThat(client.getInputStream().read()).isEqualTo(-1);
+            assertThat(System.nanoTime() - pausedAt).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(400));
+            assertThat(watchdog.getDisconnectedConnections()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void testCountsAndPausesHttp2Streams() {
+        ProxyToServerConnection serverConnection = mock(ProxyToServerConnection.class);
+        when(serverConnection.getBufferedBytes()).thenReturn((long) MAX_BUFFERED_BYTES);
+        ClientToProxyConnection stream = mock(ClientToProxyConnection.class);
+        when(stream.getBufferedBytes()).thenReturn(1024L);
+        when(stream.getServerConnections()).thenReturn(List.of(serverConnection));
+        ClientToProxyConnection clientConnection = mock(ClientToProxyConnection.class);
+        when(clientConnection.getHttp2Streams()).thenReturn(List.of(stream));
+        DefaultHttpProxyServer mockProxyServer = mock(DefaultHttpProxyServer.class);
+        when(mockProxyServer.getClientConnections()).thenReturn(new ConcurrentSkipListMap<>(Map.of(1L, clientConnection)));
+        when(clientConnection.getConnectionId()).thenReturn(1L);
+
+        BufferWatchdog watchdog = new BufferWatchdog(mockProxyServer, MAX_BUFFERED_BYTES,
+                MemoryPressureAction.PAUSE_READING, BufferWatchdog.DEFAULT_CHECK_INTERVAL_MILLIS,
+                BufferWatchdog.DEFAULT_MAX_PAUSE_MILLIS);
+        watchdog.check();
+
+        // the streams aren't registered with the proxy, and the client connection has no server connections itself
+        assertThat(watchdog.getBufferedBytes()).isEqualTo(MAX_BUFFERED_BYTES + 1024);
+        assertThat(watchdog.getPausedConnections()).isEqualTo(1);
+        verify(clientConnection).pauseReadingUnderMemoryPressure();
+        verify(serverConnection).pauseReadingUnderMemoryPressure();
+    }
+
+    private void startProxy(MemoryPressureAction action) throws Exception {
+        startProxy(MAX_BUFFERED_BYTES, action);
+    }
+
+    private void startProxy(long maxBufferedBytes, MemoryPressureAction action) throws Exception {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        proxyServer = (DefaultHttpProxyServer) DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withMaxBufferedBytes(maxBufferedBytes, action)
+                .withFiltersSource(new HttpFiltersSourceAdapter() {
+                    @Override
+                    public int getMaximumRequestBufferSizeInBytes() {
+                        return 10 * 1024 * 1024;
+                    }
+                })
+                .start();
+    }
+
+    /**
+     * Sends a request whose body is aggregated for filtering, but stops half
+     * way through the body, so the proxy holds on to what it has read.
+     */
+    private void sendPartialRequest(OutputStream out) throws Exception {
+        InetSocketAddress serverAddress = (InetSocketAddress) server.getLocalSocketAddress();
+        String target = "127.0.0.1:" + serverAddress.getPort();
+        int contentLength = 4 * MAX_BUFFERED_BYTES;
+        out.write(("POST http://" + target + "/upload HTTP/1.1\r\n"
+                + "Host: " + target + "\r\n"
+                + "Content-Length: " + contentLength + "\r\n"
+                + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(new byte[contentLength / 2]);
+        out.flush();
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(condition.getAsBoolean()).isTrue();
+    }
+}
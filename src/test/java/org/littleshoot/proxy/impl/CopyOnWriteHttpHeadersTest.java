@@ -0,0 +1,78 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaders;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public final class CopyOnWriteHttpHeadersTest {
+    @Test
+    public void testSharesHeadersUntilModified() {
+        HttpHeaders received = new DefaultHttpHeaders().add("Host", "example.com").add("Accept", "*/*");
+        CopyOnWriteHttpHeaders forwarded = new CopyOnWriteHttpHeaders(received);
+        CopyOnWriteHttpHeaders original = forwarded.share();
+        assertThat(forwarded.isShared()).isTrue();
+
+        // removing what isn't there doesn't modify anything
+        forwarded.remove("Proxy-Connection");
+        assertThat(forwarded.isShared()).isTrue();
+
+        forwarded.add("Via", "1.1 proxy").remove("Accept");
+        assertThat(forwarded.isShared()).isFalse();
+        assertThat(original.isShared()).isFalse();
+        assertThat(forwarded.get("Via")).isEqualTo("1.1 proxy");
+        assertThat(forwarded.contains("Accept")).isFalse();
+        assertThat(original.get("Accept")).isEqualTo("*/*");
+        assertThat(original.contains("Via")).isFalse();
+        assertThat(received.names()).containsExactly("Host", "Accept");
+    }
+
+    @Test
+    public void testModifiesEntriesWhileIterating() {
+        CopyOnWriteHttpHeaders forwarded = new CopyOnWriteHttpHeaders(
+                new DefaultHttpHeaders().add("A", "1").add("B", "2").add("C", "3"));
+        CopyOnWriteHttpHeaders original = forwarded.share();
+
+        for (Map.Entry<String, String> entry : forwarded) {
+            if (entry.getKey().equals("B")) {
+                assertThat(entry.setValue("two")).isEqualTo("2");
+            } else if (entry.getKey().equals("C")) {
+                assertThat(entry.setValue("three")).isEqualTo("3");
+            }
+        }
+
+        assertThat(forwarded.entries()).extracting(Map.Entry::getValue).containsExactly("1", "two", "three");
+        assertThat(original.entries()).extracting(Map.Entry::getValue).containsExactly("1", "2", "3");
+    }
+
+    @Test
+    public void testIteratesOverTheHeadersOnceNoLongerShared() {
+        HttpHeaders received = new DefaultHttpHeaders().add("A", "1");
+        CopyOnWriteHttpHeaders forwarded = new CopyOnWriteHttpHeaders(received);
+        CopyOnWriteHttpHeaders original = forwarded.share();
+        forwarded.add("B", "2");
+
+        for (Map.Entry<String, String> entry : forwarded) {
+            entry.setValue(entry.getValue() + "0");
+        }
+
+        assertThat(forwarded.entries()).extracting(Map.Entry::getValue).containsExactly("10", "20");
+        assertThat(original.entries()).extracting(Map.Entry::getValue).containsExactly("1");
+    }
+
+    @Test
+    public void testModifiesEntriesOfTheOtherView() {
+        CopyOnWriteHttpHeaders original = new CopyOnWriteHttpHeaders(new DefaultHttpHeaders().add("A", "1"));
+        CopyOnWriteHttpHeaders forwarded = original.share();
+
+        Map.Entry<CharSequence, CharSequence> entry = original.iteratorCharSequence().next();
+        forwarded.set("A", "forwarded");
+        entry.setValue("original");
+
+        assertThat(original.get("A")).isEqualTo("original");
+        assertThat(forwarded.get("A")).isEqualTo("forwarded");
+    }
+}
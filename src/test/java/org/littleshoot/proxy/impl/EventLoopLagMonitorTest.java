@@ -0,0 +1,99 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.littleshoot.proxy.TransportProtocol;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public final class EventLoopLagMonitorTest {
+    private DefaultHttpProxyServer proxyServer;
+
+    @AfterEach
+    void tearDown() {
+        if (proxyServer != null) {
+            proxyServer.abort();
+        }
+    }
+
+    @Test
+    public void testRecordsLagAndReportsStalls() throws Exception {
+        proxyServer = (DefaultHttpProxyServer) DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withThreadPoolConfiguration(new ThreadPoolConfiguration()
+                        .withClientToProxyWorkerThreads(2)
+                        .withEventLoopProbeInterval(Duration.ofMillis(10))
+                        .withEventLoopStallThreshold(Duration.ofMillis(200)))
+                .start();
+        ServerGroup serverGroup = proxyServer.getServerGroup();
+        EventLoopLagMonitor monitor = serverGroup.getEventLoopLagMonitor();
+        assertThat(monitor).isNotNull();
+
+        waitUntil(() -> !monitor.getLoops().isEmpty()
+                && monitor.getLoops().stream().allMatch(loop -> loop.getLag().getCount() > 0));
+        assertThat(monitor.getLoops()).hasSize(ServerGroup.DEFAULT_INCOMING_ACCEPTOR_THREADS + 2
+                + ServerGroup.DEFAULT_OUTGOING_WORKER_THREADS);
+        assertThat(monitor.getStalls()).isZero();
+
+        EventLoopGroup workers = serverGroup.getClientToProxyWorkerPoolForTransport(TransportProtocol.TCP);
+        EventLoop blocked = workers.next();
+        int index = 0;
+        for (EventExecutor executor : workers) {
+            if (executor == blocked) {
+                break;
+            }
+            index++;
+        }
+        int blockedIndex = index;
+        EventLoopLagMonitor.LoopLag blockedLag = monitor.getLoops().stream()
+                .filter(loop -> loop.getPool().equals("ClientToProxyWorker") && loop.getIndex() == blockedIndex)
+                .findFirst()
+                .orElseThrow();
+
+        blocked.execute(() -> {
+            try {
+                Thread.sleep(600);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        waitUntil(() -> blockedLag.getStalls() == 1 && blockedLag.getLag().getMaxMicros() >= 400_000);
+        assertThat(monitor.getStalls()).isEqualTo(1);
+    }
+
+    @Test
+    public void testNotProbedByDefault() {
+        proxyServer = (DefaultHttpProxyServer) DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .start();
+
+        assertThat(proxyServer.getServerGroup().getEventLoopLagMonitor()).isNull();
+    }
+
+    @Test
+    public void testProbingCanBeDisabled() {
+        proxyServer = (DefaultHttpProxyServer) DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withThreadPoolConfiguration(new ThreadPoolConfiguration()
+                        .withEventLoopProbeInterval(Duration.ZERO))
+                .start();
+
+        assertThat(proxyServer.getServerGroup().getEventLoopLagMonitor()).isNull();
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertThat(System.nanoTime()).as("Timed out waiting for condition").isLessThan(deadline);
+            Thread.sleep(10);
+        }
+    }
+}
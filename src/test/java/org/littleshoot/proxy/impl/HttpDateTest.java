@@ -0,0 +1,26 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.handler.codec.DateFormatter;
+import org.junit.jupiter.api.Test;
+
+import java.util.Date;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public final class HttpDateTest {
+    @Test
+    public void testFormatsCurrentDate() {
+        Date date = DateFormatter.parseHttpDate(HttpDate.now());
+        assertThat(date).isNotNull();
+        assertThat(date.getTime()).isCloseTo(System.currentTimeMillis(), within(2000L));
+        assertThat(HttpDate.now().toString()).matches("\\w{3}, \\d{2} \\w{3} \\d{4} \\d{2}:\\d{2}:\\d{2} GMT");
+    }
+
+    @Test
+    public void testRefreshedEverySecond() throws Exception {
+        String before = HttpDate.now().toString();
+        Thread.sleep(1100);
+        assertThat(HttpDate.now().toString()).isNotEqualTo(before);
+    }
+}
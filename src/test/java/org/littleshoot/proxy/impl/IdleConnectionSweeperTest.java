@@ -0,0 +1,86 @@
+package org.littleshoot.proxy.impl;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public final class IdleConnectionSweeperTest {
+    private DefaultHttpProxyServer proxyServer;
+    private ServerSocket server;
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (proxyServer != null) {
+            proxyServer.abort();
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testClosesIdleClientConnection() throws Exception {
+        startProxy();
+
+        try (Socket client = new Socket("127.0.0.1", proxyServer.getListenAddress().getPort())) {
+            client.setSoTimeout((int) TimeUnit.SECONDS.toMillis(10));
+            long start = System.nanoTime();
+
+            assertThat(client.getInputStream().read()).isEqualTo(-1);
+            assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(900));
+        }
+    }
+
+    @Test
+    public void testKeepsConnectionsThatReadOrWrite() throws Exception {
+        startProxy();
+
+        try (Socket client = new Socket("127.0.0.1", proxyServer.getListenAddress().getPort())) {
+            client.setSoTimeout((int) TimeUnit.SECONDS.toMillis(10));
+            OutputStream out = client.getOutputStream();
+            out.write(("POST http://127.0.0.1:" + server.getLocalPort() + "/ HTTP/1.1\r\n"
+                    + "Host: 127.0.0.1:" + server.getLocalPort() + "\r\n"
+                    + "Transfer-Encoding: chunked\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+
+            // the client connection keeps reading, and the server connection keeps writing, for longer than the
+            // timeout, while the server never answers
+            try (Socket origin = server.accept()) {
+                for (int i = 0; i < 12; i++) {
+                    out.write("1\r\na\r\n".getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                    Thread.sleep(200);
+                }
+                InputStream in = client.getInputStream();
+                assertThat(in.available()).isZero();
+
+                // once both go quiet, the server connection times out and the client gets a gateway timeout
+                byte[] statusLine = new byte[12];
+                int read = 0;
+                while (read < statusLine.length) {
+                    int n = in.read(statusLine, read, statusLine.length - read);
+                    assertThat(n).isPositive();
+                    read += n;
+                }
+                assertThat(new String(statusLine, StandardCharsets.US_ASCII)).isEqualTo("HTTP/1.1 504");
+            }
+        }
+    }
+
+    private void startProxy() throws Exception {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        proxyServer = (DefaultHttpProxyServer) DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withIdleConnectionTimeout(1)
+                .start();
+    }
+}
@@ -0,0 +1,119 @@
+package org.littleshoot.proxy.impl;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public final class MitmBypassIndexTest {
+    @TempDir
+    private Path temporaryFolder;
+
+    private final MutableClock clock = new MutableClock();
+
+    @Test
+    public void testBypassAfterFailureThreshold() {
+        MitmBypassIndex index = new MitmBypassIndex(2, Duration.ofMinutes(10), 100, null, clock);
+        assertThat(index.shouldBypass("pinned.example.com:443")).isFalse();
+
+        index.recordFailure("pinned.example.com:443");
+        assertThat(index.shouldBypass("pinned.example.com:443")).isFalse();
+
+        index.recordFailure("PINNED.example.com:443");
+        assertThat(index.shouldBypass("pinned.example.com:443")).isTrue();
+        assertThat(index.shouldBypass("other.example.com:443")).isFalse();
+        assertThat(index.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void testBypassExpires() {
+        MitmBypassIndex index = new MitmBypassIndex(1, Duration.ofMinutes(10), 100, null, clock);
+        index.recordFailure("pinned.example.com:443");
+        assertThat(index.shouldBypass("pinned.example.com:443")).isTrue();
+
+        clock.advance(Duration.ofMinutes(10));
+        assertThat(index.shouldBypass("pinned.example.com:443")).isFalse();
+        assertThat(index.size()).isZero();
+    }
+
+    @Test
+    public void testStaleFailuresAreForgotten() {
+        MitmBypassIndex index = new MitmBypassIndex(2, Duration.ofMinutes(10), 100, null, clock);
+        index.recordFailure("flaky.example.com:443");
+        clock.advance(Duration.ofMinutes(11));
+        index.recordFailure("flaky.example.com:443");
+        assertThat(index.shouldBypass("flaky.example.com:443")).isFalse();
+    }
+
+    @Test
+    public void testSuccessResetsFailures() {
+        MitmBypassIndex index = new MitmBypassIndex(2, Duration.ofMinutes(10), 100, null, clock);
+        index.recordFailure("flaky.example.com:443");
+        index.recordSuccess("flaky.example.com:443");
+        index.recordFailure("flaky.example.com:443");
+        assertThat(index.shouldBypass("flaky.example.com:443")).isFalse();
+    }
+
+    @Test
+    public void testBoundedSize() {
+        MitmBypassIndex index = new MitmBypassIndex(1, Duration.ofMinutes(10), 2, null, clock);
+        index.recordFailure("a.example.com:443");
+        index.recordFailure("b.example.com:443");
+        index.recordFailure("c.example.com:443");
+        assertThat(index.shouldBypass("c.example.com:443")).isFalse();
+
+        clock.advance(Duration.ofMinutes(10));
+        index.recordFailure("c.example.com:443");
+        assertThat(index.shouldBypass("c.example.com:443")).isTrue();
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        Path storeFile = temporaryFolder.resolve("mitm-bypass.txt");
+        MitmBypassIndex index = new MitmBypassIndex(1, Duration.ofMinutes(10), 100, storeFile, clock);
+        index.recordFailure("pinned.example.com:443");
+        index.recordFailure("expiring.example.com:443");
+        clock.advance(Duration.ofMinutes(5));
+        index.recordFailure("later.example.com:443");
+        index.save();
+
+        assertThat(Files.readAllLines(storeFile)).hasSize(4);
+
+        clock.advance(Duration.ofMinutes(6));
+        MitmBypassIndex restored = new MitmBypassIndex(1, Duration.ofMinutes(10), 100, storeFile, clock);
+        assertThat(restored.shouldBypass("pinned.example.com:443")).isFalse();
+        assertThat(restored.shouldBypass("later.example.com:443")).isTrue();
+        assertThat(restored.size()).isEqualTo(1);
+    }
+
+    private static final class MutableClock extends Clock {
+        private Instant now = Instant.parse("2024-01-01T00:00:00Z");
+
+        void advance(Duration duration) {
+            now = now.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package org.littleshoot.proxy.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public final class OpenMetricsWriterTest {
+    @Test
+    public void testWritesMetadataSamplesAndNumbers() {
+        ByteBuf buf = Unpooled.buffer(16);
+        OpenMetricsWriter writer = new OpenMetricsWriter(buf);
+
+        writer.counter("requests", "Requests.");
+        writer.sample("requests_total").value(0);
+        writer.sample("requests_total").label("code", "2xx").label("loop", 12).value(9_876_543_210L);
+        writer.gauge("delta", "A gauge.");
+        writer.sample("delta").value(-42);
+        writer.sample("delta").value(Long.MIN_VALUE);
+        writer.summaryOfSeconds("latency_seconds", "Latency.");
+        writer.sample("latency_seconds").label("quantile", "0.5").valueOfMicrosAsSeconds(1_234);
+        writer.sample("latency_seconds_sum").valueOfMicrosAsSeconds(12_000_001);
+        writer.eof();
+
+        assertThat(buf.toString(StandardCharsets.US_ASCII)).isEqualTo(
+                "# TYPE requests counter\n" +
+                "# HELP requests Requests.\n" +
+                "requests_total 0\n" +
+                "requests_total{code=\"2xx\",loop=\"12\"} 9876543210\n" +
+                "# TYPE delta gauge\n" +
+                "# HELP delta A gauge.\n" +
+                "delta -42\n" +
+                "delta -9223372036854775808\n" +
+                "# TYPE latency_seconds summary\n" +
+                "# UNIT latency_seconds seconds\n" +
+                "# HELP latency_seconds Latency.\n" +
+                "latency_seconds{quantile=\"0.5\"} 0.001234\n" +
+                "latency_seconds_sum 12.000001\n" +
+                "# EOF\n");
+        buf.release();
+    }
+}
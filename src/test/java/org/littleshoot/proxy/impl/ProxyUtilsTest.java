@@ -40,6 +40,20 @@ public final class ProxyUtilsTest {
         assertThat(parseHostAndPort("http://www.test.com")).isEqualTo("www.test.com");
         assertThat(parseHostAndPort("www.test.com")).isEqualTo("www.test.com");
         assertThat(parseHostAndPort("httpbin.org:443/get")).isEqualTo("httpbin.org:443");
+        assertThat(parseHostAndPort("HTTPS://www.test.com:443/test")).isEqualTo("www.test.com:443");
+        assertThat(parseHostAndPort("wss://www.test.com:443/socket")).isEqualTo("www.test.com:443");
+        assertThat(parseHostAndPort("ws://[::1]:8080")).isEqualTo("[::1]:8080");
+        assertThat(parseHostAndPort("ftp://www.test.com/test")).isEqualTo("ftp:");
+        assertThat(parseHostAndPort("/test")).isEmpty();
+    }
+
+    @Test
+    public void testStripHost() {
+        assertThat(ProxyUtils.stripHost("http://www.test.com:80/test?q=1")).isEqualTo("/test?q=1");
+        assertThat(ProxyUtils.stripHost("Https://www.test.com")).isEqualTo("/");
+        assertThat(ProxyUtils.stripHost("ws://www.test.com/socket")).isEqualTo("/socket");
+        assertThat(ProxyUtils.stripHost("/test")).isEqualTo("/test");
+        assertThat(ProxyUtils.stripHost("httpx://www.test.com/test")).isEqualTo("httpx://www.test.com/test");
     }
 
     @Test
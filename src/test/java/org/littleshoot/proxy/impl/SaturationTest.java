@@ -0,0 +1,101 @@
+package org.littleshoot.proxy.impl;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public final class SaturationTest {
+    private static final int BODY_SIZE = 64 * 1024 * 1024;
+
+    private DefaultHttpProxyServer proxyServer;
+    private ServerSocket server;
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (proxyServer != null) {
+            proxyServer.abort();
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testStopsReadingFromServerWhileClientIsSaturated() throws Exception {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        proxyServer = (DefaultHttpProxyServer) DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .start();
+
+        try (Socket client = new Socket("127.0.0.1", proxyServer.getListenAddress().getPort())) {
+            client.setSoTimeout((int) TimeUnit.SECONDS.toMillis(30));
+            OutputStream out = client.getOutputStream();
+            out.write(("GET http://127.0.0.1:" + server.getLocalPort() + "/ HTTP/1.1\r\n"
+                    + "Host: 127.0.0.1:" + server.getLocalPort() + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+
+            try (Socket origin = server.accept()) {
+                CompletableFuture<Void> sent = CompletableFuture.runAsync(() -> sendResponse(origin));
+
+                // while the client doesn't read, the proxy stops reading from the server rather than buffering
+                Thread.sleep(1000);
+                assertThat(sent).isNotDone();
+
+                InputStream in = client.getInputStream();
+                StringBuilder head = new StringBuilder();
+                while (!head.toString().endsWith("\r\n\r\n")) {
+                    int b = in.read();
+                    assertThat(b).isNotNegative();
+                    head.append((char) b);
+                }
+                assertThat(head.toString()).startsWith("HTTP/1.1 200");
+
+                long read = 0;
+                byte[] buffer = new byte[64 * 1024];
+                while (read < BODY_SIZE) {
+                    int n = in.read(buffer);
+                    assertThat(n).isPositive();
+                    read += n;
+                }
+
+                assertThat(read).isEqualTo(BODY_SIZE);
+                sent.get(30, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    private static void sendResponse(Socket origin) {
+        try {
+            InputStream in = origin.getInputStream();
+            StringBuilder request = new StringBuilder();
+            while (!request.toString().endsWith("\r\n\r\n")) {
+                int b = in.read();
+                if (b < 0) {
+                    throw new IllegalStateException("Request ended early");
+                }
+                request.append((char) b);
+            }
+
+            OutputStream out = origin.getOutputStream();
+            out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + BODY_SIZE + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            byte[] chunk = new byte[64 * 1024];
+            for (int written = 0; written < BODY_SIZE; written += chunk.length) {
+                out.write(chunk);
+            }
+            out.flush();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package org.littleshoot.proxy.impl;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public final class TunnelRelayHandlerTest {
+    private DefaultHttpProxyServer proxyServer;
+    private ServerSocket server;
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (proxyServer != null) {
+            proxyServer.abort();
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testRelaysBothWays() throws Exception {
+        startProxy();
+
+        try (Socket client = openTunnel(); Socket origin = server.accept()) {
+            origin.setSoTimeout((int) TimeUnit.SECONDS.toMillis(10));
+            byte[] request = new byte[256 * 1024];
+            Arrays.fill(request, (byte) 'x');
+            client.getOutputStream().write(request);
+            client.getOutputStream().flush();
+            assertThat(origin.getInputStream().readNBytes(request.length)).isEqualTo(request);
+
+            origin.getOutputStream().write("pong".getBytes(StandardCharsets.US_ASCII));
+            origin.getOutputStream().flush();
+            assertThat(new String(client.getInputStream().readNBytes(4), StandardCharsets.US_ASCII)).isEqualTo("pong");
+        }
+    }
+
+    @Test
+    public void testPropagatesHalfClosure() throws Exception {
+        startProxy();
+
+        try (Socket client = openTunnel(); Socket origin = server.accept()) {
+            origin.setSoTimeout((int) TimeUnit.SECONDS.toMillis(10));
+            client.getOutputStream().write("ping".getBytes(StandardCharsets.US_ASCII));
+            client.getOutputStream().flush();
+            client.shutdownOutput();
+
+            // the origin sees the end of the request, and may still answer it
+            assertThat(readToEnd(origin.getInputStream())).isEqualTo("ping");
+            origin.getOutputStream().write("pong".getBytes(StandardCharsets.US_ASCII));
+            origin.getOutputStream().flush();
+            origin.shutdownOutput();
+
+            assertThat(readToEnd(client.getInputStream())).isEqualTo("pong");
+        }
+    }
+
+    private Socket openTunnel() throws IOException {
+        Socket client = new Socket("127.0.0.1", proxyServer.getListenAddress().getPort());
+        client.setSoTimeout((int) TimeUnit.SECONDS.toMillis(10));
+        OutputStream out = client.getOutputStream();
+        String target = "127.0.0.1:" + server.getLocalPort();
+        out.write(("CONNECT " + target + " HTTP/1.1\r\nHost: " + target + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+
+        // the response to the CONNECT ends with an empty line
+        InputStream in = client.getInputStream();
+        StringBuilder response = new StringBuilder();
+        while (!response.toString().endsWith("\r\n\r\n")) {
+            int b = in.read();
+            assertThat(b).isNotNegative();
+            response.append((char) b);
+        }
+        assertThat(response.toString()).startsWith("HTTP/1.1 200");
+        return client;
+    }
+
+    private static String readToEnd(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        in.transferTo(bytes);
+        return bytes.toString(StandardCharsets.US_ASCII);
+    }
+
+    private void startProxy() throws Exception {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        proxyServer = (DefaultHttpProxyServer) DefaultHttpProxyServer.bootstrap()
+                .withPort(0)
+                .start();
+    }
+}